@@ -7,6 +7,7 @@ public class BDBConstants
 	public static final String ENTITY_DEFINITION_DB_NAME = "ENTITY_DEF" + DB_SUFFIX;
 	public static final String ENTITY_INDEX_DB_NAME 	 = "ENTITY_INDEX" + DB_SUFFIX;
 	public static final String ENTITY_RELATIONSHIP_DB_NAME 		= "ENTITY_REL" + DB_SUFFIX;
+	public static final String DEEP_INDEX_QUEUE_DB_NAME 		= "DEEP_INDEX_QUEUE" + DB_SUFFIX;
 	
 	public static final String ENVIRONMENT_PROPERTIES_FILE_NAME = "store.properties";
 	public static final String KEY_ACTIVE_ENVIRONMENT 			= "ACTIVE_ENVIRONMENT";
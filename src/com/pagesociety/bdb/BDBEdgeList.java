@@ -0,0 +1,113 @@
+package com.pagesociety.bdb;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.pagesociety.persistence.Entity;
+import com.pagesociety.persistence.PersistenceException;
+
+/* what an entity read out of the store has in a field whose relations are
+ * kept in a BDBEdgeTable. nothing is read until the list is first looked at
+ * and then all of the committed edges are read through the store as light
+ * references. see BDBEdgeTable.getAllRelated. callers that want a page at a
+ * time, or the edges as their own open transaction sees them, use
+ * BDBStore.getRelatedEntities instead.
+ *
+ * it changes like any other list. saving the entity with a changed list
+ * goes through the relationship code which works out the edges to add and
+ * remove. a list nobody changed is never dirty.
+ */
+public class BDBEdgeList extends AbstractList<Entity> implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	private transient BDBEdgeTable 	_edges;
+	private long 					_id;
+	private List<Entity> 			_related;
+	private boolean 				_modified;
+
+	public BDBEdgeList(BDBEdgeTable edges,long id)
+	{
+		_edges = edges;
+		_id    = id;
+	}
+
+	public long getId()
+	{
+		return _id;
+	}
+
+	public BDBEdgeTable getEdgeTable()
+	{
+		return _edges;
+	}
+
+	public boolean isLoaded()
+	{
+		return _related != null;
+	}
+
+	public boolean isModified()
+	{
+		return _modified;
+	}
+
+	/* an unread list over the same edges */
+	public BDBEdgeList copy()
+	{
+		return new BDBEdgeList(_edges,_id);
+	}
+
+	public Entity get(int index)
+	{
+		return related().get(index);
+	}
+
+	public int size()
+	{
+		return related().size();
+	}
+
+	public Entity set(int index,Entity e)
+	{
+		_modified = true;
+		return related().set(index, e);
+	}
+
+	public void add(int index,Entity e)
+	{
+		_modified = true;
+		related().add(index, e);
+		modCount++;
+	}
+
+	public Entity remove(int index)
+	{
+		_modified = true;
+		modCount++;
+		return related().remove(index);
+	}
+
+	private List<Entity> related()
+	{
+		if(_related == null)
+		{
+			/* a list can not throw a checked exception */
+			try{
+				_related = _edges.getAllRelated(_id);
+			}catch(PersistenceException pe)
+			{
+				throw new IllegalStateException(pe.getMessage(),pe);
+			}
+		}
+		return _related;
+	}
+
+	/* goes over the wire as a plain list */
+	private Object writeReplace()
+	{
+		return new ArrayList<Entity>(related());
+	}
+}
@@ -0,0 +1,251 @@
+package com.pagesociety.bdb;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.pagesociety.bdb.locker.EntityLocker;
+import com.pagesociety.persistence.Entity;
+import com.pagesociety.persistence.PersistenceException;
+import com.sleepycat.bind.tuple.LongBinding;
+import com.sleepycat.db.Cursor;
+import com.sleepycat.db.CursorConfig;
+import com.sleepycat.db.Database;
+import com.sleepycat.db.DatabaseConfig;
+import com.sleepycat.db.DatabaseEntry;
+import com.sleepycat.db.DatabaseException;
+import com.sleepycat.db.DatabaseType;
+import com.sleepycat.db.Environment;
+import com.sleepycat.db.LockMode;
+import com.sleepycat.db.LockNotGrantedException;
+import com.sleepycat.db.OperationStatus;
+import com.sleepycat.db.Transaction;
+
+/* the "many" side of a relationship kept out of the entity record. one
+ * sorted duplicate btree per array field, keyed by the id of the entity that
+ * holds the field with one duplicate per related id. both are LongBinding so
+ * the duplicates come back in id order and a page can start after any id.
+ * adding or removing a relation is one btree put or delete no matter how
+ * many relations the entity already has.
+ */
+public class BDBEdgeTable
+{
+	private static final Logger logger = Logger.getLogger(BDBEdgeTable.class);
+
+	/* how long a lazy list read waits on a lock in microseconds */
+	private static final long LIST_READ_LOCK_TIMEOUT = 2 * 1000 * 1000;
+
+	private Environment 	_environment;
+	private EntityLocker 	_locker;
+	private Database 		_dbh;
+	private String 			_entity;
+	private String 			_field;
+	private String 			_related_entity;
+	private volatile boolean _closed;
+
+	public BDBEdgeTable(Environment environment,EntityLocker locker,String entity,String field,String related_entity) throws PersistenceException
+	{
+		_environment 	= environment;
+		_locker 		= locker;
+		_entity 		= entity;
+		_field 			= field;
+		_related_entity = related_entity;
+		try{
+			_dbh = environment.openDatabase(null, getDbName(), null, get_db_config());
+		}catch(Exception e)
+		{
+			logger.error("BDBEdgeTable(Environment, String, String, String)", e);
+			throw new PersistenceException("UNABLE TO OPEN EDGE TABLE "+getDbName());
+		}
+	}
+
+	public String getEntity()
+	{
+		return _entity;
+	}
+
+	public String getField()
+	{
+		return _field;
+	}
+
+	/* the type of the entities at the other end of the edges */
+	public String getRelatedEntity()
+	{
+		return _related_entity;
+	}
+
+	public String getDbName()
+	{
+		return _entity+"_"+_field+"_EDGES"+BDBConstants.DB_SUFFIX;
+	}
+
+	/* false if the edge was already there */
+	public boolean add(Transaction txn,long id,long related_id) throws DatabaseException
+	{
+		return _dbh.putNoDupData(txn, long_entry(id), long_entry(related_id)) == OperationStatus.SUCCESS;
+	}
+
+	/* false if there was no such edge */
+	public boolean remove(Transaction txn,long id,long related_id) throws DatabaseException
+	{
+		Cursor cursor = _dbh.openCursor(txn, CursorConfig.DEFAULT);
+		try{
+			if(cursor.getSearchBoth(long_entry(id), long_entry(related_id), LockMode.RMW) != OperationStatus.SUCCESS)
+				return false;
+			cursor.delete();
+			return true;
+		}finally
+		{
+			cursor.close();
+		}
+	}
+
+	public void removeAll(Transaction txn,long id) throws DatabaseException
+	{
+		_dbh.delete(txn, long_entry(id));
+	}
+
+	public boolean contains(Transaction txn,long id,long related_id) throws DatabaseException
+	{
+		return _dbh.getSearchBoth(txn, long_entry(id), long_entry(related_id), LockMode.READ_COMMITTED) == OperationStatus.SUCCESS;
+	}
+
+	public int count(Transaction txn,long id) throws DatabaseException
+	{
+		DatabaseEntry data 	= new DatabaseEntry();
+		Cursor cursor 		= _dbh.openCursor(txn, CursorConfig.READ_COMMITTED);
+		try{
+			if(cursor.getSearchKey(long_entry(id), data, LockMode.DEFAULT) != OperationStatus.SUCCESS)
+				return 0;
+			return cursor.count();
+		}finally
+		{
+			cursor.close();
+		}
+	}
+
+	/* light references to the entities related to id in id order, starting */
+	/* after after_id. Entity.UNDEFINED starts at the first one. max of 0 or */
+	/* less is all of them */
+	public List<Entity> getRelated(Transaction txn,long id,long after_id,int max) throws DatabaseException
+	{
+		return get_related(txn, id, after_id, max, CursorConfig.READ_COMMITTED);
+	}
+
+	/* what a BDBEdgeList reads when it is first looked at. all of the */
+	/* committed edges of id, read the way a store call would. under the app */
+	/* lock and a reader lock on the entity so a schema change or close can */
+	/* not take the table away, and in a transaction of its own. that */
+	/* transaction gives up on a lock it can not get instead of waiting, since */
+	/* the lock can belong to an open transaction of the same thread. edges */
+	/* written in an open transaction are read in it with */
+	/* BDBStore.getRelatedEntities(transaction_id,...) */
+	public List<Entity> getAllRelated(long id) throws PersistenceException
+	{
+		_locker.enterAppThread();
+		Transaction txn = null;
+		try{
+			_locker.enterEntityReader(_entity);
+			if(_closed)
+				throw new PersistenceException("EDGE TABLE "+getDbName()+" IS CLOSED");
+			txn = _environment.beginTransaction(null, null);
+			txn.setLockTimeout(LIST_READ_LOCK_TIMEOUT);
+			List<Entity> related = get_related(txn, id, Entity.UNDEFINED, 0, CursorConfig.READ_COMMITTED);
+			txn.commitNoSync();
+			txn = null;
+			return related;
+		}catch(LockNotGrantedException lnge)
+		{
+			throw new PersistenceException("EDGES OF "+_entity+"."+_field+" FOR "+id+" ARE LOCKED BY AN OPEN TRANSACTION. READ THEM IN IT WITH getRelatedEntities");
+		}catch(DatabaseException dbe)
+		{
+			logger.error("getAllRelated(long)", dbe);
+			throw new PersistenceException("UNABLE TO READ EDGES OF "+_entity+"."+_field+" FOR "+id);
+		}finally
+		{
+			if(txn != null)
+			{
+				try{
+					txn.abort();
+				}catch(DatabaseException dbe)
+				{
+					logger.error("getAllRelated(long)", dbe);
+				}
+			}
+			_locker.exitAppThread();
+		}
+	}
+
+	private List<Entity> get_related(Transaction txn,long id,long after_id,int max,CursorConfig cfg) throws DatabaseException
+	{
+		List<Entity> related 	= new ArrayList<Entity>();
+		DatabaseEntry key 		= long_entry(id);
+		DatabaseEntry data 		= long_entry(after_id + 1);
+		Cursor cursor 			= _dbh.openCursor(txn, cfg);
+		try{
+			OperationStatus op_stat = cursor.getSearchBothRange(key, data, LockMode.DEFAULT);
+			while(op_stat == OperationStatus.SUCCESS && (max <= 0 || related.size() < max))
+			{
+				Entity e = Entity.createInstance();
+				e.setType(_related_entity);
+				e.setId(LongBinding.entryToLong(data));
+				related.add(e);
+				op_stat = cursor.getNextDup(key, data, LockMode.DEFAULT);
+			}
+		}finally
+		{
+			cursor.close();
+		}
+		return related;
+	}
+
+	public Database getDbh()
+	{
+		return _dbh;
+	}
+
+	public void close() throws DatabaseException
+	{
+		_closed = true;
+		_dbh.close();
+	}
+
+	public void delete() throws DatabaseException
+	{
+		close();
+		try{
+			_environment.removeDatabase(null, getDbName(), null);
+		}catch(FileNotFoundException fnfe)
+		{
+			logger.error(fnfe);
+		}
+	}
+
+	private static DatabaseEntry long_entry(long v)
+	{
+		DatabaseEntry e = new DatabaseEntry();
+		LongBinding.longToEntry(v, e);
+		return e;
+	}
+
+	private DatabaseConfig get_db_config()
+	{
+		DatabaseConfig cfg = new DatabaseConfig();
+		cfg.setErrorStream(System.err);
+		cfg.setErrorPrefix("DB FOR EDGES "+_entity+"."+_field);
+		cfg.setType(DatabaseType.BTREE);
+		cfg.setAllowCreate(true);
+		cfg.setSortedDuplicates(true);
+		cfg.setTransactional(true);
+		cfg.setReadUncommitted(true);
+		return cfg;
+	}
+
+	public String toString()
+	{
+		return "BDBEdgeTable "+_entity+"."+_field+" -> "+_related_entity;
+	}
+}
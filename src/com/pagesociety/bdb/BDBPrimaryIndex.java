@@ -1,15 +1,20 @@
 package com.pagesociety.bdb;
 
 import java.io.FileNotFoundException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
 import com.pagesociety.bdb.binding.FieldBinding;
 import com.pagesociety.bdb.binding.EntityBinding;
+import com.pagesociety.bdb.cache.EntityCache;
 import com.pagesociety.bdb.index.iterator.IterableIndex;
 import com.pagesociety.persistence.Entity;
 import com.pagesociety.persistence.EntityDefinition;
+import com.pagesociety.persistence.FieldDefinition;
 import com.pagesociety.persistence.PersistenceException;
 import com.pagesociety.persistence.QueryResult;
 import com.pagesociety.persistence.Types;
@@ -41,12 +46,39 @@ public class BDBPrimaryIndex implements IterableIndex
 	private Database 		 _sequence_db;
 	private Sequence 		 _sequence;
 	private DatabaseEntry 	 _sequence_key;
+	private EntityCache		 _cache;
 	
 	protected BDBPrimaryIndex(EntityBinding binding)
 	{
 		_binding = binding;
 	}
 	
+	protected void setEntityCache(EntityCache cache)
+	{
+		_cache = cache;
+	}
+	
+	public EntityCache getEntityCache()
+	{
+		return _cache;
+	}
+	
+	/* called by the store once a write to id has committed or aborted. we
+	 * also call it ourselves as soon as we touch the row so that anyone who
+	 * read it before the write can not put the old version back.
+	 */
+	protected void invalidateCachedEntity(long id)
+	{
+		if(_cache != null)
+			_cache.invalidate(id);
+	}
+	
+	protected void clearEntityCache()
+	{
+		if(_cache != null)
+			_cache.clear();
+	}
+	
 	
 	protected void setup(Environment environment,EntityDefinition def) throws PersistenceException
 	{
@@ -85,6 +117,7 @@ public class BDBPrimaryIndex implements IterableIndex
 	protected void setEntityDefinition(EntityDefinition def)
 	{
 		_def = def;
+		clearEntityCache();
 	}
 	
 	
@@ -112,6 +145,7 @@ public class BDBPrimaryIndex implements IterableIndex
 		String new_seq_name = get_sequence_db_name(new_name);
 		
 		try {
+			clearEntityCache();
 			close();
 			System.out.println("\tRENAMING "+old_db_name+" to "+new_db_name);
 			_environment.renameDatabase(null,old_db_name,null,new_db_name);
@@ -191,6 +225,7 @@ public class BDBPrimaryIndex implements IterableIndex
 			{
 				seqnum = entity_id;
 				LongBinding.longToEntry(seqnum, pkey);//we dont use valueToEntry because we dont want the
+				invalidateCachedEntity(seqnum);
 				retry_count = 0;
 				Transaction delete_txn = null;
 				while(retry_count < BDBStore.MAX_DEADLOCK_RETRIES)
@@ -254,6 +289,7 @@ public class BDBPrimaryIndex implements IterableIndex
 				}
 				_dbh.put(txn, pkey, data);
 				txn.commitNoSync();
+				invalidateCachedEntity(LongBinding.entryToLong(pkey));
 				//System.out.println(">>> LOW LEVEL SAVE OF ENTITY "+e);
 				break;
 			}
@@ -283,6 +319,7 @@ public class BDBPrimaryIndex implements IterableIndex
 			try {
 			    txn = _environment.beginTransaction(parent_txn,TransactionConfig.DEFAULT);
 				LongBinding.longToEntry(id,pkey);
+				invalidateCachedEntity(id);
 				OperationStatus op_stat = _dbh.delete(txn, pkey);
 				if(op_stat == OperationStatus.NOTFOUND)
 					pkey = null;
@@ -324,6 +361,18 @@ public class BDBPrimaryIndex implements IterableIndex
 	{
 		int retry_count = 0;
 		Entity e 		= null;
+		/* only reads outside of a transaction go through the cache. inside
+		 * a transaction you need to see your own uncommitted writes.
+		 */
+		boolean use_cache = (parent_txn == null && _cache != null && _cache.isEnabled());
+		long stamp		  = 0;
+		if(use_cache)
+		{
+			e = _cache.get(id);
+			if(e != null)
+				return e;
+			stamp = _cache.stamp();
+		}
 		while (retry_count < BDBStore.MAX_DEADLOCK_RETRIES)
 		{
 			Transaction txn = null;
@@ -341,6 +390,8 @@ public class BDBPrimaryIndex implements IterableIndex
 					//System.out.println("PIDX GET BY ID "+id+" WAS FOUND");
 					e = _binding.getEntitySetId(_def, key, data);
 					txn.commit();
+					if(use_cache)
+						_cache.put(id, e, stamp);
 					//TODO: in the future lets resolve entity definitions up here//
 					//does an entity even need a pointer to its def in the first place or
 					//is type enough???//
@@ -389,11 +440,151 @@ public class BDBPrimaryIndex implements IterableIndex
 		return null;
 	}
 	
+	/* batch version of getById. the ids are sorted and walked with one cursor in
+	 * one read committed transaction so we descend the btree in key order
+	 * instead of doing a random get per id. the map only has entries for the ids
+	 * that were found. callers that need request order build it from the map.
+	 */
+	public Map<Long,Entity> getByIds(Transaction parent_txn,long[] ids) throws PersistenceException
+	{
+		return do_get_by_ids(parent_txn,ids,-1);
+	}
+
+	/* same walk but rows are only decoded up to field_name and the entities
+	 * carry just that field. this is for ordering lots of rows when only a
+	 * page of them will be returned. cache hits come back whole.
+	 */
+	public Map<Long,Entity> getPartialByIds(Transaction parent_txn,long[] ids,String field_name) throws PersistenceException
+	{
+		List<FieldDefinition> fields = _def.getFields();
+		for(int i = 0;i < fields.size();i++)
+		{
+			if(fields.get(i).getName().equals(field_name))
+				return do_get_by_ids(parent_txn,ids,i);
+		}
+		throw new PersistenceException("ATTRIBUTE NAMED "+field_name+" DOES NOT EXIST IN ENTITY "+_def.getName());
+	}
+
+	/* partial_field is the index of the last field to decode or -1 for all of them */
+	private Map<Long,Entity> do_get_by_ids(Transaction parent_txn,long[] ids,int partial_field) throws PersistenceException
+	{
+		Map<Long,Entity> results = new HashMap<Long,Entity>(ids.length * 2);
+		boolean use_cache = (parent_txn == null && _cache != null && _cache.isEnabled());
+
+		long[] sorted_ids = new long[ids.length];
+		long stamp 		  = use_cache?_cache.stamp():0;
+		int num_ids = 0;
+		long last_id = Entity.UNDEFINED;
+		long[] copy = ids.clone();
+		Arrays.sort(copy);
+		for(int i = 0;i < copy.length;i++)
+		{
+			long id = copy[i];
+			if(id == last_id && i > 0)
+				continue;
+			last_id = id;
+			if(use_cache)
+			{
+				Entity e = _cache.get(id);
+				if(e != null)
+				{
+					results.put(id, e);
+					continue;
+				}
+			}
+			sorted_ids[num_ids++] = id;
+		}
+		if(num_ids == 0)
+			return results;
+
+		int retry_count = 0;
+		while (retry_count < BDBStore.MAX_DEADLOCK_RETRIES)
+		{
+			Transaction txn = null;
+			Cursor cursor	= null;
+			Map<Long,Entity> fetched = new HashMap<Long,Entity>(num_ids * 2);
+			try
+			{
+				txn 	= _environment.beginTransaction(parent_txn, GET_BY_ID_CFG);
+				cursor 	= _dbh.openCursor(txn, CursorConfig.READ_COMMITTED);
+				DatabaseEntry key 		= new DatabaseEntry();
+				DatabaseEntry data 		= new DatabaseEntry();
+				for(int i = 0;i < num_ids;i++)
+				{
+					LongBinding.longToEntry(sorted_ids[i],key);
+					if(cursor.getSearchKey(key, data, LockMode.READ_COMMITTED) != OperationStatus.SUCCESS)
+						continue;
+					if(partial_field == -1)
+						fetched.put(sorted_ids[i], _binding.getEntitySetId(_def, key, data));
+					else
+						fetched.put(sorted_ids[i], _binding.getPartialEntitySetId(_def, key, data, partial_field));
+				}
+				cursor.close();
+				cursor = null;
+				txn.commit();
+				if(use_cache && partial_field == -1)
+				{
+					for(int i = 0;i < num_ids;i++)
+					{
+						Entity e = fetched.get(sorted_ids[i]);
+						if(e != null)
+							_cache.put(sorted_ids[i], e, stamp);
+					}
+				}
+				results.putAll(fetched);
+				return results;
+			}
+			catch (DeadlockException de)
+			{
+				try{
+					if(cursor != null)
+						cursor.close();
+					txn.abort();
+				}catch(Exception ee)
+				{
+					ee.printStackTrace();
+				}
+				retry_count++;
+				logger.info("READ DEADLOCK OCCURRED FOR " + _def.getName() + " BATCH GET retry #:" + retry_count);
+				if (retry_count >= BDBStore.MAX_DEADLOCK_RETRIES)
+				{
+					throw new PersistenceException("108 BATCH READ FAILED FOR " + _def.getName()
+							+ " DUE TO DEADLOCKING.RETRY WAS GREATER THAN MAX_NUMBER_RETRYS.");
+				}
+			}
+			catch(DatabaseException dbe)
+			{
+				try{
+					if(cursor != null)
+						cursor.close();
+					if(txn != null)
+						txn.abort();
+				}catch(Exception ee)
+				{
+					ee.printStackTrace();
+				}
+				throw new PersistenceException("FAILED BATCH GET BY ID ON PIDX",dbe);
+			}
+		}// end while loop
+		return results;
+	}
+	
 	/* this is how the secondary indexes use us to get back an entity */
 	public Entity getByPrimaryKey(Transaction txn,DatabaseEntry pkey) throws DatabaseException/* or persistence exception*/
 	{
 		int retry_count = 0;
 		Entity e = null;
+		boolean use_cache = (txn == null && _cache != null && _cache.isEnabled());
+		long id			  = 0;
+		long stamp		  = 0;
+		if(use_cache)
+		{
+			id = LongBinding.entryToLong(pkey);
+			e  = _cache.get(id);
+			if(e != null)
+				return e;
+			stamp = _cache.stamp();
+		}
 		while (retry_count < BDBStore.MAX_DEADLOCK_RETRIES)
 		{
 			try
@@ -403,6 +594,8 @@ public class BDBPrimaryIndex implements IterableIndex
 				{
 					//System.out.println("PKEY IS "+LongBinding.entryToLong(pkey));
 					e = _binding.getEntitySetId(_def, pkey, data);
+					if(use_cache)
+						_cache.put(id, e, stamp);
 					return e;
 				}
 				else
@@ -480,6 +673,95 @@ public class BDBPrimaryIndex implements IterableIndex
 	}
 	
 
+	/* keyset version of the above. instead of walking start records we seek
+	 * straight to the last id of the previous page with getSearchKeyRange so
+	 * every page costs the same no matter how deep it is. a null token means
+	 * start at the beginning. the next results token is null on the last page.
+	 */
+	protected QueryResult getEntitiesOrderedById(String entity_type, BDBQueryToken token, long number_of_records) throws PersistenceException
+	{
+		BDBQueryResult qr = new BDBQueryResult();
+		/* an empty page has no last id to hand out a token for */
+		if(number_of_records <= 0)
+			return qr;
+		/* a bad token is turned away before there is a cursor to leak */
+		long last_id = Entity.UNDEFINED;
+		if(token != null)
+		{
+			if(!entity_type.equals(token.getEntityType()))
+				throw new PersistenceException("BAD NEXT RESULTS TOKEN. TOKEN IS FOR "+token.getEntityType()+" NOT "+entity_type);
+			last_id = get_last_id_from_token(token);
+		}
+		DatabaseEntry key = new DatabaseEntry();
+		DatabaseEntry data = new DatabaseEntry();
+		Cursor cursor = null;
+		try
+		{
+			cursor = _dbh.openCursor(null, CursorConfig.READ_COMMITTED);
+			OperationStatus op_stat;
+			if(token == null)
+			{
+				op_stat = cursor.getFirst(key, data, LockMode.DEFAULT);
+			}
+			else
+			{
+				LongBinding.longToEntry(last_id, key);
+				op_stat = cursor.getSearchKeyRange(key, data, LockMode.DEFAULT);
+				/* the last one of the previous page could have been deleted in the mean time */
+				if(op_stat == OperationStatus.SUCCESS && LongBinding.entryToLong(key) == last_id)
+					op_stat = cursor.getNext(key, data, LockMode.DEFAULT);
+			}
+
+			while(op_stat == OperationStatus.SUCCESS)
+			{
+				if (qr.size() == number_of_records)
+				{
+					/* there is at least one more so hand out a token */
+					Entity last = qr.getEntities().get(qr.size()-1);
+					DatabaseEntry last_pkey = new DatabaseEntry();
+					LongBinding.longToEntry(last.getId(), last_pkey);
+					BDBQueryToken next = new BDBQueryToken();
+					next.setEntityType(entity_type);
+					next.setIndexName(getName());
+					next.setPageSize((int)number_of_records);
+					next.setLastPKey(last_pkey);
+					qr.setNextResultsToken(next);
+					break;
+				}
+				qr.add(_binding.getEntitySetId(_def, key, data));
+				op_stat = cursor.getNext(key, data, LockMode.DEFAULT);
+			}
+			cursor.close();
+		}
+		catch (DatabaseException de)
+		{
+			try{
+				if(cursor != null)
+					cursor.close();
+			}catch(DatabaseException ee)
+			{
+				logger.error(ee);
+				throw new PersistenceException("SERIOUS: FAILED ON CURSOR CLOSE.");
+			}
+			logger.error(de);
+			throw new PersistenceException("get entities ordered by id failed " + de.getMessage());
+		}
+		return qr;
+	}
+	
+	/* the hex encoding in the token strips trailing null bytes so pad the
+	 * key back out to the size of a long before we decode it.
+	 */
+	private static long get_last_id_from_token(BDBQueryToken token) throws PersistenceException
+	{
+		DatabaseEntry last_pkey = token.getLastPKeyAsDatabaseEntry();
+		if(last_pkey == null || last_pkey.getData() == null || last_pkey.getSize() > 8)
+			throw new PersistenceException("BAD NEXT RESULTS TOKEN. NO LAST PKEY.");
+		byte[] b = new byte[8];
+		System.arraycopy(last_pkey.getData(), last_pkey.getOffset(), b, 0, last_pkey.getSize());
+		return LongBinding.entryToLong(new DatabaseEntry(b));
+	}
+
 	private static String get_primary_index_db_name(String entity_name)
 	{
 		return "PRIMARY_INDEX_"+entity_name+".db";
@@ -527,7 +809,12 @@ public class BDBPrimaryIndex implements IterableIndex
 	
 	public int truncate(Transaction txn,boolean count) throws DatabaseException
 	{
-		return getDbh().truncate(txn,count);
+		try{
+			return getDbh().truncate(txn,count);
+		}finally
+		{
+			clearEntityCache();
+		}
 	}
 
 	
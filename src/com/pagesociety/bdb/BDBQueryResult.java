@@ -45,6 +45,12 @@ public class BDBQueryResult extends QueryResult
 		this.token = token.toString();
 	}
 
+	/* a token we already turned into a string */
+	public void setNextResultsToken(String token)
+	{
+		this.token = token;
+	}
+
 	public void add(Entity e)
 	{
 		entities.add(e);
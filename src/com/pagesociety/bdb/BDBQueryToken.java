@@ -38,6 +38,8 @@ public class BDBQueryToken
 	protected String        	  _last_pkey_as_hex_string;
 	
 	protected int 			_offset;
+	/* IndexIterator.encode() of the last row handed out */
+	protected String 		_iterator_state;
 
 	public BDBQueryToken()
 	{
@@ -196,6 +198,16 @@ public class BDBQueryToken
 		return _offset;
 	}
 	
+	public void setIteratorState(String iterator_state)
+	{
+		_iterator_state = iterator_state;
+	}
+
+	public String getIteratorState()
+	{
+		return _iterator_state;
+	}
+	
 	public void setSetQueryKeys(List<DatabaseEntry> set_keys)
 	{
 		_set_keys_as_database_entries = set_keys;
@@ -304,6 +316,8 @@ public class BDBQueryToken
 		sb.append(_otherkeys_length);
 		sb.append(split_char);
 		sb.append(_last_pkey_as_hex_string);
+		sb.append(split_char);
+		sb.append(_iterator_state);
 		return sb.toString();
 	}
 
@@ -324,6 +338,13 @@ public class BDBQueryToken
 		t.setSmallestKey(st.nextToken());
 		t.setOtherkeysLength(Integer.parseInt(st.nextToken()));
 		t.setLastPKey(st.nextToken());
+		/* tokens handed out before iterator state was added stop here */
+		if(st.hasMoreTokens())
+		{
+			String iterator_state = st.nextToken();
+			if(!iterator_state.equals("null"))
+				t.setIteratorState(iterator_state);
+		}
 		return t;
 	}
 	
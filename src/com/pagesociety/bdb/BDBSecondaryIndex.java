@@ -2,6 +2,8 @@ package com.pagesociety.bdb;
 
 
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -12,6 +14,7 @@ import org.apache.log4j.Logger;
 
 import com.pagesociety.bdb.binding.EntityBinding;
 import com.pagesociety.bdb.binding.FieldBinding;
+import com.pagesociety.bdb.index.IndexRow;
 import com.pagesociety.bdb.index.iterator.IterableIndex;
 import com.pagesociety.persistence.Entity;
 import com.pagesociety.persistence.EntityDefinition;
@@ -44,6 +47,12 @@ public abstract class BDBSecondaryIndex implements IterableIndex
 	public static final String ATTRIBUTE_DEEP_INDEX_PATH_LOCATOR_PREFIX		 = "ref_path_";
 	public static final String ATTRIBUTE_DEEP_INDEX_PATH_TYPE_LOCATOR_PREFIX = "ref_path_type_";
 	
+	/* an index whose rows can be worked out again from the entity alone can */
+	/* go without its delete map. the store hands it the before-image instead */
+	public static final String ATTRIBUTE_DELETE_MAP		= "delete_map";
+	public static final String ATTRIBUTE_DELETE_MAP_YES	= "y";
+	public static final String ATTRIBUTE_DELETE_MAP_NO	= "n";
+	
 	
 	protected BDBPrimaryIndex 			primary_index;
 	protected Environment 				environment;	
@@ -136,7 +145,10 @@ public abstract class BDBSecondaryIndex implements IterableIndex
 			this.environment 	= primary_index.getDbh().getEnvironment();
 			/* set my own db handle */		
 			db_handle 	   = openIndexDBHandle(environment,getDefaultIndexDbConfig(),getIndexDbName(getEntityDefinition().getName(),getName()));
-			delete_handle  = openIndexDBHandle(environment,getDefaultDeleteDbConfig(),getDeleteIndexDbName(getEntityDefinition().getName(),getName()));
+			if(hasDeleteMap())
+				delete_handle  = openIndexDBHandle(environment,getDefaultDeleteDbConfig(),getDeleteIndexDbName(getEntityDefinition().getName(),getName()));
+			else
+				delete_handle  = null;
 		
 		}catch(Exception e)
 		{
@@ -151,7 +163,8 @@ public abstract class BDBSecondaryIndex implements IterableIndex
 	{
 		//logger.info("CLOSING SEC INDEX DB HANDLE FOR IDX "+getName()+" ON ENTITY "+getEntityDefinition().getName());
 		db_handle.close();
-		delete_handle.close();
+		if(delete_handle != null)
+			delete_handle.close();
 	}
 
 
@@ -161,7 +174,7 @@ public abstract class BDBSecondaryIndex implements IterableIndex
 			System.err.println("DELETEING SECONDARY INDEX DB "+getIndexDbName(getEntityDefinition().getName(),getName()));
 			close();
 			environment.removeDatabase(null, getIndexDbName(getEntityDefinition().getName(),getName()),null);
-			environment.removeDatabase(null, getDeleteIndexDbName(getEntityDefinition().getName(),getName()),null);
+			remove_if_exists(getDeleteIndexDbName(getEntityDefinition().getName(),getName()));
 		}catch(FileNotFoundException e)
 		{
 			logger.error(e);
@@ -181,49 +194,56 @@ public abstract class BDBSecondaryIndex implements IterableIndex
 		return entity_name+"_"+EntityIndex.typeToString(type).toUpperCase()+"_"+index_name+"_DELETE_MAP_"+BDBConstants.DB_SUFFIX;
 	}
 
+	/* all the rows of one entity go in under the caller's transaction through */
+	/* one cursor per db, in btree order. a deadlock goes up to the caller who */
+	/* aborts and starts over like it would for any other write */
 	public void insertIndexEntry(Transaction parent_txn,Entity e,DatabaseEntry data) throws DatabaseException
-	{	
-		Set<DatabaseEntry> keys = new HashSet<DatabaseEntry>();
-		getInsertKeys(e,keys);
-		Iterator<DatabaseEntry> iter = keys.iterator();
-		while(iter.hasNext())
-		{	
-			DatabaseEntry key   = iter.next();
-			Transaction txn 	= null;
-			int retry_count = 0;
-			
-			//fail fast here for now....for some reason our access pattern causes this retry to be useless
-			//without starting the whole transaction over again//
-			//while (retry_count < BDBStore.MAX_DEADLOCK_RETRIES) 
-			//{
-			    try {
-					txn = environment.beginTransaction(parent_txn, null);	
-					//System.out.println("ADDING KEY "+new String(key.getData(),0,key.getSize())+" FOR "+LongBinding.entryToLong(data));
-					db_handle.put(txn, key, data);
-					delete_handle.put(txn,data,key);	
-					txn.commitNoSync();
-					/* dont delete. we break out upon success */
-					//break;
-			    } catch (DeadlockException de) {
-			    	try{
-			    		txn.abort();
-			    	}catch(DatabaseException dbe)
-			    	{
-			    		dbe.printStackTrace();
-			    		System.err.println("FAILED ABORTING TXN.");
-			    	}
-			    		retry_count++;
-			    	System.err.println(Thread.currentThread().getId()+" SEC INDEX WRITE DEADLOCK OCCURRED retry_count "+retry_count+" FOR "+e);
-			    	//if (retry_count >= BDBStore.MAX_DEADLOCK_RETRIES) 
-		            //{
-			    		throw new DatabaseException(e.getId()+":108 SAVE FAILED FOR SEC INDEX.RETRY WAS GREATER THAN MAX_NUMBER_RETRYS.");
-		            //}
-			    }
-			//}//end while loop	
+	{
+		Set<IndexRow> rows = new HashSet<IndexRow>();
+		getInsertRows(e,data,rows);
+		Transaction txn = parent_txn;
+		if(txn == null)
+			txn = environment.beginTransaction(null, null);
+		try{
+			put_rows(txn,new ArrayList<IndexRow>(rows));
+			if(parent_txn == null)
+				txn.commitNoSync();
+		}catch(DatabaseException dbe)
+		{
+			if(parent_txn == null)
+				txn.abort();
+			throw dbe;
 		}
 	}
-	
-	
+
+	private void put_rows(Transaction txn,List<IndexRow> rows) throws DatabaseException
+	{
+		if(rows.isEmpty())
+			return;
+		Cursor cursor = null;
+		try{
+			Collections.sort(rows,IndexRow.BY_KEY);
+			cursor = db_handle.openCursor(txn, CursorConfig.DEFAULT);
+			for(int i = 0;i < rows.size();i++)
+				cursor.put(rows.get(i).getKey(), rows.get(i).getData());
+			cursor.close();
+			cursor = null;
+			if(delete_handle == null)
+				return;
+
+			Collections.sort(rows,IndexRow.BY_DATA);
+			cursor = delete_handle.openCursor(txn, CursorConfig.DEFAULT);
+			for(int i = 0;i < rows.size();i++)
+				cursor.put(rows.get(i).getData(), rows.get(i).getKey());
+			cursor.close();
+			cursor = null;
+		}finally
+		{
+			if(cursor != null)
+				cursor.close();
+		}
+	}
+
 	public void deleteIndexEntry(Transaction parent_txn,DatabaseEntry pkey) throws DatabaseException
 	{	
 //		System.out.println(getName()+" DELETEING INDEX ENTRYS FOR PKEY "+FieldBinding.entryToValue(Types.TYPE_LONG,pkey));
@@ -232,6 +252,8 @@ public abstract class BDBSecondaryIndex implements IterableIndex
 		Cursor del_cursor 	= null;
 		Cursor idx_cursor 	= null;
 		Transaction txn 	= null; 
+		if(delete_handle == null)
+			throw new DatabaseException("INDEX "+getName()+" HAS NO DELETE MAP. DELETE IT WITH THE BEFORE-IMAGE");
 		
 		int retry_count = 0;
 		while (retry_count < BDBStore.MAX_DEADLOCK_RETRIES) 
@@ -308,11 +330,96 @@ public abstract class BDBSecondaryIndex implements IterableIndex
 
 		}//end while loop	
 	}
+
+	/* old_image is the entity as it was stored. without a delete map that is */
+	/* where the rows to delete come from */
+	public void deleteIndexEntry(Transaction parent_txn,DatabaseEntry pkey,Entity old_image) throws DatabaseException
+	{
+		if(delete_handle != null)
+		{
+			deleteIndexEntry(parent_txn,pkey);
+			return;
+		}
+		Set<IndexRow> old_rows = new HashSet<IndexRow>();
+		getIndexRows(parent_txn,pkey,old_image,old_rows);
+		updateIndexEntry(parent_txn,pkey,old_rows,new HashSet<IndexRow>());
+	}
 	
+	/* writes only the rows that differ between old_rows and new_rows. an update */
+	/* that changes one member of a set or one word of a text field touches */
+	/* just those rows instead of deleting and putting back all of them. runs */
+	/* under the caller's transaction like insertIndexEntry */
+	public void updateIndexEntry(Transaction parent_txn,DatabaseEntry pkey,Set<IndexRow> old_rows,Set<IndexRow> new_rows) throws DatabaseException
+	{
+		List<IndexRow> removed = new ArrayList<IndexRow>();
+		List<IndexRow> added   = new ArrayList<IndexRow>();
+		Iterator<IndexRow> it  = old_rows.iterator();
+		while(it.hasNext())
+		{
+			IndexRow r = it.next();
+			if(!new_rows.contains(r))
+				removed.add(r);
+		}
+		it = new_rows.iterator();
+		while(it.hasNext())
+		{
+			IndexRow r = it.next();
+			if(!old_rows.contains(r))
+				added.add(r);
+		}
+		if(removed.isEmpty() && added.isEmpty())
+			return;
+
+		Transaction txn = parent_txn;
+		if(txn == null)
+			txn = environment.beginTransaction(null, null);
+		Cursor del_cursor 	= null;
+		Cursor idx_cursor 	= null;
+		try{
+			Collections.sort(removed,IndexRow.BY_KEY);
+			idx_cursor = db_handle.openCursor(txn, CursorConfig.DEFAULT);
+			if(delete_handle != null)
+				del_cursor = delete_handle.openCursor(txn, CursorConfig.DEFAULT);
+			for(int i = 0;i < removed.size();i++)
+			{
+				IndexRow r = removed.get(i);
+				if(idx_cursor.getSearchBoth(copy(r.getKey()), copy(r.getData()), LockMode.DEFAULT) == OperationStatus.SUCCESS)
+					idx_cursor.delete();
+				if(del_cursor != null && del_cursor.getSearchBoth(copy(r.getData()), copy(r.getKey()), LockMode.DEFAULT) == OperationStatus.SUCCESS)
+					del_cursor.delete();
+			}
+			idx_cursor.close();
+			idx_cursor = null;
+			if(del_cursor != null)
+				del_cursor.close();
+			del_cursor = null;
+			put_rows(txn,added);
+			if(parent_txn == null)
+				txn.commitNoSync();
+		}catch(DatabaseException dbe)
+		{
+			if(idx_cursor != null)
+				idx_cursor.close();
+			if(del_cursor != null)
+				del_cursor.close();
+			if(parent_txn == null)
+				txn.abort();
+			throw dbe;
+		}
+	}
+
+	private static DatabaseEntry copy(DatabaseEntry e)
+	{
+		byte[] b = new byte[e.getSize()];
+		System.arraycopy(e.getData(), e.getOffset(), b, 0, e.getSize());
+		return new DatabaseEntry(b);
+	}
+
 	public void truncate(Transaction txn) throws DatabaseException
 	{
 		db_handle.truncate(txn,false);
-		delete_handle.truncate(txn,false);
+		if(delete_handle != null)
+			delete_handle.truncate(txn,false);
 	}
 
 	public void primaryIndexNameChanged(String old_name,String new_name) 
@@ -329,10 +436,13 @@ public abstract class BDBSecondaryIndex implements IterableIndex
 			close();
 			logger.info("RENAMING "+old_db_name+" to "+new_db_name);
 			environment.renameDatabase(null,old_db_name,null,new_db_name);
-			logger.info("RENAMING "+old_delete_db_name+" to "+new_delete_db_name);
-			environment.renameDatabase(null,old_delete_db_name,null,new_delete_db_name);
 			db_handle 		= openIndexDBHandle(environment,getDefaultIndexDbConfig(),new_db_name);		
-			delete_handle 	= openIndexDBHandle(environment,getDefaultDeleteDbConfig(),new_delete_db_name);		
+			if(hasDeleteMap())
+			{
+				logger.info("RENAMING "+old_delete_db_name+" to "+new_delete_db_name);
+				environment.renameDatabase(null,old_delete_db_name,null,new_delete_db_name);
+				delete_handle 	= openIndexDBHandle(environment,getDefaultDeleteDbConfig(),new_delete_db_name);		
+			}
 		} catch (Exception e) 
 		{
 			e.printStackTrace();
@@ -340,16 +450,178 @@ public abstract class BDBSecondaryIndex implements IterableIndex
 	}
 
 	
+	/* a rebuild fills these and then swaps them in. they sit next to the live */
+	/* dbs under their own names until then */
+	public Database openRebuildDbh() throws PersistenceException
+	{
+		String name = getRebuildDbName(getIndexDbName(getEntityDefinition().getName(),getName()));
+		remove_if_exists(name);
+		return openIndexDBHandle(environment,getDefaultIndexDbConfig(),name);
+	}
+
+	/* null when the index goes without a delete map */
+	public Database openRebuildDeleteDbh() throws PersistenceException
+	{
+		if(!hasDeleteMap())
+			return null;
+		String name = getRebuildDbName(getDeleteIndexDbName(getEntityDefinition().getName(),getName()));
+		remove_if_exists(name);
+		return openIndexDBHandle(environment,getDefaultDeleteDbConfig(),name);
+	}
+
+	/* drops the live dbs and puts the rebuilt ones in their place. the */
+	/* removes and renames are one transaction so a crash or a failure part */
+	/* way through leaves the live dbs as they were and the rebuilt ones */
+	/* under their rebuild names. the rebuilt handles are closed here either */
+	/* way. nobody can be using the index while this runs */
+	public void swapInRebuiltDbs(Database rebuilt_dbh,Database rebuilt_delete_dbh) throws DatabaseException
+	{
+		String db_name 			= getIndexDbName(getEntityDefinition().getName(),getName());
+		String delete_db_name 	= getDeleteIndexDbName(getEntityDefinition().getName(),getName());
+		boolean had_delete_map 	= (delete_handle != null);
+		rebuilt_dbh.close();
+		if(rebuilt_delete_dbh != null)
+			rebuilt_delete_dbh.close();
+		close();
+		Transaction txn = null;
+		try{
+			txn = environment.beginTransaction(null, null);
+			environment.removeDatabase(txn, db_name, null);
+			if(had_delete_map)
+				environment.removeDatabase(txn, delete_db_name, null);
+			environment.renameDatabase(txn, getRebuildDbName(db_name), null, db_name);
+			if(rebuilt_delete_dbh != null)
+				environment.renameDatabase(txn, getRebuildDbName(delete_db_name), null, delete_db_name);
+			txn.commit();
+			txn = null;
+		}catch(FileNotFoundException fnfe)
+		{
+			abort_swap(txn);
+			reopen_handles(db_name, delete_db_name, had_delete_map);
+			throw new DatabaseException("SWAP OF REBUILT INDEX "+getName()+" FAILED. "+fnfe.getMessage());
+		}catch(DatabaseException dbe)
+		{
+			abort_swap(txn);
+			logger.error("swapInRebuiltDbs(Database, Database)", dbe);
+			reopen_handles(db_name, delete_db_name, had_delete_map);
+			throw dbe;
+		}
+		reopen_handles(db_name, delete_db_name, rebuilt_delete_dbh != null);
+	}
+
+	private void abort_swap(Transaction txn)
+	{
+		if(txn == null)
+			return;
+		try{
+			txn.abort();
+		}catch(DatabaseException dbe)
+		{
+			logger.error("abort_swap(Transaction)", dbe);
+		}
+	}
+
+	private void reopen_handles(String db_name,String delete_db_name,boolean delete_map) throws DatabaseException
+	{
+		try{
+			db_handle 	  = openIndexDBHandle(environment,getDefaultIndexDbConfig(),db_name);
+			delete_handle = delete_map?openIndexDBHandle(environment,getDefaultDeleteDbConfig(),delete_db_name):null;
+		}catch(PersistenceException pe)
+		{
+			throw new DatabaseException("UNABLE TO REOPEN INDEX "+getName()+". "+pe.getMessage());
+		}
+	}
+
+	/* throws away rebuilt dbs that were never swapped in. pass null for */
+	/* handles that are already closed */
+	public void discardRebuiltDbs(Database rebuilt_dbh,Database rebuilt_delete_dbh)
+	{
+		try{
+			if(rebuilt_dbh != null)
+				rebuilt_dbh.close();
+			if(rebuilt_delete_dbh != null)
+				rebuilt_delete_dbh.close();
+		}catch(DatabaseException dbe)
+		{
+			logger.error(dbe);
+		}
+		remove_if_exists(getRebuildDbName(getIndexDbName(getEntityDefinition().getName(),getName())));
+		remove_if_exists(getRebuildDbName(getDeleteIndexDbName(getEntityDefinition().getName(),getName())));
+	}
+
+	protected String getRebuildDbName(String db_name)
+	{
+		return "REBUILD_"+db_name;
+	}
+
+	private void remove_if_exists(String db_name)
+	{
+		try{
+			environment.removeDatabase(null, db_name, null);
+		}catch(FileNotFoundException fnfe)
+		{
+			/* nothing left over */
+		}catch(DatabaseException dbe)
+		{
+			logger.error(dbe);
+		}
+	}
+
 	public Database getDbh()
 	{
 		return db_handle;
 	}
 	
+	/* null when the index goes without a delete map */
 	public Database getReverseIndexDbh()
 	{
 		return delete_handle;
 	}
 
+	public boolean hasDeleteMap()
+	{
+		return !ATTRIBUTE_DELETE_MAP_NO.equals(getAttribute(ATTRIBUTE_DELETE_MAP));
+	}
+
+	/* freetext rows carry word positions and deep index keys come out of */
+	/* other entities. neither can be worked out again from the before-image */
+	public boolean canDropDeleteMap()
+	{
+		return !isFreeTextIndex() && !isDeepIndex();
+	}
+
+	/* removes the delete map db. from here on deletes and updates need the */
+	/* before-image. the caller persists the changed attributes */
+	public void dropDeleteMap() throws PersistenceException
+	{
+		if(!canDropDeleteMap())
+			throw new PersistenceException("INDEX "+getName()+" CAN NOT GO WITHOUT A DELETE MAP");
+		if(!hasDeleteMap())
+			return;
+		try{
+			if(delete_handle != null)
+				delete_handle.close();
+		}catch(DatabaseException dbe)
+		{
+			logger.error(dbe);
+		}
+		delete_handle = null;
+		index.setAttribute(ATTRIBUTE_DELETE_MAP, ATTRIBUTE_DELETE_MAP_NO);
+		remove_if_exists(getDeleteIndexDbName(getEntityDefinition().getName(),getName()));
+	}
+
+	/* opens an empty delete map. the caller rebuilds the index to fill it */
+	/* and persists the changed attributes */
+	public void addDeleteMap() throws PersistenceException
+	{
+		if(hasDeleteMap())
+			return;
+		index.getAttributes().remove(ATTRIBUTE_DELETE_MAP);
+		String name = getDeleteIndexDbName(getEntityDefinition().getName(),getName());
+		remove_if_exists(name);
+		delete_handle = openIndexDBHandle(environment,getDefaultDeleteDbConfig(),name);
+	}
+
 	
 	protected DatabaseConfig getDefaultIndexDbConfig()
 	{  
@@ -407,6 +679,103 @@ public abstract class BDBSecondaryIndex implements IterableIndex
 		return index.getFields().size();
 	}
 	
+	/* the rows e goes in as. indexes whose rows hold more than the pkey */
+	/* override this along with insertIndexEntry */
+	public void getInsertRows(Entity e,DatabaseEntry pkey,Set<IndexRow> result) throws DatabaseException
+	{
+		Set<DatabaseEntry> keys = new HashSet<DatabaseEntry>();
+		getInsertKeys(e,keys);
+		Iterator<DatabaseEntry> it = keys.iterator();
+		while(it.hasNext())
+			result.add(new IndexRow(it.next(),copy(pkey)));
+	}
+
+	/* the rows pkey is filed under right now. the delete map is keyed by the */
+	/* data of each row and that always starts with the pkey */
+	public void getIndexRows(Transaction txn,DatabaseEntry pkey,Set<IndexRow> result) throws DatabaseException
+	{
+		if(delete_handle == null)
+			throw new DatabaseException("INDEX "+getName()+" HAS NO DELETE MAP. ASK FOR ITS ROWS WITH THE BEFORE-IMAGE");
+		DatabaseEntry data 	 = copy(pkey);
+		DatabaseEntry key 	 = new DatabaseEntry();
+		Cursor cursor 		 = delete_handle.openCursor(txn, CursorConfig.READ_COMMITTED);
+		try{
+			OperationStatus op_stat = cursor.getSearchKeyRange(data, key, LockMode.DEFAULT);
+			while(op_stat == OperationStatus.SUCCESS && starts_with(data,pkey))
+			{
+				result.add(new IndexRow(key,data));
+				data 	= new DatabaseEntry();
+				key 	= new DatabaseEntry();
+				op_stat = cursor.getNext(data, key, LockMode.DEFAULT);
+			}
+		}finally
+		{
+			cursor.close();
+		}
+	}
+
+	private static boolean starts_with(DatabaseEntry e,DatabaseEntry prefix)
+	{
+		if(e.getSize() < prefix.getSize())
+			return false;
+		byte[] a = e.getData();
+		byte[] b = prefix.getData();
+		for(int i = 0;i < prefix.getSize();i++)
+		{
+			if(a[e.getOffset() + i] != b[prefix.getOffset() + i])
+				return false;
+		}
+		return true;
+	}
+
+	/* same as above but without a delete map the rows come from old_image, */
+	/* the entity as it was stored */
+	public void getIndexRows(Transaction txn,DatabaseEntry pkey,Entity old_image,Set<IndexRow> result) throws DatabaseException
+	{
+		if(delete_handle != null)
+		{
+			getIndexRows(txn,pkey,result);
+			return;
+		}
+		if(old_image == null)
+			throw new DatabaseException("INDEX "+getName()+" HAS NO DELETE MAP AND NO BEFORE-IMAGE WAS GIVEN");
+		getInsertRows(old_image,pkey,result);
+	}
+
+	/* the keys pkey is filed under right now. read off the delete map */
+	public void getIndexKeys(Transaction txn,DatabaseEntry pkey,Set<DatabaseEntry> result) throws DatabaseException
+	{
+		if(delete_handle == null)
+			throw new DatabaseException("INDEX "+getName()+" HAS NO DELETE MAP. ASK FOR ITS KEYS WITH THE BEFORE-IMAGE");
+		DatabaseEntry search = new DatabaseEntry(pkey.getData(),pkey.getOffset(),pkey.getSize());
+		DatabaseEntry key 	 = new DatabaseEntry();
+		Cursor cursor 		 = delete_handle.openCursor(txn, CursorConfig.READ_COMMITTED);
+		try{
+			OperationStatus op_stat = cursor.getSearchKey(search, key, LockMode.DEFAULT);
+			while(op_stat == OperationStatus.SUCCESS)
+			{
+				result.add(key);
+				key 	= new DatabaseEntry();
+				op_stat = cursor.getNextDup(search, key, LockMode.DEFAULT);
+			}
+		}finally
+		{
+			cursor.close();
+		}
+	}
+
+	public void getIndexKeys(Transaction txn,DatabaseEntry pkey,Entity old_image,Set<DatabaseEntry> result) throws DatabaseException
+	{
+		if(delete_handle != null)
+		{
+			getIndexKeys(txn,pkey,result);
+			return;
+		}
+		if(old_image == null)
+			throw new DatabaseException("INDEX "+getName()+" HAS NO DELETE MAP AND NO BEFORE-IMAGE WAS GIVEN");
+		getInsertKeys(old_image,result);
+	}
+	
 	public abstract List<Object> getDistinctKeys() throws PersistenceException;
 	public abstract void getInsertKeys(Entity entity,Set<DatabaseEntry> result) throws DatabaseException;
 	public abstract boolean indexesField(String fieldname);
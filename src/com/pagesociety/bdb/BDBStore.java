@@ -12,17 +12,23 @@ import java.text.Format;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -33,11 +39,18 @@ import com.pagesociety.bdb.binding.EntityDefinitionBinding;
 import com.pagesociety.bdb.binding.EntityRelationshipBinding;
 import com.pagesociety.bdb.binding.EntitySecondaryIndexBinding;
 import com.pagesociety.bdb.binding.FieldBinding;
+import com.pagesociety.bdb.cache.EntityCache;
+import com.pagesociety.bdb.index.DeepIndexQueue;
 import com.pagesociety.bdb.index.EntityIndexDefinition;
+import com.pagesociety.bdb.index.IndexRow;
+import com.pagesociety.bdb.index.OnlineIndexBuild;
+import com.pagesociety.bdb.index.SortedIndexBuild;
+import com.pagesociety.bdb.index.query.QueryCacheKeys;
 import com.pagesociety.bdb.index.query.QueryManager;
 import com.pagesociety.bdb.index.query.QueryManagerConfig;
-import com.pagesociety.bdb.locker.AdminLocker;
+import com.pagesociety.bdb.locker.EntityLocker;
 import com.pagesociety.bdb.locker.Locker;
+import com.pagesociety.bdb.locker.StripedLocker;
 import com.pagesociety.bdb.queue.PersistentQueueManager;
 import com.pagesociety.persistence.Entity;
 import com.pagesociety.persistence.EntityDefinition;
@@ -53,6 +66,7 @@ import com.sleepycat.bind.tuple.LongBinding;
 import com.sleepycat.bind.tuple.TupleOutput;
 import com.sleepycat.db.CacheFileStats;
 import com.sleepycat.db.Cursor;
+import com.sleepycat.db.CursorConfig;
 import com.sleepycat.db.Database;
 import com.sleepycat.db.DatabaseConfig;
 import com.sleepycat.db.DatabaseEntry;
@@ -106,6 +120,8 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 	private Map<String, List<BDBSecondaryIndex>> 		  	entity_secondary_indexes_as_list;
 
 	private Map<String, Map<String,EntityRelationshipDefinition>> entity_relationship_map;
+	/* entity type -> array field -> edges for relationships kept in edge tables */
+	private Map<String, Map<String,BDBEdgeTable>> 			entity_edge_tables;
 
 
 	/* Database operations, used by resolve relationship */
@@ -114,7 +130,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 	public static final int UPDATE = 1;
 	public static final int DELETE = 2;
 
-	private Locker _store_locker = null;
+	private EntityLocker _store_locker = null;
 	private CheckpointPolicy checkpoint_policy;
 	private Properties _db_env_props;
 	private File _db_env_props_file;
@@ -131,7 +147,9 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		entity_secondary_indexes_as_map 		 = new HashMap<String, Map<String, BDBSecondaryIndex>>();
 		entity_secondary_indexes_as_list 		 = new HashMap<String,List<BDBSecondaryIndex>>();
 		entity_relationship_map 		 	 	 = new HashMap<String, Map<String,EntityRelationshipDefinition>>();
+		entity_edge_tables 						 = new ConcurrentHashMap<String, Map<String,BDBEdgeTable>>();
 		entity_binding					 		 = new EntityBinding();
+		entity_binding.setEdgeTables(entity_edge_tables);
 
 		/* order is important */
 		/* check the version of data vs version of code*/
@@ -152,18 +170,24 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		init_deadlock_resolution_scheme(config);
 
 
-		init_query_manager();
+		init_entity_cache(config);
+		init_index_build(config);
+		init_query_manager(config);
 		init_queue_manager(config);
+		init_deep_index_queue(config);
+		init_bulk_delete(config);
 
 
 		bootstrap_existing_entity_definitions();
 		bootstrap_existing_indices();
+		migrate_index_delete_maps();
 		bootstrap_existing_entity_relationships();
 		init_field_binding();
 		init_backup_subsystem(config);
 
 		//start_deadlock_detector();
 		start_deadlock_monitor(1000 * 60 * 3);//3 minutes
+		start_deep_index_worker();
 		logger.debug("Init - Complete");
 
 
@@ -199,17 +223,55 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 	{
 		if(_locker_is_inited)
 			return;
+		Locker store_locker;
 		try {
-			_store_locker = (Locker)Class.forName((String)config.get(BDBStoreConfigKeyValues.KEY_STORE_LOCKER_CLASS)).newInstance();
+			store_locker = (Locker)Class.forName((String)config.get(BDBStoreConfigKeyValues.KEY_STORE_LOCKER_CLASS)).newInstance();
 		} catch (Exception e) {
 			//e.printStackTrace();
-			_store_locker = new AdminLocker();
+			store_locker = new StripedLocker();
 		}
-		logger.debug("init_store_locker(HashMap<Object,Object>) - SETTING STORE LOCKER TO INSTANCE OF " + _store_locker.getClass().getName());
+		logger.debug("init_store_locker(HashMap<Object,Object>) - SETTING STORE LOCKER TO INSTANCE OF " + store_locker.getClass().getName());
+		/* schema changes on one entity type only lock that type. see EntityLocker */
+		_store_locker = new EntityLocker(store_locker);
 		_store_locker.init(config);
 		_locker_is_inited = true;
 	}
 
+	/* app paths look types up through here so they hold the type's reader */
+	/* lock before they touch anything of it */
+	private BDBPrimaryIndex get_primary_index(String entity_type)
+	{
+		_store_locker.enterEntityReader(entity_type);
+		return entity_primary_indexes_as_map.get(entity_type);
+	}
+
+	/* returns true if it had to lock the whole store. schema changes that */
+	/* run through a deep index reach into the other types on its path */
+	private boolean enter_entity_locker_thread(String entity,boolean allow_readers,boolean whole_store)
+	{
+		while(true)
+		{
+			if(whole_store || entity == null)
+			{
+				_store_locker.enterLockerThread();
+				return true;
+			}
+			_store_locker.enterEntityLockerThread(entity, allow_readers);
+			if(!is_deep_indexed(entity))
+				return false;
+			_store_locker.exitEntityLockerThread(entity);
+			whole_store = true;
+		}
+	}
+
+	private void exit_entity_locker_thread(String entity,boolean whole_store)
+	{
+		if(whole_store)
+			_store_locker.exitLockerThread();
+		else
+			_store_locker.exitEntityLockerThread(entity);
+	}
+
 	private void init_checkpoint_policy(Map<String,Object> config)
 	{
 		try
@@ -242,14 +304,16 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			add_entity_definition_to_db(entity_def);
 			BDBPrimaryIndex pidx = new BDBPrimaryIndex(entity_binding);
 			pidx.setup(environment, entity_def);
+			setup_entity_cache(pidx);
 
 			/*do runtime cacheing*/
 			entity_primary_indexes_as_map.put(entity_def.getName(), pidx);
 			entity_primary_indexes_as_list.add(pidx);
 
 			/* initialize maps for holding indexes bound to entity*/
-			List<BDBSecondaryIndex> sec_indexes_list 	  = new ArrayList<BDBSecondaryIndex>();
-			Map<String,BDBSecondaryIndex> sec_indexes_map = new HashMap<String,BDBSecondaryIndex>();
+			/* an index build publishes into these while readers of the type go on */
+			List<BDBSecondaryIndex> sec_indexes_list 	  = new CopyOnWriteArrayList<BDBSecondaryIndex>();
+			Map<String,BDBSecondaryIndex> sec_indexes_map = new ConcurrentHashMap<String,BDBSecondaryIndex>();
 			entity_secondary_indexes_as_list.put(entity_def.getName(),sec_indexes_list);
 			entity_secondary_indexes_as_map.put(entity_def.getName(),sec_indexes_map);
 			calculate_query_cache_dependencies(entity_def);
@@ -325,6 +389,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		BDBPrimaryIndex pidx = entity_primary_indexes_as_map.get(name);
 		if(pidx == null)
 			throw new PersistenceException("DELETE ENTITY DEF: no entity definition for "+name);
+		check_no_edge_tables("DELETE ENTITY DEF", name);
 
 		for(BDBPrimaryIndex p:entity_primary_indexes_as_list)
 		{
@@ -395,6 +460,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		BDBPrimaryIndex pidx2 = entity_primary_indexes_as_map.get(new_name);
 		if(pidx2 != null)
 			throw new PersistenceException("CANT RENAME TO  "+new_name+". ENTITY "+new_name+" ALREADY EXISTS");
+		check_no_edge_tables("RENAME ENTITY DEF", ename);
 
 
 
@@ -428,9 +494,19 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		/* dont remove the key it wont lets us add it because it
 		 * will think that it exists.*/
 
-		pidx = entity_primary_indexes_as_map.remove(old_ename);
-		add_entity_definition_to_db(redef);
-		entity_primary_indexes_as_map.put(new_ename,pidx);
+		/* field changes only hold the lock on this type. other types may be */
+		/* reading the map so leave it alone unless the name changes */
+		if(old_ename.equals(new_ename))
+		{
+			pidx = entity_primary_indexes_as_map.get(old_ename);
+			add_entity_definition_to_db(redef);
+		}
+		else
+		{
+			pidx = entity_primary_indexes_as_map.remove(old_ename);
+			add_entity_definition_to_db(redef);
+			entity_primary_indexes_as_map.put(new_ename,pidx);
+		}
 
 		//this method is called by addfield and rename field and delete field//
 		//so this should be fine //
@@ -511,7 +587,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			{
 				Entity e = entities.get(i);
 				String entity_type 		  = e.getType();
-				BDBPrimaryIndex pi = entity_primary_indexes_as_map.get(entity_type);
+				BDBPrimaryIndex pi = get_primary_index(entity_type);
 				if(pi == null)
 					throw new PersistenceException("ENTITY OF TYPE "+entity_type+" DOES NOT EXIST");
 				validate_entity(e);
@@ -543,7 +619,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		try
 		{
 			String entity_type 		  = e.getType();
-			BDBPrimaryIndex pi = entity_primary_indexes_as_map.get(entity_type);
+			BDBPrimaryIndex pi = get_primary_index(entity_type);
 			if(pi == null)
 				throw new PersistenceException("ENTITY OF TYPE "+entity_type+" DOES NOT EXIST");
 			validate_entity(e);
@@ -568,6 +644,138 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 	}
 
+	/* for big imports of one type. rows go in batch_size to a transaction with */
+	/* no index maintenance or checkpoint per row. the indexes of the type are */
+	/* rebuilt with a sorted load at the end, even when a batch fails, since the */
+	/* batches before it are already committed. relationship side effects of a */
+	/* batch are resolved after all of its rows are in so rows can point at each */
+	/* other. the type is locked for the length of the load, the whole store if */
+	/* relations are resolved. returns rows per second */
+	public long bulkInsertEntities(String entity_type,Iterator<Entity> entities,int batch_size,boolean resolve_relations) throws PersistenceException
+	{
+		boolean whole_store = enter_entity_locker_thread(entity_type, false, resolve_relations);
+		try{
+			logger.debug("bulkInsertEntities(String, Iterator<Entity>, int, boolean) - BULK INSERT OF " + entity_type + " BATCH SIZE " + batch_size + " RESOLVE RELATIONS " + resolve_relations);
+			return do_bulk_insert_entities(entity_type,entities,batch_size,resolve_relations);
+		}catch(PersistenceException pe)
+		{
+			throw pe;
+		}
+		finally
+		{
+			exit_entity_locker_thread(entity_type, whole_store);
+		}
+	}
+
+	protected long do_bulk_insert_entities(String entity_type,Iterator<Entity> entities,int batch_size,boolean resolve_relations) throws PersistenceException
+	{
+		BDBPrimaryIndex pi = entity_primary_indexes_as_map.get(entity_type);
+		if(pi == null)
+			throw new PersistenceException("BULK INSERT: ENTITY OF TYPE "+entity_type+" DOES NOT EXIST");
+		batch_size 			= Math.max(1, batch_size);
+		List<Entity> batch 	= new ArrayList<Entity>(batch_size);
+		long rows 			= 0;
+		long t1 			= System.currentTimeMillis();
+		PersistenceException failure = null;
+		try{
+			while(entities.hasNext())
+			{
+				Entity e = entities.next();
+				if(!entity_type.equals(e.getType()))
+					throw new PersistenceException("BULK INSERT: EXPECTED ENTITY OF TYPE "+entity_type+" BUT GOT "+e.getType());
+				validate_entity(e);
+				if(e.getId() == Entity.UNDEFINED)
+					throw new PersistenceException("CANNOT USE bulkInsertEntities TO INSERT AN ENTITY WITH AN ID OF "+Entity.UNDEFINED);
+				batch.add(e);
+				if(batch.size() < batch_size)
+					continue;
+				bulk_insert_batch(pi, batch, resolve_relations);
+				rows += batch.size();
+				batch.clear();
+				logger.debug("do_bulk_insert_entities(String, Iterator<Entity>, int, boolean) - BULK INSERTED " + rows + " " + entity_type + " " + rows_per_second(rows, t1) + " ROWS/S");
+			}
+			if(!batch.isEmpty())
+			{
+				bulk_insert_batch(pi, batch, resolve_relations);
+				rows += batch.size();
+			}
+		}catch(PersistenceException pe)
+		{
+			failure = pe;
+		}
+
+		long t2 = System.currentTimeMillis();
+		try{
+			List<BDBSecondaryIndex> sec_indexes = entity_secondary_indexes_as_list.get(entity_type);
+			for(int i = 0;i < sec_indexes.size();i++)
+				do_rebuild_entity_index(entity_type, sec_indexes.get(i).getName());
+		}catch(PersistenceException pe)
+		{
+			if(failure == null)
+				failure = pe;
+			else
+				logger.error("do_bulk_insert_entities(String, Iterator<Entity>, int, boolean)", pe);
+		}
+		clean_query_cache(entity_type);
+		try{
+			do_checkpoint();
+		}catch(DatabaseException dbe)
+		{
+			logger.error("do_bulk_insert_entities(String, Iterator<Entity>, int, boolean)", dbe);
+		}
+
+		long rps = rows_per_second(rows, t1);
+		logger.info("BULK INSERT OF "+rows+" "+entity_type+" TOOK "+(System.currentTimeMillis() - t1)+" (ms). INDEX REBUILD "+(System.currentTimeMillis() - t2)+" (ms). "+rps+" ROWS/S");
+		if(failure != null)
+			throw new PersistenceException("BULK INSERT OF "+entity_type+" FAILED AFTER "+rows+" ROWS. "+failure.getMessage(),failure);
+		return rps;
+	}
+
+	private void bulk_insert_batch(BDBPrimaryIndex pi,List<Entity> batch,boolean resolve_relations) throws PersistenceException
+	{
+		Transaction txn = null;
+		try{
+			txn = environment.beginTransaction(null, null);
+			int s = batch.size();
+			for(int i = 0;i < s;i++)
+			{
+				Entity e 		   = batch.get(i);
+				DatabaseEntry pkey = new DatabaseEntry();
+				LongBinding.longToEntry(e.getId(), pkey);
+				pi.insertEntity(txn,pkey,e);
+				capture_index_build_write(pi.getName(), pkey);
+				invalidate_cached_entity(pi, e.getId());
+				/* the rebuild at the end only covers this type. deep indexes */
+				/* of other types that go through it catch up from the queue */
+				enqueue_deep_index_change(txn, e, ALL_FIELDS);
+			}
+			if(resolve_relations)
+			{
+				for(int i = 0;i < s;i++)
+					resolve_relationship_sidefx(txn,batch.get(i),INSERT,RESOLVE_ALL_RELATIONS);
+			}
+			txn.commitNoSync();
+			commit_query_cache_changes(txn,null);
+		}catch(DatabaseException dbe)
+		{
+			abortTxn(txn);
+			discard_query_cache_changes(txn);
+			logger.error("bulk_insert_batch(BDBPrimaryIndex, List<Entity>, boolean)", dbe);
+			throw new PersistenceException("BULK INSERT BATCH STARTING AT ID "+batch.get(0).getId()+" FAILED",dbe);
+		}catch(PersistenceException pe)
+		{
+			abortTxn(txn);
+			discard_query_cache_changes(txn);
+			throw pe;
+		}
+	}
+
+	private static long rows_per_second(long rows,long since)
+	{
+		long elapsed = System.currentTimeMillis() - since;
+		return (elapsed == 0)?rows * 1000:(rows * 1000) / elapsed;
+	}
+
 	/*----------------- TRANSACTION INTERFACE-----------------------------------------------*/
 	public int startTransaction(String transaction_tag) throws PersistenceException
 	{
@@ -601,6 +809,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 			Transaction parent = get_transaction_by_transaction_id(parent_transaction_id);
 			txn = environment.beginTransaction(parent, null);
+			_transaction_parents.put(txn,parent);
 			int tid = txn.getId();
 			//hashCode();
 			System.out.println("ISSUING CHILD TXN: "+tid+" PARENT IS:"+parent_transaction_id);
@@ -628,6 +837,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			txn.commitNoSync();
 			//System.out.println(Thread.currentThread().getName()+" COMMITED "+transaction_id);
 			clear_transaction_id(transaction_id);
+			commit_query_cache_changes(txn,_transaction_parents.remove(txn));
 		}catch(DatabaseException e)
 		{
 			logger.error("GETTING TRANSACTION ID FAILED"+e);
@@ -643,6 +853,9 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			txn.abort();
 			System.out.println(Thread.currentThread().getName()+" ROLLED BACK "+transaction_id);
 			clear_transaction_id(transaction_id);
+			discard_query_cache_changes(txn);
+			_transaction_parents.remove(txn);
+			clear_entity_caches();
 		}catch(DatabaseException e)
 		{
 			logger.error("ROLLBACK OF TRANSACTION FAILED"+e);
@@ -662,6 +875,8 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			try{
 				t.abort();
 				clear_transaction_id(key);
+				discard_query_cache_changes(t);
+				_transaction_parents.remove(t);
 				rollbacks.add(key);
 			}catch(DatabaseException dbe)
 			{
@@ -670,6 +885,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 				continue;
 			}
 		}
+		clear_entity_caches();
 		return rollbacks;
 	}
 
@@ -761,7 +977,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		try
 		{
 			String entity_type 		  = e.getType();
-			BDBPrimaryIndex pi = entity_primary_indexes_as_map.get(entity_type);
+			BDBPrimaryIndex pi = get_primary_index(entity_type);
 			if(pi == null)
 				throw new PersistenceException("ENTITY OF TYPE "+entity_type+" DOES NOT EXIST");
 
@@ -780,13 +996,90 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		return e;
 	}
 
+	/* saves all of entities in one transaction. relationship side effects that */
+	/* change a list held on the other side are collected across the batch and */
+	/* each holder is read and written once at the end with all of its changes, */
+	/* instead of once per entity saved */
+	public List<Entity> saveEntities(List<Entity> entities) throws PersistenceException
+	{
+		_store_locker.enterAppThread();
+		Transaction txn = null;
+		try
+		{
+			txn = environment.beginTransaction(null, null);
+			do_save_entities(txn, entities);
+			txn.commitNoSync();
+			commit_query_cache_changes(txn,null);
+			checkpoint_policy.handleCheckpoint();
+			return entities;
+		}
+		catch(PersistenceException pe)
+		{
+			abortTxn(txn);
+			discard_query_cache_changes(txn);
+			logger.error(pe);
+			throw pe;
+		}
+		catch(DatabaseException dbe)
+		{
+			abortTxn(txn);
+			discard_query_cache_changes(txn);
+			logger.error("saveEntities(List<Entity>)", dbe);
+			throw new PersistenceException("SAVE OF "+entities.size()+" ENTITIES FAILED",dbe);
+		}
+		finally
+		{
+			_store_locker.exitAppThread();
+		}
+	}
+
+	public List<Entity> saveEntities(int transaction_id,List<Entity> entities) throws PersistenceException
+	{
+		_store_locker.enterAppThread();
+		try
+		{
+			Transaction txn = get_transaction_by_transaction_id(transaction_id);
+			do_save_entities(txn, entities);
+			return entities;
+		}
+		catch(PersistenceException pe)
+		{
+			logger.error(pe);
+			throw pe;
+		}
+		finally
+		{
+			_store_locker.exitAppThread();
+		}
+	}
+
+	private void do_save_entities(Transaction txn,List<Entity> entities) throws PersistenceException
+	{
+		_relation_batch.set(new relation_batch());
+		try{
+			for(int i = 0;i < entities.size();i++)
+			{
+				Entity e = entities.get(i);
+				BDBPrimaryIndex pi = get_primary_index(e.getType());
+				if(pi == null)
+					throw new PersistenceException("ENTITY OF TYPE "+e.getType()+" DOES NOT EXIST");
+				validate_entity(e);
+				do_save_entity(txn,pi,e,true);
+			}
+			flush_relation_batch(txn);
+		}finally
+		{
+			_relation_batch.remove();
+		}
+	}
+
 	public Entity saveEntity(int transaction_id,Entity e) throws PersistenceException
 	{
 		_store_locker.enterAppThread();
 		try
 		{
 			String entity_type 		  = e.getType();
-			BDBPrimaryIndex pi = entity_primary_indexes_as_map.get(entity_type);
+			BDBPrimaryIndex pi = get_primary_index(entity_type);
 			if(pi == null)
 				throw new PersistenceException("ENTITY OF TYPE "+entity_type+" DOES NOT EXIST");
 
@@ -1060,18 +1353,21 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 	//TODO: save entity should be deprecated in favor of create and update entity//
 	protected Entity do_save_entity(Transaction parent_txn,Entity e,boolean resolve_relations) throws PersistenceException
 	{
-		BDBPrimaryIndex pi = entity_primary_indexes_as_map.get(e.getType());
+		BDBPrimaryIndex pi = get_primary_index(e.getType());
 		return do_save_entity(parent_txn, pi, e,resolve_relations);
 	}
 
 	protected Entity do_save_entity(Transaction parent_txn,BDBPrimaryIndex pi,Entity e, boolean resolve_relations) throws PersistenceException
 	{
+		_store_locker.enterEntityWriter(pi.getName());
 		boolean update 		= true;
 		DatabaseEntry pkey 	= null;
 		int retry_count = 0;
 		if(e.getId() == Entity.UNDEFINED)
 			update = false;
 		Transaction txn = null;
+		if(update)
+			flush_relation_batch(parent_txn, pi.getName(), e.getId());
 		while(true)
 		{
 			try{
@@ -1101,6 +1397,11 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 
 
+					/* what the indexes hold now. side effects can write this entity too */
+					Entity old_image = null;
+					if(needs_before_image(e.getType()))
+						old_image = (resolve_relations?pi.getById(txn, e.getId()):db_instance).clone();
+
 					int s = dirty_attributes.size();
 					for(int i = 0;i < s;i++)
 					{
@@ -1108,7 +1409,8 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 						db_instance.setAttribute(dirty_attribute, e.getAttribute(dirty_attribute));
 					}
 					pkey = pi.saveEntity(txn,db_instance);
-					save_to_secondary_indexes(txn, pkey, e, update,dirty_attributes);
+					save_to_secondary_indexes(txn, pkey, e, old_image, update,dirty_attributes);
+					enqueue_deep_index_change(txn, e, dirty_attributes);
 				}
 				else
 				{
@@ -1117,7 +1419,8 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 					if(resolve_relations)
 						resolve_relationship_sidefx(txn,e,INSERT,RESOLVE_ALL_RELATIONS);
 
-					save_to_secondary_indexes(txn, pkey, e, update,ALL_FIELDS);
+					save_to_secondary_indexes(txn, pkey, e, null, update,ALL_FIELDS);
+					enqueue_deep_index_change(txn, e, ALL_FIELDS);
 				}
 
 
@@ -1149,7 +1452,8 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 //			do_checkpoint();
 
 		//we might want a more elaborate policy here//
-		clean_query_cache(e.getType());
+		invalidate_cached_entity(pi, e.getId());
+		commit_query_cache_changes(txn,parent_txn);
 
 		return e;
 
@@ -1160,9 +1464,10 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		Transaction txn 	= null;
 		DatabaseEntry pkey 	= null;
 		int retry_count 	= 0;
-		BDBPrimaryIndex pi 	= entity_primary_indexes_as_map.get(type);
+		BDBPrimaryIndex pi 	= get_primary_index(type);
 		if(pi == null)
 			throw new PersistenceException("ENTITY OF TYPE "+type+" DOESNT EXIST IN STORE.");
+		_store_locker.enterEntityWriter(type);
 		while(true)
 		{
 			try{
@@ -1176,10 +1481,11 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 				if(resolve_relations)
 					resolve_relationship_sidefx(txn,e,INSERT,RESOLVE_ALL_RELATIONS);
 
-				save_to_secondary_indexes(txn, pkey, e, false,ALL_FIELDS);
+				save_to_secondary_indexes(txn, pkey, e, null, false,ALL_FIELDS);
+				enqueue_deep_index_change(txn, e, ALL_FIELDS);
 				txn.commitNoSync();
 				checkpoint_policy.handleCheckpoint();
-				clean_query_cache(type);
+				commit_query_cache_changes(txn,parent_txn);
 				return e;
 			}catch(DatabaseException dbe)
 			{
@@ -1206,9 +1512,10 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		Transaction txn 	= null;
 		DatabaseEntry pkey 	= null;
 		int retry_count 	= 0;
-		BDBPrimaryIndex pi 	= entity_primary_indexes_as_map.get(type);
+		BDBPrimaryIndex pi 	= get_primary_index(type);
 		if(pi == null)
 			throw new PersistenceException("ENTITY OF TYPE "+type+" DOESNT EXIST IN STORE.");
+		_store_locker.enterEntityWriter(type);
 		Entity db_instance  = null;
 		while(true)
 		{
@@ -1254,6 +1561,10 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 				//of updating your local copy of the object. it can just
 				//do it in the db.
 
+				Entity old_image = null;
+				if(needs_before_image(type))
+					old_image = db_instance.clone();
+
 				int s = dirty_attributes.size();
 				for(int i = 0;i < s;i++)
 				{
@@ -1261,10 +1572,12 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 					db_instance.setAttribute(dirty_attribute, update_map.get(dirty_attribute));
 				}
 				pkey = pi.saveEntity(txn,db_instance);
-				save_to_secondary_indexes(txn, pkey, db_instance, true,dirty_attributes);
+				save_to_secondary_indexes(txn, pkey, db_instance, old_image, true,dirty_attributes);
+				enqueue_deep_index_change(txn, db_instance, dirty_attributes);
 				txn.commitNoSync();
+				invalidate_cached_entity(pi, id);
 				checkpoint_policy.handleCheckpoint();
-				clean_query_cache(type);
+				commit_query_cache_changes(txn,parent_txn);
 				return db_instance;
 			}catch(DatabaseException dbe)
 			{
@@ -1288,18 +1601,22 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 	protected Entity do_insert_entity(Transaction parent_txn,BDBPrimaryIndex pi,Entity e,boolean blow_cache,boolean checkpoint) throws DatabaseException
 	{
+		_store_locker.enterEntityWriter(pi.getName());
 		DatabaseEntry pkey 	= new DatabaseEntry();
 		long eid = e.getId();
 		LongBinding.longToEntry(eid, pkey);
 		Transaction txn = environment.beginTransaction(parent_txn, null);
 		pi.insertEntity(txn,pkey,e);
-		save_to_secondary_indexes(txn, pkey, e, false,ALL_FIELDS);
-		//save_to_deep_indexes(parent_txn, pkey, e, false);
+		save_to_secondary_indexes(txn, pkey, e, null, false,ALL_FIELDS);
+		enqueue_deep_index_change(txn, e, ALL_FIELDS);
 		txn.commitNoSync();
+		invalidate_cached_entity(pi, eid);
 		//e.undirty();
 		//we might want a more elaborate policy here//
 		if(blow_cache)
-			clean_query_cache(e.getType());
+			commit_query_cache_changes(txn,parent_txn);
+		else
+			discard_query_cache_changes(txn);
 		if(checkpoint)
 			do_checkpoint();
 		return e;
@@ -1312,6 +1629,15 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		for(int i = 0;i < all_fields.size();i++)
 		{
 			String fieldname = all_fields.get(i).getName();
+			/* edge lists are not compared. one nobody changed is clean and the */
+			/* relationship works out what changed in the rest */
+			if(get_edge_table(update_instance.getType(), fieldname) != null)
+			{
+				Object v = update_instance.getAttribute(fieldname);
+				if(!(v instanceof BDBEdgeList) || ((BDBEdgeList)v).isModified())
+					dirty_fields.add(fieldname);
+				continue;
+			}
 			if((update_instance.getAttribute(fieldname) == null && db_instance.getAttribute(fieldname) == null) ||
 			   (update_instance.getAttribute(fieldname) != null && update_instance.getAttribute(fieldname).equals(db_instance.getAttribute(fieldname))))
 				continue;
@@ -1387,13 +1713,24 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 	}
 
 	private List<String> ALL_FIELDS = new ArrayList<String>();
-	private void save_to_secondary_indexes(Transaction parent_txn,DatabaseEntry pkey,Entity e,boolean update,List<String> dirty_fields) throws DatabaseException
+	/* old_image is the entity as it was stored before an update. it is only */
+	/* needed, and only read, when some index of the type has no delete map */
+	private void save_to_secondary_indexes(Transaction parent_txn,DatabaseEntry pkey,Entity e,Entity old_image,boolean update,List<String> dirty_fields) throws DatabaseException
 	{
 		List<BDBSecondaryIndex>sec_indexes = entity_secondary_indexes_as_list.get(e.getType());
 		if(dirty_fields == ALL_FIELDS)
 			dirty_fields = getEntityDefinitionProvider().provideEntityDefinition(e).getFieldNames();
 
 
+		QueryCacheKeys changes = get_query_cache_changes(parent_txn,e.getType());
+		if(changes != null)
+		{
+			changes.addFields(dirty_fields);
+			if(!update)
+				changes.setPrimary();
+		}
+		capture_index_build_write(e.getType(), pkey);
+
 		int ss 					  = dirty_fields.size();
 		int s 					  = sec_indexes.size();
 		BDBSecondaryIndex sidx = null;
@@ -1415,7 +1752,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 				{
 					//System.out.println("DETECTING DIRTY FIELD "+dirty_fields.get(ii));
 					//System.out.println("E IS "+e);
-					save_to_secondary_index(parent_txn,pkey, sidx, e, update);
+					save_to_secondary_index(parent_txn,pkey, sidx, e, old_image, update,changes);
 					break;/*we break here because we only want to update an index
 							//	once if it is a multifield index*/
 				}
@@ -1423,17 +1760,277 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		}
 	}
 
-	private void save_to_secondary_index(Transaction parent_txn,DatabaseEntry pkey,BDBSecondaryIndex sidx,Entity e,boolean update) throws DatabaseException
+	private void save_to_secondary_index(Transaction parent_txn,DatabaseEntry pkey,BDBSecondaryIndex sidx,Entity e,Entity old_image,boolean update,QueryCacheKeys changes) throws DatabaseException
+	{
+		if(!update)
+		{
+			if(changes != null)
+				record_index_change(parent_txn,pkey,sidx,e,null,update,changes);
+			//System.out.println(">>>>INSERTING "+LongBinding.entryToLong(pkey)+" TO "+sidx.getName());
+			sidx.insertIndexEntry(parent_txn,e,pkey);
+			return;
+		}
+		/* only the rows that changed are written */
+		Set<IndexRow> old_rows = new HashSet<IndexRow>();
+		Set<IndexRow> new_rows = new HashSet<IndexRow>();
+		sidx.getIndexRows(parent_txn,pkey,old_image,old_rows);
+		sidx.getInsertRows(e,pkey,new_rows);
+		if(changes != null)
+			record_index_change(sidx,old_rows,new_rows,changes);
+		sidx.updateIndexEntry(parent_txn,pkey,old_rows,new_rows);
+	}
+
+	/* the keys pkey is about to leave and the keys e is about to go in under.
+	 * freetext indexes turn one value into any number of keys so a write to
+	 * one of those counts against the whole index. e is null on a delete.
+	 */
+	private void record_index_change(Transaction parent_txn,DatabaseEntry pkey,BDBSecondaryIndex sidx,Entity e,Entity old_image,boolean update,QueryCacheKeys changes) throws DatabaseException
 	{
-		//need to update index
+		if(sidx.isFreeTextIndex())
+		{
+			changes.addIndex(sidx.getName());
+			return;
+		}
+		Set<DatabaseEntry> keys = new HashSet<DatabaseEntry>();
 		if(update)
+			sidx.getIndexKeys(parent_txn,pkey,old_image,keys);
+		if(e != null)
+			sidx.getInsertKeys(e,keys);
+		changes.addKeys(sidx.getName(),keys);
+	}
+
+	/* same as above when an update already has the rows before and after */
+	private void record_index_change(BDBSecondaryIndex sidx,Set<IndexRow> old_rows,Set<IndexRow> new_rows,QueryCacheKeys changes)
+	{
+		if(sidx.isFreeTextIndex())
+		{
+			changes.addIndex(sidx.getName());
+			return;
+		}
+		Set<DatabaseEntry> keys = new HashSet<DatabaseEntry>();
+		Iterator<IndexRow> it 	= old_rows.iterator();
+		while(it.hasNext())
+			keys.add(it.next().getKey());
+		it = new_rows.iterator();
+		while(it.hasNext())
+			keys.add(it.next().getKey());
+		changes.addKeys(sidx.getName(),keys);
+	}
+
+	/* true when some index of the type goes without a delete map and has to be */
+	/* handed the entity as it was stored to find the rows it is leaving */
+	private boolean needs_before_image(String entity_type)
+	{
+		List<BDBSecondaryIndex> sec_indexes = entity_secondary_indexes_as_list.get(entity_type);
+		if(sec_indexes == null)
+			return false;
+		int s = sec_indexes.size();
+		for(int i = 0;i < s;i++)
+		{
+			if(!sec_indexes.get(i).hasDeleteMap())
+				return true;
+		}
+		return false;
+	}
+
+	/* deep indexes are kept up out of band. the write only notes which entity */
+	/* changed, in its own transaction. see DeepIndexQueue */
+	private void enqueue_deep_index_change(Transaction txn,Entity e,List<String> dirty_fields) throws DatabaseException
+	{
+		if(!deep_index_fields_changed(e.getType(), dirty_fields))
+			return;
+		_deep_index_queue.enqueue(txn, e.getType(), e.getId());
+	}
+
+	private boolean deep_index_fields_changed(String entity_type,List<String> dirty_fields)
+	{
+		Map<String,List<BDBSecondaryIndex>> deep_indexes_by_field = deep_index_meta_map.get(entity_type);
+		List<BDBSecondaryIndex> returning = deep_indexes_returning(entity_type);
+		if(deep_indexes_by_field == null && returning.isEmpty())
+			return false;
+		if(dirty_fields == ALL_FIELDS)
+			return true;
+		for(int i = 0;i < dirty_fields.size();i++)
+		{
+			String dirty_field = dirty_fields.get(i);
+			if(deep_indexes_by_field != null && deep_indexes_by_field.containsKey(dirty_field))
+				return true;
+			/* plain fields of the type that a deep index returns */
+			for(int ii = 0;ii < returning.size();ii++)
+			{
+				List<FieldDefinition> fields = returning.get(ii).getFields();
+				for(int iii = 0;iii < fields.size();iii++)
+				{
+					if(fields.get(iii).getName().equals(dirty_field))
+						return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private List<BDBSecondaryIndex> deep_indexes_returning(String entity_type)
+	{
+		List<BDBSecondaryIndex> returning = new ArrayList<BDBSecondaryIndex>();
+		for(int i = 0;i < deep_index_list.size();i++)
+		{
+			if(deep_index_list.get(i).getEntityDefinition().getName().equals(entity_type))
+				returning.add(deep_index_list.get(i));
+		}
+		return returning;
+	}
+
+	/* every deep index a change to entity_type can show up in */
+	private Set<BDBSecondaryIndex> deep_indexes_for(String entity_type)
+	{
+		Set<BDBSecondaryIndex> didxs = new LinkedHashSet<BDBSecondaryIndex>();
+		Map<String,List<BDBSecondaryIndex>> deep_indexes_by_field = deep_index_meta_map.get(entity_type);
+		if(deep_indexes_by_field != null)
+		{
+			for(List<BDBSecondaryIndex> l : deep_indexes_by_field.values())
+				didxs.addAll(l);
+		}
+		didxs.addAll(deep_indexes_returning(entity_type));
+		return didxs;
+	}
+
+	/* applies up to max waiting changes after pass.after in one transaction */
+	/* and returns how many were read. the up-path expansion is done once per changed entity */
+	/* and the top level entities it finds are collected per index so one that */
+	/* is reached from several changes in the batch is reindexed once. the */
+	/* acked count goes on the pass and pass.after moves to the last change */
+	/* read, back to null once the end of the queue is reached. */
+	/* the queue is read under the app lock so close can not pull the */
+	/* environment out from under it. the worker gives up once it has been */
+	/* told to stop */
+	private int apply_deep_index_changes(deep_index_pass pass,int max,boolean from_worker) throws PersistenceException
+	{
+		synchronized(_deep_index_queue)
+		{
+			long t1 		= System.currentTimeMillis();
+			Transaction txn = null;
+			_store_locker.enterAppThread();
+			try{
+				if(_closed || (from_worker && !_deep_index_worker_running))
+					return 0;
+				List<DeepIndexQueue.Change> changes;
+				try{
+					changes = _deep_index_queue.peek(pass.after,max);
+				}catch(DatabaseException dbe)
+				{
+					logger.error("apply_deep_index_changes(deep_index_pass, int, boolean)", dbe);
+					throw new PersistenceException("UNABLE TO READ DEEP INDEX QUEUE");
+				}
+				pass.after = (changes.size() < max)?null:changes.get(changes.size() - 1);
+				if(changes.isEmpty())
+					return 0;
+
+				Map<BDBSecondaryIndex,Set<Long>> top_ids = new LinkedHashMap<BDBSecondaryIndex, Set<Long>>();
+				for(int i = 0;i < changes.size();i++)
+				{
+					DeepIndexQueue.Change c = changes.get(i);
+					for(BDBSecondaryIndex didx : deep_indexes_for(c.getEntityType()))
+					{
+						Set<Long> ids = top_ids.get(didx);
+						if(ids == null)
+						{
+							ids = new TreeSet<Long>();
+							top_ids.put(didx, ids);
+						}
+						collect_deep_index_top_ids(didx, c, ids);
+					}
+				}
+
+				int reindexed = 0;
+				txn = environment.beginTransaction(null, null);
+				for(Map.Entry<BDBSecondaryIndex,Set<Long>> entry : top_ids.entrySet())
+					reindexed += reindex_deep_index(txn, entry.getKey(), entry.getValue());
+				int acked = _deep_index_queue.ack(txn, changes);
+				txn.commitNoSync();
+				txn = null;
+
+				for(BDBSecondaryIndex didx : top_ids.keySet())
+					clean_query_cache(didx.getEntityDefinition().getName());
+				long t2 = System.currentTimeMillis();
+				_deep_index_queue.recordBatch(reindexed, t2 - t1, false);
+				logger.debug("apply_deep_index_changes(deep_index_pass, int, boolean) - APPLIED " + acked + " OF " + changes.size() + " CHANGES. REINDEXED " + reindexed + " IN " + (t2 - t1) + " (ms)");
+				pass.acked += acked;
+				return changes.size();
+			}catch(DatabaseException dbe)
+			{
+				abortTxn(txn);
+				_deep_index_queue.recordBatch(0, 0, true);
+				logger.error("apply_deep_index_changes(deep_index_pass, int, boolean)", dbe);
+				throw new PersistenceException("FAILED APPLYING DEEP INDEX CHANGES. THEY STAY QUEUED");
+			}catch(PersistenceException pe)
+			{
+				abortTxn(txn);
+				_deep_index_queue.recordBatch(0, 0, true);
+				throw pe;
+			}
+			finally
+			{
+				_store_locker.exitAppThread();
+			}
+		}
+	}
+
+	/* the ids of the entities didx returns whose rows depend on the changed */
+	/* entity. a deleted entity is still found from the parents that point at it */
+	private void collect_deep_index_top_ids(BDBSecondaryIndex didx,DeepIndexQueue.Change c,Set<Long> ids) throws DatabaseException
+	{
+		if(didx.getEntityDefinition().getName().equals(c.getEntityType()))
+		{
+			ids.add(c.getId());
+			return;
+		}
+		Entity initiator = Entity.createInstance();
+		initiator.setType(c.getEntityType());
+		initiator.setId(c.getId());
+		List<Entity> modified_list = get_modified_list_from_initiator(didx, initiator);
+		for(int i = 0;i < modified_list.size();i++)
+			ids.add(modified_list.get(i).getId());
+	}
+
+	/* rows of a top level entity are deleted and put back from what is on */
+	/* disk now, not from what the change carried */
+	private int reindex_deep_index(Transaction txn,BDBSecondaryIndex didx,Set<Long> ids) throws DatabaseException,PersistenceException
+	{
+		BDBPrimaryIndex pidx = get_primary_index(didx.getEntityDefinition().getName());
+		int reindexed = 0;
+		for(Long id : ids)
 		{
-			//System.out.println(">>>>DELETEING "+LongBinding.entryToLong(pkey)+" FROM "+sidx.getName());
-			sidx.deleteIndexEntry(parent_txn,pkey);
+			DatabaseEntry pkey = new DatabaseEntry();
+			LongBinding.longToEntry(id, pkey);
+			didx.deleteIndexEntry(txn, pkey);
+			Entity top_dog = pidx.getById(null, id);
+			if(top_dog == null)
+				continue;
+			expand_all_complex_fields(didx, top_dog);
+			didx.insertIndexEntry(txn, top_dog, pkey);
+			reindexed++;
 		}
-		//System.out.println(">>>>INSERTING "+LongBinding.entryToLong(pkey)+" TO "+sidx.getName());
-		sidx.insertIndexEntry(parent_txn,e,pkey);
+		return reindexed;
+	}
+
+	/* brings the deep indexes up to date with everything written before the */
+	/* call. passes are made over the whole queue until one acks nothing */
+	public void flushDeepIndexQueue() throws PersistenceException
+	{
+		deep_index_pass pass = new deep_index_pass();
+		do
+		{
+			pass.acked = 0;
+			while(apply_deep_index_changes(pass,_deep_index_queue_batch_size,false) == _deep_index_queue_batch_size)
+				;
+		}while(pass.acked != 0);
+	}
 
+	/* where a walk over the deep index queue is and what it has acked */
+	private static class deep_index_pass
+	{
+		private DeepIndexQueue.Change after;
+		private int acked;
 	}
 
 	///BEGIN DEEP INDEX CRAP//
@@ -1869,8 +2466,8 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 	{
 		validate_entity_for_relationship((Entity)e.getAttribute(dirty_field));
 
-		BDBPrimaryIndex pidx = entity_primary_indexes_as_map.get(e.getType());
-		BDBPrimaryIndex rel_pidx = entity_primary_indexes_as_map.get(other_side_type);
+		BDBPrimaryIndex pidx = get_primary_index(e.getType());
+		BDBPrimaryIndex rel_pidx = get_primary_index(other_side_type);
 
 		if (operation==UPDATE || operation==DELETE)
 		{
@@ -1901,13 +2498,22 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		//System.out.println("ONE TO MANY E IS "+e.getType()+" "+e.getId()+"\nDIRTY FIELD IS "+dirty_field+" RELATION FIELD "+relation_field_to_e);
 		validate_entity_for_relationship((Entity)e.getAttribute(dirty_field));
 
-		BDBPrimaryIndex my_pidx = entity_primary_indexes_as_map.get(e.getType());
-		BDBPrimaryIndex other_pidx = entity_primary_indexes_as_map.get(other_side_field);
+		BDBPrimaryIndex my_pidx = get_primary_index(e.getType());
+		BDBPrimaryIndex other_pidx = get_primary_index(other_side_field);
+
+		BDBEdgeTable edges = get_edge_table(other_side_field, relation_field_to_e);
+		if(edges != null)
+		{
+			resolve_one_to_many_edges(ptxn, operation, e, dirty_field, my_pidx, edges);
+			return;
+		}
 
 		if (operation==UPDATE || operation==DELETE)
 		{
 			Entity old_child_record = /* fill e */ (Entity)my_pidx.getById(ptxn,e.getId());
 			Entity old_father = (Entity)old_child_record.getAttribute(dirty_field);
+			if(old_father != null && defer_list_change(other_side_field, old_father.getId(), relation_field_to_e, old_child_record, false))
+				old_father = null;/* the batch writes it once at the end */
 
 			//System.out.println(Thread.currentThread().getName()+" OLD CHILD RECORD IS "+old_child_record.getType()+" "+old_child_record.getId());
 
@@ -1929,6 +2535,8 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		if (operation==INSERT || operation==UPDATE)
 		{
 			Entity new_father  = (Entity)e.getAttribute(dirty_field);
+			if(new_father != null && defer_list_change(other_side_field, new_father.getId(), relation_field_to_e, e, true))
+				new_father = null;/* the batch writes it once at the end */
 			if(new_father != null)
 			{
 				expand_entity(ptxn, other_pidx,new_father);
@@ -1960,6 +2568,24 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		}
 	}
 
+	/* the child moves between fathers with a delete and a put on the edges. */
+	/* neither father is read or written */
+	private void resolve_one_to_many_edges(Transaction ptxn, int operation, Entity e, String dirty_field, BDBPrimaryIndex my_pidx, BDBEdgeTable edges) throws PersistenceException
+	{
+		if (operation==UPDATE || operation==DELETE)
+		{
+			Entity old_father = (Entity)my_pidx.getById(ptxn,e.getId()).getAttribute(dirty_field);
+			if(old_father != null)
+				remove_edge(ptxn, edges, old_father.getId(), e.getId());
+		}
+		if (operation==INSERT || operation==UPDATE)
+		{
+			Entity new_father = (Entity)e.getAttribute(dirty_field);
+			if(new_father != null)
+				add_edge(ptxn, edges, new_father.getId(), e.getId());
+		}
+	}
+
 
 	@SuppressWarnings("unchecked")
 	private void resolve_many_to_one(Transaction ptxn, int operation, Entity e, String dirty_field, String other_side_type, String other_side_fieldname) throws PersistenceException
@@ -1967,12 +2593,19 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		//System.out.println("M TO ONE E IS "+e.getType()+" "+e.getId()+"\nDIRTY FIELD IS "+dirty_field+" RELATION FIELD "+other_side_fieldname);
 		validate_entities_for_relationship((List<Entity>)e.getAttribute(dirty_field));
 
-		BDBPrimaryIndex my_pidx = entity_primary_indexes_as_map.get(e.getType());
-		BDBPrimaryIndex other_pidx = entity_primary_indexes_as_map.get(other_side_type);
+		BDBPrimaryIndex my_pidx = get_primary_index(e.getType());
+		BDBPrimaryIndex other_pidx = get_primary_index(other_side_type);
+
+		BDBEdgeTable edges = get_edge_table(e.getType(), dirty_field);
+		if(edges != null)
+		{
+			resolve_many_to_one_edges(ptxn, operation, e, dirty_field, other_side_fieldname, my_pidx, other_pidx, edges);
+			return;
+		}
 
 		List<Entity> removed_children = new ArrayList<Entity>();
 		List<Entity> added_children   = new ArrayList<Entity>();
-		calc_added_and_removed(ptxn, e, dirty_field, my_pidx, other_pidx, operation, added_children, removed_children);
+		calc_added_and_removed(ptxn, e, dirty_field, my_pidx, other_pidx, operation, added_children, removed_children, true);
 		//System.out.println("ADDED AND REMOVED LIST FOR "+e.getType()+" "+e.getId());
 		//System.out.println("ADDED "+added_children);
 		//System.out.println("REMOVED "+removed_children);
@@ -1994,6 +2627,8 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			{
 				Entity c = added_children.get(j);
 				Entity old_father = (Entity)c.getAttribute(other_side_fieldname);
+				if(old_father != null && defer_list_change(e.getType(), old_father.getId(), dirty_field, c, false))
+					old_father = null;/* the batch writes it once at the end */
 				//System.out.println("OLD FATHER IS "+old_father);
 				if (old_father!=null) {
 					expand_entity(ptxn, my_pidx, old_father);
@@ -2024,17 +2659,56 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 	}
 
+	/* e holds the list. the children are written with their new father like */
+	/* above but the fathers are not. their edges are moved instead */
+	private void resolve_many_to_one_edges(Transaction ptxn, int operation, Entity e, String dirty_field, String other_side_fieldname, BDBPrimaryIndex my_pidx, BDBPrimaryIndex other_pidx, BDBEdgeTable edges) throws PersistenceException
+	{
+		List<Entity> removed_children = new ArrayList<Entity>();
+		List<Entity> added_children   = new ArrayList<Entity>();
+		calc_added_and_removed(ptxn, e, dirty_field, my_pidx, other_pidx, operation, added_children, removed_children, true);
+
+		int s = removed_children.size();
+		for(int i = 0;i < s;i++)
+		{
+			Entity c = removed_children.get(i);
+			remove_edge(ptxn, edges, e.getId(), c.getId());
+			c.setAttribute(other_side_fieldname, null);
+			do_save_entity(ptxn,other_pidx, c,false);
+		}
+
+		s = added_children.size();
+		for(int i = 0;i < s;i++)
+		{
+			Entity c = added_children.get(i);
+			Entity old_father = (Entity)c.getAttribute(other_side_fieldname);
+			if(old_father != null && old_father.getId() != e.getId())
+				remove_edge(ptxn, edges, old_father.getId(), c.getId());
+			add_edge(ptxn, edges, e.getId(), c.getId());
+			c.setAttribute(other_side_fieldname, e);
+			do_save_entity(ptxn,other_pidx, c,false);
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	private void resolve_many_to_many(Transaction ptxn, int operation, Entity e, String dirty_field, String other_side_type, String other_side_fieldname) throws PersistenceException
 	{
 		validate_entities_for_relationship((List<Entity>)e.getAttribute(dirty_field));
 
-		BDBPrimaryIndex my_pidx = entity_primary_indexes_as_map.get(e.getType());
-		BDBPrimaryIndex other_pidx = entity_primary_indexes_as_map.get(other_side_type);
+		BDBPrimaryIndex my_pidx = get_primary_index(e.getType());
+		BDBPrimaryIndex other_pidx = get_primary_index(other_side_type);
 
+		BDBEdgeTable edges = get_edge_table(e.getType(), dirty_field);
+		if(edges != null)
+		{
+			resolve_many_to_many_edges(ptxn, operation, e, dirty_field, my_pidx, other_pidx, edges, get_edge_table(other_side_type, other_side_fieldname));
+			return;
+		}
+
+		/* in a batch the other side is only written at the end so it need not be read here */
+		boolean batched = (_relation_batch.get() != null);
 		List<Entity> removed_children = new ArrayList<Entity>();
 		List<Entity> added_children   = new ArrayList<Entity>();
-		calc_added_and_removed(ptxn, e, dirty_field, my_pidx, other_pidx, operation, added_children, removed_children);
+		calc_added_and_removed(ptxn, e, dirty_field, my_pidx, other_pidx, operation, added_children, removed_children, !batched);
 
 		if (operation == DELETE || operation==UPDATE )
 		{
@@ -2042,6 +2716,8 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			for(int j = 0; j < s;j++)
 			{
 				Entity c = removed_children.get(j);
+				if(defer_list_change(other_side_type, c.getId(), other_side_fieldname, e, false))
+					continue;
 				List<Entity> old_fathers = (List<Entity>)c.getAttribute(other_side_fieldname);
 				old_fathers.remove(e);
 				c.setAttribute(other_side_fieldname ,old_fathers);//TODO: e.setListElement(),e.addListElement(),e.removeListElement(),need to set it so it is marked dirty//
@@ -2055,6 +2731,8 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			for(int i = 0; i < s;i++)
 			{
 				Entity t = added_children.get(i);
+				if(defer_list_change(other_side_type, t.getId(), other_side_fieldname, e, true))
+					continue;
 				List<Entity> tc = (List<Entity>)t.getAttribute(other_side_fieldname);
 				if (tc == null)
 				{
@@ -2069,6 +2747,172 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 	}
 
+	/* both sides are edges. relating two entities is a put on each side and */
+	/* neither of them is read or written */
+	private void resolve_many_to_many_edges(Transaction ptxn, int operation, Entity e, String dirty_field, BDBPrimaryIndex my_pidx, BDBPrimaryIndex other_pidx, BDBEdgeTable edges, BDBEdgeTable other_edges) throws PersistenceException
+	{
+		List<Entity> removed_children = new ArrayList<Entity>();
+		List<Entity> added_children   = new ArrayList<Entity>();
+		calc_added_and_removed(ptxn, e, dirty_field, my_pidx, other_pidx, operation, added_children, removed_children, false);
+
+		int s = removed_children.size();
+		for(int i = 0;i < s;i++)
+		{
+			Entity c = removed_children.get(i);
+			remove_edge(ptxn, edges, e.getId(), c.getId());
+			remove_edge(ptxn, other_edges, c.getId(), e.getId());
+		}
+		s = added_children.size();
+		for(int i = 0;i < s;i++)
+		{
+			Entity c = added_children.get(i);
+			add_edge(ptxn, edges, e.getId(), c.getId());
+			add_edge(ptxn, other_edges, c.getId(), e.getId());
+		}
+	}
+
+	/* side effects of a saveEntities batch that change the list an entity on */
+	/* the other side holds. keyed by type, id and field of the holder */
+	private ThreadLocal<relation_batch> _relation_batch = new ThreadLocal<relation_batch>();
+
+	/* false if there is no batch and the caller has to write the holder itself */
+	private boolean defer_list_change(String holder_type,long holder_id,String field,Entity c,boolean add)
+	{
+		relation_batch batch = _relation_batch.get();
+		if(batch == null)
+			return false;
+		String key 			= holder_type+":"+holder_id+":"+field;
+		pending_list p 		= batch.lists.get(key);
+		if(p == null)
+		{
+			p = new pending_list(holder_type,holder_id,field);
+			batch.lists.put(key, p);
+		}
+		/* the last change to a child wins */
+		p.changes.remove(c.getId());
+		p.changes.put(c.getId(), add?c:null);
+		return true;
+	}
+
+	/* writes what the batch has waiting for the holder. called before the */
+	/* holder itself is saved so the save goes over what is on disk just like */
+	/* it would outside a batch */
+	private void flush_relation_batch(Transaction txn,String holder_type,long holder_id) throws PersistenceException
+	{
+		relation_batch batch = _relation_batch.get();
+		if(batch == null || batch.lists.isEmpty())
+			return;
+		String prefix = holder_type+":"+holder_id+":";
+		List<pending_list> pending = new ArrayList<pending_list>();
+		Iterator<Map.Entry<String,pending_list>> it = batch.lists.entrySet().iterator();
+		while(it.hasNext())
+		{
+			Map.Entry<String,pending_list> entry = it.next();
+			if(entry.getKey().startsWith(prefix))
+			{
+				pending.add(entry.getValue());
+				it.remove();
+			}
+		}
+		for(int i = 0;i < pending.size();i++)
+			apply_pending_list(txn, pending.get(i));
+	}
+
+	private void flush_relation_batch(Transaction txn) throws PersistenceException
+	{
+		relation_batch batch = _relation_batch.get();
+		while(!batch.lists.isEmpty())
+		{
+			String key 		= batch.lists.keySet().iterator().next();
+			pending_list p 	= batch.lists.remove(key);
+			apply_pending_list(txn, p);
+		}
+	}
+
+	/* members nobody touched keep their place. removed ones go and added ones */
+	/* that are not there yet go on the end in the order they were added */
+	@SuppressWarnings("unchecked")
+	private void apply_pending_list(Transaction txn,pending_list p) throws PersistenceException
+	{
+		BDBPrimaryIndex pidx = get_primary_index(p.holder_type);
+		Entity holder 		 = pidx.getById(txn, p.holder_id);
+		if(holder == null)
+			throw new PersistenceException("RESOLVE RELATIONSHIP INTEGRITY ERROR. "+p.holder_type+" "+p.holder_id+" DOES NOT EXIST");
+		List<Entity> old_list = (List<Entity>)holder.getAttribute(p.field);
+		List<Entity> new_list = new ArrayList<Entity>();
+		Set<Long> kept 		  = new HashSet<Long>();
+		for(int i = 0;old_list != null && i < old_list.size();i++)
+		{
+			Entity c = old_list.get(i);
+			if(p.changes.containsKey(c.getId()) && p.changes.get(c.getId()) == null)
+				continue;
+			new_list.add(c);
+			kept.add(c.getId());
+		}
+		Iterator<Entity> it = p.changes.values().iterator();
+		while(it.hasNext())
+		{
+			Entity c = it.next();
+			if(c != null && !kept.contains(c.getId()))
+				new_list.add(c);
+		}
+		holder.setAttribute(p.field, new_list);
+		do_save_entity(txn,pidx, holder,false);
+	}
+
+	private static class relation_batch
+	{
+		private Map<String,pending_list> lists = new LinkedHashMap<String, pending_list>();
+	}
+
+	private static class pending_list
+	{
+		private String holder_type;
+		private long holder_id;
+		private String field;
+		/* child id -> the child if it goes in, null if it comes out */
+		private LinkedHashMap<Long,Entity> changes = new LinkedHashMap<Long, Entity>();
+
+		private pending_list(String holder_type,long holder_id,String field)
+		{
+			this.holder_type = holder_type;
+			this.holder_id 	 = holder_id;
+			this.field 		 = field;
+		}
+	}
+
+	private BDBEdgeTable get_edge_table(String entity_type,String fieldname)
+	{
+		Map<String,BDBEdgeTable> fields = entity_edge_tables.get(entity_type);
+		if(fields == null)
+			return null;
+		return fields.get(fieldname);
+	}
+
+	/* the edges live outside the record so the cached record of id has to go */
+	/* by hand */
+	private void add_edge(Transaction ptxn,BDBEdgeTable edges,long id,long related_id) throws PersistenceException
+	{
+		try{
+			edges.add(ptxn, id, related_id);
+		}catch(DatabaseException dbe)
+		{
+			throw new PersistenceException("UNABLE TO ADD EDGE "+id+" -> "+related_id+" TO "+edges.getEntity()+"."+edges.getField(),dbe);
+		}
+		invalidate_cached_entity(get_primary_index(edges.getEntity()), id);
+	}
+
+	private void remove_edge(Transaction ptxn,BDBEdgeTable edges,long id,long related_id) throws PersistenceException
+	{
+		try{
+			edges.remove(ptxn, id, related_id);
+		}catch(DatabaseException dbe)
+		{
+			throw new PersistenceException("UNABLE TO REMOVE EDGE "+id+" -> "+related_id+" FROM "+edges.getEntity()+"."+edges.getField(),dbe);
+		}
+		invalidate_cached_entity(get_primary_index(edges.getEntity()), id);
+	}
+
 
 
 	/*
@@ -2087,6 +2931,9 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 	private void validate_entities_for_relationship(List<Entity> new_children) throws PersistenceException
 	{
+		/* what is in the edge table was checked on the way in */
+		if(new_children instanceof BDBEdgeList && !((BDBEdgeList)new_children).isModified())
+			return;
 		if(new_children != null)
 		{
 			int s = new_children.size();
@@ -2098,14 +2945,28 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 	}
 
 	@SuppressWarnings("unchecked")
-	private void calc_added_and_removed(Transaction ptxn, Entity e, String dirty_field, BDBPrimaryIndex father_pidx, BDBPrimaryIndex child_pidx, int op, List<Entity> added_children, List<Entity> removed_children) throws PersistenceException
+	private void calc_added_and_removed(Transaction ptxn, Entity e, String dirty_field, BDBPrimaryIndex father_pidx, BDBPrimaryIndex child_pidx, int op, List<Entity> added_children, List<Entity> removed_children, boolean expand) throws PersistenceException
 	{
 		//System.out.println("ORIG IS "+e);
 		// e is originating
-		Entity old_orig = (Entity)father_pidx.getById(ptxn, e.getId());
-		//System.out.println("....OLD ORIG IS "+old_orig);
-
-		List<Entity> old_children = (List<Entity>)old_orig.getAttribute(dirty_field);
+		List<Entity> old_children;
+		BDBEdgeTable edges = get_edge_table(e.getType(), dirty_field);
+		if(edges != null)
+		{
+			/* read in this transaction, not through the lazy list */
+			try{
+				old_children = edges.getRelated(ptxn, e.getId(), Entity.UNDEFINED, 0);
+			}catch(DatabaseException dbe)
+			{
+				throw new PersistenceException("UNABLE TO READ EDGES OF "+e.getType()+"."+dirty_field+" FOR "+e.getId(),dbe);
+			}
+		}
+		else
+		{
+			Entity old_orig = (Entity)father_pidx.getById(ptxn, e.getId());
+			//System.out.println("....OLD ORIG IS "+old_orig);
+			old_children = (List<Entity>)old_orig.getAttribute(dirty_field);
+		}
 		List<Entity> new_children = (List<Entity>)e.getAttribute(dirty_field);//must already filled
 
 		//System.out.println("........OLD CHILDREN IS "+old_children);
@@ -2145,6 +3006,8 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		// fill the attributes of relevant info
 		//TODO: why do we do this???//
 		//System.out.println("....ADDED CHILDREN IS "+added_children);
+		if(!expand)
+			return;
 		for (int i=0; i<added_children.size(); i++)
 		{
 			expand_entity(ptxn, child_pidx, added_children.get(i));
@@ -2224,31 +3087,353 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 	}
 
+	/* deletes e like deleteEntity does but for an entity with a lot of related */
+	/* entities. the relations it holds in a list or an edge table are undone */
+	/* first, in id order and bulk_delete_batch_size to a transaction, holding */
+	/* the locks for one batch at a time. each related entity gets one write of */
+	/* the one field that pointed at e. e goes last through the normal delete, */
+	/* which also undoes anything related to it while the batches ran */
+	public void deleteEntityBulk(Entity e) throws PersistenceException
+	{
+		bulk_delete d = start_bulk_delete(e);
+		try{
+			do_bulk_delete(d);
+		}finally
+		{
+			_bulk_deletes.remove(d.key());
+		}
+	}
+
+	/* deleteEntityBulk on its own thread so the caller does not wait on it. */
+	/* see getBulkDeleteStatus */
+	public void deleteEntityInBackground(Entity e) throws PersistenceException
+	{
+		final bulk_delete d = start_bulk_delete(e);
+		Thread t = new Thread("BDBStore Bulk Delete "+d.key())
+		{
+			public void run()
+			{
+				try{
+					do_bulk_delete(d);
+				}catch(PersistenceException pe)
+				{
+					logger.error("run()", pe);
+				}finally
+				{
+					_bulk_deletes.remove(d.key());
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/* one line per bulk delete running */
+	public String getBulkDeleteStatus()
+	{
+		StringBuilder buf = new StringBuilder();
+		Iterator<bulk_delete> it = _bulk_deletes.values().iterator();
+		while(it.hasNext())
+			buf.append(it.next()).append('\n');
+		if(buf.length() == 0)
+			return "NO BULK DELETES RUNNING";
+		return buf.toString();
+	}
+
+	/* stops after the batch it is on. what was undone stays undone and e stays */
+	public boolean cancelBulkDelete(String entity_type,long id)
+	{
+		bulk_delete d = _bulk_deletes.get(entity_type+":"+id);
+		if(d == null)
+			return false;
+		d.cancelled = true;
+		return true;
+	}
+
+	private int _bulk_delete_batch_size = 1000;
+	private ConcurrentHashMap<String,bulk_delete> _bulk_deletes = new ConcurrentHashMap<String, bulk_delete>();
+	private void init_bulk_delete(Map<String,Object> config)
+	{
+		Integer val = (Integer)config.get(BDBStoreConfigKeyValues.KEY_BULK_DELETE_BATCH_SIZE);
+		if(val != null)
+			_bulk_delete_batch_size = Math.max(1, val);
+	}
+
+	private bulk_delete start_bulk_delete(Entity e) throws PersistenceException
+	{
+		_store_locker.enterAppThread();
+		try{
+			BDBPrimaryIndex pi = get_primary_index(e.getType());
+			if(pi == null)
+				throw new PersistenceException("ENTITY OF TYPE "+e.getType()+" DOES NOT EXIST");
+			Entity holder = pi.getById(null, e.getId());
+			if(holder == null)
+				throw new PersistenceException("ENTITY "+e.getType()+" "+e.getId()+" DOES NOT EXIST." +
+												"YOU CANNOT DELETE THAT WHICH DOES NOT EXIST.",PersistenceException.ENTITY_DOES_NOT_EXIST);
+			bulk_delete d = new bulk_delete(e.getType(),e.getId());
+			d.sides = bulk_delete_sides(holder);
+			for(int i = 0;i < d.sides.size();i++)
+				d.total += count_related(holder, d.sides.get(i).getOriginatingEntityField());
+			if(_bulk_deletes.putIfAbsent(d.key(), d) != null)
+				throw new PersistenceException("A BULK DELETE OF "+d.key()+" IS ALREADY RUNNING");
+			return d;
+		}finally
+		{
+			_store_locker.exitAppThread();
+		}
+	}
+
+	/* the relationships of e where e holds a list, flipped so e is the */
+	/* originating side. single references are left to the last delete */
+	private List<EntityRelationshipDefinition> bulk_delete_sides(Entity e)
+	{
+		List<EntityRelationshipDefinition> sides = new ArrayList<EntityRelationshipDefinition>();
+		Map<String,EntityRelationshipDefinition> ofmap = entity_relationship_map.get(e.getType());
+		if(ofmap == null)
+			return sides;
+		Iterator<Map.Entry<String,EntityRelationshipDefinition>> it = ofmap.entrySet().iterator();
+		while(it.hasNext())
+		{
+			Map.Entry<String,EntityRelationshipDefinition> entry = it.next();
+			EntityRelationshipDefinition r = entry.getValue();
+			if(e.getType().equals(r.getTargetEntity()) && entry.getKey().equals(r.getTargetEntityField()))
+				r = r.flip();
+			if(r.getType() == EntityRelationshipDefinition.TYPE_MANY_TO_ONE ||
+			   r.getType() == EntityRelationshipDefinition.TYPE_MANY_TO_MANY)
+				sides.add(r);
+		}
+		return sides;
+	}
+
+	@SuppressWarnings("unchecked")
+	private long count_related(Entity holder,String field) throws PersistenceException
+	{
+		BDBEdgeTable edges = get_edge_table(holder.getType(), field);
+		if(edges == null)
+		{
+			List<Entity> l = (List<Entity>)holder.getAttribute(field);
+			return (l == null)?0:l.size();
+		}
+		try{
+			return edges.count(null, holder.getId());
+		}catch(DatabaseException dbe)
+		{
+			throw new PersistenceException("UNABLE TO COUNT EDGES OF "+holder.getType()+"."+field+" FOR "+holder.getId(),dbe);
+		}
+	}
+
+	private void do_bulk_delete(bulk_delete d) throws PersistenceException
+	{
+		try{
+			for(int i = 0;i < d.sides.size();i++)
+			{
+				EntityRelationshipDefinition r = d.sides.get(i);
+				d.state = "UNDOING "+r.getOriginatingEntityField();
+				while(bulk_delete_batch(d, r) != 0)
+				{
+					if(d.cancelled)
+						throw new PersistenceException("CANCELLED");
+				}
+			}
+			d.state = "DELETING";
+			_store_locker.enterAppThread();
+			try{
+				Entity e = Entity.createInstance();
+				e.setType(d.entity_type);
+				e.setId(d.id);
+				do_delete_entity(null, e);
+			}finally
+			{
+				_store_locker.exitAppThread();
+			}
+			d.state = "DONE";
+			logger.info("BULK DELETE OF "+d.key()+" UNDID "+d.done.get()+" RELATIONS IN "+(System.currentTimeMillis() - d.start_time)+" (ms)");
+		}catch(PersistenceException pe)
+		{
+			d.state 	= "FAILED";
+			d.failure 	= pe.getMessage();
+			throw new PersistenceException("BULK DELETE OF "+d.key()+" FAILED AFTER "+d.done.get()+" RELATIONS. "+pe.getMessage(),pe);
+		}
+	}
+
+	/* undoes the lowest batch_size ids still related through r. returns how */
+	/* many. they are written in id order so the primary and the delete maps */
+	/* of the indexes are walked front to back instead of at random */
+	@SuppressWarnings("unchecked")
+	private int bulk_delete_batch(bulk_delete d,EntityRelationshipDefinition r) throws PersistenceException
+	{
+		String field 		= r.getOriginatingEntityField();
+		String other_type 	= r.getTargetEntity();
+		String other_field 	= r.getTargetEntityField();
+		Transaction txn 	= null;
+		_store_locker.enterAppThread();
+		try{
+			BDBPrimaryIndex pi 			= get_primary_index(d.entity_type);
+			BDBPrimaryIndex other_pidx 	= get_primary_index(other_type);
+			_store_locker.enterEntityWriter(d.entity_type);
+			_store_locker.enterEntityWriter(other_type);
+			BDBEdgeTable edges 			= get_edge_table(d.entity_type, field);
+			BDBEdgeTable other_edges 	= get_edge_table(other_type, other_field);
+
+			txn = environment.beginTransaction(null, null);
+			Entity holder = pi.getById(txn, d.id);
+			if(holder == null)
+				throw new PersistenceException("ENTITY "+d.key()+" WAS DELETED DURING THE BULK DELETE");
+			List<Long> ids = new ArrayList<Long>();
+			List<Entity> related;
+			if(edges != null)
+				related = edges.getRelated(txn, d.id, Entity.UNDEFINED, _bulk_delete_batch_size);
+			else
+				related = (List<Entity>)holder.getAttribute(field);
+			for(int i = 0;related != null && i < related.size();i++)
+				ids.add(related.get(i).getId());
+			Collections.sort(ids);
+			if(ids.size() > _bulk_delete_batch_size)
+				ids = new ArrayList<Long>(ids.subList(0, _bulk_delete_batch_size));
+			if(ids.isEmpty())
+			{
+				txn.commitNoSync();
+				txn = null;
+				return 0;
+			}
+
+			for(int i = 0;i < ids.size();i++)
+			{
+				long id = ids.get(i);
+				if(edges != null)
+					remove_edge(txn, edges, d.id, id);
+				if(other_edges != null)
+				{
+					remove_edge(txn, other_edges, id, d.id);
+					continue;
+				}
+				Entity c = other_pidx.getById(txn, id);
+				if(c == null)
+					continue;
+				Entity old_image = needs_before_image(other_type)?c.clone():null;
+				if(r.getType() == EntityRelationshipDefinition.TYPE_MANY_TO_ONE)
+					c.setAttribute(other_field, null);
+				else
+					c.setAttribute(other_field, without_ids((List<Entity>)c.getAttribute(other_field), Collections.singleton(d.id)));
+				write_single_field(txn, other_pidx, c, other_field, old_image);
+			}
+			if(edges == null)
+			{
+				Entity old_image = needs_before_image(d.entity_type)?holder.clone():null;
+				holder.setAttribute(field, without_ids(related, new HashSet<Long>(ids)));
+				write_single_field(txn, pi, holder, field, old_image);
+			}
+			txn.commitNoSync();
+			commit_query_cache_changes(txn,null);
+			txn = null;
+			invalidate_cached_entity(pi, d.id);
+			for(int i = 0;i < ids.size();i++)
+				invalidate_cached_entity(other_pidx, ids.get(i));
+			d.done.addAndGet(ids.size());
+			return ids.size();
+		}catch(DatabaseException dbe)
+		{
+			abortTxn(txn);
+			discard_query_cache_changes(txn);
+			logger.error("bulk_delete_batch(bulk_delete, EntityRelationshipDefinition)", dbe);
+			throw new PersistenceException("FAILED UNDOING "+d.entity_type+"."+field+" OF "+d.id,dbe);
+		}catch(PersistenceException pe)
+		{
+			abortTxn(txn);
+			discard_query_cache_changes(txn);
+			throw pe;
+		}finally
+		{
+			_store_locker.exitAppThread();
+		}
+	}
+
+	private static List<Entity> without_ids(List<Entity> l,Set<Long> ids)
+	{
+		List<Entity> rest = new ArrayList<Entity>();
+		for(int i = 0;l != null && i < l.size();i++)
+		{
+			if(!ids.contains(l.get(i).getId()))
+				rest.add(l.get(i));
+		}
+		return rest;
+	}
+
+	/* what do_save_entity does for an update of one field, without the reread */
+	/* and the nested transaction */
+	private void write_single_field(Transaction txn,BDBPrimaryIndex pi,Entity e,String field,Entity old_image) throws DatabaseException,PersistenceException
+	{
+		List<String> dirty_fields = new ArrayList<String>();
+		dirty_fields.add(field);
+		DatabaseEntry pkey = pi.saveEntity(txn,e);
+		save_to_secondary_indexes(txn, pkey, e, old_image, true,dirty_fields);
+		enqueue_deep_index_change(txn, e, dirty_fields);
+	}
+
+	private static class bulk_delete
+	{
+		private String 			entity_type;
+		private long 			id;
+		private List<EntityRelationshipDefinition> sides;
+		private long 			total;
+		private AtomicLong 		done 		= new AtomicLong();
+		private long 			start_time 	= System.currentTimeMillis();
+		private volatile String state 		= "STARTING";
+		private volatile String failure;
+		private volatile boolean cancelled;
+
+		private bulk_delete(String entity_type,long id)
+		{
+			this.entity_type = entity_type;
+			this.id 		 = id;
+		}
+
+		private String key()
+		{
+			return entity_type+":"+id;
+		}
+
+		public String toString()
+		{
+			double progress = (total == 0)?1:Math.min(1.0, done.get() / (double)total);
+			String s = key()+" "+state+" "+((int)(progress * 1000))/10.0+"% RELATIONS: "+done.get()+"/"+total+
+					   " ELAPSED: "+(System.currentTimeMillis() - start_time)+" (ms)";
+			if(failure != null)
+				s += " FAILED: "+failure;
+			return s;
+		}
+	}
+
 	public Entity do_delete_entity(Transaction parent_txn,Entity e) throws PersistenceException
 	{
 		Transaction txn = null;
 		DatabaseEntry pkey;
 		try{
 			String entity_type 		  = e.getType();
-			BDBPrimaryIndex pi = entity_primary_indexes_as_map.get(entity_type);
+			BDBPrimaryIndex pi = get_primary_index(entity_type);
 			if(pi == null)
 				throw new PersistenceException("ENTITY OF TYPE "+entity_type+" DOES NOT EXIST");
+			_store_locker.enterEntityWriter(entity_type);
 
 			txn = environment.beginTransaction(parent_txn, null);
 			resolve_relationship_sidefx(txn,e, DELETE,RESOLVE_ALL_RELATIONS);
+			/* e can be a light reference or stale. what the indexes hold is on disk */
+			Entity old_image = null;
+			if(needs_before_image(entity_type))
+				old_image = pi.getById(txn, e.getId());
 			pkey = pi.deleteEntity(txn,e);
 			if(pkey == null)
 			{
 				txn.commitNoSync();
+				commit_query_cache_changes(txn,parent_txn);
 				throw new PersistenceException("ENTITY "+e.getType()+" "+e.getId()+" DOES NOT EXIST." +
 												"YOU CANNOT DELETE THAT WHICH DOES NOT EXIST.",PersistenceException.ENTITY_DOES_NOT_EXIST);
 			}
-			delete_from_secondary_indexes(txn, pkey, e);
-			//delete_from_deep_indexes(txn, pkey, e);
+			delete_from_secondary_indexes(txn, pkey, e, old_image);
+			enqueue_deep_index_change(txn, e, ALL_FIELDS);
 			txn.commitNoSync();
-			/* have a more robust cache expiration policy at some point...probably
-			 * just blow away complex cache */
-			clean_query_cache(entity_type);
+			invalidate_cached_entity(pi, e.getId());
+			commit_query_cache_changes(txn,parent_txn);
 			checkpoint_policy.handleCheckpoint();
 			return e;
 		}catch(DatabaseException dbe)
@@ -2258,22 +3443,28 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		}
 	}
 
-	private void delete_from_secondary_indexes(Transaction parent_txn,DatabaseEntry pkey,Entity e) throws DatabaseException
+	private void delete_from_secondary_indexes(Transaction parent_txn,DatabaseEntry pkey,Entity e,Entity old_image) throws DatabaseException
 	{
 		List<BDBSecondaryIndex>sec_indexes = entity_secondary_indexes_as_list.get(e.getType());
+		QueryCacheKeys changes = get_query_cache_changes(parent_txn,e.getType());
+		if(changes != null)
+			changes.setPrimary();
+		capture_index_build_write(e.getType(), pkey);
 		int s 					  = sec_indexes.size();
 		BDBSecondaryIndex sidx = null;
 		for(int i=0;i < s;i++)
 		{
 			sidx = sec_indexes.get(i);
-			delete_from_secondary_index(parent_txn,pkey, sidx, e);
+			if(changes != null && !sidx.isDeepIndex())
+				record_index_change(parent_txn,pkey,sidx,null,old_image,true,changes);
+			delete_from_secondary_index(parent_txn,pkey, sidx, e, old_image);
 		}
 	}
 
-	private void delete_from_secondary_index(Transaction parent_txn,DatabaseEntry pkey,BDBSecondaryIndex sidx,Entity e) throws DatabaseException
+	private void delete_from_secondary_index(Transaction parent_txn,DatabaseEntry pkey,BDBSecondaryIndex sidx,Entity e,Entity old_image) throws DatabaseException
 	{
 			//System.out.println(">>>>DELETEING "+seqnum+" FROM "+sidx.getName());
-		sidx.deleteIndexEntry(parent_txn,pkey);
+		sidx.deleteIndexEntry(parent_txn,pkey,old_image);
 	}
 
 	private void delete_from_deep_indexes(Transaction parent_txn,DatabaseEntry pkey,Entity e) throws DatabaseException
@@ -2360,6 +3551,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 	{
 		_store_locker.enterAppThread();
 		EntityDefinition def;
+		_store_locker.enterEntityReader(entity_type);
 		def = do_get_entity_definition(entity_type);
 		_store_locker.exitAppThread();
 
@@ -2504,7 +3696,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		_store_locker.enterAppThread();
 
 		try{
-			BDBPrimaryIndex pi = entity_primary_indexes_as_map.get(entity);
+			BDBPrimaryIndex pi = get_primary_index(entity);
 			if(pi == null)
 				throw new PersistenceException("ENTITY OF TYPE "+entity+" DOES NOT EXIST");
 
@@ -2544,7 +3736,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 	//TODO: this should be added to interface at some point//
 	public EntityIndex do_get_entity_index(String entity,String index_name)
 	{
-		BDBPrimaryIndex pidx = entity_primary_indexes_as_map.get(entity);
+		BDBPrimaryIndex pidx = get_primary_index(entity);
 		if(pidx == null)
 			return null;
 		BDBSecondaryIndex idx;
@@ -2632,41 +3824,272 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 				break;
 		}
 
-		/* different views of entity relationship map */
-		Map<String,EntityRelationshipDefinition> ofmap;
-		Map<String,EntityRelationshipDefinition> tfmap;
+		/* different views of entity relationship map */
+		Map<String,EntityRelationshipDefinition> ofmap;
+		Map<String,EntityRelationshipDefinition> tfmap;
+
+		/* create them lazily */
+		ofmap = entity_relationship_map.get(oe);
+		if(ofmap == null)
+		{
+			ofmap = new HashMap<String,EntityRelationshipDefinition>();
+			entity_relationship_map.put(oe, ofmap);
+		}
+		if(ofmap.get(oef) != null)
+			throw new PersistenceException("ENTITY RELATIONSHIP ALREADY DEFINED FOR REF FIELD NAMED "+oef+" IN "+oe);
+
+		tfmap = entity_relationship_map.get(te);
+		if(tfmap == null)
+		{
+			tfmap = new HashMap<String,EntityRelationshipDefinition>();
+			entity_relationship_map.put(te, tfmap);
+		}
+		if(tfmap.get(tef) != null)
+			throw new PersistenceException("ENTITY RELATIONSHIP ALREADY DEFINED FOR REF FIELD NAMED "+tef+" IN "+te);
+
+		if(r.getStorage() == EntityRelationshipDefinition.STORAGE_EDGE_TABLE)
+			validate_edge_table_storage(r);
+
+		try{
+			if(r.getStorage() == EntityRelationshipDefinition.STORAGE_EDGE_TABLE)
+				create_edge_tables(r);
+			add_entity_relationship_to_db(r);
+			/*put in cache */
+			ofmap.put(of.getName(),r);
+			tfmap.put(tf.getName(),r);
+			logger.debug("do_add_entity_relationship(EntityRelationshipDefinition) - ADDED ENTITY RELATIONSHIP " + r);
+		}catch(DatabaseException de)
+		{
+			logger.error("do_add_entity_relationship(EntityRelationshipDefinition)", de);
+			throw new PersistenceException("UNABLE TO ADD ENTITY RELATIONSHIP.INTERNAL ERROR. SEE LOGS");
+		}
+
+	}
+
+	/* entity, array field and related entity of each side kept in an edge table */
+	private List<String[]> edge_table_sides(EntityRelationshipDefinition r)
+	{
+		List<String[]> sides = new ArrayList<String[]>();
+		String oe  = r.getOriginatingEntity();
+		String oef = r.getOriginatingEntityField();
+		String te  = r.getTargetEntity();
+		String tef = r.getTargetEntityField();
+		switch(r.getType())
+		{
+			case EntityRelationshipDefinition.TYPE_ONE_TO_MANY:
+				sides.add(new String[]{te,tef,oe});
+				break;
+			case EntityRelationshipDefinition.TYPE_MANY_TO_ONE:
+				sides.add(new String[]{oe,oef,te});
+				break;
+			case EntityRelationshipDefinition.TYPE_MANY_TO_MANY:
+				sides.add(new String[]{oe,oef,te});
+				sides.add(new String[]{te,tef,oe});
+				break;
+		}
+		return sides;
+	}
+
+	private void validate_edge_table_storage(EntityRelationshipDefinition r) throws PersistenceException
+	{
+		List<String[]> sides = edge_table_sides(r);
+		if(sides.isEmpty())
+			throw new PersistenceException("BAD ENTITY RELATIONSHIP. "+EntityRelationshipDefinition.describeType(r.getType())+
+											" RELATIONSHIP HAS NO ARRAY SIDE TO KEEP IN AN EDGE TABLE");
+		for(int i = 0;i < sides.size();i++)
+		{
+			String[] side = sides.get(i);
+			List<BDBSecondaryIndex> sec_indexes = entity_secondary_indexes_as_list.get(side[0]);
+			for(int ii = 0;sec_indexes != null && ii < sec_indexes.size();ii++)
+			{
+				if(sec_indexes.get(ii).indexesField(side[1]))
+					throw new PersistenceException("BAD ENTITY RELATIONSHIP. "+side[0]+"."+side[1]+" IS INDEXED BY "+
+													sec_indexes.get(ii).getName()+". FIELDS KEPT IN AN EDGE TABLE CAN NOT BE INDEXED");
+			}
+		}
+	}
+
+	/* the lists already in the records are copied into the new edges. the */
+	/* records hold on to their copies until they are next written but nobody */
+	/* reads them once the edges are registered */
+	private void create_edge_tables(EntityRelationshipDefinition r) throws PersistenceException,DatabaseException
+	{
+		List<String[]> sides 		= edge_table_sides(r);
+		List<BDBEdgeTable> tables 	= new ArrayList<BDBEdgeTable>();
+		for(int i = 0;i < sides.size();i++)
+		{
+			String[] side 		= sides.get(i);
+			BDBEdgeTable edges 	= new BDBEdgeTable(environment,_store_locker,side[0],side[1],side[2]);
+			tables.add(edges);
+			fill_edge_table(edges);
+		}
+		for(int i = 0;i < tables.size();i++)
+			register_edge_table(tables.get(i));
+	}
+
+	@SuppressWarnings("unchecked")
+	private void fill_edge_table(BDBEdgeTable edges) throws DatabaseException
+	{
+		BDBPrimaryIndex pidx 	= get_primary_index(edges.getEntity());
+		DatabaseEntry key 		= new DatabaseEntry();
+		DatabaseEntry data 		= new DatabaseEntry();
+		Transaction txn 		= null;
+		int puts 				= 0;
+		Cursor cursor = pidx.getDbh().openCursor(null, CursorConfig.READ_COMMITTED);
+		try{
+			while(cursor.getNext(key, data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+			{
+				Entity e 			 = pidx.getByRow(key, data);
+				List<Entity> related = (List<Entity>)e.getAttribute(edges.getField());
+				for(int i = 0;related != null && i < related.size();i++)
+				{
+					if(txn == null)
+						txn = environment.beginTransaction(null, null);
+					edges.add(txn, e.getId(), related.get(i).getId());
+					if(++puts % _index_build_batch_size == 0)
+					{
+						txn.commitNoSync();
+						txn = null;
+					}
+				}
+			}
+			if(txn != null)
+				txn.commitNoSync();
+			txn = null;
+		}finally
+		{
+			cursor.close();
+			if(txn != null)
+				txn.abort();
+		}
+		logger.info("FILLED EDGE TABLE "+edges.getDbName()+" WITH "+puts+" EDGES");
+	}
+
+	private void register_edge_table(BDBEdgeTable edges)
+	{
+		Map<String,BDBEdgeTable> fields = entity_edge_tables.get(edges.getEntity());
+		if(fields == null)
+		{
+			fields = new ConcurrentHashMap<String, BDBEdgeTable>();
+			entity_edge_tables.put(edges.getEntity(), fields);
+		}
+		fields.put(edges.getField(), edges);
+	}
 
-		/* create them lazily */
-		ofmap = entity_relationship_map.get(oe);
-		if(ofmap == null)
+	/* an edge table is named after its entity and field and holds ids of the */
+	/* related entity. renaming or deleting any of them would orphan the */
+	/* edges and every relation in them would be gone, so those schema */
+	/* changes are refused */
+	private void check_no_edge_tables(String op,String entity_type) throws PersistenceException
+	{
+		for(Map<String,BDBEdgeTable> fields : entity_edge_tables.values())
 		{
-			ofmap = new HashMap<String,EntityRelationshipDefinition>();
-			entity_relationship_map.put(oe, ofmap);
+			for(BDBEdgeTable edges : fields.values())
+			{
+				if(edges.getEntity().equals(entity_type) || edges.getRelatedEntity().equals(entity_type))
+					throw new PersistenceException(op+": "+entity_type+" HAS RELATIONS KEPT IN EDGE TABLE "+edges.getDbName());
+			}
 		}
-		if(ofmap.get(oef) != null)
-			throw new PersistenceException("ENTITY RELATIONSHIP ALREADY DEFINED FOR REF FIELD NAMED "+oef+" IN "+oe);
+	}
 
-		tfmap = entity_relationship_map.get(te);
-		if(tfmap == null)
+	private void check_not_edge_field(String op,String entity_type,String field_name) throws PersistenceException
+	{
+		BDBEdgeTable edges = get_edge_table(entity_type, field_name);
+		if(edges != null)
+			throw new PersistenceException(op+": "+entity_type+"."+field_name+" IS KEPT IN EDGE TABLE "+edges.getDbName());
+	}
+
+	/* one page of the entities related to e through field_name, in id order. */
+	/* after_id is the id of the last one on the previous page or */
+	/* Entity.UNDEFINED for the first page. only for fields kept in an edge table */
+	public List<Entity> getRelatedEntities(Entity e,String field_name,long after_id,int page_size) throws PersistenceException
+	{
+		_store_locker.enterAppThread();
+		try{
+			return do_get_related_entities(null, e, field_name, after_id, page_size);
+		}
+		finally
 		{
-			tfmap = new HashMap<String,EntityRelationshipDefinition>();
-			entity_relationship_map.put(te, tfmap);
+			_store_locker.exitAppThread();
 		}
-		if(tfmap.get(tef) != null)
-			throw new PersistenceException("ENTITY RELATIONSHIP ALREADY DEFINED FOR REF FIELD NAMED "+tef+" IN "+te);
+	}
 
+	/* the same page as the transaction sees it, its own uncommitted edges included */
+	public List<Entity> getRelatedEntities(int transaction_id,Entity e,String field_name,long after_id,int page_size) throws PersistenceException
+	{
+		_store_locker.enterAppThread();
 		try{
-			add_entity_relationship_to_db(r);
-			/*put in cache */
-			ofmap.put(of.getName(),r);
-			tfmap.put(tf.getName(),r);
-			logger.debug("do_add_entity_relationship(EntityRelationshipDefinition) - ADDED ENTITY RELATIONSHIP " + r);
-		}catch(DatabaseException de)
+			Transaction txn = get_transaction_by_transaction_id(transaction_id);
+			return do_get_related_entities(txn, e, field_name, after_id, page_size);
+		}
+		finally
 		{
-			logger.error("do_add_entity_relationship(EntityRelationshipDefinition)", de);
-			throw new PersistenceException("UNABLE TO ADD ENTITY RELATIONSHIP.INTERNAL ERROR. SEE LOGS");
+			_store_locker.exitAppThread();
+		}
+	}
+
+	private List<Entity> do_get_related_entities(Transaction txn,Entity e,String field_name,long after_id,int page_size) throws PersistenceException
+	{
+		BDBEdgeTable edges = get_edge_table(e.getType(), field_name);
+		if(edges == null)
+			throw new PersistenceException("FIELD "+field_name+" OF "+e.getType()+" IS NOT KEPT IN AN EDGE TABLE");
+		try{
+			List<Entity> page = edges.getRelated(txn, e.getId(), after_id, page_size);
+			long[] ids = new long[page.size()];
+			for(int i = 0;i < ids.length;i++)
+				ids[i] = page.get(i).getId();
+			List<Entity> related = do_get_entities_by_ids(txn, edges.getRelatedEntity(), ids);
+			List<Entity> results = new ArrayList<Entity>(related.size());
+			for(int i = 0;i < related.size();i++)
+			{
+				if(related.get(i) != null)
+					results.add(related.get(i));
+			}
+			return results;
+		}catch(DatabaseException dbe)
+		{
+			logger.error("do_get_related_entities(Transaction, Entity, String, long, int)", dbe);
+			throw new PersistenceException("UNABLE TO READ EDGES OF "+e.getType()+"."+field_name+" FOR "+e.getId());
+		}
+	}
+
+	public int getRelatedEntityCount(Entity e,String field_name) throws PersistenceException
+	{
+		_store_locker.enterAppThread();
+		try{
+			return do_get_related_entity_count(null, e, field_name);
+		}
+		finally
+		{
+			_store_locker.exitAppThread();
+		}
+	}
+
+	public int getRelatedEntityCount(int transaction_id,Entity e,String field_name) throws PersistenceException
+	{
+		_store_locker.enterAppThread();
+		try{
+			Transaction txn = get_transaction_by_transaction_id(transaction_id);
+			return do_get_related_entity_count(txn, e, field_name);
 		}
+		finally
+		{
+			_store_locker.exitAppThread();
+		}
+	}
 
+	private int do_get_related_entity_count(Transaction txn,Entity e,String field_name) throws PersistenceException
+	{
+		BDBEdgeTable edges = get_edge_table(e.getType(), field_name);
+		if(edges == null)
+			throw new PersistenceException("FIELD "+field_name+" OF "+e.getType()+" IS NOT KEPT IN AN EDGE TABLE");
+		try{
+			return edges.count(txn, e.getId());
+		}catch(DatabaseException dbe)
+		{
+			logger.error("do_get_related_entity_count(Transaction, Entity, String)", dbe);
+			throw new PersistenceException("UNABLE TO COUNT EDGES OF "+e.getType()+"."+field_name+" FOR "+e.getId());
+		}
 	}
 
 	private  void add_entity_relationship_to_db(EntityRelationshipDefinition r)throws DatabaseException
@@ -2812,6 +4235,9 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 	public void close() throws PersistenceException
 	{
+		/* a batch in flight needs the app lock to finish so the worker has */
+		/* to be gone before we take the locker */
+		stop_deep_index_worker();
 		_store_locker.enterLockerThread();
 		try{
 			do_close();
@@ -2825,7 +4251,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		}
 	}
 
-	private boolean _closed = false;
+	private volatile boolean _closed = false;
 	private synchronized void do_close() throws PersistenceException
 	{
 
@@ -2835,6 +4261,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			return;
 		}
 		_closed = true;
+		stop_deep_index_worker();
 		System.out.println("ENTER CLOSE");
 		try{
 			System.out.println("ABOUT TO CHECKPOINT");
@@ -2887,8 +4314,15 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 				entity_relationship_db.sync();
 				entity_relationship_db.close();
 			}
+			for(Map<String,BDBEdgeTable> fields : entity_edge_tables.values())
+			{
+				for(BDBEdgeTable edges : fields.values())
+					edges.close();
+			}
 
 			_queue_manager.shutdown();
+			if(_deep_index_queue != null)
+				_deep_index_queue.close();
 
 			//System.out.println("LOCK STATS "+environment.getLockStats(null));
 			//System.out.println();
@@ -3140,6 +4574,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			EntityDefinition def = defs.get(i);
 			pidx = new BDBPrimaryIndex(entity_binding);
 			pidx.setup(environment,def);
+			setup_entity_cache(pidx);
 			String entity_name = def.getName();
 			entity_primary_indexes_as_map.put(entity_name, pidx);
 			entity_primary_indexes_as_list.add(pidx);
@@ -3151,8 +4586,8 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 	{
 		Set<String> entity_types = entity_primary_indexes_as_map.keySet();
 		for (String entity_name : entity_types){
-			List<BDBSecondaryIndex> 		sec_indexes_list = new ArrayList<BDBSecondaryIndex>();
-			Map<String, BDBSecondaryIndex> 	sec_indexes_map  = new HashMap<String, BDBSecondaryIndex>();
+			List<BDBSecondaryIndex> 		sec_indexes_list = new CopyOnWriteArrayList<BDBSecondaryIndex>();
+			Map<String, BDBSecondaryIndex> 	sec_indexes_map  = new ConcurrentHashMap<String, BDBSecondaryIndex>();
 
 			BDBPrimaryIndex pidx 		= entity_primary_indexes_as_map.get(entity_name);
 			List<EntityIndex> indicies 	= get_entity_indices_from_db(pidx);
@@ -3236,27 +4671,135 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 			entity_relationship_map.get(oe).put(of, r);
 			entity_relationship_map.get(te).put(tf, r);
+
+			if(r.getStorage() == EntityRelationshipDefinition.STORAGE_EDGE_TABLE)
+			{
+				List<String[]> sides = edge_table_sides(r);
+				for(int ii = 0;ii < sides.size();ii++)
+				{
+					String[] side = sides.get(ii);
+					register_edge_table(new BDBEdgeTable(environment,_store_locker,side[0],side[1],side[2]));
+				}
+			}
 		}
 
 	}
 
+	private boolean _index_build_online 			= false;
+	private int 	_index_build_threads 			= Runtime.getRuntime().availableProcessors();
+	private int 	_index_build_batch_size 		= 1000;
+	private int 	_index_build_max_rows_per_second = 0;
+	private long 	_index_rebuild_run_bytes 		= 32 * 1024 * 1024;
+	private boolean _index_delete_maps 				= true;
+	private ConcurrentHashMap<String,OnlineIndexBuild> _index_builds = new ConcurrentHashMap<String, OnlineIndexBuild>();
+	private void init_index_build(Map<String,Object> config)
+	{
+		Boolean online = (Boolean)config.get(BDBStoreConfigKeyValues.KEY_INDEX_BUILD_ONLINE);
+		if(online != null)
+			_index_build_online = online;
+		Integer val = (Integer)config.get(BDBStoreConfigKeyValues.KEY_INDEX_BUILD_THREADS);
+		if(val != null)
+			_index_build_threads = val;
+		val = (Integer)config.get(BDBStoreConfigKeyValues.KEY_INDEX_BUILD_BATCH_SIZE);
+		if(val != null)
+			_index_build_batch_size = val;
+		val = (Integer)config.get(BDBStoreConfigKeyValues.KEY_INDEX_BUILD_MAX_ROWS_PER_SECOND);
+		if(val != null)
+			_index_build_max_rows_per_second = val;
+		val = (Integer)config.get(BDBStoreConfigKeyValues.KEY_INDEX_REBUILD_RUN_BYTES);
+		if(val != null)
+			_index_rebuild_run_bytes = val;
+		Boolean delete_maps = (Boolean)config.get(BDBStoreConfigKeyValues.KEY_INDEX_DELETE_MAPS);
+		if(delete_maps != null)
+			_index_delete_maps = delete_maps;
+		logger.debug("init_index_build(Map<String,Object>) - ONLINE INDEX BUILD IS " + _index_build_online + " THREADS " + _index_build_threads + " BATCH SIZE " + _index_build_batch_size + " MAX ROWS/S " + _index_build_max_rows_per_second);
+	}
+
+	private DeepIndexQueue 		_deep_index_queue;
+	private int 				_deep_index_queue_batch_size = 100;
+	private int 				_deep_index_queue_interval 	 = 1000;
+	private volatile boolean 	_deep_index_worker_running 	 = false;
+	private Thread 				_deep_index_worker;
+	private void init_deep_index_queue(Map<String,Object> config) throws PersistenceException
+	{
+		Integer val = (Integer)config.get(BDBStoreConfigKeyValues.KEY_DEEP_INDEX_QUEUE_BATCH_SIZE);
+		if(val != null)
+			_deep_index_queue_batch_size = Math.max(1, val);
+		val = (Integer)config.get(BDBStoreConfigKeyValues.KEY_DEEP_INDEX_QUEUE_INTERVAL);
+		if(val != null)
+			_deep_index_queue_interval = val;
+		_deep_index_queue = new DeepIndexQueue(environment);
+		logger.debug("init_deep_index_queue(Map<String,Object>) - DEEP INDEX QUEUE BATCH SIZE " + _deep_index_queue_batch_size + " INTERVAL " + _deep_index_queue_interval);
+	}
+
 	private QueryManager 		_query_manager;
 	private QueryManagerConfig 	_query_manager_config;
-	private void init_query_manager()
+	private int _entity_cache_size = EntityCache.DEFAULT_MAX_SIZE;
+	private void init_entity_cache(Map<String,Object> config)
+	{
+		Integer val = (Integer)config.get(BDBStoreConfigKeyValues.KEY_ENTITY_CACHE_SIZE);
+		if(val != null)
+			_entity_cache_size = val;
+		logger.debug("init_entity_cache(HashMap<Object,Object>) - ENTITY CACHE SIZE PER ENTITY TYPE IS " + _entity_cache_size);
+	}
+
+	private void setup_entity_cache(BDBPrimaryIndex pidx)
+	{
+		pidx.setEntityCache(new EntityCache(pidx.getName(), _entity_cache_size));
+	}
+
+	private void invalidate_cached_entity(BDBPrimaryIndex pidx,long id)
+	{
+		if(pidx != null && id != Entity.UNDEFINED)
+			pidx.invalidateCachedEntity(id);
+	}
+
+	/* after an abort we dont know what dirty reads made it into the caches.
+	 * relationships can touch any number of other types so just blow them all.
+	 */
+	private void clear_entity_caches()
+	{
+		for(int i = 0;i < entity_primary_indexes_as_list.size();i++)
+			entity_primary_indexes_as_list.get(i).clearEntityCache();
+	}
+
+	private void init_query_manager(Map<String,Object> config)
 	{
 
 		_query_manager_config = new QueryManagerConfig();
+		_query_manager_config.setCachedEntityTypes(get_query_cache_entity_types(config));
 		_query_manager_config.setContext(this);
 		_query_manager_config.setPrimaryIndexMap(entity_primary_indexes_as_map);
 		_query_manager_config.setSecondaryIndexMap(entity_secondary_indexes_as_map);
-		_query_manager_config.setEntityCacheInitialSize(64);
-		_query_manager_config.setEntityCacheLoadFactor(0.75f);
+		_query_manager_config.setEntityLocker(_store_locker);
 		_query_manager_config.setEntityCacheMaxSize(128);
 		_query_manager = new QueryManager(_query_manager_config);
 		_query_manager.init();
 
 	}
 
+	@SuppressWarnings("unchecked")
+	private Set<String> get_query_cache_entity_types(Map<String,Object> config)
+	{
+		Object val = config.get(BDBStoreConfigKeyValues.KEY_QUERY_CACHE_ENTITY_TYPES);
+		if(val == null)
+			return null;
+		Set<String> types = new HashSet<String>();
+		if(val instanceof String)
+		{
+			String[] names = ((String)val).split(",");
+			for(int i = 0;i < names.length;i++)
+			{
+				if(names[i].trim().length() != 0)
+					types.add(names[i].trim());
+			}
+		}
+		else
+			types.addAll((List<String>)val);
+		logger.debug("get_query_cache_entity_types(Map<String,Object>) - QUERY CACHE IS ON FOR " + types);
+		return types;
+	}
+
 	private PersistentQueueManager		_queue_manager;
 	private void init_queue_manager(Map<String,Object> config) throws PersistenceException
 	{
@@ -3323,6 +4866,55 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		_deadlock_monitor.start();
 	}
 
+	private void start_deep_index_worker()
+	{
+		if(_deep_index_worker_running)
+			return;
+		_deep_index_worker_running = true;
+		_deep_index_worker = new Thread("BDBStore Deep Index Worker")
+		{
+			public void run()
+			{
+				deep_index_pass pass = new deep_index_pass();
+				while(_deep_index_worker_running)
+				{
+					int read = 0;
+					try{
+						read = apply_deep_index_changes(pass,_deep_index_queue_batch_size,true);
+					}catch(Exception e)
+					{
+						logger.error("run()", e);
+					}
+					/* keep going until the end of the queue */
+					if(read == _deep_index_queue_batch_size)
+						continue;
+					try{
+						Thread.sleep(_deep_index_queue_interval);
+					}catch(InterruptedException ie)
+					{
+					}
+				}
+			}
+		};
+		_deep_index_worker.setDaemon(true);
+		_deep_index_worker.start();
+	}
+
+	private void stop_deep_index_worker()
+	{
+		if(!_deep_index_worker_running)
+			return;
+		_deep_index_worker_running = false;
+		try{
+			_deep_index_worker.interrupt();
+			_deep_index_worker.join();
+			logger.debug("stop_deep_index_worker() - STOPPED DEEP INDEX WORKER");
+		}catch(InterruptedException e)
+		{
+			logger.error("stop_deep_index_worker()", e);
+		}
+	}
+
 	private void stop_deadlock_monitor()
 	{
 		if(_deadlock_monitor_running == false)
@@ -3404,7 +4996,9 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 	public int addEntityField(String entity, FieldDefinition entity_field_def)throws PersistenceException
 	{
-		_store_locker.enterLockerThread();
+		/* a reference default gets saved into the other type */
+		boolean whole_store = entity_field_def.getBaseType() == Types.TYPE_REFERENCE && entity_field_def.getDefaultValue() != null;
+		whole_store = enter_entity_locker_thread(entity, false, whole_store);
 		try{
 			logger.debug("addEntityField(String, FieldDefinition, Object) - ADD ENTITY FIELD " + entity_field_def);
 			return do_add_entity_field(entity,entity_field_def);
@@ -3414,7 +5008,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		}
 		finally
 		{
-			_store_locker.exitLockerThread();
+			exit_entity_locker_thread(entity, whole_store);
 		}
 	}
 
@@ -3479,7 +5073,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 	public int deleteEntityField(String entity, String fieldname)throws PersistenceException
 	{
-		_store_locker.enterLockerThread();
+		boolean whole_store = enter_entity_locker_thread(entity, false, false);
 		try{
 			logger.debug("deleteEntityField(String, String) - DELETE ENTITY FIELD " + entity + "." + fieldname);
 			return do_delete_entity_field(entity,fieldname);
@@ -3490,7 +5084,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			}
 			finally
 			{
-				_store_locker.exitLockerThread();
+				exit_entity_locker_thread(entity, whole_store);
 			}
 	}
 
@@ -3503,6 +5097,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			throw new PersistenceException("DELETE ENTITY FIELD: ENTITY "+entity+" DOES NOT EXIST!");
 		if(f == null)
 			throw new PersistenceException("DELETE ENTITY FIELD: FIELD "+field_name+" DOES NOT EXIST IN ENTITY");
+		check_not_edge_field("DELETE ENTITY FIELD", entity, field_name);
 
 		List<BDBSecondaryIndex> sec_indexes = entity_secondary_indexes_as_list.get(entity);
 		for(int i = 0; i < sec_indexes.size();i++)
@@ -3597,7 +5192,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 	public FieldDefinition renameEntityField(String entity, String old_field_name,String new_field_name) throws PersistenceException
 	{
-		_store_locker.enterLockerThread();
+		boolean whole_store = enter_entity_locker_thread(entity, false, false);
 		try{
 			logger.debug("renameEntityField(String, String, String) - RENAME " + entity + " ENTITY FIELD " + old_field_name + " to " + new_field_name);
 			return do_rename_entity_field(entity, old_field_name, new_field_name);
@@ -3608,7 +5203,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		}
 		finally
 		{
-			_store_locker.exitLockerThread();
+			exit_entity_locker_thread(entity, whole_store);
 		}
 
 	}
@@ -3636,6 +5231,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			throw new PersistenceException("RENAME ENTITY FIELD: FIELD "+old_field_name+" DOES NOT EXIST IN ENTITY "+entity);
 		if(old_def.getField(new_field_name)!= null)
 			throw new PersistenceException("RENAME ENTITY FIELD: FIELD "+new_field_name+" ALREADY EXISTS IN ENTITY");
+		check_not_edge_field("RENAME ENTITY FIELD", entity, old_field_name);
 
 		EntityDefinition new_def 			= old_def.clone();
 		List<FieldDefinition> fields 	= new_def.getFields();
@@ -3781,39 +5377,247 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 	public EntityIndex addEntityIndex(String entity,String field_name,int index_type,String index_name, Map<String,Object> attributes) throws PersistenceException
 	{
-		_store_locker.enterLockerThread();
-		try{
-			logger.debug("addEntityIndex(String, String, String, String, Map<String,Object>) - ADD ENTITY INDEX " + index_name + " ON " + entity + " OF TYPE " + index_type);
-			return do_add_entity_index(entity,new String[]{field_name},index_type,index_name,attributes);
+		logger.debug("addEntityIndex(String, String, String, String, Map<String,Object>) - ADD ENTITY INDEX " + index_name + " ON " + entity + " OF TYPE " + index_type);
+		return add_entity_index(entity,new String[]{field_name},index_type,index_name,attributes);
+	}
+
+	public EntityIndex addEntityIndex(String entity,String[] field_names,int index_type,String index_name, Map<String,Object> attributes) throws PersistenceException
+	{
+		logger.debug("addEntityIndex(String, String[], String, String, Map<String,Object>) - ADD ENTITY INDEX " + index_name + " ON " + entity + " OF TYPE " + index_type);
+		return add_entity_index(entity,field_names,index_type,index_name,attributes);
+	}
+
+	private EntityIndex add_entity_index(String entity,String[] field_names,int index_type,String index_name, Map<String,Object> attributes) throws PersistenceException
+	{
+		boolean deep = is_deep_index_path(field_names);
+		if(_index_build_online && !deep)
+			return do_add_entity_index_online(entity,field_names,index_type,index_name,attributes);
 
+		/* readers of the type go on while the index fills. only writers wait */
+		boolean whole_store = enter_entity_locker_thread(entity, true, deep);
+		try{
+			return do_add_entity_index(entity,field_names,index_type,index_name,attributes);
 		}catch(PersistenceException pe)
 		{
 			throw pe;
 		}
 		finally
 		{
-			_store_locker.exitLockerThread();
+			exit_entity_locker_thread(entity, whole_store);
 		}
 	}
 
-	public EntityIndex addEntityIndex(String entity,String[] field_names,int index_type,String index_name, Map<String,Object> attributes) throws PersistenceException
+	/* builds the index while writers keep going. see OnlineIndexBuild. writers */
+	/* of the type are only held off while the build registers and again for */
+	/* the last replay and the publish */
+	protected EntityIndex do_add_entity_index_online(String entity,String[] field_names,int index_type,String index_name, Map<String,Object> attributes) throws PersistenceException
 	{
-		_store_locker.enterLockerThread();
+		String build_key 		= index_build_key(entity, index_name);
+		OnlineIndexBuild build 	= null;
+		boolean whole_store 	= enter_entity_locker_thread(entity, true, false);
 		try{
-			logger.debug("addEntityIndex(String, String[], String, String, Map<String,Object>) - ADD ENTITY INDEX " + index_name + " ON " + entity + " OF TYPE " + index_type);
-			return do_add_entity_index(entity,field_names,index_type,index_name,attributes);
+			/* the type is on a deep index path. no online build for that */
+			if(whole_store)
+				return do_add_entity_index(entity,field_names,index_type,index_name,attributes);
+			BDBSecondaryIndex index = create_secondary_index(entity, field_names, index_type, index_name, attributes);
+			try{
+				build = new OnlineIndexBuild(_store_locker, index.getPrimaryIndex(), index, _index_build_threads, _index_build_batch_size, _index_build_max_rows_per_second);
+			}catch(DatabaseException dbe)
+			{
+				abandon_index_build(index);
+				throw new PersistenceException("ADD INDEX FAILED STARTING BUILD OF "+index_name,dbe);
+			}
+			_index_builds.put(build_key, build);
+		}finally
+		{
+			exit_entity_locker_thread(entity, whole_store);
+		}
+
+		try{
+			build.populate();
+			build.replayCapturedWrites();
 		}catch(PersistenceException pe)
 		{
+			_index_builds.remove(build_key);
+			abandon_index_build(build.getIndex());
 			throw pe;
 		}
-		finally
+
+		boolean published = false;
+		whole_store = enter_entity_locker_thread(entity, true, false);
+		try{
+			build.replayCapturedWrites();
+			if(get_primary_index(entity) == null || get_primary_index(entity).getEntityDefinition() != build.getEntityDefinition())
+				throw new PersistenceException("ADD INDEX FAILED. ENTITY "+entity+" WAS CHANGED DURING THE BUILD OF "+index_name);
+			/* replay reads the delete map so it goes only once the build is done */
+			apply_index_delete_map_default(build.getIndex());
+			publish_secondary_index(entity, build.getIndex());
+			published = true;
+			return build.getIndex().getEntityIndex();
+		}finally
 		{
-			_store_locker.exitLockerThread();
+			_index_builds.remove(build_key);
+			if(!published)
+				abandon_index_build(build.getIndex());
+			exit_entity_locker_thread(entity, whole_store);
+		}
+	}
+
+	private void abandon_index_build(BDBSecondaryIndex index)
+	{
+		try{
+			index.delete();
+		}catch(DatabaseException dbe)
+		{
+			logger.error("abandon_index_build(BDBSecondaryIndex)", dbe);
+		}
+	}
+
+	private static String index_build_key(String entity,String index_name)
+	{
+		return entity+"."+index_name;
+	}
+
+	/* called by every write to a type. any index being built on it replays the row */
+	private void capture_index_build_write(String entity,DatabaseEntry pkey)
+	{
+		if(_index_builds.isEmpty())
+			return;
+		Iterator<OnlineIndexBuild> it = _index_builds.values().iterator();
+		while(it.hasNext())
+		{
+			OnlineIndexBuild build = it.next();
+			if(build.getEntityDefinition().getName().equals(entity))
+				build.captureWrite(pkey);
 		}
 	}
 
+	/* one line per index being built online */
+	public String getIndexBuildStatus()
+	{
+		StringBuilder buf = new StringBuilder();
+		Iterator<OnlineIndexBuild> it = _index_builds.values().iterator();
+		while(it.hasNext())
+			buf.append(it.next()).append('\n');
+		if(buf.length() == 0)
+			return "NO INDEX BUILDS RUNNING";
+		return buf.toString();
+	}
+
+	/* applies to running builds and the ones started after. 0 is no limit */
+	public void setIndexBuildMaxRowsPerSecond(int max_rows_per_second)
+	{
+		_index_build_max_rows_per_second = max_rows_per_second;
+		Iterator<OnlineIndexBuild> it = _index_builds.values().iterator();
+		while(it.hasNext())
+			it.next().setMaxRowsPerSecond(max_rows_per_second);
+	}
+
+	/* the addEntityIndex call that started it throws */
+	public boolean cancelIndexBuild(String entity,String index_name)
+	{
+		OnlineIndexBuild build = _index_builds.get(index_build_key(entity, index_name));
+		if(build == null)
+			return false;
+		build.cancel();
+		return true;
+	}
+
 
 	protected EntityIndex do_add_entity_index(String entity,String[] field_names,int index_type,String index_name,Map<String,Object>attributes) throws PersistenceException
+	{
+		BDBSecondaryIndex index = create_secondary_index(entity, field_names, index_type, index_name, attributes);
+		apply_index_delete_map_default(index);
+		populate_secondary_index(index.getPrimaryIndex(), index);
+		publish_secondary_index(entity, index);
+		return index.getEntityIndex();
+	}
+
+	/* new indexes that can go without a delete map do when the store is */
+	/* configured that way. see KEY_INDEX_DELETE_MAPS */
+	private void apply_index_delete_map_default(BDBSecondaryIndex index) throws PersistenceException
+	{
+		if(!_index_delete_maps && index.canDropDeleteMap())
+			index.dropDeleteMap();
+	}
+
+	/* with delete maps turned off the existing indexes that can go without */
+	/* theirs lose them at startup. turning them back on is per index with */
+	/* setIndexDeleteMap since the map has to be built again */
+	private void migrate_index_delete_maps() throws PersistenceException
+	{
+		if(_index_delete_maps)
+			return;
+		Iterator<String> it = entity_secondary_indexes_as_list.keySet().iterator();
+		while(it.hasNext())
+		{
+			String entity = it.next();
+			List<BDBSecondaryIndex> sec_indexes = entity_secondary_indexes_as_list.get(entity);
+			for(int i = 0;i < sec_indexes.size();i++)
+			{
+				BDBSecondaryIndex index = sec_indexes.get(i);
+				if(!index.hasDeleteMap() || !index.canDropDeleteMap())
+					continue;
+				logger.info("DROPPING DELETE MAP OF INDEX "+index.getName()+" ON "+entity);
+				do_set_index_delete_map(entity, index, false);
+			}
+		}
+	}
+
+	/* drops the delete map of an index or builds it back. an index without */
+	/* one finds the rows to delete in the before-image of the entity, which */
+	/* saves a write per index row on every insert, update and delete. */
+	/* freetext and deep indexes always keep theirs */
+	public void setIndexDeleteMap(String entity,String index_name,boolean use_delete_map) throws PersistenceException
+	{
+		BDBSecondaryIndex index = get_secondary_index(entity, index_name);
+		boolean whole_store = enter_entity_locker_thread(entity, false, index.isDeepIndex());
+		try{
+			logger.debug("setIndexDeleteMap(String, String, boolean) - DELETE MAP " + use_delete_map + " FOR INDEX " + index_name + " ON " + entity);
+			do_set_index_delete_map(entity, get_secondary_index(entity, index_name), use_delete_map);
+		}catch(PersistenceException pe)
+		{
+			throw pe;
+		}
+		finally
+		{
+			exit_entity_locker_thread(entity, whole_store);
+		}
+	}
+
+	protected void do_set_index_delete_map(String entity,BDBSecondaryIndex index,boolean use_delete_map) throws PersistenceException
+	{
+		if(use_delete_map == index.hasDeleteMap())
+			return;
+		if(use_delete_map)
+		{
+			index.addDeleteMap();
+			try{
+				do_rebuild_entity_index(entity, index.getName());
+			}catch(PersistenceException pe)
+			{
+				index.dropDeleteMap();
+				throw pe;
+			}
+		}
+		else
+		{
+			index.dropDeleteMap();
+		}
+		try{
+			EntityIndex idx = index.getEntityIndex();
+			delete_entity_index_from_db(entity, idx);
+			add_entity_index_to_db(entity, idx);
+		}catch(DatabaseException dbe)
+		{
+			logger.error("do_set_index_delete_map(String, BDBSecondaryIndex, boolean)", dbe);
+			throw new PersistenceException("UNABLE TO SAVE DELETE MAP SETTING OF INDEX "+index.getName()+" ON "+entity);
+		}
+	}
+
+	/* validates, sets up the deep index chain if there is one and opens the */
+	/* index dbs. nothing can see the index until it is published */
+	private BDBSecondaryIndex create_secondary_index(String entity,String[] field_names,int index_type,String index_name,Map<String,Object>attributes) throws PersistenceException
 	{
 		BDBPrimaryIndex pidx = entity_primary_indexes_as_map.get(entity);
 		if(pidx == null)
@@ -3821,6 +5625,8 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 		if (entity_secondary_indexes_as_map.get(entity).get(index_name)!= null)
 			throw new PersistenceException("ADD ENTITY INDEX: INDEX "+index_name+" ALREADY EXISTS IN ENTITY");
+		if (_index_builds.containsKey(index_build_key(entity, index_name)))
+			throw new PersistenceException("ADD ENTITY INDEX: INDEX "+index_name+" IS ALREADY BEING BUILT IN ENTITY");
 
 
 		EntityDefinition def 	= pidx.getEntityDefinition();
@@ -3834,6 +5640,8 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 				FieldDefinition field 	= def.getField(field_names[i]);
 				if (field==null)
 					throw new PersistenceException("ADD ENTITY INDEX: FIELD "+field_names[i]+" DOES NOT EXIST IN ENTITY "+entity);
+				if (get_edge_table(entity, field.getName()) != null)
+					throw new PersistenceException("ADD ENTITY INDEX: FIELD "+field_names[i]+" OF ENTITY "+entity+" IS KEPT IN AN EDGE TABLE AND CAN NOT BE INDEXED");
 				eii.addField(field);
 			}
 			else
@@ -3986,96 +5794,47 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			throw new PersistenceException("FAILED INSTANTIATING INSTANCE OF INDEX "+eii.getType());
 		}
 		index.setup(pidx, eii);
+		return index;
+	}
 
-
-
-		/*** AUTO POPULATE ON INDEX CREATION*******************************/
-		/*** when the index is created fill it up with data from ptable ***/
-		/*** maybe make this optional for the case where you just want to index ***/
-		/*** data from now ***/
+	/* fills a new empty index from the primary table in key order. see SortedIndexBuild */
+	private void populate_secondary_index(BDBPrimaryIndex pidx,BDBSecondaryIndex index) throws PersistenceException
+	{
 		long t1 = System.currentTimeMillis();
-		Transaction txn = null;
-		Cursor cursor   = null;
+		sorted_index_build(pidx, index, index.getDbh(), index.getReverseIndexDbh()).build();
+		long t2 = System.currentTimeMillis();
+		logger.debug("do_add_entity_index(String, String[], String, String, Map<String,Object>) - INITIAL POPULATE OF INDEX TOOK " + (t2 - t1) + " (ms)");
+	}
+
+	private SortedIndexBuild sorted_index_build(BDBPrimaryIndex pidx,final BDBSecondaryIndex index,Database dbh,Database delete_dbh) throws PersistenceException
+	{
 		try{
-			txn = environment.beginTransaction(null, null);
-			DatabaseEntry pkey = new DatabaseEntry();
-			DatabaseEntry data = new DatabaseEntry();
-			cursor = pidx.getDbh().openCursor(null, null);
-			Entity e = null;
-			int i = 0;
-			while(cursor.getNext(pkey, data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+			if(!index.isDeepIndex())
+				return new SortedIndexBuild(pidx, index, dbh, delete_dbh, _index_rebuild_run_bytes, _index_build_batch_size);
+			return new SortedIndexBuild(pidx, index, dbh, delete_dbh, _index_rebuild_run_bytes, _index_build_batch_size)
 			{
-				i++;
-				try{
-					e = entity_binding.entryToEntity(def, data);
-					//System.out.println(index.getName()+">>>> AUTO POPULATE WITH"+e.getType()+" "+e.getId());
-					//if index is complex
-					if(index.getAttribute(BDBSecondaryIndex.ATTRIBUTE_IS_DEEP_INDEX) == BDBSecondaryIndex.ATTRIBUTE_IS_DEEP_INDEX_YES)
-					{
-						/*
-						System.out.println("BEFORE COMPLEX FILL:");
-						Entity ddata 	= null;
-						Entity subdata  = null;
-						String city 	= null;
-						ddata = (Entity)e.getAttribute("Data");
-						System.out.println("\tData is "+ddata);
-						if(ddata != null)
-						{
-							subdata = (Entity)e.getAttribute("SubData");
-							System.out.println("\tSubData is "+subdata);
-
-							if(subdata != null)
-							{
-								city = (String)subdata.getAttribute("City");
-								System.out.println("\tCity is "+city);
-								System.out.println();
-							}
-						}
-						*/
+				protected Entity get_entity(DatabaseEntry pkey,DatabaseEntry data) throws DatabaseException
+				{
+					Entity e = super.get_entity(pkey, data);
+					try{
 						expand_all_complex_fields(index, e);
-						/*
-						System.out.println("AFTER COMPLEX FILL:");
-						ddata = (Entity)e.getAttribute("Data");
-						System.out.println("\tData is "+ddata);
-						if(ddata != null)
-						{
-							subdata = (Entity)ddata.getAttribute("SubData");
-							System.out.println("\tSubData is "+subdata);
-
-							if(subdata != null)
-							{
-								city = (String)subdata.getAttribute("City");
-								System.out.println("\tCity is "+city);
-								System.out.println();
-							}
-						}
-						 */
+					}catch(PersistenceException pe)
+					{
+						throw new DatabaseException("UNABLE TO EXPAND DEEP INDEX PATH FOR "+e.getType()+" "+e.getId()+". "+pe.getMessage());
 					}
-
-					index.insertIndexEntry(txn, e, pkey);
-				}catch(Exception ee)
-				{
-					System.out.println("FAILED UPDATING ENTITY AFTER ADDING INDEX");
-					System.out.println("DEF WAS :\n"+def+"\n");
-					System.out.println("INDEX WAS :\n"+index+"\n");
-					System.out.println("DATA WAS :\n"+new String(data.getData())+"\n");
-					ee.printStackTrace();
-					throw new PersistenceException("DAVID SHOW THIS TO TOPH.");
+					return e;
 				}
-			}
-			cursor.close();
-			txn.commit();
-
-		}catch(DatabaseException de)
+			};
+		}catch(DatabaseException dbe)
 		{
-			close_cursors(cursor);
-			abortTxn(txn);
-			logger.error("do_add_entity_index(String, String[], String, String, Map<String,Object>)", de);
-			throw new PersistenceException("ADD INDEX POPULATE FAILED FOR "+index.getName());
+			logger.error("sorted_index_build(BDBPrimaryIndex, BDBSecondaryIndex, Database, Database)", dbe);
+			throw new PersistenceException("UNABLE TO START SORTED BUILD OF "+index.getName());
 		}
-		long t2 = System.currentTimeMillis();
-		logger.debug("do_add_entity_index(String, String[], String, String, Map<String,Object>) - INITIAL POPULATE OF INDEX TOOK " + (t2 - t1) + " (ms)");
-		/****END AUTO POPULATE**********************************************************/
+	}
+
+	private void publish_secondary_index(String entity,BDBSecondaryIndex index) throws PersistenceException
+	{
+		EntityIndex eii = index.getEntityIndex();
 
 		/* maintain runtime cache */
 		/*BEGIN PART OF CRAZINESS*/
@@ -4100,7 +5859,6 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			logger.error("do_add_entity_index(String, String[], String, String, Map<String,Object>)", e);
 			throw new PersistenceException("Couldn't add index "+eii.getName()+" for entity "+entity);
 		}
-		return eii;
 	}
 
 /////BEGIN CRAZY DEEP INDEXING SUPPORT STUFF//////////////////////////////////////////////////////
@@ -4182,6 +5940,29 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 	protected Map<String,Map<String,List<BDBSecondaryIndex>>> deep_index_meta_map = new HashMap<String,Map<String,List<BDBSecondaryIndex>>>();
 	protected List<BDBSecondaryIndex> deep_index_list 	  						  = new ArrayList<BDBSecondaryIndex>();
+
+	/* true if the type owns a deep index or sits on the path of one */
+	private boolean is_deep_indexed(String entity_name)
+	{
+		if(deep_index_meta_map.containsKey(entity_name))
+			return true;
+		for(int i = 0;i < deep_index_list.size();i++)
+		{
+			if(deep_index_list.get(i).getEntityDefinition().getName().equals(entity_name))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean is_deep_index_path(String[] field_names)
+	{
+		for(int i = 0;i < field_names.length;i++)
+		{
+			if(field_names[i].indexOf('.') != -1)
+				return true;
+		}
+		return false;
+	}
 	private void update_deep_index_meta_info(BDBSecondaryIndex index) throws PersistenceException
 	{
 		add_to_deep_index_metainfo(index);
@@ -4336,7 +6117,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 /////////////////////////END CRAZY DEEP INDEXING STUFF//////////////////////////////////////////
 	public void deleteEntityIndex(String entity,String index_name) throws PersistenceException
 	{
-		_store_locker.enterLockerThread();
+		boolean whole_store = enter_entity_locker_thread(entity, false, false);
 		try{
 			logger.debug("deleteEntityIndex(String, String) - DELETE ENTITY INDEX ON " + entity + " OF TYPE " + index_name);
 			do_delete_entity_index(entity,index_name);
@@ -4346,7 +6127,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		}
 		finally
 		{
-			_store_locker.exitLockerThread();
+			exit_entity_locker_thread(entity, whole_store);
 		}
 	}
 
@@ -4382,9 +6163,72 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 	}
 
+	/* builds the index again into new dbs with a sorted bulk load and swaps them */
+	/* in for the old ones. the type is locked for the length of it */
+	public void rebuildEntityIndex(String entity,String index_name) throws PersistenceException
+	{
+		BDBSecondaryIndex index = get_secondary_index(entity, index_name);
+		boolean whole_store = enter_entity_locker_thread(entity, false, index.isDeepIndex());
+		try{
+			logger.debug("rebuildEntityIndex(String, String) - REBUILD ENTITY INDEX " + index_name + " ON " + entity);
+			do_rebuild_entity_index(entity,index_name);
+		}catch(PersistenceException pe)
+		{
+			throw pe;
+		}
+		finally
+		{
+			exit_entity_locker_thread(entity, whole_store);
+		}
+	}
+
+	protected void do_rebuild_entity_index(String entity,String index_name) throws PersistenceException
+	{
+		BDBSecondaryIndex index = get_secondary_index(entity, index_name);
+		Database dbh 		= null;
+		Database delete_dbh = null;
+		boolean swapped 	= false;
+		long t1 = System.currentTimeMillis();
+		try{
+			dbh 		= index.openRebuildDbh();
+			delete_dbh 	= index.openRebuildDeleteDbh();
+			sorted_index_build(index.getPrimaryIndex(), index, dbh, delete_dbh).build();
+			/* the swap closes the rebuilt handles whatever happens. if it */
+			/* fails the live dbs are untouched and the rebuilt ones are */
+			/* still under their rebuild names for the discard below */
+			Database rebuilt_dbh 		= dbh;
+			Database rebuilt_delete_dbh = delete_dbh;
+			dbh 		= null;
+			delete_dbh 	= null;
+			index.swapInRebuiltDbs(rebuilt_dbh, rebuilt_delete_dbh);
+			swapped = true;
+		}catch(DatabaseException dbe)
+		{
+			logger.error("do_rebuild_entity_index(String, String)", dbe);
+			throw new PersistenceException("REBUILD OF INDEX "+index_name+" ON "+entity+" FAILED");
+		}finally
+		{
+			if(!swapped)
+				index.discardRebuiltDbs(dbh, delete_dbh);
+		}
+		clean_query_cache(entity);
+		logger.info("REBUILD OF INDEX "+index_name+" ON "+entity+" TOOK "+(System.currentTimeMillis() - t1)+" (ms)");
+	}
+
+	private BDBSecondaryIndex get_secondary_index(String entity,String index_name) throws PersistenceException
+	{
+		Map<String,BDBSecondaryIndex> indexes = entity_secondary_indexes_as_map.get(entity);
+		if(indexes == null)
+			throw new PersistenceException("REBUILD ENTITY INDEX: entity "+entity+" does not exist");
+		BDBSecondaryIndex index = indexes.get(index_name);
+		if(index == null)
+			throw new PersistenceException("REBUILD ENTITY INDEX: index "+index_name+" does not exists in "+entity);
+		return index;
+	}
+
 	public void renameEntityIndex(String entity,String old_name,String new_name) throws PersistenceException
 	{
-		_store_locker.enterLockerThread();
+		boolean whole_store = enter_entity_locker_thread(entity, false, false);
 		try{
 			logger.debug("renameEntityIndex(String, String, String) - RENAME ENTITY INDEX ON " + entity + " FROM " + old_name + " TO " + new_name);
 			do_rename_entity_index(entity,old_name,new_name);
@@ -4394,7 +6238,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		}
 		finally
 		{
-			_store_locker.exitLockerThread();
+			exit_entity_locker_thread(entity, whole_store);
 		}
 	}
 
@@ -4505,7 +6349,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 	/* set count to true if you want the number of records deleted returned */
 	public int truncate(String entity_type,boolean count) throws PersistenceException
 	{
-		_store_locker.enterLockerThread();
+		boolean whole_store = enter_entity_locker_thread(entity_type, false, false);
 		try{
 			logger.debug("truncate(String, boolean) - TRUNCATE ENTITY " + entity_type);
 			return do_truncate_entity(entity_type,count);
@@ -4515,7 +6359,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		}
 		finally
 		{
-			_store_locker.exitLockerThread();
+			exit_entity_locker_thread(entity_type, whole_store);
 		}
 
 	}
@@ -4592,7 +6436,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		_store_locker.enterAppThread();
 		Entity e;
 		try{
-			BDBPrimaryIndex pi = entity_primary_indexes_as_map.get(type);
+			BDBPrimaryIndex pi = get_primary_index(type);
 			if(pi == null)
 				throw new PersistenceException("ENTITY OF TYPE "+type+" DOES NOT EXIST");
 
@@ -4610,7 +6454,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		_store_locker.enterAppThread();
 		Entity e;
 		try{
-			BDBPrimaryIndex pi = entity_primary_indexes_as_map.get(type);
+			BDBPrimaryIndex pi = get_primary_index(type);
 			if(pi == null)
 				throw new PersistenceException("ENTITY OF TYPE "+type+" DOES NOT EXIST");
 			Transaction txn = get_transaction_by_transaction_id(transaction_id);
@@ -4623,6 +6467,63 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		return e;
 	}
 
+	public List<Entity> getEntitiesByIds(String type, long[] ids) throws PersistenceException
+	{
+		_store_locker.enterAppThread();
+		try{
+			return do_get_entities_by_ids(null,type,ids);
+		}catch(PersistenceException pe)
+		{
+			logger.error(pe);
+			throw pe;
+		}
+		finally
+		{
+			_store_locker.exitAppThread();
+		}
+	}
+
+	public List<Entity> getEntitiesByIds(int transaction_id,String type, long[] ids) throws PersistenceException
+	{
+		_store_locker.enterAppThread();
+		try{
+			Transaction txn = get_transaction_by_transaction_id(transaction_id);
+			return do_get_entities_by_ids(txn,type,ids);
+		}catch(PersistenceException pe)
+		{
+			logger.error(pe);
+			throw pe;
+		}
+		finally
+		{
+			_store_locker.exitAppThread();
+		}
+	}
+
+	/* results come back in the order they were asked for with null for ids that
+	 * do not exist. if the same id is asked for twice each slot gets its own copy.
+	 */
+	protected List<Entity> do_get_entities_by_ids(Transaction parent_txn,String type, long[] ids) throws PersistenceException
+	{
+		BDBPrimaryIndex pi = get_primary_index(type);
+		if(pi == null)
+			throw new PersistenceException("ENTITY OF TYPE "+type+" DOES NOT EXIST");
+
+		List<Entity> results = new ArrayList<Entity>(ids.length);
+		if(ids.length == 0)
+			return results;
+		Map<Long,Entity> found = pi.getByIds(parent_txn, ids);
+		Set<Long> handed_out   = new HashSet<Long>();
+		for(int i = 0;i < ids.length;i++)
+		{
+			Entity e = found.get(ids[i]);
+			if(e != null && !handed_out.add(ids[i]))
+				e = EntityCache.copy(e);
+			results.add(e);
+		}
+		return results;
+	}
+
 
 	public QueryResult getEntitiesOrderedById(String type, int start, long number_of_records) throws PersistenceException
 	{
@@ -4639,9 +6540,46 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		}
 	}
 
+	/* pass null for the first page and then the next results token of the
+	 * previous page. this seeks directly to where the last page left off
+	 * instead of counting through start records.
+	 */
+	public QueryResult getEntitiesOrderedById(String type, Object next_results_token, long number_of_records) throws PersistenceException
+	{
+		_store_locker.enterAppThread();
+		try{
+			return do_get_entities_ordered_by_id(type,next_results_token,number_of_records);
+		}catch(PersistenceException pe)
+		{
+			throw pe;
+		}
+		finally
+		{
+			_store_locker.exitAppThread();
+		}
+	}
+
+	protected QueryResult do_get_entities_ordered_by_id(String type, Object next_results_token, long number_of_records) throws PersistenceException
+	{
+		BDBPrimaryIndex pidx = get_primary_index(type);
+		if(pidx == null)
+			throw new PersistenceException("GET ENTITIES BY ID: no such entity "+type);
+		BDBQueryToken token = null;
+		if(next_results_token != null)
+		{
+			try{
+				token = BDBQueryToken.fromString(next_results_token.toString());
+			}catch(Exception e)
+			{
+				throw new PersistenceException("GET ENTITIES BY ID: BAD NEXT RESULTS TOKEN "+next_results_token);
+			}
+		}
+		return pidx.getEntitiesOrderedById(type, token, number_of_records);
+	}
+
 	protected QueryResult do_get_entities_ordered_by_id(String type, int start, long number_of_records) throws PersistenceException
 	{
-		BDBPrimaryIndex pidx = entity_primary_indexes_as_map.get(type);
+		BDBPrimaryIndex pidx = get_primary_index(type);
 		if(pidx == null)
 			throw new PersistenceException("GET ENTITIES BY ID: no such entity "+type);
 		return pidx.getEntitiesOrderedById(type, start, number_of_records);
@@ -4726,7 +6664,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 	private List<Object> do_get_distinct_keys(String entityname,String indexname) throws PersistenceException
 	{
-		BDBPrimaryIndex pidx = entity_primary_indexes_as_map.get(entityname);
+		BDBPrimaryIndex pidx = get_primary_index(entityname);
 		if(pidx == null)
 			throw new PersistenceException("GET DISTINCT KEYS: no such entity "+entityname);
 
@@ -4792,17 +6730,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 				return;
 			Entity e = es.get(0);
 			EntityDefinition ed = getEntityDefinitionProvider().provideEntityDefinition(e);
-			int s = es.size();
-
-			for(FieldDefinition fd:ed.getFields())
-			{
-				if(fd.getBaseType() != Types.TYPE_REFERENCE)
-					continue;
-
-				for (int i = 0;i < s;i++)
-					do_fill_reference_field(null,es.get(i),fd);
-
-			}
+			do_fill_reference_fields(null,es,ed);
 		}catch(PersistenceException pe)
 		{
 			throw pe;
@@ -4823,16 +6751,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			Transaction txn = get_transaction_by_transaction_id(transaction_id);
 			Entity e = es.get(0);
 			EntityDefinition ed = getEntityDefinitionProvider().provideEntityDefinition(e);
-
-			for(FieldDefinition fd:ed.getFields())
-			{
-				if(fd.getBaseType() != Types.TYPE_REFERENCE)
-					continue;
-
-				for (int i = 0;i < s;i++)
-					do_fill_reference_field(txn,es.get(i),fd);
-
-			}
+			do_fill_reference_fields(txn,es,ed);
 		}catch(PersistenceException pe)
 		{
 			throw pe;
@@ -4853,9 +6772,9 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			Entity e = es.get(0);
 			EntityDefinition ed = getEntityDefinitionProvider().provideEntityDefinition(e);
 			FieldDefinition fd = ed.getField(fieldname);
-
-			for (int i = 0;i < s;i++)
-				do_fill_reference_field(null,es.get(i),fd);
+			List<FieldDefinition> fields = new ArrayList<FieldDefinition>(1);
+			fields.add(fd);
+			do_fill_reference_fields(null,es,fields);
 		}catch(PersistenceException pe)
 		{
 			throw pe;
@@ -4877,10 +6796,9 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 			Entity e = es.get(0);
 			EntityDefinition ed = getEntityDefinitionProvider().provideEntityDefinition(e);
 			FieldDefinition fd = ed.getField(fieldname);
-
-
-				for (int i = 0;i < s;i++)
-					do_fill_reference_field(txn,es.get(i),fd);
+			List<FieldDefinition> fields = new ArrayList<FieldDefinition>(1);
+			fields.add(fd);
+			do_fill_reference_fields(txn,es,fields);
 			}catch(PersistenceException pe)
 			{
 				throw pe;
@@ -4899,12 +6817,9 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 	    try{
 			EntityDefinition ed = getEntityDefinitionProvider().provideEntityDefinition(e);
-	    	for (FieldDefinition f : ed.getFields())
-		    {
-		    	if(f.getBaseType() != Types.TYPE_REFERENCE)
-		    		continue;
-		    	do_fill_reference_field(null,e, f);
-		    }
+			List<Entity> es = new ArrayList<Entity>(1);
+			es.add(e);
+			do_fill_reference_fields(null,es,ed);
 		}catch(PersistenceException pe)
 		{
 			throw pe;
@@ -4922,12 +6837,9 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 	    try{
 	    	Transaction txn = get_transaction_by_transaction_id(transaction_id);
 			EntityDefinition ed = getEntityDefinitionProvider().provideEntityDefinition(e);
-	    	for (FieldDefinition f : ed.getFields())
-		    {
-		    	if(f.getBaseType() != Types.TYPE_REFERENCE)
-		    		continue;
-		    	do_fill_reference_field(txn,e, f);
-		    }
+			List<Entity> es = new ArrayList<Entity>(1);
+			es.add(e);
+			do_fill_reference_fields(txn,es,ed);
 		}catch(PersistenceException pe)
 		{
 			throw pe;
@@ -4973,105 +6885,183 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		}
 	}
 
-	@SuppressWarnings("unchecked")
 	private void do_fill_reference_field(Transaction parent_txn,Entity e, FieldDefinition f) throws PersistenceException
 	{
-		if (f == null || f.getBaseType() != Types.TYPE_REFERENCE)
-           throw new PersistenceException("REF FIELD CANT BE FILLED.IT IS EITHER DOES NOT EXIST IN ENTITY OR IS NOT A REFERNCE TYPE");
-
-       String type = f.getReferenceType();
-       if(type.equals(FieldDefinition.REF_TYPE_UNTYPED_ENTITY))
-    	   do_fill_untyped_reference_field(parent_txn,e, f);
-       else
-    	   do_fill_typed_reference_field(parent_txn,e, f);
-
-   }
-
-	private void do_fill_typed_reference_field(Transaction parent_txn,Entity e, FieldDefinition f) throws PersistenceException
-	{
-       BDBPrimaryIndex ref_pidx = entity_primary_indexes_as_map.get(f.getReferenceType());
-       if (ref_pidx==null)
-    	   throw new PersistenceException("STORE DOES NOT RECOGNIZE REFERENCE TYPE "+f.getReferenceType());
-
-	       if (f.isArray())
-	       {
-	           List<Entity> refs = (List<Entity>) e.getAttribute(f.getName());
-	           if (refs == null)
-	               return;
-
-	           List<Entity> filled_refs = new ArrayList<Entity>();
-	           for (int i=0; i<refs.size(); i++)
-	           {
-	              Entity r = refs.get(i);
-	              if(r == null)
-	              {
-	            	  filled_refs.add(null);
-	              }
-	              else
-	              {
-	            	  Entity r1 = ref_pidx.getById(parent_txn,r.getId());
-	            	  if (r1 != null) // if a list is refering to a reference that doesnt exist, we add the lightweight version only
-	            		  filled_refs.add(r1);
-	            	  else
-	            	  {
-	            		  filled_refs.add(r);
-	            		  logger.error("Data Integrity error: "+r.getType()+" "+r.getId()+
-	            			  " does not exist in db (parent="+e.getType()+" "+e.getId()+" field="+f.getName()+")");
-	            	  }
-	              }
-	            }
-	           e.getAttributes().put(f.getName(), filled_refs);
-	       }
-	       else
-	       {
-	           Entity ref = (Entity) e.getAttribute(f.getName());
-	           if (ref == null)
-	               return;
-	           e.getAttributes().put(f.getName(),ref_pidx.getById(parent_txn,ref.getId()));
-	       }
-   }
-
-	private void do_fill_untyped_reference_field(Transaction parent_txn,Entity e, FieldDefinition f) throws PersistenceException
-	{
-		BDBPrimaryIndex ref_pidx = null;
-
-       if (f.isArray())
-       {
-           List<Entity> refs = (List<Entity>) e.getAttribute(f.getName());
-           if (refs == null || refs.size() == 0)
-               return;
-
-           List<Entity> filled_refs = new ArrayList<Entity>();
-           Entity r = null;
-           for (int i=0; i<refs.size(); i++)
-           {
-              r = refs.get(i);
-              if(r == null)
-            	  filled_refs.add(null);
-              else
-              {
-            	  /* here we need to look up this things per entity since this will probably
-            	   * be a non homgenous list of entities */
-                  ref_pidx = entity_primary_indexes_as_map.get(r.getType());
-                  if (ref_pidx==null)
-               	   throw new PersistenceException("STORE DOES NOT RECOGNIZE REFERENCE TYPE "+f.getReferenceType());
-            	  filled_refs.add(ref_pidx.getById(parent_txn,r.getId()));
-              }
-             }
-            e.getAttributes().put(f.getName(), filled_refs);
-       }
-       else
-       {
-    	   Entity ref = (Entity) e.getAttribute(f.getName());
-           if (ref == null)
-               return;
-           ref_pidx = entity_primary_indexes_as_map.get(ref.getType());
-           if (ref_pidx==null)
-        	   throw new PersistenceException("STORE DOES NOT RECOGNIZE REFERENCE TYPE "+ref.getType()+" "+f.getReferenceType());
-           e.getAttributes().put(f.getName(),ref_pidx.getById(parent_txn,ref.getId()));
-       }
-
-   }
+		List<Entity> es = new ArrayList<Entity>(1);
+		es.add(e);
+		List<FieldDefinition> fields = new ArrayList<FieldDefinition>(1);
+		fields.add(f);
+		do_fill_reference_fields(parent_txn, es, fields);
+	}
+
+	private void do_fill_reference_fields(Transaction parent_txn,List<Entity> es,EntityDefinition ed) throws PersistenceException
+	{
+		List<FieldDefinition> fields = new ArrayList<FieldDefinition>();
+		for(FieldDefinition fd:ed.getFields())
+		{
+			if(fd.getBaseType() != Types.TYPE_REFERENCE)
+				continue;
+			fields.add(fd);
+		}
+		do_fill_reference_fields(parent_txn, es, fields);
+	}
+
+	/* fill in three passes. first collect every referenced id grouped by the
+	 * type it lives in, then fetch each type with one sorted cursor pass over
+	 * its primary index, then stitch the results back into the entities.
+	 * untyped refs are grouped by their own getType().
+	 */
+	@SuppressWarnings("unchecked")
+	private void do_fill_reference_fields(Transaction parent_txn,List<Entity> es,List<FieldDefinition> fields) throws PersistenceException
+	{
+		int nf = fields.size();
+		for(int j = 0;j < nf;j++)
+		{
+			FieldDefinition f = fields.get(j);
+			if (f == null || f.getBaseType() != Types.TYPE_REFERENCE)
+				throw new PersistenceException("REF FIELD CANT BE FILLED.IT IS EITHER DOES NOT EXIST IN ENTITY OR IS NOT A REFERNCE TYPE");
+			if(!is_untyped_reference(f) && entity_primary_indexes_as_map.get(f.getReferenceType()) == null)
+				throw new PersistenceException("STORE DOES NOT RECOGNIZE REFERENCE TYPE "+f.getReferenceType());
+		}
+
+		/* collect */
+		Map<String,Set<Long>> ids_by_type = new HashMap<String,Set<Long>>();
+		int s = es.size();
+		for(int i = 0;i < s;i++)
+		{
+			Entity e = es.get(i);
+			if(e == null)
+				continue;
+			for(int j = 0;j < nf;j++)
+			{
+				FieldDefinition f = fields.get(j);
+				Object val = e.getAttribute(f.getName());
+				if(val == null)
+					continue;
+				if(f.isArray())
+				{
+					List<Entity> refs = (List<Entity>)val;
+					for(int k = 0;k < refs.size();k++)
+						collect_reference(ids_by_type,f,refs.get(k));
+				}
+				else
+					collect_reference(ids_by_type,f,(Entity)val);
+			}
+		}
+		if(ids_by_type.isEmpty())
+			return;
+
+		/* fetch */
+		Map<String,Map<Long,Entity>> fetched = new HashMap<String,Map<Long,Entity>>();
+		Iterator<String> types = ids_by_type.keySet().iterator();
+		while(types.hasNext())
+		{
+			String type 		 = types.next();
+			BDBPrimaryIndex pidx = get_primary_index(type);
+			Set<Long> id_set 	 = ids_by_type.get(type);
+			long[] ids 			 = new long[id_set.size()];
+			int ii = 0;
+			for(Long id:id_set)
+				ids[ii++] = id;
+			fetched.put(type, pidx.getByIds(parent_txn, ids));
+		}
+
+		/* stitch */
+		Map<String,Set<Long>> handed_out = new HashMap<String,Set<Long>>();
+		for(int i = 0;i < s;i++)
+		{
+			Entity e = es.get(i);
+			if(e == null)
+				continue;
+			for(int j = 0;j < nf;j++)
+			{
+				FieldDefinition f = fields.get(j);
+				Object val = e.getAttribute(f.getName());
+				if(val == null)
+					continue;
+				if(f.isArray())
+				{
+					List<Entity> refs = (List<Entity>)val;
+					if(refs.size() == 0)
+						continue;
+					List<Entity> filled_refs = new ArrayList<Entity>(refs.size());
+					for (int k = 0;k < refs.size();k++)
+					{
+						Entity r = refs.get(k);
+						if(r == null)
+						{
+							filled_refs.add(null);
+							continue;
+						}
+						Entity r1 = get_filled_reference(fetched,handed_out,f,r);
+						if(r1 == null && !is_untyped_reference(f))
+						{
+							// if a list is refering to a reference that doesnt exist, we add the lightweight version only
+							filled_refs.add(r);
+							logger.error("Data Integrity error: "+r.getType()+" "+r.getId()+
+									" does not exist in db (parent="+e.getType()+" "+e.getId()+" field="+f.getName()+")");
+						}
+						else
+							filled_refs.add(r1);
+					}
+					e.getAttributes().put(f.getName(), filled_refs);
+				}
+				else
+					e.getAttributes().put(f.getName(),get_filled_reference(fetched,handed_out,f,(Entity)val));
+			}
+		}
+	}
+
+	private boolean is_untyped_reference(FieldDefinition f)
+	{
+		return f.getReferenceType().equals(FieldDefinition.REF_TYPE_UNTYPED_ENTITY);
+	}
+
+	private String get_reference_type(FieldDefinition f,Entity r) throws PersistenceException
+	{
+		if(!is_untyped_reference(f))
+			return f.getReferenceType();
+		String type = r.getType();
+		if(entity_primary_indexes_as_map.get(type) == null)
+			throw new PersistenceException("STORE DOES NOT RECOGNIZE REFERENCE TYPE "+type+" "+f.getReferenceType());
+		return type;
+	}
+
+	private void collect_reference(Map<String,Set<Long>> ids_by_type,FieldDefinition f,Entity r) throws PersistenceException
+	{
+		if(r == null)
+			return;
+		String type = get_reference_type(f, r);
+		Set<Long> ids = ids_by_type.get(type);
+		if(ids == null)
+		{
+			ids = new HashSet<Long>();
+			ids_by_type.put(type, ids);
+		}
+		ids.add(r.getId());
+	}
+
+	/* the same entity can be referenced from many places. the first reference
+	 * gets the fetched instance and every other one gets its own copy.
+	 */
+	private Entity get_filled_reference(Map<String,Map<Long,Entity>> fetched,Map<String,Set<Long>> handed_out,FieldDefinition f,Entity r) throws PersistenceException
+	{
+		if(r == null)
+			return null;
+		String type = get_reference_type(f, r);
+		Entity r1 	= fetched.get(type).get(r.getId());
+		if(r1 == null)
+			return null;
+		Set<Long> handed = handed_out.get(type);
+		if(handed == null)
+		{
+			handed = new HashSet<Long>();
+			handed_out.put(type, handed);
+		}
+		if(!handed.add(r.getId()))
+			r1 = EntityCache.copy(r1);
+		return r1;
+	}
 
 
 
@@ -5080,6 +7070,57 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		_query_manager.cleanCache(entity_name);
 	}
 
+	/* QUERY CACHE INVALIDATION */
+	/* what each open transaction changed, by entity type. a child hands its
+	 * changes up to its parent when it commits. only a top level commit makes
+	 * them visible so that is when the cached queries that read them go.
+	 */
+	private ConcurrentHashMap<Transaction,Map<String,QueryCacheKeys>> _query_cache_changes = new ConcurrentHashMap<Transaction, Map<String,QueryCacheKeys>>(128,0.75f,128);
+	/* user transactions started under another user transaction */
+	private ConcurrentHashMap<Transaction,Transaction> _transaction_parents = new ConcurrentHashMap<Transaction, Transaction>(128,0.75f,128);
+
+	/* null if query results for entity_type are not cached */
+	private QueryCacheKeys get_query_cache_changes(Transaction txn,String entity_type)
+	{
+		if(!_query_manager.isCaching(entity_type))
+			return null;
+		Map<String,QueryCacheKeys> changes = _query_cache_changes.get(txn);
+		if(changes == null)
+		{
+			changes = new HashMap<String,QueryCacheKeys>();
+			_query_cache_changes.put(txn,changes);
+		}
+		QueryCacheKeys c = changes.get(entity_type);
+		if(c == null)
+		{
+			c = new QueryCacheKeys();
+			changes.put(entity_type,c);
+		}
+		return c;
+	}
+
+	/* call right after txn commits */
+	private void commit_query_cache_changes(Transaction txn,Transaction parent_txn)
+	{
+		Map<String,QueryCacheKeys> changes = _query_cache_changes.remove(txn);
+		if(changes == null)
+			return;
+		Iterator<String> it = changes.keySet().iterator();
+		while(it.hasNext())
+		{
+			String entity_type = it.next();
+			if(parent_txn == null)
+				_query_manager.invalidateCache(entity_type,changes.get(entity_type));
+			else
+				get_query_cache_changes(parent_txn,entity_type).addAll(changes.get(entity_type));
+		}
+	}
+
+	private void discard_query_cache_changes(Transaction txn)
+	{
+		_query_cache_changes.remove(txn);
+	}
+
 	private void calculate_query_cache_dependencies(EntityDefinition def)
 	{
 		_query_manager.calculateCacheDependencies(def);
@@ -5248,6 +7289,8 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 				e.printStackTrace();
 				logger.error("abortTxn(Transaction)", e);
 			}
+			discard_query_cache_changes(txn);
+			clear_entity_caches();
 			txn = null;
 		}
 	}
@@ -5268,6 +7311,28 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 		buf.append(getLogStatistics()+"\n\n");
 		buf.append(getCacheStatistics()+"\n\n");
 		buf.append(getCacheFileStatistics()+"\n\n");
+		buf.append(getEntityCacheStatistics()+"\n\n");
+		buf.append(getDeepIndexQueueStatistics()+"\n\n");
+		return buf.toString();
+	}
+
+	/* how far behind the deep indexes are and what keeping them costs writers */
+	public String getDeepIndexQueueStatistics()
+	{
+		if(_deep_index_queue == null)
+			return "";
+		return _deep_index_queue.toString();
+	}
+
+	public String getEntityCacheStatistics()
+	{
+		StringBuilder buf = new StringBuilder();
+		for(int i = 0;i < entity_primary_indexes_as_list.size();i++)
+		{
+			EntityCache cache = entity_primary_indexes_as_list.get(i).getEntityCache();
+			if(cache != null)
+				buf.append(cache.toString()+"\n");
+		}
 		return buf.toString();
 	}
 
@@ -5549,6 +7614,7 @@ public class BDBStore implements PersistentStore, BDBEntityDefinitionProvider
 
 	public void restoreFromBackup(String backup_token) throws PersistenceException
 	{
+		stop_deep_index_worker();
 		_store_locker.enterLockerThread();
 		try{
 			logger.debug("R E S T O R E  FROM "+backup_token);
@@ -12,6 +12,32 @@ public class BDBStoreConfigKeyValues
 	public static final String KEY_DEADLOCK_RESOLUTION_SCHEME_MONITOR_DEADLOCKS_INTERVAL = "deadlock-resolution-scheme-interval";
 	public static final String KEY_STORE_LOCKER_CLASS = "store-locker-class";
 	public static final String KEY_STORE_CHECKPOINT_POLICY_CLASS = "check-point-policy-class";
+	/* max number of entities cached per entity type. 0 turns the entity cache off */
+	public static final String KEY_ENTITY_CACHE_SIZE = "entity-cache-size";
+	/* entity types whose query results are cached. a List<String> or a comma separated
+	 * String. leave it out to cache every type */
+	public static final String KEY_QUERY_CACHE_ENTITY_TYPES = "query-cache-entity-types";
+	/* Boolean. build new indexes with OnlineIndexBuild so writers are not held off.
+	 * deep indexes are always built the old way */
+	public static final String KEY_INDEX_BUILD_ONLINE = "index-build-online";
+	/* Integers. worker threads, rows per transaction and a rate limit (0 is none)
+	 * for online index builds */
+	public static final String KEY_INDEX_BUILD_THREADS = "index-build-threads";
+	public static final String KEY_INDEX_BUILD_BATCH_SIZE = "index-build-batch-size";
+	public static final String KEY_INDEX_BUILD_MAX_ROWS_PER_SECOND = "index-build-max-rows-per-second";
+	/* Integer. bytes of index keys sorted in memory before a run is spilled to
+	 * disk when an index is filled with a sorted bulk load */
+	public static final String KEY_INDEX_REBUILD_RUN_BYTES = "index-rebuild-run-bytes";
+	/* Boolean. false builds new indexes without a delete map and drops the delete
+	 * maps of existing ones at startup. deletes and updates then work out the old
+	 * rows from the before-image. freetext and deep indexes keep theirs */
+	public static final String KEY_INDEX_DELETE_MAPS = "index-delete-maps";
+	/* Integers. changes applied to the deep indexes per transaction and how long
+	 * in ms the deep index worker sleeps when it has caught up */
+	public static final String KEY_DEEP_INDEX_QUEUE_BATCH_SIZE = "deep-index-queue-batch-size";
+	public static final String KEY_DEEP_INDEX_QUEUE_INTERVAL = "deep-index-queue-interval";
+	/* Integer. related entities undone per transaction by deleteEntityBulk */
+	public static final String KEY_BULK_DELETE_BATCH_SIZE = "bulk-delete-batch-size";
 	public static final int VALUE_DEADLOCK_RESOLUTION_SCHEME_ALWAYS_CRAWL_LOCKTABLE = 0x01;
 	public static final int VALUE_DEADLOCK_RESOLUTION_SCHEME_MONITOR_DEADLOCKS 		= 0x02;
 }
@@ -7,6 +7,8 @@ import java.util.Map;
 import org.apache.log4j.Logger;
 
 
+import com.pagesociety.bdb.BDBEdgeList;
+import com.pagesociety.bdb.BDBEdgeTable;
 import com.pagesociety.bdb.BDBEntityDefinitionProvider;
 import com.pagesociety.persistence.Entity;
 import com.pagesociety.persistence.EntityDefinition;
@@ -22,6 +24,8 @@ public class EntityBinding
 
 	private static final Logger logger = Logger.getLogger(EntityBinding.class);
 	private BDBEntityDefinitionProvider _def_provider;
+	/* entity type -> field -> edges for fields kept out of the record */
+	private Map<String,Map<String,BDBEdgeTable>> _edge_tables;
 	
 	public EntityBinding()
 	{
@@ -32,6 +36,19 @@ public class EntityBinding
 		_def_provider = provider;
 	}
 
+	public void setEdgeTables(Map<String,Map<String,BDBEdgeTable>> edge_tables)
+	{
+		_edge_tables = edge_tables;
+	}
+
+	/* null when the type keeps all its fields in the record */
+	private Map<String,BDBEdgeTable> edge_fields(String entity_type)
+	{
+		if(_edge_tables == null || _edge_tables.isEmpty())
+			return null;
+		return _edge_tables.get(entity_type);
+	}
+
 	public void entityToEntry(Entity entity, DatabaseEntry entry) throws DatabaseException
 	{
 		TupleOutput to = new TupleOutput();
@@ -43,10 +60,15 @@ public class EntityBinding
 //			EntityDefinition ed = entity.getEntityDefinition();
 			EntityDefinition ed = _def_provider.provideEntityDefinition(entity.getType());
 			List<FieldDefinition> fields = ed.getFields();
+			Map<String,BDBEdgeTable> edge_fields = edge_fields(ed.getName());
 			for (int i = 0; i < fields.size(); i++)
 			{
 				FieldDefinition field = fields.get(i);
-				FieldBinding.writeValueToTuple(field, entity.getAttribute(field.getName()), to);
+				/* the edge table has these */
+				if(edge_fields != null && edge_fields.containsKey(field.getName()))
+					FieldBinding.writeValueToTuple(field, null, to);
+				else
+					FieldBinding.writeValueToTuple(field, entity.getAttribute(field.getName()), to);
 			}
 		}	
 		entry.setData(to.toByteArray());
@@ -62,10 +84,15 @@ public class EntityBinding
 			to.writeFast(FieldBinding.NULL_FLAG_VAL_NOT_NULL);
 //			EntityDefinition ed = entity.getEntityDefinition();
 			List<FieldDefinition> fields = ed.getFields();
+			Map<String,BDBEdgeTable> edge_fields = edge_fields(ed.getName());
 			for (int i = 0; i < fields.size(); i++)
 			{
 				FieldDefinition field = fields.get(i);
-				FieldBinding.writeValueToTuple(field, entity.getAttribute(field.getName()), to);
+				/* the edge table has these */
+				if(edge_fields != null && edge_fields.containsKey(field.getName()))
+					FieldBinding.writeValueToTuple(field, null, to);
+				else
+					FieldBinding.writeValueToTuple(field, entity.getAttribute(field.getName()), to);
 			}
 		}	
 		entry.setData(to.toByteArray());
@@ -104,6 +131,27 @@ public class EntityBinding
 		return entity;
 	}
 
+	/* decodes the row only as far as field_index and keeps just that field.
+	 * enough to sort on without paying for the rest of the row. the entity
+	 * is not a whole instance so it must never be cached or handed out.
+	 */
+	public Entity getPartialEntitySetId(EntityDefinition ed, DatabaseEntry id, DatabaseEntry entry, int field_index)
+	{
+		TupleInput ti = new TupleInput(entry.getData(), entry.getOffset(), entry.getSize());
+		int null_flag = ti.readFast();
+		if(null_flag == FieldBinding.NULL_FLAG_VAL_NULL)
+			return null;
+
+		Entity entity = ed.createInstance();
+		List<FieldDefinition> fields = ed.getFields();
+		Object val = null;
+		for (int i = 0; i <= field_index; i++)
+			val = FieldBinding.readValueFromTuple(ti, fields.get(i));
+		entity.getAttributes().put(fields.get(field_index).getName(), val);
+		entity.setId((Long)LongBinding.entryToLong(id));
+		return entity;
+	}
+
 	public Entity getEntitySetId(EntityDefinition def, DatabaseEntry id, DatabaseEntry entry)
 	{
 		Entity entity = entryToEntity(def, entry);
@@ -111,6 +159,13 @@ public class EntityBinding
 			return null;
 		
 		entity.setId((Long)LongBinding.entryToLong(id));
+		Map<String,BDBEdgeTable> edge_fields = edge_fields(def.getName());
+		if(edge_fields != null)
+		{
+			Map<String,Object> attr = entity.getAttributes();
+			for(Map.Entry<String,BDBEdgeTable> f : edge_fields.entrySet())
+				attr.put(f.getKey(), new BDBEdgeList(f.getValue(),entity.getId()));
+		}
 		return entity;
 	}
 }
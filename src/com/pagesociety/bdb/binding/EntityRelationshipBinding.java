@@ -21,6 +21,7 @@ public class EntityRelationshipBinding
 		to.writeInt(entity_relationship.getType());
 		to.writeString(entity_relationship.getTargetEntity());
 		to.writeString(entity_relationship.getTargetEntityField());
+		to.writeInt(entity_relationship.getStorage());
 	}
 
 	public Object entryToObject(DatabaseEntry data)
@@ -31,6 +32,9 @@ public class EntityRelationshipBinding
 				  														ti.readInt(),
 				  														ti.readString(),
 				  														ti.readString());
+		/* older records end here. the rest of the buffer is zeros */
+		if(ti.available() >= 4 && ti.readInt() == EntityRelationshipDefinition.STORAGE_EDGE_TABLE)
+			entity_relationship.setStorage(EntityRelationshipDefinition.STORAGE_EDGE_TABLE);
 		return entity_relationship;
 	}
 }
\ No newline at end of file
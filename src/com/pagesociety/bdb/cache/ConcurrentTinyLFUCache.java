@@ -0,0 +1,424 @@
+package com.pagesociety.bdb.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* bounded concurrent cache. the keys are split over a handful of stripes and
+ * each stripe has its own monitor so readers of different keys do not
+ * contend and an access ordered get only ever moves things around under the
+ * lock of its stripe.
+ *
+ * replacement is window tinylfu. a new entry goes into a small lru window.
+ * when it falls out of the window it has to beat the eldest entry of the
+ * main area on how often its key was asked for, or it is dropped. the
+ * counts live in a little count-min sketch that is halved every so often so
+ * old popularity fades. a scan of keys nobody asks for twice just runs
+ * through the window without flushing the entries that are actually hot.
+ *
+ * the bound is on weight. without a weigher every entry weighs 1 and the
+ * bound is an entry count.
+ */
+public class ConcurrentTinyLFUCache<K,V>
+{
+	private static final int MAX_STRIPES 		= 16;
+	private static final int MIN_STRIPE_WEIGHT 	= 32;
+
+	private long 		  _max_weight;
+	private Weigher<K,V>  _weigher;
+	private stripe[] 	  _stripes;
+
+	private AtomicLong _hits 		= new AtomicLong();
+	private AtomicLong _misses 		= new AtomicLong();
+	private AtomicLong _evictions 	= new AtomicLong();
+	private AtomicLong _rejections 	= new AtomicLong();
+
+	public ConcurrentTinyLFUCache(int max_size)
+	{
+		this(max_size,null);
+	}
+
+	/* weigher may be null */
+	@SuppressWarnings("unchecked")
+	public ConcurrentTinyLFUCache(long max_weight,Weigher<K,V> weigher)
+	{
+		_max_weight = max_weight;
+		_weigher 	= weigher;
+		int n = 1;
+		while(n < MAX_STRIPES && (long)(n * 2) * MIN_STRIPE_WEIGHT <= max_weight)
+			n *= 2;
+		_stripes = (stripe[])new ConcurrentTinyLFUCache<?,?>.stripe[n];
+		long stripe_weight = Math.max(1, max_weight / n);
+		for(int i = 0;i < n;i++)
+			_stripes[i] = new stripe(stripe_weight);
+	}
+
+	public V get(K key)
+	{
+		int h 	 = spread(key.hashCode());
+		stripe s = stripe_for(h);
+		V v;
+		synchronized(s)
+		{
+			v = s.get(key,h);
+		}
+		if(v == null)
+			_misses.incrementAndGet();
+		else
+			_hits.incrementAndGet();
+		return v;
+	}
+
+	public void put(K key,V value)
+	{
+		int weight = (_weigher == null)?1:_weigher.weigh(key, value);
+		int h 	   = spread(key.hashCode());
+		stripe s   = stripe_for(h);
+		synchronized(s)
+		{
+			s.put(key,value,weight,h);
+		}
+	}
+
+	public boolean remove(K key)
+	{
+		stripe s = stripe_for(spread(key.hashCode()));
+		synchronized(s)
+		{
+			return s.remove(key,null);
+		}
+	}
+
+	/* only if key still maps to value. somebody may have put a newer one */
+	public boolean remove(K key,V value)
+	{
+		stripe s = stripe_for(spread(key.hashCode()));
+		synchronized(s)
+		{
+			return s.remove(key,value);
+		}
+	}
+
+	public void clear()
+	{
+		for(int i = 0;i < _stripes.length;i++)
+		{
+			stripe s = _stripes[i];
+			synchronized(s)
+			{
+				s.clear();
+			}
+		}
+	}
+
+	/* a snapshot. it does not count as an access */
+	public List<V> allValues()
+	{
+		List<V> values = new ArrayList<V>();
+		for(int i = 0;i < _stripes.length;i++)
+		{
+			stripe s = _stripes[i];
+			synchronized(s)
+			{
+				s.values(values);
+			}
+		}
+		return values;
+	}
+
+	public int size()
+	{
+		int size = 0;
+		for(int i = 0;i < _stripes.length;i++)
+		{
+			stripe s = _stripes[i];
+			synchronized(s)
+			{
+				size += s.window.size() + s.main.size();
+			}
+		}
+		return size;
+	}
+
+	public long weightedSize()
+	{
+		long weight = 0;
+		for(int i = 0;i < _stripes.length;i++)
+		{
+			stripe s = _stripes[i];
+			synchronized(s)
+			{
+				weight += s.window_weight + s.main_weight;
+			}
+		}
+		return weight;
+	}
+
+	public long getMaxWeight()
+	{
+		return _max_weight;
+	}
+
+	public long getHits()
+	{
+		return _hits.get();
+	}
+
+	public long getMisses()
+	{
+		return _misses.get();
+	}
+
+	/* entries pushed out to make room */
+	public long getEvictions()
+	{
+		return _evictions.get();
+	}
+
+	/* new entries that lost to the main area on frequency and never got in */
+	public long getRejections()
+	{
+		return _rejections.get();
+	}
+
+	public String toString()
+	{
+		return "ConcurrentTinyLFUCache size: "+size()+" weight: "+weightedSize()+"/"+_max_weight+" hits: "+getHits()+" misses: "+getMisses()+" evictions: "+getEvictions()+" rejections: "+getRejections();
+	}
+
+	private static int spread(int h)
+	{
+		h ^= (h >>> 16);
+		h *= 0x45d9f3b;
+		h ^= (h >>> 16);
+		return h;
+	}
+
+	private stripe stripe_for(int h)
+	{
+		return _stripes[(h >>> 8) & (_stripes.length - 1)];
+	}
+
+	private class node
+	{
+		private K 	key;
+		private V 	value;
+		private int weight;
+
+		private node(K key,V value,int weight)
+		{
+			this.key 	= key;
+			this.value 	= value;
+			this.weight = weight;
+		}
+	}
+
+	private class stripe
+	{
+		private LinkedHashMap<K,node> window;
+		private LinkedHashMap<K,node> main;
+		private long window_weight;
+		private long main_weight;
+		private long max_window_weight;
+		private long max_main_weight;
+		private frequency_sketch sketch;
+
+		private stripe(long max_weight)
+		{
+			max_window_weight = Math.max(1, max_weight / 100);
+			max_main_weight   = max_weight - max_window_weight;
+			window 			  = new LinkedHashMap<K,node>(16,0.75f,true);
+			main 			  = new LinkedHashMap<K,node>(16,0.75f,true);
+			sketch 			  = new frequency_sketch(max_weight);
+		}
+
+		private V get(K key,int h)
+		{
+			sketch.increment(h);
+			node n = window.get(key);
+			if(n == null)
+				n = main.get(key);
+			return (n == null)?null:n.value;
+		}
+
+		private void put(K key,V value,int weight,int h)
+		{
+			node n = new node(key,value,weight);
+			node old;
+			if((old = main.remove(key)) != null)
+			{
+				/* it already earned its place. just make room for the new weight */
+				main_weight -= old.weight;
+				main.put(key, n);
+				main_weight += weight;
+				while(main_weight > max_main_weight && main.size() > 1)
+					evict(eldest(main));
+				if(main_weight > max_main_weight)
+					evict(n);
+				return;
+			}
+			if((old = window.remove(key)) != null)
+				window_weight -= old.weight;
+			window.put(key, n);
+			window_weight += weight;
+			while(window_weight > max_window_weight)
+			{
+				node candidate = eldest(window);
+				window.remove(candidate.key);
+				window_weight -= candidate.weight;
+				admit(candidate);
+			}
+		}
+
+		/* the candidate stays only if its key is asked for more often than
+		 * every entry it would push out of main.
+		 */
+		private void admit(node candidate)
+		{
+			if(candidate.weight > max_main_weight)
+			{
+				_rejections.incrementAndGet();
+				return;
+			}
+			int freq = sketch.frequency(spread(candidate.key.hashCode()));
+			while(main_weight + candidate.weight > max_main_weight)
+			{
+				node victim = eldest(main);
+				if(sketch.frequency(spread(victim.key.hashCode())) >= freq)
+				{
+					_rejections.incrementAndGet();
+					return;
+				}
+				evict(victim);
+			}
+			main.put(candidate.key, candidate);
+			main_weight += candidate.weight;
+		}
+
+		private void evict(node n)
+		{
+			main.remove(n.key);
+			main_weight -= n.weight;
+			_evictions.incrementAndGet();
+		}
+
+		private node eldest(LinkedHashMap<K,node> map)
+		{
+			return map.values().iterator().next();
+		}
+
+		private boolean remove(K key,V value)
+		{
+			node n = window.get(key);
+			if(n != null)
+			{
+				if(value != null && n.value != value)
+					return false;
+				window.remove(key);
+				window_weight -= n.weight;
+				return true;
+			}
+			n = main.get(key);
+			if(n != null)
+			{
+				if(value != null && n.value != value)
+					return false;
+				main.remove(key);
+				main_weight -= n.weight;
+				return true;
+			}
+			return false;
+		}
+
+		private void clear()
+		{
+			window.clear();
+			main.clear();
+			window_weight = 0;
+			main_weight   = 0;
+		}
+
+		private void values(List<V> values)
+		{
+			Iterator<node> it = window.values().iterator();
+			while(it.hasNext())
+				values.add(it.next().value);
+			it = main.values().iterator();
+			while(it.hasNext())
+				values.add(it.next().value);
+		}
+	}
+
+	/* count-min sketch of 4 bit counters, one byte each to keep it simple.
+	 * after enough increments every counter is halved so the counts follow
+	 * what is popular now.
+	 */
+	private static class frequency_sketch
+	{
+		private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+											 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+		private static final int MAX_COUNT = 15;
+
+		private byte[][] table;
+		private int 	 mask;
+		private int 	 additions;
+		private int 	 sample_size;
+
+		private frequency_sketch(long capacity)
+		{
+			int width = 16;
+			while(width < capacity && width < (1 << 16))
+				width <<= 1;
+			table 		= new byte[SEEDS.length][width];
+			mask 		= width - 1;
+			sample_size = 10 * width;
+		}
+
+		private void increment(int h)
+		{
+			boolean added = false;
+			for(int i = 0;i < table.length;i++)
+			{
+				int idx = index(h, i);
+				if(table[i][idx] < MAX_COUNT)
+				{
+					table[i][idx]++;
+					added = true;
+				}
+			}
+			if(added && ++additions >= sample_size)
+				age();
+		}
+
+		private int frequency(int h)
+		{
+			int min = MAX_COUNT;
+			for(int i = 0;i < table.length;i++)
+			{
+				int c = table[i][index(h, i)];
+				if(c < min)
+					min = c;
+			}
+			return min;
+		}
+
+		private void age()
+		{
+			for(int i = 0;i < table.length;i++)
+			{
+				byte[] row = table[i];
+				for(int j = 0;j < row.length;j++)
+					row[j] = (byte)(row[j] >>> 1);
+			}
+			additions /= 2;
+		}
+
+		private int index(int h,int i)
+		{
+			long x = (h + SEEDS[i]) * SEEDS[i];
+			return (int)(x >>> 32) & mask;
+		}
+	}
+}
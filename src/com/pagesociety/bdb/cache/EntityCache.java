@@ -0,0 +1,189 @@
+package com.pagesociety.bdb.cache;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.pagesociety.bdb.BDBEdgeList;
+import com.pagesociety.persistence.Entity;
+
+/* bounded per entity type cache of decoded entities keyed on id. it sits in
+ * front of BDBPrimaryIndex.getById/getByPrimaryKey and keeps its entries in
+ * a ConcurrentTinyLFUCache, which does the striping, the admission and the
+ * counting. we only ever hand out copies and we only ever store copies so
+ * callers can party on whatever they get back.
+ *
+ * the type keeps a generation number, the same way QueryCacheManager does,
+ * which is bumped on every invalidation. a reader takes a stamp before it
+ * goes to the db and the put is dropped if anything of the type was
+ * invalidated in the mean time. this keeps a slow reader from putting back
+ * a row that a writer just changed.
+ */
+public class EntityCache
+{
+	public static final int DEFAULT_MAX_SIZE 	= 1024;
+
+	private String 	  _name;
+	private int 	  _max_size;
+	private ConcurrentTinyLFUCache<Long,Entity> _entries;
+	private long 	  _generation;
+
+	public EntityCache(String name,int max_size)
+	{
+		_name 	  = name;
+		_max_size = max_size;
+		if(max_size > 0)
+			_entries = new ConcurrentTinyLFUCache<Long,Entity>(max_size);
+	}
+
+	public boolean isEnabled()
+	{
+		return _max_size > 0;
+	}
+
+	public Entity get(long id)
+	{
+		if(!isEnabled())
+			return null;
+		Entity e = _entries.get(id);
+		return (e == null)?null:copy(e);
+	}
+
+	/* take this before you read the row from the db and hand it back to put */
+	public synchronized long stamp()
+	{
+		return _generation;
+	}
+
+	public void put(long id,Entity e,long stamp)
+	{
+		if(!isEnabled() || e == null)
+			return;
+		Entity c = copy(e);
+		synchronized(this)
+		{
+			if(_generation != stamp)
+				return;
+			_entries.put(id, c);
+		}
+	}
+
+	/* the generation moves first so a put that read the old row before */
+	/* the remove can not get in after it */
+	public void invalidate(long id)
+	{
+		if(!isEnabled())
+			return;
+		synchronized(this)
+		{
+			_generation++;
+		}
+		_entries.remove(id);
+	}
+
+	public void clear()
+	{
+		if(!isEnabled())
+			return;
+		synchronized(this)
+		{
+			_generation++;
+		}
+		_entries.clear();
+	}
+
+	public int size()
+	{
+		return isEnabled()?_entries.size():0;
+	}
+
+	public String getName()
+	{
+		return _name;
+	}
+
+	public int getMaxSize()
+	{
+		return _max_size;
+	}
+
+	public long getHits()
+	{
+		return isEnabled()?_entries.getHits():0;
+	}
+
+	public long getMisses()
+	{
+		return isEnabled()?_entries.getMisses():0;
+	}
+
+	public long getEvictions()
+	{
+		return isEnabled()?_entries.getEvictions():0;
+	}
+
+	/* rows read from the db that lost to hotter ones and were never kept */
+	public long getRejections()
+	{
+		return isEnabled()?_entries.getRejections():0;
+	}
+
+	public String toString()
+	{
+		return "EntityCache "+_name+" size: "+size()+"/"+_max_size+" hits: "+getHits()+" misses: "+getMisses()+" evictions: "+getEvictions()+" rejections: "+getRejections();
+	}
+
+	/* copy deep enough that nothing the caller can reach is shared with the
+	 * cached instance. reference values come out of the binding as light
+	 * references so cloning them is enough.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Entity copy(Entity e)
+	{
+		Entity c = shallow_copy(e);
+		Map<String,Object> atts = c.getAttributes();
+		Iterator<Map.Entry<String,Object>> it = new HashMap<String,Object>(atts).entrySet().iterator();
+		while(it.hasNext())
+		{
+			Map.Entry<String,Object> entry = it.next();
+			Object v = entry.getValue();
+			/* an unchanged edge list is handed out unread so nothing is shared */
+			if(v instanceof BDBEdgeList && !((BDBEdgeList)v).isModified())
+				atts.put(entry.getKey(), ((BDBEdgeList)v).copy());
+			else if(v instanceof List)
+			{
+				List<Object> src = (List<Object>)v;
+				List<Object> dst = new ArrayList<Object>(src.size());
+				for(int i = 0;i < src.size();i++)
+					dst.add(copy_value(src.get(i)));
+				atts.put(entry.getKey(), dst);
+			}
+			else if(v instanceof Entity || v instanceof Date || v instanceof byte[])
+				atts.put(entry.getKey(), copy_value(v));
+		}
+		return c;
+	}
+
+	private static Object copy_value(Object v)
+	{
+		if(v instanceof Entity)
+			return shallow_copy((Entity)v);
+		if(v instanceof Date)
+			return ((Date)v).clone();
+		if(v instanceof byte[])
+			return ((byte[])v).clone();
+		return v;
+	}
+
+	private static Entity shallow_copy(Entity e)
+	{
+		Entity c = new Entity(e.getType());
+		c.setId(e.getId());
+		if(e.getAttributes() != null)
+			c.setAttributes(new HashMap<String,Object>(e.getAttributes()));
+		return c;
+	}
+}
@@ -0,0 +1,9 @@
+package com.pagesociety.bdb.cache;
+
+/* how much of a cache's budget an entry uses. must not change while the
+ * entry is in the cache.
+ */
+public interface Weigher<K,V>
+{
+	public int weigh(K key,V value);
+}
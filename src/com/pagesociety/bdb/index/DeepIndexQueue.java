@@ -0,0 +1,313 @@
+package com.pagesociety.bdb.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.pagesociety.bdb.BDBConstants;
+import com.pagesociety.persistence.PersistenceException;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+import com.sleepycat.db.Cursor;
+import com.sleepycat.db.CursorConfig;
+import com.sleepycat.db.Database;
+import com.sleepycat.db.DatabaseConfig;
+import com.sleepycat.db.DatabaseEntry;
+import com.sleepycat.db.DatabaseException;
+import com.sleepycat.db.DatabaseType;
+import com.sleepycat.db.Environment;
+import com.sleepycat.db.LockMode;
+import com.sleepycat.db.OperationStatus;
+import com.sleepycat.db.Transaction;
+
+/* the entities whose changes have not made it into the deep indexes yet.
+ *
+ * a writer drops the type and id of what it wrote in here in its own
+ * transaction so the change and the note of it commit or abort together.
+ * the db is a btree keyed by type and id, not a fifo, so writing the same
+ * entity again before it is applied leaves one entry. the entry keeps the
+ * time of the first change, which is how stale the deep indexes are for
+ * it, and the sequence number of the last one.
+ *
+ * the store applies them in batches out of band. a batch is read without
+ * holding locks, applied, and then acked in the transaction that writes the
+ * deep index rows. ack only removes an entry whose sequence number is the
+ * one that was read. one that was written again in the meantime stays for
+ * the next batch so nobody has to wait on a batch to write.
+ */
+public class DeepIndexQueue
+{
+	private static final Logger logger = Logger.getLogger(DeepIndexQueue.class);
+
+	private Database 	_dbh;
+
+	/* unique across restarts so an old entry can not look acked */
+	private AtomicLong 	_seq 			= new AtomicLong(System.currentTimeMillis() * 1000);
+
+	private AtomicLong 	_enqueued 		= new AtomicLong();
+	private AtomicLong 	_coalesced 		= new AtomicLong();
+	private AtomicLong 	_enqueue_nanos 	= new AtomicLong();
+	private AtomicLong 	_applied 		= new AtomicLong();
+	private AtomicLong 	_batches 		= new AtomicLong();
+	private AtomicLong 	_failed_batches = new AtomicLong();
+	private AtomicLong 	_reindexed 		= new AtomicLong();
+	private AtomicLong 	_batch_millis 	= new AtomicLong();
+	private AtomicLong 	_total_lag 		= new AtomicLong();
+	private volatile long _last_lag;
+	private volatile long _max_lag;
+
+	public DeepIndexQueue(Environment environment) throws PersistenceException
+	{
+		try{
+			_dbh = environment.openDatabase(null, BDBConstants.DEEP_INDEX_QUEUE_DB_NAME, null, get_db_config());
+		}catch(Exception e)
+		{
+			logger.error("DeepIndexQueue(Environment)", e);
+			throw new PersistenceException("UNABLE TO OPEN DEEP INDEX QUEUE "+BDBConstants.DEEP_INDEX_QUEUE_DB_NAME);
+		}
+	}
+
+	/* notes a change to entity_type id under txn. returns false if it was */
+	/* already waiting */
+	public boolean enqueue(Transaction txn,String entity_type,long id) throws DatabaseException
+	{
+		long t1 			= System.nanoTime();
+		DatabaseEntry key 	= key_entry(entity_type, id);
+		DatabaseEntry data 	= new DatabaseEntry();
+		boolean coalesced 	= (_dbh.get(txn, key, data, LockMode.RMW) == OperationStatus.SUCCESS);
+		long first 			= coalesced?new TupleInput(data.getData()).readLong():System.currentTimeMillis();
+		_dbh.put(txn, key, data_entry(first, _seq.incrementAndGet()));
+		_enqueue_nanos.addAndGet(System.nanoTime() - t1);
+		_enqueued.incrementAndGet();
+		if(coalesced)
+			_coalesced.incrementAndGet();
+		return !coalesced;
+	}
+
+	/* up to max of the waiting changes in key order, starting after the key */
+	/* of after. null starts at the first key. fewer than max means the end */
+	/* was reached. callers pass the last change of the previous batch so */
+	/* entries that are rewritten during every batch can not hold up the */
+	/* ones behind them. nothing is locked */
+	public List<Change> peek(Change after,int max) throws DatabaseException
+	{
+		List<Change> changes 	= new ArrayList<Change>();
+		DatabaseEntry key 		= new DatabaseEntry();
+		DatabaseEntry data 		= new DatabaseEntry();
+		Cursor cursor 			= _dbh.openCursor(null, CursorConfig.READ_COMMITTED);
+		try{
+			OperationStatus op_stat;
+			if(after == null)
+				op_stat = cursor.getNext(key, data, LockMode.DEFAULT);
+			else
+			{
+				key 	= key_entry(after.getEntityType(), after.getId());
+				op_stat = cursor.getSearchKeyRange(key, data, LockMode.DEFAULT);
+			}
+			while(changes.size() < max && op_stat == OperationStatus.SUCCESS)
+			{
+				TupleInput ki = new TupleInput(key.getData(), key.getOffset(), key.getSize());
+				TupleInput di = new TupleInput(data.getData(), data.getOffset(), data.getSize());
+				Change c = new Change(ki.readString(), ki.readLong(), di.readLong(), di.readLong());
+				if(after == null || c.getId() != after.getId() || !c.getEntityType().equals(after.getEntityType()))
+					changes.add(c);
+				op_stat = cursor.getNext(key, data, LockMode.DEFAULT);
+			}
+		}finally
+		{
+			cursor.close();
+		}
+		return changes;
+	}
+
+	/* removes the changes that were not written again since they were read */
+	public int ack(Transaction txn,List<Change> changes) throws DatabaseException
+	{
+		long now 	= System.currentTimeMillis();
+		int acked 	= 0;
+		long lag 	= 0;
+		DatabaseEntry data = new DatabaseEntry();
+		for(int i = 0;i < changes.size();i++)
+		{
+			Change c 			= changes.get(i);
+			DatabaseEntry key 	= key_entry(c.getEntityType(), c.getId());
+			if(_dbh.get(txn, key, data, LockMode.RMW) != OperationStatus.SUCCESS)
+				continue;
+			TupleInput di = new TupleInput(data.getData(), data.getOffset(), data.getSize());
+			di.readLong();
+			if(di.readLong() != c.getSeq())
+				continue;
+			_dbh.delete(txn, key);
+			lag = Math.max(lag, now - c.getFirstChanged());
+			_total_lag.addAndGet(now - c.getFirstChanged());
+			acked++;
+		}
+		_applied.addAndGet(acked);
+		if(acked != 0)
+		{
+			_last_lag = lag;
+			if(lag > _max_lag)
+				_max_lag = lag;
+		}
+		return acked;
+	}
+
+	public void recordBatch(int reindexed,long millis,boolean failed)
+	{
+		if(failed)
+		{
+			_failed_batches.incrementAndGet();
+			return;
+		}
+		_batches.incrementAndGet();
+		_reindexed.addAndGet(reindexed);
+		_batch_millis.addAndGet(millis);
+	}
+
+	/* walks the whole queue */
+	public int getPendingCount() throws DatabaseException
+	{
+		return (int)scan_pending()[0];
+	}
+
+	/* how long the oldest waiting change has been waiting in ms. 0 if none */
+	public long getOldestPendingAge() throws DatabaseException
+	{
+		long oldest = scan_pending()[1];
+		return (oldest == Long.MAX_VALUE)?0:System.currentTimeMillis() - oldest;
+	}
+
+	/* what the queue adds to a write, in microseconds */
+	public long getAverageEnqueueMicros()
+	{
+		long n = _enqueued.get();
+		return (n == 0)?0:_enqueue_nanos.get() / n / 1000;
+	}
+
+	public long getLastLag()
+	{
+		return _last_lag;
+	}
+
+	public long getMaxLag()
+	{
+		return _max_lag;
+	}
+
+	private long[] scan_pending() throws DatabaseException
+	{
+		long count 			= 0;
+		long oldest 		= Long.MAX_VALUE;
+		DatabaseEntry key 	= new DatabaseEntry();
+		DatabaseEntry data 	= new DatabaseEntry();
+		Cursor cursor 		= _dbh.openCursor(null, CursorConfig.READ_COMMITTED);
+		try{
+			while(cursor.getNext(key, data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+			{
+				count++;
+				oldest = Math.min(oldest, new TupleInput(data.getData(), data.getOffset(), data.getSize()).readLong());
+			}
+		}finally
+		{
+			cursor.close();
+		}
+		return new long[]{count,oldest};
+	}
+
+	public void close() throws DatabaseException
+	{
+		_dbh.close();
+	}
+
+	private static DatabaseEntry key_entry(String entity_type,long id)
+	{
+		TupleOutput to = new TupleOutput();
+		to.writeString(entity_type);
+		to.writeLong(id);
+		return new DatabaseEntry(to.toByteArray());
+	}
+
+	private static DatabaseEntry data_entry(long first_changed,long seq)
+	{
+		TupleOutput to = new TupleOutput();
+		to.writeLong(first_changed);
+		to.writeLong(seq);
+		return new DatabaseEntry(to.toByteArray());
+	}
+
+	private DatabaseConfig get_db_config()
+	{
+		DatabaseConfig cfg = new DatabaseConfig();
+		cfg.setErrorStream(System.err);
+		cfg.setErrorPrefix("DB FOR DEEP INDEX QUEUE");
+		cfg.setType(DatabaseType.BTREE);
+		cfg.setAllowCreate(true);
+		cfg.setTransactional(true);
+		cfg.setReadUncommitted(true);
+		return cfg;
+	}
+
+	public String toString()
+	{
+		StringBuilder buf = new StringBuilder();
+		buf.append("DeepIndexQueue\n");
+		try{
+			long[] pending = scan_pending();
+			buf.append("\tPENDING "+pending[0]+"\n");
+			buf.append("\tOLDEST PENDING AGE (ms) "+((pending[1] == Long.MAX_VALUE)?0:System.currentTimeMillis() - pending[1])+"\n");
+		}catch(DatabaseException dbe)
+		{
+			logger.error("toString()", dbe);
+			buf.append("\tPENDING UNKNOWN\n");
+		}
+		long applied = _applied.get();
+		long batches = _batches.get();
+		buf.append("\tENQUEUED "+_enqueued.get()+" COALESCED "+_coalesced.get()+"\n");
+		buf.append("\tAVG ENQUEUE COST PER WRITE (us) "+getAverageEnqueueMicros()+"\n");
+		buf.append("\tAPPLIED "+applied+" IN "+batches+" BATCHES. "+_failed_batches.get()+" BATCHES FAILED\n");
+		buf.append("\tTOP LEVEL ENTITIES REINDEXED "+_reindexed.get()+"\n");
+		buf.append("\tAVG BATCH (ms) "+((batches == 0)?0:_batch_millis.get() / batches)+"\n");
+		buf.append("\tLAG (ms) LAST "+_last_lag+" MAX "+_max_lag+" AVG "+((applied == 0)?0:_total_lag.get() / applied)+"\n");
+		return buf.toString();
+	}
+
+	/* one waiting change as peek saw it */
+	public static class Change
+	{
+		private String 	entity_type;
+		private long 	id;
+		private long 	first_changed;
+		private long 	seq;
+
+		public Change(String entity_type,long id,long first_changed,long seq)
+		{
+			this.entity_type 	= entity_type;
+			this.id 			= id;
+			this.first_changed 	= first_changed;
+			this.seq 			= seq;
+		}
+
+		public String getEntityType()
+		{
+			return entity_type;
+		}
+
+		public long getId()
+		{
+			return id;
+		}
+
+		/* when the oldest change not yet applied was made */
+		public long getFirstChanged()
+		{
+			return first_changed;
+		}
+
+		public long getSeq()
+		{
+			return seq;
+		}
+	}
+}
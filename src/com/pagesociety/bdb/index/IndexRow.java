@@ -0,0 +1,80 @@
+package com.pagesociety.bdb.index;
+
+import java.util.Comparator;
+
+import com.sleepycat.db.DatabaseEntry;
+
+/* one row of a secondary index. key is what the index is searched by and
+ * data is what it holds under it, the pkey for most indexes and pkey plus
+ * position for freetext. the delete map holds the same row the other way
+ * around. two rows are equal when their bytes are.
+ */
+public class IndexRow
+{
+	private DatabaseEntry key;
+	private DatabaseEntry data;
+
+	public IndexRow(DatabaseEntry key,DatabaseEntry data)
+	{
+		this.key  = key;
+		this.data = data;
+	}
+
+	public DatabaseEntry getKey()
+	{
+		return key;
+	}
+
+	public DatabaseEntry getData()
+	{
+		return data;
+	}
+
+	public boolean equals(Object o)
+	{
+		if(!(o instanceof IndexRow))
+			return false;
+		IndexRow r = (IndexRow)o;
+		return key.equals(r.key) && data.equals(r.data);
+	}
+
+	public int hashCode()
+	{
+		return key.hashCode() * 31 + data.hashCode();
+	}
+
+	/* btree order for the index db and for the delete map. unsigned bytes,
+	 * shorter first when one is a prefix of the other
+	 */
+	public static final Comparator<IndexRow> BY_KEY = new Comparator<IndexRow>()
+	{
+		public int compare(IndexRow a,IndexRow b)
+		{
+			int c = compare_entries(a.key, b.key);
+			return (c != 0)?c:compare_entries(a.data, b.data);
+		}
+	};
+
+	public static final Comparator<IndexRow> BY_DATA = new Comparator<IndexRow>()
+	{
+		public int compare(IndexRow a,IndexRow b)
+		{
+			int c = compare_entries(a.data, b.data);
+			return (c != 0)?c:compare_entries(a.key, b.key);
+		}
+	};
+
+	private static int compare_entries(DatabaseEntry a,DatabaseEntry b)
+	{
+		byte[] ab = a.getData();
+		byte[] bb = b.getData();
+		int n = Math.min(a.getSize(), b.getSize());
+		for(int i = 0;i < n;i++)
+		{
+			int d = (ab[a.getOffset() + i] & 0xff) - (bb[b.getOffset() + i] & 0xff);
+			if(d != 0)
+				return d;
+		}
+		return a.getSize() - b.getSize();
+	}
+}
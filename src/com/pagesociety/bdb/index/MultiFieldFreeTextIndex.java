@@ -21,7 +21,6 @@ import com.pagesociety.persistence.FieldDefinition;
 import com.pagesociety.persistence.PersistenceException;
 import com.pagesociety.persistence.Query;
 import com.pagesociety.persistence.Types;
-import com.sleepycat.bind.tuple.IntegerBinding;
 import com.sleepycat.bind.tuple.LongBinding;
 import com.sleepycat.bind.tuple.StringBinding;
 import com.sleepycat.bind.tuple.TupleOutput;
@@ -213,7 +212,7 @@ public class MultiFieldFreeTextIndex extends AbstractMultiFieldIndex
 
 
 	
-	public void insertIndexEntry(Transaction parent_txn,Entity e,DatabaseEntry data) throws DatabaseException
+	public void getInsertRows(Entity e,DatabaseEntry data,Set<IndexRow> result) throws DatabaseException
 	{	
 		/* index entries look like   KEY<fieldname,word,equality_parts>:DATA<id,pos in field>*/
 		TupleOutput eq_tuple_output = new TupleOutput();
@@ -227,7 +226,7 @@ public class MultiFieldFreeTextIndex extends AbstractMultiFieldIndex
 		//so that someone could also use the multi index without a freetext
 		//query where all records are considered
 		//q.setContainsAny(Query.VAL_GLOB,Query.VAL_GLOB,PUBLISHED);
-		write_index_row(parent_txn, e, null,null, eq_tuple_output, data,0 );
+		write_index_row(result, null,null, eq_tuple_output, data,0 );
 		for(int i = 0;i < _string_fields.size();i++)
 		{
 			FieldDefinition f   = _string_fields.get(i);
@@ -237,7 +236,7 @@ public class MultiFieldFreeTextIndex extends AbstractMultiFieldIndex
 			{
 				List<String> ss = (List<String>)e.getAttribute(fieldname);
 				if(ss == null)
-					write_index_row(parent_txn, e, fieldname.toLowerCase(),null, eq_tuple_output, data,0 );
+					write_index_row(result, fieldname.toLowerCase(),null, eq_tuple_output, data,0 );
 				else
 				{
 					
@@ -250,7 +249,7 @@ public class MultiFieldFreeTextIndex extends AbstractMultiFieldIndex
 
 						lc_word = SingleFieldFreeTextIndex.trim_word(lc_word);
 						word = _stemmer.stem(lc_word);
-						write_index_row(parent_txn, e, fieldname,word, eq_tuple_output, data,j);
+						write_index_row(result, fieldname,word, eq_tuple_output, data,j);
 					}
 				}
 			}
@@ -258,7 +257,7 @@ public class MultiFieldFreeTextIndex extends AbstractMultiFieldIndex
 			{
 				String s 			= (String)e.getAttribute(fieldname);
 				if(s == null)
-					write_index_row(parent_txn, e, fieldname.toLowerCase(),null, eq_tuple_output, data,0 );
+					write_index_row(result, fieldname.toLowerCase(),null, eq_tuple_output, data,0 );
 				else
 				{
 					StringTokenizer st = new StringTokenizer(s);
@@ -274,7 +273,7 @@ public class MultiFieldFreeTextIndex extends AbstractMultiFieldIndex
 	
 						lc_word = SingleFieldFreeTextIndex.trim_word(lc_word);
 						word = _stemmer.stem(lc_word);
-						write_index_row(parent_txn, e, fieldname,word, eq_tuple_output, data,c );
+						write_index_row(result, fieldname,word, eq_tuple_output, data,c );
 					
 					}
 				}
@@ -286,7 +285,7 @@ public class MultiFieldFreeTextIndex extends AbstractMultiFieldIndex
 		
 	}
 
-	private void write_index_row(Transaction parent_txn,Entity e,String fieldname,String word,TupleOutput eq_tuple_output,DatabaseEntry pkey,int pos) throws DatabaseException
+	private void write_index_row(Set<IndexRow> result,String fieldname,String word,TupleOutput eq_tuple_output,DatabaseEntry pkey,int pos) throws DatabaseException
 	{
 		DatabaseEntry key;
 		DatabaseEntry ddata;
@@ -302,7 +301,7 @@ public class MultiFieldFreeTextIndex extends AbstractMultiFieldIndex
 		too.writeFast(pkey.getData(), 0, pkey.getSize());
 		too.writeInt(pos);/* we put in a position of zero here so all our index rows are the same */
 		ddata = new DatabaseEntry(too.toByteArray());
-		put_row(parent_txn,e,key,ddata);
+		result.add(new IndexRow(key,ddata));
 	}
 
 	public boolean key_matched(DatabaseEntry original_key,DatabaseEntry found_key)
@@ -311,44 +310,7 @@ public class MultiFieldFreeTextIndex extends AbstractMultiFieldIndex
 	}
 	
 	
-	private void put_row(Transaction parent_txn,Entity e,DatabaseEntry key,DatabaseEntry row) throws DatabaseException
-	{
-		String K = new String(key.getData());
-		long ID  = LongBinding.entryToLong(new DatabaseEntry(row.getData(),0,8));
-		int C 	 = IntegerBinding.entryToInt(new DatabaseEntry(row.getData(),8,12));
-		//System.out.println("FREE TEXT INDEX PUTTING ROW "+K+" | "+ID+":"+C );
-		
-		Transaction txn 	= null;
-		int retry_count = 0;				
-		//fail fast here for now....for some reason our access pattern causes this retry to be useless
-		//without starting the whole transaction over again//
-		//while (retry_count < BDBStore.MAX_DEADLOCK_RETRIES) 
-		//{
-		    try {
-				txn = environment.beginTransaction(parent_txn, null);	
-				db_handle.put(txn, key, row);
-				delete_handle.put(txn,row,key);	
-				txn.commitNoSync();
-				/* dont delete. we break out upon success */
-				//break;
-		    } catch (DeadlockException de) {
-		    	try{
-		    		txn.abort();
-		    	}catch(DatabaseException dbe)
-		    	{
-		    		dbe.printStackTrace();
-		    		System.err.println("FAILED ABORTING TXN.");
-		    	}
-		    		retry_count++;
-		    	System.err.println(Thread.currentThread().getId()+" SEC INDEX WRITE DEADLOCK OCCURRED retry_count "+retry_count+" FOR "+e);
-		    	//if (retry_count >= BDBStore.MAX_DEADLOCK_RETRIES) 
-	            //{
-		    		throw new DatabaseException(e.getId()+":108 SAVE FAILED FOR SEC INDEX.RETRY WAS GREATER THAN MAX_NUMBER_RETRYS.");
-	            //}
-		    }	
-	}
 
-	
 	public void deleteIndexEntry(Transaction parent_txn,DatabaseEntry pkey) throws DatabaseException
 	{	
 //		System.out.println(getName()+" DELETEING INDEX ENTRYS FOR PKEY "+FieldBinding.entryToValue(Types.TYPE_LONG,pkey));
@@ -0,0 +1,407 @@
+package com.pagesociety.bdb.index;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.pagesociety.bdb.BDBPrimaryIndex;
+import com.pagesociety.bdb.BDBSecondaryIndex;
+import com.pagesociety.bdb.BDBStore;
+import com.pagesociety.bdb.locker.EntityLocker;
+import com.pagesociety.persistence.EntityDefinition;
+import com.pagesociety.persistence.PersistenceException;
+import com.sleepycat.bind.tuple.LongBinding;
+import com.sleepycat.db.Cursor;
+import com.sleepycat.db.CursorConfig;
+import com.sleepycat.db.DatabaseEntry;
+import com.sleepycat.db.DatabaseException;
+import com.sleepycat.db.Environment;
+import com.sleepycat.db.LockMode;
+import com.sleepycat.db.OperationStatus;
+import com.sleepycat.db.Transaction;
+
+/* fills a new secondary index while the store keeps taking writes.
+ *
+ * the id space of the primary table is cut into one range per worker. each
+ * worker walks its range in transactions of at most batch_size rows and takes
+ * the store locker and the reader lock on the type only for the length of a
+ * batch. the index is not in the store's index lists yet so nobody else
+ * writes to it. instead every write to the type while the build is running
+ * drops its primary key in here and those rows are indexed again from the
+ * primary table afterwards. the caller does one replay while writers are
+ * still going and a last one with writers of the type locked out, then
+ * publishes the index. queries see it all at once or not at all.
+ */
+public class OnlineIndexBuild
+{
+	private static final Logger logger = Logger.getLogger(OnlineIndexBuild.class);
+
+	private EntityLocker 		_locker;
+	private BDBPrimaryIndex 	_pidx;
+	private BDBSecondaryIndex	_index;
+	private EntityDefinition	_def;
+	private Environment			_environment;
+	private int 				_num_threads;
+	private int 				_batch_size;
+	private volatile int 		_max_rows_per_second;
+
+	private ConcurrentHashMap<Long,Boolean> _captured = new ConcurrentHashMap<Long, Boolean>();
+	private AtomicLong 			_rows_indexed 	= new AtomicLong();
+	private AtomicLong 			_rows_replayed 	= new AtomicLong();
+	private volatile boolean 	_cancelled 		= false;
+	private volatile String 	_failure 		= null;
+	private volatile String 	_state 			= "WAITING";
+	private long 				_start_time;
+	private volatile range[] 	_ranges;
+
+	public OnlineIndexBuild(EntityLocker locker,BDBPrimaryIndex pidx,BDBSecondaryIndex index,int num_threads,int batch_size,int max_rows_per_second) throws DatabaseException
+	{
+		_locker 			 = locker;
+		_pidx 				 = pidx;
+		_index 				 = index;
+		_def 				 = pidx.getEntityDefinition();
+		_environment 		 = pidx.getDbh().getEnvironment();
+		_num_threads 		 = Math.max(1, num_threads);
+		_batch_size 		 = Math.max(1, batch_size);
+		_max_rows_per_second = max_rows_per_second;
+	}
+
+	public BDBSecondaryIndex getIndex()
+	{
+		return _index;
+	}
+
+	public EntityDefinition getEntityDefinition()
+	{
+		return _def;
+	}
+
+	/* called by every write to the type while the build is running. before the
+	 * write commits so the last replay can not miss it.
+	 */
+	public void captureWrite(DatabaseEntry pkey)
+	{
+		_captured.put(LongBinding.entryToLong(pkey), Boolean.TRUE);
+	}
+
+	/* runs the workers and returns when the whole id range is indexed */
+	public void populate() throws PersistenceException
+	{
+		_start_time = System.currentTimeMillis();
+		try{
+			_ranges = partition();
+		}catch(DatabaseException dbe)
+		{
+			logger.error("populate()", dbe);
+			throw new PersistenceException("INDEX BUILD FAILED PARTITIONING "+_def.getName()+" FOR "+_index.getName());
+		}
+		_state = "INDEXING";
+		Thread[] workers = new Thread[_ranges.length];
+		for(int i = 0;i < workers.length;i++)
+		{
+			final range r = _ranges[i];
+			workers[i] = new Thread("BDBStore Index Build "+_def.getName()+"."+_index.getName()+" "+i)
+			{
+				public void run()
+				{
+					try{
+						index_range(r);
+					}catch(Exception e)
+					{
+						logger.error("run()", e);
+						fail(e.getMessage());
+					}
+				}
+			};
+			workers[i].start();
+		}
+		for(int i = 0;i < workers.length;i++)
+		{
+			try{
+				workers[i].join();
+			}catch(InterruptedException ie)
+			{
+				fail("INTERRUPTED");
+				i--;
+			}
+		}
+		check_failed();
+		logger.info("INDEX BUILD OF "+_index.getName()+" ON "+_def.getName()+" INDEXED "+_rows_indexed.get()+" ROWS IN "+(System.currentTimeMillis() - _start_time)+" (ms)");
+	}
+
+	/* index again every row written since the build started. call once while
+	 * writers are running to get most of them and once more with writers
+	 * locked out right before the index is published.
+	 */
+	public void replayCapturedWrites() throws PersistenceException
+	{
+		check_failed();
+		_state = "REPLAYING";
+		Iterator<Long> it = _captured.keySet().iterator();
+		while(it.hasNext())
+		{
+			long id = it.next();
+			/* take it out first. a write that lands after this puts it back */
+			it.remove();
+			_locker.enterAppThread();
+			try{
+				_locker.enterEntityReader(_def.getName());
+				if(_pidx.getEntityDefinition() != _def)
+					fail("ENTITY "+_def.getName()+" WAS REDEFINED DURING THE BUILD");
+				else
+					replay(id);
+			}catch(DatabaseException dbe)
+			{
+				logger.error("replayCapturedWrites()", dbe);
+				fail("REPLAY FAILED FOR ID "+id);
+			}finally
+			{
+				_locker.exitAppThread();
+			}
+			check_failed();
+			_rows_replayed.incrementAndGet();
+		}
+	}
+
+	public void cancel()
+	{
+		fail("CANCELLED");
+	}
+
+	public void setMaxRowsPerSecond(int max_rows_per_second)
+	{
+		_max_rows_per_second = max_rows_per_second;
+	}
+
+	public int getMaxRowsPerSecond()
+	{
+		return _max_rows_per_second;
+	}
+
+	public long getRowsIndexed()
+	{
+		return _rows_indexed.get();
+	}
+
+	public int getNumCapturedWrites()
+	{
+		return _captured.size();
+	}
+
+	/* how much of the id space the workers have covered, 0 to 1 */
+	public double getProgress()
+	{
+		range[] ranges = _ranges;
+		if(ranges == null)
+			return 0;
+		double total = 0;
+		double done  = 0;
+		for(int i = 0;i < ranges.length;i++)
+		{
+			total += ranges[i].hi - ranges[i].lo;
+			done  += ranges[i].position - ranges[i].lo;
+		}
+		return (total == 0)?1:done/total;
+	}
+
+	public String toString()
+	{
+		long elapsed = (_start_time == 0)?0:System.currentTimeMillis() - _start_time;
+		String s = _def.getName()+"."+_index.getName()+" "+_state+" "+((int)(getProgress() * 1000))/10.0+"%"+
+				   " ROWS: "+getRowsIndexed()+" REPLAYED: "+_rows_replayed.get()+" PENDING WRITES: "+getNumCapturedWrites()+
+				   " THREADS: "+((_ranges == null)?0:_ranges.length)+" MAX ROWS/S: "+_max_rows_per_second+" ELAPSED: "+elapsed+" (ms)";
+		if(_failure != null)
+			s += " FAILED: "+_failure;
+		return s;
+	}
+
+	private void fail(String reason)
+	{
+		synchronized(this)
+		{
+			if(_failure == null)
+				_failure = reason;
+		}
+		_cancelled = true;
+		_state 	   = "FAILED";
+	}
+
+	private void check_failed() throws PersistenceException
+	{
+		if(_failure != null)
+			throw new PersistenceException("INDEX BUILD OF "+_index.getName()+" ON "+_def.getName()+" FAILED: "+_failure);
+	}
+
+	/* split [first id,last id] into up to _num_threads ranges of at least a batch each */
+	private range[] partition() throws DatabaseException
+	{
+		DatabaseEntry key  = new DatabaseEntry();
+		DatabaseEntry data = new DatabaseEntry();
+		data.setPartial(0, 0, true);
+		long first;
+		long last;
+		Cursor cursor = _pidx.getDbh().openCursor(null, CursorConfig.READ_COMMITTED);
+		try{
+			if(cursor.getFirst(key, data, LockMode.DEFAULT) != OperationStatus.SUCCESS)
+				return new range[0];
+			first = LongBinding.entryToLong(key);
+			cursor.getLast(key, data, LockMode.DEFAULT);
+			last  = LongBinding.entryToLong(key);
+		}finally
+		{
+			cursor.close();
+		}
+		long span  = last - first + 1;
+		int n 	   = (int)Math.max(1, Math.min(_num_threads, span / _batch_size));
+		long step  = span / n;
+		List<range> ranges = new ArrayList<range>();
+		for(int i = 0;i < n;i++)
+		{
+			long lo = first + i * step;
+			long hi = (i == n - 1)?last + 1:lo + step;
+			ranges.add(new range(lo,hi));
+		}
+		return ranges.toArray(new range[ranges.size()]);
+	}
+
+	private void index_range(range r) throws PersistenceException
+	{
+		while(r.position < r.hi)
+		{
+			if(_cancelled)
+				return;
+			long t1 = System.currentTimeMillis();
+			int n 	= index_batch_with_retry(r);
+			throttle(n, System.currentTimeMillis() - t1);
+		}
+	}
+
+	private int index_batch_with_retry(range r) throws PersistenceException
+	{
+		int retry_count = 0;
+		while(true)
+		{
+			_locker.enterAppThread();
+			try{
+				_locker.enterEntityReader(_def.getName());
+				if(_pidx.getEntityDefinition() != _def)
+					throw new PersistenceException("ENTITY "+_def.getName()+" WAS REDEFINED DURING THE BUILD");
+				return index_batch(r);
+			}catch(DatabaseException dbe)
+			{
+				/* the index insert turns deadlocks into plain database exceptions */
+				retry_count++;
+				if(retry_count >= BDBStore.MAX_DEADLOCK_RETRIES)
+				{
+					logger.error("index_batch_with_retry(range)", dbe);
+					throw new PersistenceException("INDEX BUILD BATCH FAILED AT ID "+r.position+" RETRY WAS GREATER THAN MAX_NUMBER_RETRYS.");
+				}
+			}finally
+			{
+				_locker.exitAppThread();
+			}
+		}
+	}
+
+	/* one transaction of up to _batch_size rows starting at r.position */
+	private int index_batch(range r) throws DatabaseException
+	{
+		DatabaseEntry key  = new DatabaseEntry();
+		DatabaseEntry data = new DatabaseEntry();
+		Transaction txn    = _environment.beginTransaction(null, null);
+		Cursor cursor 	   = null;
+		int n 			   = 0;
+		long next 		   = r.hi;
+		try{
+			cursor = _pidx.getDbh().openCursor(txn, CursorConfig.READ_COMMITTED);
+			LongBinding.longToEntry(r.position, key);
+			OperationStatus op_stat = cursor.getSearchKeyRange(key, data, LockMode.DEFAULT);
+			while(op_stat == OperationStatus.SUCCESS)
+			{
+				long id = LongBinding.entryToLong(key);
+				if(id >= r.hi)
+					break;
+				if(n == _batch_size)
+				{
+					next = id;
+					break;
+				}
+				DatabaseEntry pkey = new DatabaseEntry();
+				LongBinding.longToEntry(id, pkey);
+				_index.insertIndexEntry(txn, _pidx.getByRow(pkey, data), pkey);
+				n++;
+				op_stat = cursor.getNext(key, data, LockMode.DEFAULT);
+			}
+			cursor.close();
+			cursor = null;
+			txn.commitNoSync();
+		}catch(DatabaseException dbe)
+		{
+			if(cursor != null)
+				cursor.close();
+			txn.abort();
+			throw dbe;
+		}
+		r.position = next;
+		_rows_indexed.addAndGet(n);
+		return n;
+	}
+
+	/* each worker gets an equal share of _max_rows_per_second. 0 is no limit */
+	private void throttle(int rows,long elapsed)
+	{
+		int max = _max_rows_per_second;
+		if(max <= 0 || rows == 0)
+			return;
+		long share = Math.max(1, max / _ranges.length);
+		long wait  = (rows * 1000L) / share - elapsed;
+		if(wait <= 0)
+			return;
+		try{
+			Thread.sleep(wait);
+		}catch(InterruptedException ie)
+		{
+		}
+	}
+
+	private void replay(long id) throws DatabaseException
+	{
+		DatabaseEntry pkey = new DatabaseEntry();
+		DatabaseEntry data = new DatabaseEntry();
+		LongBinding.longToEntry(id, pkey);
+		Transaction txn = _environment.beginTransaction(null, null);
+		try{
+			Set<IndexRow> old_rows = new HashSet<IndexRow>();
+			Set<IndexRow> new_rows = new HashSet<IndexRow>();
+			_index.getIndexRows(txn, pkey, old_rows);
+			if(_pidx.getDbh().get(txn, pkey, data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+				_index.getInsertRows(_pidx.getByRow(pkey, data), pkey, new_rows);
+			_index.updateIndexEntry(txn, pkey, old_rows, new_rows);
+			txn.commitNoSync();
+		}catch(DatabaseException dbe)
+		{
+			txn.abort();
+			throw dbe;
+		}
+	}
+
+	private static class range
+	{
+		private long lo;
+		private long hi;
+		private volatile long position;
+
+		private range(long lo,long hi)
+		{
+			this.lo 	  = lo;
+			this.hi 	  = hi;
+			this.position = lo;
+		}
+	}
+}
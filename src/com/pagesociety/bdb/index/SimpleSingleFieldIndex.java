@@ -63,6 +63,11 @@ public class SimpleSingleFieldIndex extends AbstractSingleFieldIndex
 		}
 	}
 	
+	public boolean isLowerCase()
+	{
+		return _use_lower_case;
+	}
+
 	private Object transform_value(Object val)
 	{
 		if (_use_lower_case)
@@ -11,7 +11,6 @@ import java.util.StringTokenizer;
 import com.pagesociety.bdb.BDBSecondaryIndex;
 import com.pagesociety.bdb.BDBStore;
 import com.pagesociety.bdb.binding.FieldBinding;
-import com.pagesociety.bdb.cache.ConcurrentLRUCache;
 import com.pagesociety.bdb.index.freetext.DefaultStopList;
 import com.pagesociety.bdb.index.freetext.FreetextStemmer;
 import com.pagesociety.bdb.index.freetext.PorterStemmer;
@@ -21,7 +20,6 @@ import com.pagesociety.persistence.Entity;
 import com.pagesociety.persistence.FieldDefinition;
 import com.pagesociety.persistence.PersistenceException;
 import com.pagesociety.persistence.Types;
-import com.sleepycat.bind.tuple.IntegerBinding;
 import com.sleepycat.bind.tuple.LongBinding;
 import com.sleepycat.bind.tuple.StringBinding;
 import com.sleepycat.bind.tuple.TupleOutput;
@@ -117,7 +115,8 @@ public class SingleFieldFreeTextIndex extends AbstractSingleFieldIndex
 		return ret;
 	}	
 
-	public void insertIndexEntry(Transaction parent_txn,Entity e,DatabaseEntry data) throws DatabaseException
+	/* key is the stemmed word and data is {entity_id,pos in field} */
+	public void getInsertRows(Entity e,DatabaseEntry data,Set<IndexRow> result) throws DatabaseException
 	{	
 		if(field.isArray())
 		{
@@ -132,7 +131,7 @@ public class SingleFieldFreeTextIndex extends AbstractSingleFieldIndex
 				to.writeFast(data.getData(), 0, data.getSize());
 				to.writeInt(0);/* we put in a position of zero here so all our index rows are the same */
 				DatabaseEntry ddata = new DatabaseEntry(to.toByteArray());
-				put_row(parent_txn,e,key,ddata);
+				result.add(new IndexRow(key,ddata));
 				return;
 			}
 			else
@@ -149,6 +148,7 @@ public class SingleFieldFreeTextIndex extends AbstractSingleFieldIndex
 					/*CHECK IGNORE LIST IGNORE THAN STEM HERE*/
 					/*key*/
 				
+					key = new DatabaseEntry();
 					StringBinding.stringToEntry(word, key);
 					/*data*/
 					TupleOutput to = new TupleOutput();				
@@ -157,7 +157,7 @@ public class SingleFieldFreeTextIndex extends AbstractSingleFieldIndex
 					
 					DatabaseEntry ddata = new DatabaseEntry(to.toByteArray());
 					/*key is now word and ddata is {entity_id,pos in field}*/
-					put_row(parent_txn,e,key,ddata);	
+					result.add(new IndexRow(key,ddata));	
 				}
 			}
 			/*probably check to see if anything was inserted...everything could be culled because of ignore list*/
@@ -176,7 +176,7 @@ public class SingleFieldFreeTextIndex extends AbstractSingleFieldIndex
 				to.writeFast(data.getData(), 0, data.getSize());
 				to.writeInt(0);/* we put in a position of zero here so all our index rows are the same */
 				DatabaseEntry ddata = new DatabaseEntry(to.toByteArray());
-				put_row(parent_txn,e,key,ddata);
+				result.add(new IndexRow(key,ddata));
 				return;
 			}
 			else
@@ -198,6 +198,7 @@ public class SingleFieldFreeTextIndex extends AbstractSingleFieldIndex
 					/*CHECK IGNORE LIST IGNORE THAN STEM HERE*/
 					/*key*/
 				
+					key = new DatabaseEntry();
 					StringBinding.stringToEntry(word, key);
 					/*data*/
 					TupleOutput to = new TupleOutput();				
@@ -206,7 +207,7 @@ public class SingleFieldFreeTextIndex extends AbstractSingleFieldIndex
 					
 					DatabaseEntry ddata = new DatabaseEntry(to.toByteArray());
 					/*key is now word and ddata is {entity_id,pos in field}*/
-					put_row(parent_txn,e,key,ddata);	
+					result.add(new IndexRow(key,ddata));	
 				}
 			}
 			/*probably check to see if anything was inserted...everything could be culled because of ignore list*/
@@ -310,44 +311,7 @@ public class SingleFieldFreeTextIndex extends AbstractSingleFieldIndex
 		return (IteratorUtil.compareDatabaseEntries(original_key, 0, original_key.getSize(), found_key, 0,original_key.getSize()) == 0);
 	}
 	
-	private void put_row(Transaction parent_txn,Entity e,DatabaseEntry key,DatabaseEntry row) throws DatabaseException
-	{
-		String K = new String(key.getData());
-		long ID  = LongBinding.entryToLong(new DatabaseEntry(row.getData(),0,8));
-		int C 	 = IntegerBinding.entryToInt(new DatabaseEntry(row.getData(),8,12));
-		//System.out.println("FREE TEXT INDEX PUTTING ROW "+K+" | "+ID+":"+C );
-		
-		Transaction txn 	= null;
-		int retry_count = 0;				
-		//fail fast here for now....for some reason our access pattern causes this retry to be useless
-		//without starting the whole transaction over again//
-		//while (retry_count < BDBStore.MAX_DEADLOCK_RETRIES) 
-		//{
-		    try {
-				txn = environment.beginTransaction(parent_txn, null);	
-				db_handle.put(txn, key, row);
-				delete_handle.put(txn,row,key);	
-				txn.commitNoSync();
-				/* dont delete. we break out upon success */
-				//break;
-		    } catch (DeadlockException de) {
-		    	try{
-		    		txn.abort();
-		    	}catch(DatabaseException dbe)
-		    	{
-		    		dbe.printStackTrace();
-		    		System.err.println("FAILED ABORTING TXN.");
-		    	}
-		    		retry_count++;
-		    	System.err.println(Thread.currentThread().getId()+" SEC INDEX WRITE DEADLOCK OCCURRED retry_count "+retry_count+" FOR "+e);
-		    	//if (retry_count >= BDBStore.MAX_DEADLOCK_RETRIES) 
-	            //{
-		    		throw new DatabaseException(e.getId()+":108 SAVE FAILED FOR SEC INDEX.RETRY WAS GREATER THAN MAX_NUMBER_RETRYS.");
-	            //}
-		    }	
-	}
 
-	
 	/* any index must!!! implement this method for now. this is how we get the meta information about what
 	 * attributes it takes without having to construct an instance. See EntityDefinition*/
 	public static EntityIndexDefinition getDefinition()
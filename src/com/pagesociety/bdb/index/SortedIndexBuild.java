@@ -0,0 +1,387 @@
+package com.pagesociety.bdb.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.pagesociety.bdb.BDBPrimaryIndex;
+import com.pagesociety.bdb.BDBSecondaryIndex;
+import com.pagesociety.persistence.Entity;
+import com.pagesociety.persistence.PersistenceException;
+import com.sleepycat.db.Cursor;
+import com.sleepycat.db.CursorConfig;
+import com.sleepycat.db.Database;
+import com.sleepycat.db.DatabaseEntry;
+import com.sleepycat.db.DatabaseException;
+import com.sleepycat.db.Environment;
+import com.sleepycat.db.LockMode;
+import com.sleepycat.db.OperationStatus;
+import com.sleepycat.db.Transaction;
+
+/* fills empty index and delete map dbs in key order instead of one random
+ * insert per key.
+ *
+ * the primary table is walked once. it comes back in pkey order and the
+ * delete map is keyed by row data that starts with the pkey, so the delete
+ * map is appended as we go. the (key,data) rows for the index are
+ * collected in memory up to run_bytes, sorted and spilled to a run file in
+ * the environment home. the runs are then merged and appended to the index
+ * db. every put lands on the right edge of the btree so pages split full
+ * instead of half full. both dbs are written in transactions of batch_size
+ * puts.
+ *
+ * the order here has to be the order of the btree. the index dbs use the
+ * default comparators, unsigned bytes with the shorter key first.
+ *
+ * delete_dbh is null for an index that goes without a delete map.
+ *
+ * the caller keeps writers of the type out for the length of the build.
+ */
+public class SortedIndexBuild
+{
+	private static final Logger logger = Logger.getLogger(SortedIndexBuild.class);
+
+	/* what a pair costs us in memory beyond its bytes */
+	private static final int PAIR_OVERHEAD = 64;
+
+	private BDBPrimaryIndex 	_pidx;
+	private BDBSecondaryIndex 	_index;
+	private Database 			_dbh;
+	private Database 			_delete_dbh;
+	private Environment 		_environment;
+	private long 				_run_bytes;
+	private int 				_batch_size;
+
+	private List<File> 			_runs = new ArrayList<File>();
+	private Transaction 		_txn;
+	private int 				_txn_puts;
+	private long 				_rows;
+	private long 				_pairs;
+
+	public SortedIndexBuild(BDBPrimaryIndex pidx,BDBSecondaryIndex index,Database dbh,Database delete_dbh,long run_bytes,int batch_size) throws DatabaseException
+	{
+		_pidx 		 = pidx;
+		_index 		 = index;
+		_dbh 		 = dbh;
+		_delete_dbh  = delete_dbh;
+		_environment = pidx.getDbh().getEnvironment();
+		_run_bytes 	 = Math.max(1024 * 1024, run_bytes);
+		_batch_size  = Math.max(1, batch_size);
+	}
+
+	/* deep indexes override this to expand the reference path first */
+	protected Entity get_entity(DatabaseEntry pkey,DatabaseEntry data) throws DatabaseException
+	{
+		return _pidx.getByRow(pkey, data);
+	}
+
+	public void build() throws PersistenceException
+	{
+		long t1 = System.currentTimeMillis();
+		try{
+			List<pair> buf = scan();
+			if(_runs.isEmpty())
+			{
+				/* it all fit. no need to go to disk */
+				Collections.sort(buf, BY_KEY);
+				load(buf.iterator());
+			}
+			else
+			{
+				if(!buf.isEmpty())
+					spill(buf);
+				buf = null;
+				merge();
+			}
+			commit_batch();
+		}catch(DatabaseException dbe)
+		{
+			abort_batch();
+			logger.error("build()", dbe);
+			throw new PersistenceException("SORTED BUILD OF "+_index.getName()+" FAILED");
+		}catch(IOException ioe)
+		{
+			abort_batch();
+			logger.error("build()", ioe);
+			throw new PersistenceException("SORTED BUILD OF "+_index.getName()+" FAILED WRITING RUN FILES");
+		}finally
+		{
+			for(int i = 0;i < _runs.size();i++)
+				_runs.get(i).delete();
+		}
+		logger.info("SORTED BUILD OF "+_index.getName()+" ON "+_pidx.getEntityDefinition().getName()+" INDEXED "+_rows+" ROWS "+_pairs+" KEYS IN "+
+					(System.currentTimeMillis() - t1)+" (ms) USING "+_runs.size()+" RUNS");
+	}
+
+	/* one pass over the primary table. writes the delete map and spills full runs. */
+	/* returns whatever is left in memory */
+	private List<pair> scan() throws DatabaseException,IOException
+	{
+		DatabaseEntry pkey 			= new DatabaseEntry();
+		DatabaseEntry data 			= new DatabaseEntry();
+		Set<IndexRow> rows 			= new HashSet<IndexRow>();
+		List<pair> row_pairs 		= new ArrayList<pair>();
+		List<pair> buf 				= new ArrayList<pair>();
+		long buf_bytes 				= 0;
+		Cursor cursor = _pidx.getDbh().openCursor(null, CursorConfig.READ_COMMITTED);
+		try{
+			while(cursor.getNext(pkey, data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+			{
+				DatabaseEntry row_pkey = new DatabaseEntry(bytes(pkey));
+				rows.clear();
+				_index.getInsertRows(get_entity(row_pkey, data), row_pkey, rows);
+				row_pairs.clear();
+				Iterator<IndexRow> it = rows.iterator();
+				while(it.hasNext())
+				{
+					IndexRow r = it.next();
+					row_pairs.add(new pair(bytes(r.getKey()),bytes(r.getData())));
+				}
+				/* the delete map is data then key */
+				Collections.sort(row_pairs, BY_DATA);
+				for(int i = 0;i < row_pairs.size();i++)
+				{
+					pair p = row_pairs.get(i);
+					if(_delete_dbh != null)
+						put(_delete_dbh, p.data, p.key);
+					buf.add(p);
+					buf_bytes += p.key.length + p.data.length + PAIR_OVERHEAD;
+				}
+				_rows++;
+				if(buf_bytes >= _run_bytes)
+				{
+					spill(buf);
+					buf.clear();
+					buf_bytes = 0;
+				}
+			}
+		}finally
+		{
+			cursor.close();
+		}
+		return buf;
+	}
+
+	private void spill(List<pair> buf) throws IOException
+	{
+		Collections.sort(buf, BY_KEY);
+		File f = File.createTempFile("index_run_"+_index.getName()+"_", ".tmp", spill_dir());
+		_runs.add(f);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f),64 * 1024));
+		try{
+			for(int i = 0;i < buf.size();i++)
+			{
+				pair p = buf.get(i);
+				out.writeInt(p.key.length);
+				out.write(p.key);
+				out.writeInt(p.data.length);
+				out.write(p.data);
+			}
+		}finally
+		{
+			out.close();
+		}
+	}
+
+	private File spill_dir()
+	{
+		try{
+			File home = _environment.getHome();
+			if(home != null)
+				return home;
+		}catch(DatabaseException dbe)
+		{
+			logger.error("spill_dir()", dbe);
+		}
+		return new File(System.getProperty("java.io.tmpdir"));
+	}
+
+	private void merge() throws DatabaseException,IOException
+	{
+		PriorityQueue<run_reader> heap = new PriorityQueue<run_reader>(_runs.size(),new Comparator<run_reader>()
+		{
+			public int compare(run_reader a,run_reader b)
+			{
+				return BY_KEY.compare(a.current, b.current);
+			}
+		});
+		List<run_reader> readers = new ArrayList<run_reader>();
+		try{
+			for(int i = 0;i < _runs.size();i++)
+			{
+				run_reader r = new run_reader(_runs.get(i));
+				readers.add(r);
+				if(r.advance())
+					heap.add(r);
+			}
+			pair last = null;
+			while(!heap.isEmpty())
+			{
+				run_reader r = heap.poll();
+				pair p 		 = r.current;
+				if(last == null || BY_KEY.compare(last, p) != 0)
+					put(_dbh, p.key, p.data);
+				last = p;
+				if(r.advance())
+					heap.add(r);
+			}
+		}finally
+		{
+			for(int i = 0;i < readers.size();i++)
+				readers.get(i).close();
+		}
+	}
+
+	private void load(Iterator<pair> sorted) throws DatabaseException
+	{
+		pair last = null;
+		while(sorted.hasNext())
+		{
+			pair p = sorted.next();
+			if(last == null || BY_KEY.compare(last, p) != 0)
+				put(_dbh, p.key, p.data);
+			last = p;
+		}
+	}
+
+	private void put(Database db,byte[] key,byte[] data) throws DatabaseException
+	{
+		if(_txn == null)
+			_txn = _environment.beginTransaction(null, null);
+		db.put(_txn, new DatabaseEntry(key), new DatabaseEntry(data));
+		if(db == _dbh)
+			_pairs++;
+		if(++_txn_puts >= _batch_size)
+			commit_batch();
+	}
+
+	private void commit_batch() throws DatabaseException
+	{
+		if(_txn == null)
+			return;
+		Transaction txn = _txn;
+		_txn 	  = null;
+		_txn_puts = 0;
+		txn.commitNoSync();
+	}
+
+	private void abort_batch()
+	{
+		if(_txn == null)
+			return;
+		try{
+			_txn.abort();
+		}catch(DatabaseException dbe)
+		{
+			logger.error("abort_batch()", dbe);
+		}
+		_txn = null;
+	}
+
+	private static byte[] bytes(DatabaseEntry e)
+	{
+		byte[] b = new byte[e.getSize()];
+		if(e.getData() != null)
+			System.arraycopy(e.getData(), e.getOffset(), b, 0, e.getSize());
+		return b;
+	}
+
+	/* the btree default. unsigned bytes, shorter first when one is a prefix of the other */
+	private static int compare(byte[] a,byte[] b)
+	{
+		int n = Math.min(a.length, b.length);
+		for(int i = 0;i < n;i++)
+		{
+			int d = (a[i] & 0xff) - (b[i] & 0xff);
+			if(d != 0)
+				return d;
+		}
+		return a.length - b.length;
+	}
+
+	private static final Comparator<pair> BY_KEY = new Comparator<pair>()
+	{
+		public int compare(pair a,pair b)
+		{
+			int c = SortedIndexBuild.compare(a.key, b.key);
+			if(c != 0)
+				return c;
+			return SortedIndexBuild.compare(a.data, b.data);
+		}
+	};
+
+	private static final Comparator<pair> BY_DATA = new Comparator<pair>()
+	{
+		public int compare(pair a,pair b)
+		{
+			int c = SortedIndexBuild.compare(a.data, b.data);
+			if(c != 0)
+				return c;
+			return SortedIndexBuild.compare(a.key, b.key);
+		}
+	};
+
+	private static class pair
+	{
+		private byte[] key;
+		private byte[] data;
+
+		private pair(byte[] key,byte[] data)
+		{
+			this.key  = key;
+			this.data = data;
+		}
+	}
+
+	private static class run_reader
+	{
+		private DataInputStream in;
+		private pair current;
+
+		private run_reader(File f) throws IOException
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f),64 * 1024));
+		}
+
+		private boolean advance() throws IOException
+		{
+			try{
+				byte[] key = new byte[in.readInt()];
+				in.readFully(key);
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				current = new pair(key,data);
+				return true;
+			}catch(EOFException eof)
+			{
+				current = null;
+				return false;
+			}
+		}
+
+		private void close()
+		{
+			try{
+				in.close();
+			}catch(IOException ioe)
+			{
+			}
+		}
+	}
+}
@@ -35,12 +35,6 @@ public class BETWEEN_ASC_EXCLUSIVEIndexIterator extends RangeIndexIterator
 
 	}
 	
-	public void resume(IterableIndex index,Object token) throws DatabaseException
-	{
-		super.resume(index,token);
-		last_opstat	= index_cursor.getSearchBothRange(key, data, LockMode.DEFAULT);
-	}
-	
 	public DatabaseEntry currentKey()
 	{
 		return key;
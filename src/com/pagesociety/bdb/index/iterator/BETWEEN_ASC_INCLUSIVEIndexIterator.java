@@ -16,13 +16,6 @@ public class BETWEEN_ASC_INCLUSIVEIndexIterator extends RangeIndexIterator
 		check_terminal_key();
 	}
 	
-	public void resume(IterableIndex index,Object token) throws DatabaseException
-	{
-		super.resume(index,token);
-		last_opstat	= index_cursor.getSearchBothRange(key, data, LockMode.DEFAULT);
-		check_terminal_key();
-	}
-	
 	public DatabaseEntry currentKey()
 	{
 		return key;
@@ -38,19 +38,9 @@ public class BETWEEN_DESC_INCLUSIVEIndexIterator extends RangeIndexIterator
 		check_terminal_key();
 	}
 	
-	public void resume(BDBSecondaryIndex index,Object token) throws DatabaseException
+	protected boolean isDescending()
 	{
-		super.resume(index,token);
-		last_opstat	=	index_cursor.getSearchBoth(key, data, LockMode.DEFAULT);
-		if(last_opstat == OperationStatus.NOTFOUND)
-		{
-			last_opstat	=	index_cursor.getSearchBothRange(key, data, LockMode.DEFAULT);
-			if(last_opstat == OperationStatus.SUCCESS)
-				last_opstat =   index_cursor.getPrev(key, data, LockMode.DEFAULT);
-			else
-				index_cursor.getLast(key, data, LockMode.DEFAULT);
-		}
-
+		return true;
 	}
 	
 	public DatabaseEntry currentKey()
@@ -7,7 +7,7 @@ import com.sleepycat.db.LockMode;
 import com.sleepycat.db.OperationStatus;
 import com.sleepycat.db.Transaction;
 
-public class EQIndexIterator extends PredicateIndexIterator implements RespositionableIndexIterator
+public class EQIndexIterator extends PredicateIndexIterator implements RespositionableIndexIterator,SeekableIndexIterator
 {	
 	public void open(Transaction txn,IterableIndex index,Object... user_arg) throws DatabaseException
 	{
@@ -15,10 +15,23 @@ public class EQIndexIterator extends PredicateIndexIterator implements Respositi
 		last_opstat	=	index_cursor.getSearchKey(key, data, LockMode.DEFAULT);
 	}
 	
-	public void resume(IterableIndex index,Object token) throws DatabaseException
+	/* an EQ iterator never leaves its key so we can not step forward from
+	 * a row under some other key like the other iterators do.
+	 */
+	protected boolean resume_at(DatabaseEntry r_key,DatabaseEntry r_data,boolean dups) throws DatabaseException
 	{
-		super.resume(index,token);
-		last_opstat	=	index_cursor.getSearchBothRange(key, data, LockMode.DEFAULT);
+		if(!dups)
+		{
+			/* one row per key. we already handed it out */
+			last_opstat = OperationStatus.NOTFOUND;
+			return true;
+		}
+		key  		= IteratorUtil.cloneDatabaseEntry(r_key);
+		data 		= IteratorUtil.cloneDatabaseEntry(r_data);
+		last_opstat	= index_cursor.getSearchBothRange(key, data, LockMode.DEFAULT);
+		if(last_opstat == OperationStatus.SUCCESS && IteratorUtil.compareBytes(data, r_data) == 0)
+			next();
+		return true;
 	}
 	
 	protected void resume(IterableIndex index,DatabaseEntry key,DatabaseEntry data) throws DatabaseException
@@ -52,7 +65,8 @@ public class EQIndexIterator extends PredicateIndexIterator implements Respositi
 		return (last_opstat == OperationStatus.NOTFOUND);
 	}
 	
-	protected int count() throws DatabaseException
+	/* number of rows under the current key */
+	public int count() throws DatabaseException
 	{
 		if(last_opstat == OperationStatus.SUCCESS)
 			return index_cursor.count();
@@ -80,6 +94,15 @@ public class EQIndexIterator extends PredicateIndexIterator implements Respositi
 	}
 	
 	
+	/* leap forward under the current key to the first row whose data is >= newdata.
+	 * duplicates are sorted so this is how we zig zag across pkeys in an intersection.
+	 */
+	public void seekData(DatabaseEntry newdata) throws DatabaseException
+	{
+		data 		= newdata;
+		last_opstat	= index_cursor.getSearchBothRange(key, data, LockMode.DEFAULT);
+	}
+	
 	/* used in freetext index stuff since the row data is not just a pkey. it also has a
 	 * pos index after it e.g. 42-pkey:pos
 	 */
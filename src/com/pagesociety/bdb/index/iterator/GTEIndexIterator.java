@@ -18,12 +18,6 @@ public class GTEIndexIterator extends PredicateIndexIterator
 		last_opstat = index_cursor.getSearchKeyRange(key, data, LockMode.DEFAULT);
 	}
 	
-	public void resume(IterableIndex index,Object token) throws DatabaseException
-	{
-		super.resume(index,token);
-		last_opstat	=	index_cursor.getSearchBothRange(key, data, LockMode.DEFAULT);
-	}
-	
 	public DatabaseEntry currentKey()
 	{
 		return key;
@@ -28,12 +28,6 @@ public class GTIndexIterator extends PredicateIndexIterator {
 
 	}
 	
-	public void resume(IterableIndex index,Object token) throws DatabaseException
-	{
-		super.resume(index,token);
-		last_opstat	= index_cursor.getSearchBothRange(key, data, LockMode.DEFAULT);
-	}
-	
 	public DatabaseEntry currentKey()
 	{
 		return key;
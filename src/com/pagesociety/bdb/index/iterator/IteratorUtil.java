@@ -4,7 +4,13 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import com.sleepycat.db.Cursor;
+import com.sleepycat.db.Database;
 import com.sleepycat.db.DatabaseEntry;
+import com.sleepycat.db.DatabaseException;
+import com.sleepycat.db.LockMode;
+import com.sleepycat.db.OperationStatus;
+import com.sleepycat.db.Transaction;
 
 public class IteratorUtil {
 
@@ -36,7 +42,123 @@ public class IteratorUtil {
 			}
 			return ((o1 == l1) && (o2 == l2)) ? 0 : l2-l1;
 	}
-	  
+
+	/* plain btree ordering. unsigned bytes and a prefix sorts first */
+	public static int compareBytes(DatabaseEntry d1,DatabaseEntry d2)
+	{
+		byte[] b1 = d1.getData();
+		byte[] b2 = d2.getData();
+		int l1 = d1.getSize();
+		int l2 = d2.getSize();
+		int o1 = d1.getOffset();
+		int o2 = d2.getOffset();
+		int l  = (l1 < l2)?l1:l2;
+		for(int i = 0;i < l;i++)
+		{
+			int cmp = (b1[o1+i] & 0xff) - (b2[o2+i] & 0xff);
+			if(cmp != 0)
+				return cmp;
+		}
+		return l1 - l2;
+	}
+
+	/* RESUMING ITERATORS */
+	/* a position is the key and, for indexes with sorted duplicates, the data of
+	 * the last row an iterator handed out. unlike databaseEntryToHexString we keep
+	 * every byte. a position that lost its trailing nulls would resume on the
+	 * wrong row.
+	 */
+	private static final char POSITION_DELIM = ':';
+
+	public static String encodePosition(DatabaseEntry key,DatabaseEntry data,boolean dups)
+	{
+		ByteArrayOutputStream string = new ByteArrayOutputStream();
+		try{
+			hex_encode(key.getData(), key.getOffset(), key.getSize(), string);
+			string.write(POSITION_DELIM);
+			if(dups)
+				hex_encode(data.getData(), data.getOffset(), data.getSize(), string);
+		}catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+		return string.toString();
+	}
+
+	public static DatabaseEntry[] decodePosition(Object token)
+	{
+		String s = (String)token;
+		int idx  = s.indexOf(POSITION_DELIM);
+		if(idx == -1)
+			throw new IllegalArgumentException("BAD ITERATOR POSITION "+s);
+		return new DatabaseEntry[]{hexStringToDatabaseEntry(s.substring(0,idx)),
+								   hexStringToDatabaseEntry(s.substring(idx+1))};
+	}
+
+	/* compares two rows in the order the btree keeps them. data only counts when
+	 * the index has duplicates. the primary index has one row per key.
+	 */
+	public static int comparePosition(DatabaseEntry k1,DatabaseEntry d1,DatabaseEntry k2,DatabaseEntry d2,boolean dups)
+	{
+		int c = compareBytes(k1, k2);
+		if(c != 0 || !dups)
+			return c;
+		return compareBytes(d1, d2);
+	}
+
+	public static boolean hasSortedDuplicates(IterableIndex index) throws DatabaseException
+	{
+		return index.getDbh().getConfig().getSortedDuplicates();
+	}
+
+	/* put the cursor on the first row at or after key/data. key and data are
+	 * overwritten with the row we land on.
+	 */
+	public static OperationStatus seekAtOrAfter(Cursor cursor,boolean dups,DatabaseEntry key,DatabaseEntry data) throws DatabaseException
+	{
+		if(!dups)
+			return cursor.getSearchKeyRange(key, data, LockMode.DEFAULT);
+
+		DatabaseEntry search_key = cloneDatabaseEntry(key);
+		OperationStatus op = cursor.getSearchBothRange(key, data, LockMode.DEFAULT);
+		if(op == OperationStatus.SUCCESS)
+			return op;
+		/* every duplicate of key is smaller than data or key is gone altogether */
+		op = cursor.getSearchKeyRange(key, data, LockMode.DEFAULT);
+		if(op == OperationStatus.SUCCESS && compareBytes(key, search_key) == 0)
+			op = cursor.getNextNoDup(key, data, LockMode.DEFAULT);
+		return op;
+	}
+
+	/* SELECTIVITY */
+	/* exact number of duplicates under key. cursor is left wherever it lands */
+	public static int countDuplicates(Cursor cursor,DatabaseEntry key) throws DatabaseException
+	{
+		DatabaseEntry search_key = cloneDatabaseEntry(key);
+		DatabaseEntry data 		 = new DatabaseEntry();
+		data.setPartial(0, 0, true);
+		if(cursor.getSearchKey(search_key, data, LockMode.DEFAULT) != OperationStatus.SUCCESS)
+			return 0;
+		return cursor.count();
+	}
+
+	/* rough share of the rows in index whose key starts with prefix. it comes
+	 * from getKeyRange so it only tells prefixes of one index apart.
+	 */
+	public static double estimatePrefixFraction(Transaction txn,IterableIndex index,DatabaseEntry prefix) throws DatabaseException
+	{
+		Database db   = index.getDbh();
+		double start  = db.getKeyRange(txn, cloneDatabaseEntry(prefix)).less;
+		byte[] upper  = cloneDatabaseEntry(prefix).getData();
+		int i = upper.length - 1;
+		while(i >= 0 && upper[i] == (byte)0xff)
+			upper[i--] = 0;
+		if(i < 0)
+			return 1.0 - start;
+		upper[i]++;
+		return db.getKeyRange(txn, new DatabaseEntry(upper)).less - start;
+	}
+
 	/* HEX ENCODING DECODING FOR BYTE ARRAYS */
 		public static final byte NULL_BYTE = (byte)0;
 		public static String databaseEntryToHexString(DatabaseEntry d)
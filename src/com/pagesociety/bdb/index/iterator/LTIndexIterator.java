@@ -21,18 +21,9 @@ public class LTIndexIterator extends PredicateIndexIterator
 			last_opstat = index_cursor.getLast(key, data, LockMode.DEFAULT);
 	}
 	
-	public void resume(IterableIndex index,Object token) throws DatabaseException
+	protected boolean isDescending()
 	{
-		super.resume(index,token);
-		last_opstat	=	index_cursor.getSearchBoth(key, data, LockMode.DEFAULT);
-		if(last_opstat == OperationStatus.NOTFOUND)
-		{
-			last_opstat	=	index_cursor.getSearchBothRange(key, data, LockMode.DEFAULT);
-			if(last_opstat == OperationStatus.SUCCESS)
-				last_opstat =   index_cursor.getPrev(key, data, LockMode.DEFAULT);
-			else
-				index_cursor.getLast(key, data, LockMode.DEFAULT);
-		}	
+		return true;
 	}
 	
 	public DatabaseEntry currentKey()
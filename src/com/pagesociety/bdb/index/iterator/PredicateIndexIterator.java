@@ -1,12 +1,10 @@
 package com.pagesociety.bdb.index.iterator;
 
-import java.util.StringTokenizer;
-
-
 import com.sleepycat.db.Cursor;
 import com.sleepycat.db.CursorConfig;
 import com.sleepycat.db.DatabaseEntry;
 import com.sleepycat.db.DatabaseException;
+import com.sleepycat.db.LockMode;
 import com.sleepycat.db.OperationStatus;
 import com.sleepycat.db.Transaction;
 
@@ -21,11 +19,6 @@ public abstract class PredicateIndexIterator extends IndexIterator
 	protected OperationStatus 	last_opstat;
 	protected Cursor			index_cursor;
 
-	/* serialization stuff */
-	private final char 	 DELIM   = ':';
-	private final String DELIM_S = ":";
-	
-
 	public void open(Transaction txn,IterableIndex index,Object... user_args) throws DatabaseException
 	{
 		this.index = index;
@@ -37,49 +30,101 @@ public abstract class PredicateIndexIterator extends IndexIterator
 		data 		= 	new DatabaseEntry();
 		//original_param = IteratorUtil.cloneDatabaseEntry(key);
 	}
-	
+
+	/* resume is called on an iterator that was just opened with the same args
+	 * as the one that handed out the token. we seek straight to the row after
+	 * the encoded one instead of walking the range from the top.
+	 */
 	public void resume(IterableIndex index,Object token) throws DatabaseException
 	{
-		decode(token);
-		index_cursor = index.getDbh().openCursor(null, null);
+		DatabaseEntry[] position = IteratorUtil.decodePosition(token);
+		boolean dups 			 = IteratorUtil.hasSortedDuplicates(index);
+		if(!isValid() || is_past(position,dups))
+			return;
+
+		Cursor start_cursor 		= index_cursor.dup(true);
+		DatabaseEntry start_key 	= key;
+		DatabaseEntry start_data 	= data;
+		OperationStatus start_opstat = last_opstat;
+		if(resume_at(position[0],position[1],dups))
+		{
+			start_cursor.close();
+			return;
+		}
+		/* rows around the position went away under us. walk it */
+		index_cursor.close();
+		index_cursor = start_cursor;
+		key 		 = start_key;
+		data 		 = start_data;
+		last_opstat  = start_opstat;
+		while(isValid() && !is_past(position,dups))
+			next();
 	}
-	
+
+	/* position the cursor so the current row is the first one after
+	 * r_key/r_data in the order this iterator walks. return false if
+	 * that could not be done by seeking.
+	 */
+	protected boolean resume_at(DatabaseEntry r_key,DatabaseEntry r_data,boolean dups) throws DatabaseException
+	{
+		key  		= IteratorUtil.cloneDatabaseEntry(r_key);
+		data 		= IteratorUtil.cloneDatabaseEntry(r_data);
+		last_opstat = IteratorUtil.seekAtOrAfter(index_cursor, dups, key, data);
+		if(isDescending())
+		{
+			/* we are on the encoded row or the one we would have come from */
+			if(last_opstat != OperationStatus.SUCCESS)
+				return false;
+			next();
+			return true;
+		}
+		if(last_opstat == OperationStatus.SUCCESS && IteratorUtil.comparePosition(key, data, r_key, r_data, dups) == 0)
+		{
+			next();
+			return true;
+		}
+		/* encoded row is gone. step forward from the row before it */
+		if(last_opstat == OperationStatus.SUCCESS)
+			last_opstat = index_cursor.getPrev(key, data, LockMode.DEFAULT);
+		else
+			last_opstat = index_cursor.getLast(key, data, LockMode.DEFAULT);
+		if(last_opstat != OperationStatus.SUCCESS)
+			return false;
+		next();
+		return true;
+	}
+
+	protected boolean isDescending()
+	{
+		return false;
+	}
+
+	private boolean is_past(DatabaseEntry[] position,boolean dups)
+	{
+		int c = IteratorUtil.comparePosition(key, data, position[0], position[1], dups);
+		return isDescending() ? c < 0 : c > 0;
+	}
+
 	protected void resume(IterableIndex index,DatabaseEntry key,DatabaseEntry data) throws DatabaseException
 	{
 		this.key = key;
 		this.data = data;
 		index_cursor = index.getDbh().openCursor(null, null);
 	}
-	
+
 	public void close() throws DatabaseException
 	{
 		index_cursor.close();
 	}
-	
+
 	/*encode more or less means getnextquery token in the old system */
 	/* it means encode the state. if you have no more records there is no
 	 * more state to speak of for this instance so it returns null
 	 */
-	public String encode()
+	public String encode() throws DatabaseException
 	{
 		if(last_opstat == OperationStatus.SUCCESS)
-		{
-			StringBuffer buf = new StringBuffer();
-			buf.append(IteratorUtil.databaseEntryToHexString(key));
-			buf.append(DELIM);
-			buf.append(IteratorUtil.databaseEntryToHexString(data));
-			buf.append(DELIM);
-		//	buf.append(IteratorUtil.databaseEntryToHexString(original_param));
-			return buf.toString();
-		}
+			return IteratorUtil.encodePosition(key, data, IteratorUtil.hasSortedDuplicates(index));
 		return null;
 	}
-	
-	protected void decode(Object token)
-	{
-		StringTokenizer st 	= new StringTokenizer((String)token,DELIM_S,false);
-		key  			= IteratorUtil.hexStringToDatabaseEntry(st.nextToken());
-		data 			= IteratorUtil.hexStringToDatabaseEntry(st.nextToken());
-		//original_param  = IteratorUtil.hexStringToDatabaseEntry(st.nextToken());
-	}		
 }
@@ -1,13 +1,10 @@
 package com.pagesociety.bdb.index.iterator;
 
-import java.util.StringTokenizer;
-
-import com.pagesociety.bdb.BDBSecondaryIndex;
-import com.pagesociety.persistence.Query;
 import com.sleepycat.db.Cursor;
 import com.sleepycat.db.CursorConfig;
 import com.sleepycat.db.DatabaseEntry;
 import com.sleepycat.db.DatabaseException;
+import com.sleepycat.db.LockMode;
 import com.sleepycat.db.OperationStatus;
 import com.sleepycat.db.Transaction;
 
@@ -15,6 +12,7 @@ import com.sleepycat.db.Transaction;
 public abstract class RangeIndexIterator extends IndexIterator
 {
 	protected Transaction 		txn;
+	protected IterableIndex		index;
 	protected DatabaseEntry   	key;
 	protected DatabaseEntry 	data;
 	protected DatabaseEntry   	terminal_key;
@@ -22,12 +20,9 @@ public abstract class RangeIndexIterator extends IndexIterator
 	protected OperationStatus 	last_opstat;
 	protected Cursor			index_cursor;
 	
-	/* serialization stuff */
-	private final char 	 DELIM   = ':';
-	private final String DELIM_S = ":";
-	
 	public void open(Transaction txn,IterableIndex index,Object... user_args) throws DatabaseException
 	{
+		this.index 	 = index;
 		this.txn 	 = txn;
 		index_cursor = index.getDbh().openCursor(txn, CursorConfig.READ_COMMITTED);
 		key	  		 =	(DatabaseEntry)user_args[0];
@@ -36,12 +31,80 @@ public abstract class RangeIndexIterator extends IndexIterator
 		terminal_key_length = terminal_key.getSize();
 	}
 	
+	/* resume is called on an iterator that was just opened with the same args
+	 * as the one that handed out the token. we seek straight to the row after
+	 * the encoded one instead of walking the range from the top.
+	 */
 	public void resume(IterableIndex index,Object token) throws DatabaseException
 	{
-		decode(token);
-		index_cursor = index.getDbh().openCursor(null, null);
+		DatabaseEntry[] position = IteratorUtil.decodePosition(token);
+		boolean dups 			 = IteratorUtil.hasSortedDuplicates(index);
+		if(!isValid() || is_past(position,dups))
+			return;
+
+		Cursor start_cursor 		= index_cursor.dup(true);
+		DatabaseEntry start_key 	= key;
+		DatabaseEntry start_data 	= data;
+		OperationStatus start_opstat = last_opstat;
+		if(resume_at(position[0],position[1],dups))
+		{
+			start_cursor.close();
+			return;
+		}
+		/* rows around the position went away under us. walk it */
+		index_cursor.close();
+		index_cursor = start_cursor;
+		key 		 = start_key;
+		data 		 = start_data;
+		last_opstat  = start_opstat;
+		while(isValid() && !is_past(position,dups))
+			next();
 	}
-	
+
+	/* position the cursor so the current row is the first one after
+	 * r_key/r_data in the order this iterator walks. return false if
+	 * that could not be done by seeking.
+	 */
+	protected boolean resume_at(DatabaseEntry r_key,DatabaseEntry r_data,boolean dups) throws DatabaseException
+	{
+		key  		= IteratorUtil.cloneDatabaseEntry(r_key);
+		data 		= IteratorUtil.cloneDatabaseEntry(r_data);
+		last_opstat = IteratorUtil.seekAtOrAfter(index_cursor, dups, key, data);
+		if(isDescending())
+		{
+			/* we are on the encoded row or the one we would have come from */
+			if(last_opstat != OperationStatus.SUCCESS)
+				return false;
+			next();
+			return true;
+		}
+		if(last_opstat == OperationStatus.SUCCESS && IteratorUtil.comparePosition(key, data, r_key, r_data, dups) == 0)
+		{
+			next();
+			return true;
+		}
+		/* encoded row is gone. step forward from the row before it */
+		if(last_opstat == OperationStatus.SUCCESS)
+			last_opstat = index_cursor.getPrev(key, data, LockMode.DEFAULT);
+		else
+			last_opstat = index_cursor.getLast(key, data, LockMode.DEFAULT);
+		if(last_opstat != OperationStatus.SUCCESS)
+			return false;
+		next();
+		return true;
+	}
+
+	protected boolean isDescending()
+	{
+		return false;
+	}
+
+	private boolean is_past(DatabaseEntry[] position,boolean dups)
+	{
+		int c = IteratorUtil.comparePosition(key, data, position[0], position[1], dups);
+		return isDescending() ? c < 0 : c > 0;
+	}
+
 	public void close() throws DatabaseException
 	{
 		index_cursor.close();
@@ -54,26 +117,10 @@ public abstract class RangeIndexIterator extends IndexIterator
 	/* it means encode the state. if you have no more records there is no
 	 * more state to speak of for this instance so it returns null
 	 */
-	public String encode()
+	public String encode() throws DatabaseException
 	{
 		if(last_opstat == OperationStatus.SUCCESS)
-		{
-			StringBuffer buf = new StringBuffer();
-			buf.append(IteratorUtil.databaseEntryToHexString(key));
-			buf.append(DELIM);
-			buf.append(IteratorUtil.databaseEntryToHexString(data));
-			buf.append(DELIM);
-			buf.append(IteratorUtil.databaseEntryToHexString(terminal_key));
-			return buf.toString();
-		}
+			return IteratorUtil.encodePosition(key, data, IteratorUtil.hasSortedDuplicates(index));
 		return null;
 	}
-	
-	protected void decode(Object token)
-	{
-		StringTokenizer st 	= new StringTokenizer((String)token,DELIM_S,false);
-		key  		 		= IteratorUtil.hexStringToDatabaseEntry(st.nextToken());
-		data 		  		= IteratorUtil.hexStringToDatabaseEntry(st.nextToken());
-		terminal_key  		= IteratorUtil.hexStringToDatabaseEntry(st.nextToken());
-	}		
 }
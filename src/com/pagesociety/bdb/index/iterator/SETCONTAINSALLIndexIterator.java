@@ -1,26 +1,32 @@
 package com.pagesociety.bdb.index.iterator;
 
+import java.util.ArrayList;
+import java.util.List;
 
 import com.pagesociety.bdb.BDBSecondaryIndex;
+import com.sleepycat.db.Cursor;
+import com.sleepycat.db.CursorConfig;
 import com.sleepycat.db.DatabaseEntry;
 import com.sleepycat.db.DatabaseException;
 import com.sleepycat.db.Transaction;
 
 
 @SuppressWarnings("unchecked")
-public class SETCONTAINSALLIndexIterator extends SetIndexIterator 
+public class SETCONTAINSALLIndexIterator extends SetIndexIterator implements SeekableIndexIterator
 {
 	// both pointers to the same iterator. just different views.
 	protected RespositionableIndexIterator r_iter;
 	protected PredicateIndexIterator iter;
 	protected DatabaseEntry  first_value_key;
 	protected int		     keys_size;
-	/* we arent doing the whole smallest key thing anymore. should probably 
-	 * get back to that at some point....just count dupes when we open.
+	/* we drive from the rarest key and probe the others so a rare tag
+	 * and a common one cost about as much as the rare tag alone.
 	 */
 	public void open(Transaction txn,IterableIndex index,Object... user_list_of_db_entries) throws DatabaseException
 	{
 		super.open(txn,index,user_list_of_db_entries);
+		if(keys.size() > 1)
+			order_keys_by_selectivity(index);
 		prepare_iterator();
 		first_value_key = keys.get(0);
 		keys_size 		= keys.size();		
@@ -31,6 +37,63 @@ public class SETCONTAINSALLIndexIterator extends SetIndexIterator
 
 	}
 	
+	/* exact dup counts for plain keys. globbed keys are only guessed at */
+	private void order_keys_by_selectivity(IterableIndex index) throws DatabaseException
+	{
+		int s 		   = keys.size();
+		double[] est   = new double[s];
+		Cursor cursor  = null;
+		try{
+			if(!globbing)
+				cursor = index.getDbh().openCursor(txn, CursorConfig.READ_COMMITTED);
+			for(int i = 0;i < s;i++)
+			{
+				if(globbing)
+					est[i] = IteratorUtil.estimatePrefixFraction(txn, index, keys.get(i));
+				else
+					est[i] = IteratorUtil.countDuplicates(cursor, keys.get(i));
+			}
+		}finally
+		{
+			if(cursor != null)
+				cursor.close();
+		}
+
+		List<DatabaseEntry> ordered = new ArrayList<DatabaseEntry>(keys);
+		for(int i = 1;i < s;i++)
+		{
+			double e 		= est[i];
+			DatabaseEntry k = ordered.get(i);
+			int j = i - 1;
+			while(j >= 0 && est[j] > e)
+			{
+				est[j+1] = est[j];
+				ordered.set(j+1, ordered.get(j));
+				j--;
+			}
+			est[j+1] = e;
+			ordered.set(j+1, k);
+		}
+		keys = ordered;
+	}
+
+	/* only when not globbing. rows of one key come out in pkey order */
+	public void seekData(DatabaseEntry newdata) throws DatabaseException
+	{
+		((EQIndexIterator)iter).seekData(newdata);
+		advance_to_next();
+	}
+
+	/* the rarest key bounds the result */
+	public int count() throws DatabaseException
+	{
+		if(!iter.isValid())
+			return 0;
+		if(globbing)
+			return Integer.MAX_VALUE;
+		return ((EQIndexIterator)iter).count();
+	}
+
 	private void prepare_iterator()
 	{
 		if(globbing)
@@ -28,13 +28,6 @@ public class STARTSWITHDATAIndexIterator extends PredicateIndexIterator implemen
 
 	}
 	
-	public void resume(IterableIndex index,Object token) throws DatabaseException
-	{
-		super.resume(index,token);
-		original_param_length = original_param.getSize();
-		last_opstat	=	index_cursor.getSearchBothRange(key, data, LockMode.DEFAULT);
-	}
-	
 	public void next() throws DatabaseException
 	{
 		last_opstat =  index_cursor.getNext(key, data, LockMode.DEFAULT);	
@@ -104,6 +97,11 @@ public class STARTSWITHDATAIndexIterator extends PredicateIndexIterator implemen
 	/*essentially move with partial key and known data*/
 	public void move(DatabaseEntry newkey,DatabaseEntry newdata) throws DatabaseException
 	{
+		if(index.getReverseIndexDbh() == null)
+		{
+			move_by_scan(newkey,newdata);
+			return;
+		}
 		Cursor reverse_cursor = index.getReverseIndexDbh().openCursor(null, null);
 		original_param  	  = IteratorUtil.cloneDatabaseEntry((DatabaseEntry)newkey);
 		original_param_length = original_param.getSize();
@@ -121,6 +119,38 @@ public class STARTSWITHDATAIndexIterator extends PredicateIndexIterator implemen
 		last_opstat = OperationStatus.NOTFOUND;
 		reverse_cursor.close();
 	}
+
+	/* the index has no delete map to look newdata up in. walk the keys that */
+	/* start with newkey until one of them holds newdata */
+	private void move_by_scan(DatabaseEntry newkey,DatabaseEntry newdata) throws DatabaseException
+	{
+		original_param  	  = IteratorUtil.cloneDatabaseEntry(newkey);
+		original_param_length = original_param.getSize();
+
+		key  		= IteratorUtil.cloneDatabaseEntry(newkey);
+		data 		= new DatabaseEntry();
+		last_opstat = index_cursor.getSearchKeyRange(key, data, LockMode.DEFAULT);
+		while(last_opstat == OperationStatus.SUCCESS)
+		{
+			validate_position();
+			if(last_opstat != OperationStatus.SUCCESS || same_bytes(data,newdata))
+				return;
+			last_opstat = index_cursor.getNext(key, data, LockMode.DEFAULT);
+		}
+		last_opstat = OperationStatus.NOTFOUND;
+	}
+
+	private static boolean same_bytes(DatabaseEntry a,DatabaseEntry b)
+	{
+		if(a.getSize() != b.getSize())
+			return false;
+		for(int i = 0;i < a.getSize();i++)
+		{
+			if(a.getData()[a.getOffset() + i] != b.getData()[b.getOffset() + i])
+				return false;
+		}
+		return true;
+	}
 	
 	/* only called by globbing freetextcontainsall iterator...this is unique because
 	 * both key and data are are partial instead of just one being partial */
@@ -27,13 +27,6 @@ public class STARTSWITHSTRINGIndexIterator extends PredicateIndexIterator /*impl
 
 	}
 	
-	public void resume(IterableIndex index,Object token) throws DatabaseException
-	{
-		super.resume(index,token);
-		original_param_length = original_param.getSize();
-		last_opstat	=	index_cursor.getSearchBothRange(key, data, LockMode.DEFAULT);
-	}
-	
 	public void next() throws DatabaseException
 	{
 		last_opstat =  index_cursor.getNext(key, data, LockMode.DEFAULT);	
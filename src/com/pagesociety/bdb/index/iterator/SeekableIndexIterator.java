@@ -0,0 +1,14 @@
+package com.pagesociety.bdb.index.iterator;
+import com.sleepycat.db.DatabaseEntry;
+import com.sleepycat.db.DatabaseException;
+
+/* an iterator whose rows come out sorted by data, i.e. by pkey, so it
+ * can leap forward instead of being read row by row
+ */
+public interface SeekableIndexIterator 
+{
+	/* move forward to the first row whose data is >= newdata */
+	public void seekData(DatabaseEntry newdata) throws DatabaseException;
+	/* the most rows this iterator can hand out */
+	public int count() throws DatabaseException;
+}
@@ -46,6 +46,11 @@ public abstract class SetIndexIterator extends IndexIterator
 		decode(token);
 	}
 
+	public boolean isGlobbing()
+	{
+		return globbing;
+	}
+
 	
 	/*encode more or less means getnextquery token in the old system */
 	/* it means encode the state. if you have no more records there is no
@@ -0,0 +1,367 @@
+package com.pagesociety.bdb.index.query;
+
+import java.util.Arrays;
+
+import com.pagesociety.bdb.index.iterator.IndexIterator;
+import com.pagesociety.bdb.index.iterator.SeekableIndexIterator;
+import com.sleepycat.bind.tuple.LongBinding;
+import com.sleepycat.db.DatabaseEntry;
+import com.sleepycat.db.DatabaseException;
+
+/* set algebra on primary keys. intersections and unions of a complex query
+ * are done on sorted streams of ids and we only go to the primary index
+ * for the entities that make it onto the page.
+ *
+ * an IdStream is a sorted, distinct run of ids that can leap forward. it is
+ * either an array we already pulled out of an index or a live cursor on a
+ * secondary index. duplicates under one key are sorted by pkey so the cursor
+ * can leap with getSearchBothRange instead of reading every row.
+ */
+public class IdSetOps
+{
+	public static final long END = -1;
+	public static final long[] EMPTY = new long[0];
+
+	public static abstract class IdStream
+	{
+		/* current id or END */
+		public abstract long current();
+		/* move to the first id >= target. returns it or END */
+		public abstract long seek(long target) throws DatabaseException;
+		public abstract long next() throws DatabaseException;
+		/* most ids this stream can still hand out. the planner drives from the smallest */
+		public abstract long estimate();
+	}
+
+	public static class ArrayIdStream extends IdStream
+	{
+		private long[] ids;
+		private int    pos;
+
+		public ArrayIdStream(long[] sorted_ids)
+		{
+			ids = sorted_ids;
+			pos = 0;
+		}
+
+		public long current()
+		{
+			return (pos < ids.length)?ids[pos]:END;
+		}
+
+		public long next()
+		{
+			pos++;
+			return current();
+		}
+
+		public long estimate()
+		{
+			return ids.length - pos;
+		}
+
+		/* gallop then binary search. cheap when the leap is short */
+		public long seek(long target)
+		{
+			if(pos >= ids.length || ids[pos] >= target)
+				return current();
+			int lo 	 = pos;
+			int step = 1;
+			int hi 	 = pos + step;
+			while(hi < ids.length && ids[hi] < target)
+			{
+				lo 	 = hi;
+				step <<= 1;
+				hi 	 = pos + step;
+			}
+			if(hi > ids.length)
+				hi = ids.length;
+			/* ids[lo] < target. answer is in (lo,hi] */
+			int idx = Arrays.binarySearch(ids, lo + 1, hi, target);
+			pos = (idx >= 0)?idx:-(idx + 1);
+			return current();
+		}
+	}
+
+	public static class CursorIdStream extends IdStream
+	{
+		// both pointers to the same iterator. just different views.
+		private IndexIterator 		  iter;
+		private SeekableIndexIterator s_iter;
+		private long				  estimate;
+		private DatabaseEntry		  target_entry = new DatabaseEntry();
+
+		/* iter must be open and sitting on its first row */
+		public CursorIdStream(IndexIterator iter) throws DatabaseException
+		{
+			this.iter = iter;
+			s_iter 	  = (SeekableIndexIterator)iter;
+			estimate  = s_iter.count();
+		}
+
+		public long estimate()
+		{
+			return estimate;
+		}
+
+		public long current()
+		{
+			if(!iter.isValid())
+				return END;
+			return LongBinding.entryToLong(iter.currentData());
+		}
+
+		public long next() throws DatabaseException
+		{
+			iter.next();
+			return current();
+		}
+
+		public long seek(long target) throws DatabaseException
+		{
+			long c = current();
+			if(c == END || c >= target)
+				return c;
+			LongBinding.longToEntry(target, target_entry);
+			s_iter.seekData(target_entry);
+			return current();
+		}
+	}
+
+	/* leapfrog join. every stream leaps to the largest id seen so far until
+	 * they all agree on one.
+	 */
+	public static long[] intersect(IdStream[] streams) throws DatabaseException
+	{
+		if(streams.length == 1)
+			return drain(streams[0]);
+		int[] size = new int[1];
+		long[] out = leapfrog(streams, new long[64], size);
+		return trim(out, size[0]);
+	}
+
+	/* same join but nothing is kept. a count never needs the ids */
+	public static int intersectCount(IdStream[] streams) throws DatabaseException
+	{
+		if(streams.length == 1)
+		{
+			int c = 0;
+			for(long id = streams[0].current();id != END;id = streams[0].next())
+				c++;
+			return c;
+		}
+		int[] size = new int[1];
+		leapfrog(streams, null, size);
+		return size[0];
+	}
+
+	/* two or more streams. out may be null in which case matches are only counted */
+	private static long[] leapfrog(IdStream[] streams,long[] out,int[] size_out) throws DatabaseException
+	{
+		int n = streams.length;
+		long max = Long.MIN_VALUE;
+		for(int i = 0;i < n;i++)
+		{
+			long c = streams[i].current();
+			if(c == END)
+				return out;
+			if(c > max)
+				max = c;
+		}
+
+		int size   = 0;
+		int agree  = 0;
+		int p 	   = 0;
+		while(true)
+		{
+			long c = streams[p].seek(max);
+			if(c == END)
+				break;
+			if(c == max)
+			{
+				if(++agree == n)
+				{
+					if(out != null)
+					{
+						if(size == out.length)
+							out = grow(out);
+						out[size] = c;
+					}
+					size++;
+					c = streams[p].next();
+					if(c == END)
+						break;
+					max   = c;
+					agree = 1;
+				}
+			}
+			else
+			{
+				max   = c;
+				agree = 1;
+			}
+			p = (p + 1) % n;
+		}
+		size_out[0] = size;
+		return out;
+	}
+
+	/* smallest first. the first stream sets the pace of the join */
+	public static void sortByEstimate(IdStream[] streams)
+	{
+		for(int i = 1;i < streams.length;i++)
+		{
+			IdStream s = streams[i];
+			int j = i - 1;
+			while(j >= 0 && streams[j].estimate() > s.estimate())
+			{
+				streams[j+1] = streams[j];
+				j--;
+			}
+			streams[j+1] = s;
+		}
+	}
+
+	public static long[] drain(IdStream stream) throws DatabaseException
+	{
+		long[] out = new long[64];
+		int size   = 0;
+		for(long c = stream.current();c != END;c = stream.next())
+		{
+			if(size == out.length)
+				out = grow(out);
+			out[size++] = c;
+		}
+		return trim(out, size);
+	}
+
+	/* k way merge of sorted distinct arrays on a little heap of array indexes */
+	public static long[] union(long[][] sets)
+	{
+		int k = compact(sets);
+		if(k == 0)
+			return EMPTY;
+		if(k == 1)
+			return sets[0];
+		int total = 0;
+		for(int i = 0;i < k;i++)
+			total += sets[i].length;
+		int[] size = new int[1];
+		long[] out = merge(sets, k, new long[total], size);
+		return trim(out, size[0]);
+	}
+
+	public static int unionCount(long[][] sets)
+	{
+		int k = compact(sets);
+		if(k == 0)
+			return 0;
+		if(k == 1)
+			return sets[0].length;
+		int[] size = new int[1];
+		merge(sets, k, null, size);
+		return size[0];
+	}
+
+	/* moves the non empty sets to the front. returns how many there are */
+	private static int compact(long[][] sets)
+	{
+		int k = 0;
+		for(int i = 0;i < sets.length;i++)
+		{
+			if(sets[i].length == 0)
+				continue;
+			sets[k++] = sets[i];
+		}
+		return k;
+	}
+
+	/* out may be null in which case distinct ids are only counted */
+	private static long[] merge(long[][] sets,int k,long[] out,int[] size_out)
+	{
+		int[] pos  = new int[k];
+		int[] heap = new int[k];
+		for(int i = 0;i < k;i++)
+			heap[i] = i;
+		for(int i = k/2 - 1;i >= 0;i--)
+			sift_down(heap, k, i, sets, pos);
+
+		int size   	  = 0;
+		long last  	  = 0;
+		int heap_size = k;
+		while(heap_size > 0)
+		{
+			int s  = heap[0];
+			long v = sets[s][pos[s]];
+			if(size == 0 || last != v)
+			{
+				if(out != null)
+					out[size] = v;
+				size++;
+				last = v;
+			}
+			if(++pos[s] == sets[s].length)
+				heap[0] = heap[--heap_size];
+			sift_down(heap, heap_size, 0, sets, pos);
+		}
+		size_out[0] = size;
+		return out;
+	}
+
+	private static void sift_down(int[] heap,int heap_size,int i,long[][] sets,int[] pos)
+	{
+		while(true)
+		{
+			int l = 2*i + 1;
+			if(l >= heap_size)
+				return;
+			int smallest = l;
+			int r = l + 1;
+			if(r < heap_size && head(heap[r], sets, pos) < head(heap[l], sets, pos))
+				smallest = r;
+			if(head(heap[i], sets, pos) <= head(heap[smallest], sets, pos))
+				return;
+			int t 		   = heap[i];
+			heap[i] 	   = heap[smallest];
+			heap[smallest] = t;
+			i = smallest;
+		}
+	}
+
+	private static long head(int s,long[][] sets,int[] pos)
+	{
+		return sets[s][pos[s]];
+	}
+
+	/* sort in place if need be and drop repeats. returns the new length */
+	public static int sortDistinct(long[] ids,int size,boolean sorted)
+	{
+		if(!sorted)
+			Arrays.sort(ids, 0, size);
+		if(size == 0)
+			return 0;
+		int w = 1;
+		for(int i = 1;i < size;i++)
+		{
+			if(ids[i] != ids[w-1])
+				ids[w++] = ids[i];
+		}
+		return w;
+	}
+
+	public static long[] grow(long[] ids)
+	{
+		long[] bigger = new long[ids.length * 2];
+		System.arraycopy(ids, 0, bigger, 0, ids.length);
+		return bigger;
+	}
+
+	public static long[] trim(long[] ids,int size)
+	{
+		if(size == ids.length)
+			return ids;
+		long[] trimmed = new long[size];
+		System.arraycopy(ids, 0, trimmed, 0, size);
+		return trimmed;
+	}
+}
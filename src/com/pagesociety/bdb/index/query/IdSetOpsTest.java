@@ -0,0 +1,162 @@
+package com.pagesociety.bdb.index.query;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeSet;
+
+/* checks the array side of IdSetOps against TreeSet. random sorted distinct
+ * id sets of mixed density are intersected, unioned and counted both ways
+ * and the answers have to match. seek is walked with rising targets mixed
+ * with next and checked against a linear scan. the cursor streams need an
+ * environment. QueryTest.leapfrog_test checks them.
+ *
+ * java com.pagesociety.bdb.index.query.IdSetOpsTest [trials] [seed]
+ */
+public class IdSetOpsTest
+{
+	public static void main(String[] args) throws Exception
+	{
+		int trials 	= (args.length > 0)?Integer.parseInt(args[0]):2000;
+		long seed 	= (args.length > 1)?Long.parseLong(args[1]):System.currentTimeMillis();
+		System.out.println("IdSetOpsTest TRIALS: "+trials+" SEED: "+seed);
+		Random r = new Random(seed);
+		for(int t = 0;t < trials;t++)
+		{
+			long[][] sets = random_sets(r);
+			check_intersect(sets);
+			check_union(sets);
+			check_seek(r, sets[0]);
+			check_sort_distinct(r);
+		}
+		System.out.println("IdSetOpsTest OK");
+	}
+
+	private static void check_intersect(long[][] sets) throws Exception
+	{
+		TreeSet<Long> expected = to_set(sets[0]);
+		for(int i = 1;i < sets.length;i++)
+			expected.retainAll(to_set(sets[i]));
+
+		check_equals("intersect", expected, IdSetOps.intersect(streams(sets)));
+		IdSetOps.IdStream[] sorted = streams(sets);
+		IdSetOps.sortByEstimate(sorted);
+		for(int i = 1;i < sorted.length;i++)
+			check(sorted[i-1].estimate() <= sorted[i].estimate(), "sortByEstimate OUT OF ORDER AT "+i);
+		check_equals("intersect sorted by estimate", expected, IdSetOps.intersect(sorted));
+		int count = IdSetOps.intersectCount(streams(sets));
+		check(count == expected.size(), "intersectCount "+count+" EXPECTED "+expected.size());
+	}
+
+	private static void check_union(long[][] sets)
+	{
+		TreeSet<Long> expected = new TreeSet<Long>();
+		for(int i = 0;i < sets.length;i++)
+			expected.addAll(to_set(sets[i]));
+
+		/* union and unionCount move the arrays around so each gets a copy */
+		check_equals("union", expected, IdSetOps.union(sets.clone()));
+		int count = IdSetOps.unionCount(sets.clone());
+		check(count == expected.size(), "unionCount "+count+" EXPECTED "+expected.size());
+	}
+
+	private static void check_seek(Random r,long[] ids)
+	{
+		IdSetOps.ArrayIdStream s = new IdSetOps.ArrayIdStream(ids);
+		int pos 	= 0;
+		long target = -1;
+		while(pos < ids.length)
+		{
+			if(r.nextInt(4) == 0)
+			{
+				long c = s.next();
+				pos++;
+				check(c == naive_current(ids, pos), "next GAVE "+c+" EXPECTED "+naive_current(ids, pos));
+				continue;
+			}
+			target += r.nextInt(3) == 0?0:1 + r.nextInt(1 + (int)(ids[ids.length - 1] / 8));
+			while(pos < ids.length && ids[pos] < target)
+				pos++;
+			long c = s.seek(target);
+			check(c == naive_current(ids, pos), "seek("+target+") GAVE "+c+" EXPECTED "+naive_current(ids, pos));
+		}
+		check(s.seek(target + 1) == IdSetOps.END, "seek PAST THE END DID NOT GIVE END");
+	}
+
+	private static void check_sort_distinct(Random r)
+	{
+		int n 	   = r.nextInt(100);
+		long[] ids = new long[n + r.nextInt(5)];
+		TreeSet<Long> expected = new TreeSet<Long>();
+		for(int i = 0;i < n;i++)
+		{
+			ids[i] = r.nextInt(50);
+			expected.add(ids[i]);
+		}
+		int size = IdSetOps.sortDistinct(ids, n, false);
+		check_equals("sortDistinct", expected, IdSetOps.trim(ids, size));
+		size = IdSetOps.sortDistinct(ids, size, true);
+		check_equals("sortDistinct sorted", expected, IdSetOps.trim(ids, size));
+	}
+
+	/* one to five sets. each is sparse or dense over its own range so the */
+	/* gallops are both short and long */
+	private static long[][] random_sets(Random r)
+	{
+		long[][] sets = new long[1 + r.nextInt(5)][];
+		for(int i = 0;i < sets.length;i++)
+		{
+			int range 		 = 1 + r.nextInt(r.nextBoolean()?64:10000);
+			int n 			 = r.nextInt(Math.min(range, 300) + 1);
+			TreeSet<Long> s  = new TreeSet<Long>();
+			while(s.size() < n)
+				s.add((long)r.nextInt(range));
+			sets[i] = to_array(s);
+		}
+		return sets;
+	}
+
+	private static IdSetOps.IdStream[] streams(long[][] sets)
+	{
+		IdSetOps.IdStream[] streams = new IdSetOps.IdStream[sets.length];
+		for(int i = 0;i < sets.length;i++)
+			streams[i] = new IdSetOps.ArrayIdStream(sets[i]);
+		return streams;
+	}
+
+	private static long naive_current(long[] ids,int pos)
+	{
+		return (pos < ids.length)?ids[pos]:IdSetOps.END;
+	}
+
+	private static TreeSet<Long> to_set(long[] ids)
+	{
+		TreeSet<Long> s = new TreeSet<Long>();
+		for(int i = 0;i < ids.length;i++)
+			s.add(ids[i]);
+		return s;
+	}
+
+	private static long[] to_array(TreeSet<Long> s)
+	{
+		long[] ids = new long[s.size()];
+		int i = 0;
+		Iterator<Long> it = s.iterator();
+		while(it.hasNext())
+			ids[i++] = it.next();
+		return ids;
+	}
+
+	private static void check_equals(String what,TreeSet<Long> expected,long[] got)
+	{
+		long[] e = to_array(expected);
+		check(e.length == got.length, what+" GAVE "+got.length+" IDS EXPECTED "+e.length);
+		for(int i = 0;i < e.length;i++)
+			check(e[i] == got[i], what+" GAVE "+got[i]+" AT "+i+" EXPECTED "+e[i]);
+	}
+
+	private static void check(boolean ok,String message)
+	{
+		if(!ok)
+			throw new RuntimeException("IdSetOpsTest FAILED: "+message);
+	}
+}
@@ -0,0 +1,138 @@
+package com.pagesociety.bdb.index.query;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.sleepycat.db.DatabaseEntry;
+
+/* what a cached query read or what a write changed, for one entity type.
+ *
+ * a query records the exact keys it looked up on an index or, for ranges,
+ * globs and freetext, the whole index. a write records the keys it took out
+ * of and put into each index it touched. an entry only has to go when the
+ * two share a key. queries that walk the primary index depend on the set of
+ * entities itself so they go whenever one is inserted or deleted. an order
+ * field goes with any write that dirties it since the page is ordered on it.
+ */
+public class QueryCacheKeys
+{
+	/* index name -> keys. a null set means every key in the index */
+	private Map<String,Set<DatabaseEntry>> index_keys;
+	private Set<String>	fields;
+	private boolean 	primary;
+	private boolean 	uncacheable;
+
+	public QueryCacheKeys()
+	{
+		index_keys  = new HashMap<String,Set<DatabaseEntry>>();
+		fields 		= new HashSet<String>();
+		primary 	= false;
+		uncacheable = false;
+	}
+
+	public void addKey(String index_name,DatabaseEntry key)
+	{
+		if(index_keys.containsKey(index_name))
+		{
+			Set<DatabaseEntry> keys = index_keys.get(index_name);
+			if(keys != null)
+				keys.add(key);
+			return;
+		}
+		Set<DatabaseEntry> keys = new HashSet<DatabaseEntry>();
+		keys.add(key);
+		index_keys.put(index_name,keys);
+	}
+
+	public void addKeys(String index_name,Collection<DatabaseEntry> keys)
+	{
+		Iterator<DatabaseEntry> it = keys.iterator();
+		while(it.hasNext())
+			addKey(index_name,it.next());
+	}
+
+	public void addIndex(String index_name)
+	{
+		index_keys.put(index_name,null);
+	}
+
+	public void addField(String field_name)
+	{
+		fields.add(field_name);
+	}
+
+	public void addFields(Collection<String> field_names)
+	{
+		fields.addAll(field_names);
+	}
+
+	public void setPrimary()
+	{
+		primary = true;
+	}
+
+	public void setUncacheable()
+	{
+		uncacheable = true;
+	}
+
+	public boolean isUncacheable()
+	{
+		return uncacheable;
+	}
+
+	/* fold a child transaction's changes into ours */
+	public void addAll(QueryCacheKeys other)
+	{
+		Iterator<String> it = other.index_keys.keySet().iterator();
+		while(it.hasNext())
+		{
+			String index_name 		 = it.next();
+			Set<DatabaseEntry> keys  = other.index_keys.get(index_name);
+			if(keys == null)
+				addIndex(index_name);
+			else
+				addKeys(index_name,keys);
+		}
+		fields.addAll(other.fields);
+		primary 	= primary || other.primary;
+		uncacheable = uncacheable || other.uncacheable;
+	}
+
+	/* this is what a query read. changes is what a write did */
+	public boolean intersects(QueryCacheKeys changes)
+	{
+		if(primary && changes.primary)
+			return true;
+		Iterator<String> it = fields.iterator();
+		while(it.hasNext())
+		{
+			if(changes.fields.contains(it.next()))
+				return true;
+		}
+		it = index_keys.keySet().iterator();
+		while(it.hasNext())
+		{
+			String index_name = it.next();
+			if(!changes.index_keys.containsKey(index_name))
+				continue;
+			Set<DatabaseEntry> read 	= index_keys.get(index_name);
+			Set<DatabaseEntry> written 	= changes.index_keys.get(index_name);
+			if(read == null || written == null)
+				return true;
+			Set<DatabaseEntry> smaller = (read.size() < written.size())?read:written;
+			Set<DatabaseEntry> larger  = (smaller == read)?written:read;
+			Iterator<DatabaseEntry> kit = smaller.iterator();
+			while(kit.hasNext())
+			{
+				if(larger.contains(kit.next()))
+					return true;
+			}
+		}
+		return false;
+	}
+}
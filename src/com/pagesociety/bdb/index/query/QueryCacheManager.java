@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -12,58 +13,110 @@ import com.pagesociety.persistence.EntityDefinition;
 import com.pagesociety.persistence.FieldDefinition;
 import com.pagesociety.persistence.Types;
 
-import com.pagesociety.bdb.cache.ConcurrentLRUCache;
-import com.pagesociety.bdb.locker.JavaConcurrencyReentrantReadWriteLocker;
+import com.pagesociety.bdb.cache.ConcurrentTinyLFUCache;
 
 public class QueryCacheManager 
 {
 	private static final boolean IGNORE_DEPENDENCIES = true;
 	
-	private ConcurrentMap<String,ConcurrentLRUCache<String,Object>> _entity_query_caches;
-	private int 	_initial_lru_cache_size;
-	private float 	_lru_load_factor;
-	private int 	_max_lru_cache_size;
-	private ConcurrentLRUCache<String, Object> _next_entity_cache;
+	private ConcurrentMap<String,query_cache> _entity_query_caches;
+	private int 	_max_cache_size;
+	/* null means every type is cached */
+	private Set<String> _cached_entity_types;
 	
-	public QueryCacheManager(int initial_lru_cache_size,float lru_load_factor,int max_lru_cache_size)
+	public QueryCacheManager(int max_cache_size,Set<String> cached_entity_types)
 	{
-		_initial_lru_cache_size = initial_lru_cache_size;
-		_lru_load_factor 		= lru_load_factor;
-		_max_lru_cache_size		= max_lru_cache_size;
-		_entity_query_caches 	= new ConcurrentHashMap<String, ConcurrentLRUCache<String,Object>>(32);
-		_next_entity_cache		= new ConcurrentLRUCache<String,Object>(_initial_lru_cache_size,
-																			_lru_load_factor,
-																			_max_lru_cache_size,
-																			new JavaConcurrencyReentrantReadWriteLocker());
+		_max_cache_size			= max_cache_size;
+		_cached_entity_types	= cached_entity_types;
+		_entity_query_caches 	= new ConcurrentHashMap<String, query_cache>(32);
 	}
 
-	public ConcurrentLRUCache<String, Object> getQueryCache(String entity_name)
+	public boolean isCaching(String entity_name)
 	{
-		try{
-		if(_entity_query_caches.putIfAbsent(entity_name,_next_entity_cache)== null)
+		return (_cached_entity_types == null || _cached_entity_types.contains(entity_name));
+	}
+
+	private query_cache get_query_cache(String entity_name)
+	{
+		query_cache qc = _entity_query_caches.get(entity_name);
+		if(qc != null)
+			return qc;
+		qc = new query_cache();
+		query_cache existing = _entity_query_caches.putIfAbsent(entity_name,qc);
+		return (existing == null)?qc:existing;
+	}
+
+	/* take a stamp before running the query and hand it to put. if a write
+	 * came through in between the result might be stale and we drop it.
+	 */
+	public long stamp(String entity_name)
+	{
+		query_cache qc = get_query_cache(entity_name);
+		synchronized(qc)
+		{
+			return qc.generation;
+		}
+	}
+
+	public Object get(String entity_name,String key)
+	{
+		query_cache qc = _entity_query_caches.get(entity_name);
+		if(qc == null)
+			return null;
+		cache_entry e = qc.entries.get(key);
+		return (e == null)?null:e.value;
+	}
+
+	public void put(String entity_name,String key,Object value,QueryCacheKeys deps,long stamp)
+	{
+		query_cache qc = get_query_cache(entity_name);
+		synchronized(qc)
+		{
+			if(qc.generation != stamp)
+				return;
+			qc.entries.put(key,new cache_entry(key,value,deps));
+		}
+	}
+
+	/* called once the write that made changes has committed. anything put
+	 * before the generation moves is checked against the changes. anything
+	 * after has a stale stamp and never gets in.
+	 */
+	public void invalidate(String entity_name,QueryCacheKeys changes)
+	{
+		query_cache qc = _entity_query_caches.get(entity_name);
+		if(qc == null)
+			return;
+		synchronized(qc)
 		{
-			_next_entity_cache = new ConcurrentLRUCache<String, Object>(_initial_lru_cache_size,
-																			_lru_load_factor,
-																			_max_lru_cache_size,
-																			new JavaConcurrencyReentrantReadWriteLocker());
+			qc.generation++;
 		}
-		return _entity_query_caches.get(entity_name);
-		}catch(NullPointerException npe)//this try/catch is just for debugging to track down
-		{								//password cleaner bug.
-			System.out.println("ENTITY_NAME WAS "+entity_name);
-			throw npe;
+		List<cache_entry> entries = qc.entries.allValues();
+		int s = entries.size();
+		for(int i = 0;i < s;i++)
+		{
+			cache_entry e = entries.get(i);
+			if(e.deps.intersects(changes))
+				qc.entries.remove(e.key,e);
 		}
 	}
 
 	public void clearQueryCache(String entity_name)
 	{
-		ConcurrentLRUCache<String, Object> e_cache 	 = null;
+		query_cache e_cache = null;
 		if((e_cache = _entity_query_caches.get(entity_name)) == null)
 			return;
 		else
 			e_cache.clear();
 	
-		List<String> dependencies = _dependency_map.get(entity_name);
+		List<String> dependencies;
+		/* schema changes on other types can be rewriting the map */
+		synchronized(this)
+		{
+			dependencies = _dependency_map.get(entity_name);
+			if(dependencies != null)
+				dependencies = new ArrayList<String>(dependencies);
+		}
 		//System.out.println("CLEARING QUERY CACHE FOR "+entity_name);
 		if(dependencies == null || IGNORE_DEPENDENCIES)
 			return;
@@ -81,9 +134,44 @@ public class QueryCacheManager
 		}
 	}
 
+	private class query_cache
+	{
+		private ConcurrentTinyLFUCache<String,cache_entry> entries;
+		private long generation;
+
+		private query_cache()
+		{
+			entries = new ConcurrentTinyLFUCache<String, cache_entry>(_max_cache_size);
+			generation = 0;
+		}
+
+		private void clear()
+		{
+			synchronized(this)
+			{
+				generation++;
+			}
+			entries.clear();
+		}
+	}
+
+	private static class cache_entry
+	{
+		private String 			key;
+		private Object 			value;
+		private QueryCacheKeys 	deps;
+
+		private cache_entry(String key,Object value,QueryCacheKeys deps)
+		{
+			this.key   = key;
+			this.value = value;
+			this.deps  = deps;
+		}
+	}
+
 	
 	private Map<String,List<String>> _dependency_map = new HashMap<String,List<String>>();
-	public void calculateDependencies(EntityDefinition def)
+	public synchronized void calculateDependencies(EntityDefinition def)
 	{
 		String entity_name = def.getName();
 		List<FieldDefinition> fields = def.getFields();
@@ -109,7 +197,7 @@ public class QueryCacheManager
 		//dump_all_dependencies();
 	}
 	
-	public void removeDependencies(EntityDefinition def)
+	public synchronized void removeDependencies(EntityDefinition def)
 	{
 		String entity_name = def.getName();
 		for(String s:_dependency_map.keySet())
@@ -1,10 +1,12 @@
 package com.pagesociety.bdb.index.query;
 
+import java.util.Collection;
 import java.util.Map;
 
 import com.pagesociety.bdb.BDBPrimaryIndex;
 import com.pagesociety.bdb.BDBSecondaryIndex;
 import com.pagesociety.bdb.index.iterator.IterableIndex;
+import com.pagesociety.bdb.locker.EntityLocker;
 import com.pagesociety.persistence.PersistenceException;
 
 public class QueryExecutionEnvironment 
@@ -14,14 +16,17 @@ public class QueryExecutionEnvironment
 	private Map<String,Map<String,BDBSecondaryIndex>> _secondary_index_map;
 	private QueryCacheManager				_query_cache_manager;
 	private QueryManager					_query_manager;
+	private EntityLocker					_entity_locker;
 	public QueryExecutionEnvironment(QueryManager query_manager,Map<String,BDBPrimaryIndex> primary_index_map,
 									Map<String,Map<String,BDBSecondaryIndex>> secondary_index_map,
-									QueryCacheManager query_cache_manager)
+									QueryCacheManager query_cache_manager,
+									EntityLocker entity_locker)
 	{
 		_primary_index_map   = primary_index_map;
 		_secondary_index_map = secondary_index_map;
 		_query_cache_manager = query_cache_manager;
 		_query_manager		 = query_manager;
+		_entity_locker		 = entity_locker;
 	}
 	
 	public QueryManager getQueryManager()
@@ -31,6 +36,7 @@ public class QueryExecutionEnvironment
 	
 	protected IterableIndex getSecondaryIndex(String entity_name,String index_name) throws PersistenceException
 	{
+		enter_entity(entity_name);
 		Map<String,BDBSecondaryIndex> entity_indexes =  _secondary_index_map.get(entity_name);
 		if(entity_indexes == null)
 			throw new PersistenceException("ENTITY "+entity_name+" DOES NOT EXIST.");
@@ -40,15 +46,32 @@ public class QueryExecutionEnvironment
 		return idx;
 	}
 	
+	protected Collection<BDBSecondaryIndex> getSecondaryIndexes(String entity_name) throws PersistenceException
+	{
+		enter_entity(entity_name);
+		Map<String,BDBSecondaryIndex> entity_indexes =  _secondary_index_map.get(entity_name);
+		if(entity_indexes == null)
+			throw new PersistenceException("ENTITY "+entity_name+" DOES NOT EXIST.");
+		return entity_indexes.values();
+	}
+
 	// this should use the provider...
 	public BDBPrimaryIndex getPrimaryIndex(String entity_name) throws PersistenceException
 	{
+		enter_entity(entity_name);
 		BDBPrimaryIndex idx = _primary_index_map.get(entity_name);
 		if(idx == null)
 			throw new PersistenceException("ENTITY "+entity_name+" DOES NOT EXIST");
 		return idx;	
 	}
 	
+	/* held until the store call the query runs in returns */
+	private void enter_entity(String entity_name)
+	{
+		if(_entity_locker != null)
+			_entity_locker.enterEntityReader(entity_name);
+	}
+
 	public QueryCacheManager getQueryCacheManager()
 	{
 		return _query_cache_manager;
@@ -2,18 +2,28 @@
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
+import com.pagesociety.bdb.BDBEdgeList;
 import com.pagesociety.bdb.BDBPrimaryIndex;
 import com.pagesociety.bdb.BDBQueryResult;
+import com.pagesociety.bdb.BDBQueryToken;
+import com.pagesociety.bdb.BDBSecondaryIndex;
 import com.pagesociety.bdb.binding.FieldBinding;
-import com.pagesociety.bdb.cache.ConcurrentLRUCache;
+import com.pagesociety.bdb.cache.EntityCache;
 import com.pagesociety.bdb.index.ArrayMembershipIndex;
 import com.pagesociety.bdb.index.SingleFieldFreeTextIndex;
 import com.pagesociety.bdb.index.MultiFieldArrayMembershipIndex;
@@ -37,6 +47,7 @@ import com.pagesociety.bdb.index.iterator.GTEIndexIterator;
 import com.pagesociety.bdb.index.iterator.GTIndexIterator;
 import com.pagesociety.bdb.index.iterator.IndexIterator;
 import com.pagesociety.bdb.index.iterator.IterableIndex;
+import com.pagesociety.bdb.index.iterator.IteratorUtil;
 import com.pagesociety.bdb.index.iterator.LTIndexIterator;
 import com.pagesociety.bdb.index.iterator.PredicateIndexIterator;
 import com.pagesociety.bdb.index.iterator.RangeIndexIterator;
@@ -46,12 +57,14 @@ import com.pagesociety.bdb.index.iterator.STARTSWITHSTRINGIndexIterator;
 import com.pagesociety.bdb.index.iterator.SetIndexIterator;
 import com.pagesociety.persistence.Entity;
 import com.pagesociety.persistence.EntityDefinition;
+import com.pagesociety.persistence.FieldDefinition;
 import com.pagesociety.persistence.PersistenceException;
 import com.pagesociety.persistence.Query;
 import com.pagesociety.persistence.QueryResult;
+import com.pagesociety.persistence.Types;
 import com.pagesociety.persistence.Query.QueryNode;
-import com.pagesociety.persistence.util.EntityIdComparator;
 import com.sleepycat.bind.tuple.LongBinding;
+import com.sleepycat.bind.tuple.TupleInput;
 import com.sleepycat.db.DatabaseEntry;
 import com.sleepycat.db.DatabaseException;
 import com.sleepycat.db.Transaction;
@@ -65,6 +78,8 @@ public class QueryExecutor
 	/* get params out of here so we can have one instance of the executor */
 	private Query _query;
 	private Object[] _query_params;
+	/* what the query read. only kept when the result is going into the cache */
+	private QueryCacheKeys _deps;
 	public QueryExecutor(QueryExecutionEnvironment env)
 	{
 		_env = env;
@@ -94,9 +109,9 @@ public class QueryExecutor
 		}
 	}
 	
-	private List<Long> eval_count(Transaction txn,QueryNode node) throws PersistenceException
+	/* counts never look at an entity. every node is counted on ids alone */
+	private int eval_count(Transaction txn,QueryNode node) throws PersistenceException
 	{
-		
 		switch(node.type)
 		{
 			case 0: //root node 
@@ -115,7 +130,6 @@ public class QueryExecutor
 	
 	public QueryResult execute(Transaction txn,Query q) throws PersistenceException
 	{
-		long t1;
 		//System.out.println("EXECUTE "+q);
 		
 		/* we want to always check and store results based on this 
@@ -124,101 +138,361 @@ public class QueryExecutor
 		_query = q;
 		_query_params = q.getParams();//copy_params(q.getParams());
 
-		String real_cache_key 	= get_the_cache_key(q,_query_params);		
 		String return_type 		= q.getReturnType();
-		boolean cached_query 	= false;//q.getCacheResults();	
-		
-		QueryResult result = null;
+		boolean cached_query 	= is_cacheable(txn,q);
+		QueryCacheManager qcm 	= _env.getQueryCacheManager();
+		String real_cache_key 	= null;
+		long stamp 				= 0;
 		if(cached_query)
 		{
-			//ConcurrentLRUCache<String,Object> qc = (ConcurrentLRUCache<String,Object>)_env.getQueryCacheManager().getQueryCache(return_type);
-			//synchronized(qc)
-			//{
-				
-			//}
-			result = get_cached_results(return_type,real_cache_key);
-		}
-		if(result == null)
-		{
-			//System.out.println("!!!!NO CACHE HIT!!!!! FOR "+real_cache_key);
-			t1 = System.currentTimeMillis();		
-			QueryNode root 	   = q.getRootNode();
-			result 			   = eval(txn,root); 	
-			//System.out.println("INTERNAL EXECUTE TOOK "+(System.currentTimeMillis() - t1));	
-			//if(result.size() != 0)
-				//System.out.println("RESULT SIZE IS "+result.size()+" LAST ID IS "+result.getEntities().get(result.size()-1).getId());	
-			String order_attribute = (String)root.attributes.get(Query.ATT_ORDER_FIELDNAME);
-			if(order_attribute != null)
+			/* the outer page is part of the key. a cached entry is one page */
+			real_cache_key = get_the_cache_key(q,_query_params)+"_OFST:"+q.getOffset()+"_PGSZ:"+q.getPageSize();
+			cached_page page = (cached_page)qcm.get(return_type,real_cache_key);
+			if(page != null)
+				return expand_references(txn,q,page.toResult(txn,_env.getPrimaryIndex(return_type)));
+			stamp = qcm.stamp(return_type);
+			_deps = new QueryCacheKeys();
+		}
+
+		QueryResult result = do_execute(txn,q);
+		if(cached_query && !_deps.isUncacheable())
+			qcm.put(return_type,real_cache_key,new cached_page(result),_deps,stamp);
+		return expand_references(txn,q,result);
+	}
+
+	private QueryResult do_execute(Transaction txn,Query q) throws PersistenceException
+	{
+		QueryNode root 	   	   = q.getRootNode();
+		String order_attribute = (String)root.attributes.get(Query.ATT_ORDER_FIELDNAME);
+		if(order_attribute != null && _deps != null)
+			_deps.addField(order_attribute);
+		if(q.isComplex())
+			return do_complex_query(txn,q,root);
+		QueryResult result = eval(txn,root); 	
+		//if(result.size() != 0)
+			//System.out.println("RESULT SIZE IS "+result.size()+" LAST ID IS "+result.getEntities().get(result.size()-1).getId());	
+		if(order_attribute != null)
+		{
+			int direction = (Integer)root.attributes.get(Query.ATT_ORDER_ORDER);
+			do_order_by(result, order_attribute,direction);
+		}
+		return result;
+	}
+	
+	public int executeCount(Transaction txn,Query q) throws PersistenceException
+	{
+		_query_params = copy_params(q.getParams());
+		QueryNode root 	   = q.getRootNode();
+		if(!is_cacheable(txn,q))
+			return eval_count(txn,root);
+
+		String real_cache_key 	= "CNT:"+get_the_cache_key(q,_query_params);		
+		String return_type 		= q.getReturnType();
+		QueryCacheManager qcm 	= _env.getQueryCacheManager();
+		Integer c = (Integer)qcm.get(return_type,real_cache_key);
+		if(c != null)
+			return c;
+		long stamp = qcm.stamp(return_type);
+		_deps 	   = new QueryCacheKeys();
+		int s 	   = eval_count(txn,root); 
+		if(!_deps.isUncacheable())
+			qcm.put(return_type,real_cache_key,s,_deps,stamp);
+		return s;
+	}
+
+	/* inside a transaction you have to see your own writes so we only cache
+	 * outside of one. a next results token is a one off. 
+	 */
+	private boolean is_cacheable(Transaction txn,Query q)
+	{
+		return (txn == null &&
+				q.getCacheResults() &&
+				q.getNextResultsToken() == null &&
+				_env.getQueryCacheManager().isCaching(q.getReturnType()));
+	}
+
+	/* EXPANDING REFERENCES */
+	/* the expand paths of the query make a tree of field names which is
+	 * filled a level at a time. a level collects the distinct ids every
+	 * entity on it refers to, does one sorted getByIds per referenced type
+	 * in the transaction the query ran in and stitches the results back in.
+	 * the entities that were filled are the next level. same as
+	 * fillReferenceFields a missing single reference comes back null and a
+	 * missing one in a list stays a light reference.
+	 */
+	private QueryResult expand_references(Transaction txn,Query q,QueryResult result) throws PersistenceException
+	{
+		List<String> paths = q.getExpandPaths();
+		if(paths.isEmpty() || result.size() == 0)
+			return result;
+		expand_node root = new expand_node();
+		for(int i = 0;i < paths.size();i++)
+		{
+			expand_node n = root;
+			String[] names = paths.get(i).split("\\.");
+			for(int j = 0;j < names.length;j++)
+				n = n.child(names[j]);
+		}
+		expand_level(txn,result.getEntities(),root);
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void expand_level(Transaction txn,List<Entity> es,expand_node node) throws PersistenceException
+	{
+		/* collect */
+		Map<String,Set<Long>> ids_by_type = new HashMap<String,Set<Long>>();
+		for(int i = 0;i < es.size();i++)
+		{
+			Entity e = es.get(i);
+			if(e == null)
+				continue;
+			Iterator<String> names = node.children.keySet().iterator();
+			while(names.hasNext())
 			{
-				int direction = (Integer)root.attributes.get(Query.ATT_ORDER_ORDER);
-				do_order_by(result, order_attribute,direction);
-				
+				FieldDefinition f = get_reference_field(e,names.next());
+				Object val 		  = get_reference_value(txn,e,f);
+				if(val == null)
+					continue;
+				if(f.isArray())
+				{
+					List<Entity> refs = (List<Entity>)val;
+					for(int k = 0;k < refs.size();k++)
+						collect_reference(ids_by_type,f,refs.get(k));
+				}
+				else
+					collect_reference(ids_by_type,f,(Entity)val);
 			}
-			if(cached_query)
-				put_cached_results(return_type,real_cache_key, result);
 		}
-		else
+		if(ids_by_type.isEmpty())
+			return;
+
+		/* fetch */
+		Map<String,Map<Long,Entity>> fetched = new HashMap<String,Map<Long,Entity>>();
+		Iterator<String> types = ids_by_type.keySet().iterator();
+		while(types.hasNext())
 		{
-			//System.out.println("!!!!CACHE HIT!!!!! FOR "+real_cache_key);
+			String type   = types.next();
+			Set<Long> set = ids_by_type.get(type);
+			long[] ids 	  = new long[set.size()];
+			int ii = 0;
+			for(Long id:set)
+				ids[ii++] = id;
+			Arrays.sort(ids);
+			fetched.put(type, _env.getPrimaryIndex(type).getByIds(txn, ids));
 		}
-		
-		if(cached_query)
+
+		/* stitch */
+		Map<Entity,Boolean> handed_out 	  = new IdentityHashMap<Entity,Boolean>();
+		Map<String,List<Entity>> filled   = new HashMap<String,List<Entity>>();
+		for(int i = 0;i < es.size();i++)
 		{
-			int from_index 	= q.getOffset();
-			int s 			= result.size();
-			if(from_index > s)
-				return BDBQueryResult.EMPTY_RESULT;
-		
-			int to_index   = from_index + q.getPageSize();//to is exclusive		
-			to_index = (to_index > s )?s :to_index;  
-			List<Entity> return_list = result.getEntities().subList(from_index, to_index);		
-			//TODO: THIS NEEDS TO CLONE DEEP IN MEMEORY IF AT ALL. NOT DEALING WITH REFERENCES AT ALL!! 11/2010
-			//we do this so that cached results are not affected by setting/masking attributes//
-			//we can rid of this maybe when we redo caching strategy
-			for(int i = 0;i < return_list.size();i++)
-				return_list.set(i,return_list.get(i).clone());
-		
-			QueryResult cached_result = new BDBQueryResult(return_list);
-			return cached_result;
+			Entity e = es.get(i);
+			if(e == null)
+				continue;
+			Iterator<String> names = node.children.keySet().iterator();
+			while(names.hasNext())
+			{
+				FieldDefinition f = get_reference_field(e,names.next());
+				Object val 		  = e.getAttribute(f.getName());
+				if(val == null)
+					continue;
+				List<Entity> next = filled.get(f.getName());
+				if(next == null)
+				{
+					next = new ArrayList<Entity>();
+					filled.put(f.getName(), next);
+				}
+				if(f.isArray())
+				{
+					List<Entity> refs 		 = (List<Entity>)val;
+					List<Entity> filled_refs = new ArrayList<Entity>(refs.size());
+					for(int k = 0;k < refs.size();k++)
+					{
+						Entity r  = refs.get(k);
+						Entity r1 = get_filled_reference(fetched,handed_out,f,r);
+						if(r1 != null)
+							next.add(r1);
+						else if(r != null && !is_untyped_reference(f))
+						{
+							r1 = r;
+							logger.error("Data Integrity error: "+r.getType()+" "+r.getId()+
+									" does not exist in db (parent="+e.getType()+" "+e.getId()+" field="+f.getName()+")");
+						}
+						filled_refs.add(r1);
+					}
+					e.getAttributes().put(f.getName(), filled_refs);
+				}
+				else
+				{
+					Entity r1 = get_filled_reference(fetched,handed_out,f,(Entity)val);
+					if(r1 != null)
+						next.add(r1);
+					e.getAttributes().put(f.getName(), r1);
+				}
+			}
 		}
-		else
+
+		Iterator<String> names = node.children.keySet().iterator();
+		while(names.hasNext())
+		{
+			String name 	  = names.next();
+			expand_node child = node.children.get(name);
+			List<Entity> next = filled.get(name);
+			if(!child.children.isEmpty() && next != null)
+				expand_level(txn,next,child);
+		}
+	}
+
+	private FieldDefinition get_reference_field(Entity e,String name) throws PersistenceException
+	{
+		FieldDefinition f = _env.getPrimaryIndex(e.getType()).getEntityDefinition().getField(name);
+		if(f == null || f.getBaseType() != Types.TYPE_REFERENCE)
+			throw new PersistenceException("CANT EXPAND "+name+" ON "+e.getType()+". IT IS EITHER NOT A FIELD OR NOT A REFERENCE FIELD");
+		return f;
+	}
+
+	/* a list kept in an edge table that nobody has looked at yet is read */
+	/* here in the query's transaction instead of by the list on its own */
+	private Object get_reference_value(Transaction txn,Entity e,FieldDefinition f) throws PersistenceException
+	{
+		Object val = e.getAttribute(f.getName());
+		if(!(val instanceof BDBEdgeList) || ((BDBEdgeList)val).isLoaded())
+			return val;
+		BDBEdgeList edges = (BDBEdgeList)val;
+		try{
+			val = edges.getEdgeTable().getRelated(txn, edges.getId(), Entity.UNDEFINED, 0);
+		}catch(DatabaseException dbe)
+		{
+			logger.error("get_reference_value(Transaction, Entity, FieldDefinition)", dbe);
+			throw new PersistenceException("UNABLE TO READ "+e.getType()+"."+f.getName()+" OF "+e.getId());
+		}
+		e.getAttributes().put(f.getName(), val);
+		return val;
+	}
+
+	private static boolean is_untyped_reference(FieldDefinition f)
+	{
+		return f.getReferenceType().equals(FieldDefinition.REF_TYPE_UNTYPED_ENTITY);
+	}
+
+	private static void collect_reference(Map<String,Set<Long>> ids_by_type,FieldDefinition f,Entity r)
+	{
+		if(r == null)
+			return;
+		String type 	= is_untyped_reference(f)?r.getType():f.getReferenceType();
+		Set<Long> ids 	= ids_by_type.get(type);
+		if(ids == null)
+		{
+			ids = new HashSet<Long>();
+			ids_by_type.put(type, ids);
+		}
+		ids.add(r.getId());
+	}
+
+	/* the first reference to an entity gets the fetched instance and every */
+	/* other one gets its own copy */
+	private static Entity get_filled_reference(Map<String,Map<Long,Entity>> fetched,Map<Entity,Boolean> handed_out,FieldDefinition f,Entity r)
+	{
+		if(r == null)
+			return null;
+		String type 	= is_untyped_reference(f)?r.getType():f.getReferenceType();
+		Entity r1 		= fetched.get(type).get(r.getId());
+		if(r1 == null)
+			return null;
+		if(handed_out.put(r1, Boolean.TRUE) != null)
+			r1 = EntityCache.copy(r1);
+		return r1;
+	}
+
+	private static class expand_node
+	{
+		private Map<String,expand_node> children = new LinkedHashMap<String,expand_node>();
+
+		private expand_node child(String name)
 		{
-			if(q.isComplex())
+			expand_node n = children.get(name);
+			if(n == null)
 			{
-				
-				int from_index 	= q.getOffset();
-				int s 			= result.size();
-				if(from_index > s)
-					return BDBQueryResult.EMPTY_RESULT;
-			
-				int to_index   = from_index + q.getPageSize();//to is exclusive		
-				to_index = (to_index > s )?s :to_index;  
-				List<Entity> return_list = result.getEntities().subList(from_index, to_index);		
-				return new BDBQueryResult(return_list);
+				n = new expand_node();
+				children.put(name, n);
 			}
-			else
-				return result;
-	
+			return n;
 		}
-		
 	}
-	
-	public int executeCount(Transaction txn,Query q) throws PersistenceException
+
+	/* QUERY CACHE DEPENDENCIES */
+	/* _deps is null unless the query is going into the cache. deep indexes
+	 * are kept up by another entity type's writes so we dont cache on them.
+	 */
+	private void depend_on_key(IterableIndex idx,DatabaseEntry key)
 	{
-		_query_params = copy_params(q.getParams());
-		String real_cache_key 	= get_the_cache_key(q,_query_params);		
-		String return_type 		= q.getReturnType();
-		Integer c = get_cached_count(return_type,real_cache_key);
-		if(c == null)
-		{		
-			QueryNode root 	   = q.getRootNode();
-			int s = eval_count(txn,root).size(); 
-			put_cached_count(return_type, real_cache_key, s);
-			return s;
+		if(_deps == null || no_dependency(idx))
+			return;
+		_deps.addKey(idx.getName(),IteratorUtil.cloneDatabaseEntry(key));
+	}
+
+	private void depend_on_keys(IterableIndex idx,List<DatabaseEntry> keys)
+	{
+		if(_deps == null || no_dependency(idx))
+			return;
+		for(int i = 0;i < keys.size();i++)
+			_deps.addKey(idx.getName(),IteratorUtil.cloneDatabaseEntry(keys.get(i)));
+	}
+
+	private void depend_on_index(IterableIndex idx)
+	{
+		if(_deps == null || no_dependency(idx))
+			return;
+		_deps.addIndex(idx.getName());
+	}
+
+	private boolean no_dependency(IterableIndex idx)
+	{
+		if(idx instanceof BDBSecondaryIndex && ((BDBSecondaryIndex)idx).isDeepIndex())
+		{
+			_deps.setUncacheable();
+			return true;
 		}
-		else
+		return false;
+	}
+
+	/* the ids on a page and where the next page starts. the entities come
+	 * out of the primary index on every hit so nobody shares an instance
+	 * with the cache and there is nothing to clone.
+	 */
+	private static class cached_page
+	{
+		private long[] ids;
+		private String token;
+
+		private cached_page(QueryResult result)
 		{
-			return c;
+			List<Entity> entities = result.getEntities();
+			int s = 0;
+			ids   = new long[entities.size()];
+			for(int i = 0;i < entities.size();i++)
+			{
+				if(entities.get(i) != null)
+					ids[s++] = entities.get(i).getId();
+			}
+			ids   = IdSetOps.trim(ids,s);
+			token = (String)result.getNextResultsToken();
+		}
+
+		private QueryResult toResult(Transaction txn,BDBPrimaryIndex pidx) throws PersistenceException
+		{
+			Map<Long,Entity> entities = pidx.getByIds(txn,ids);
+			BDBQueryResult result 	  = new BDBQueryResult(ids.length);
+			for(int i = 0;i < ids.length;i++)
+			{
+				Entity e = entities.get(ids[i]);
+				if(e != null)
+					result.add(e);
+			}
+			if(token != null)
+				result.setNextResultsToken(token);
+			return result;
 		}
 	}
 	
@@ -271,29 +545,6 @@ public class QueryExecutor
 			return param.toString();
 	}
 	
-	private QueryResult get_cached_results(String entity_type,String key)
-	{
-		QueryResult r =  (QueryResult)_env.getQueryCacheManager().getQueryCache(entity_type).get(key);
-		return r;
-	}
-	
-	private void put_cached_results(String entity_type,String key,QueryResult result)
-	{
-		_env.getQueryCacheManager().getQueryCache(entity_type).put(key,result);
-	}
-	
-	private Integer get_cached_count(String entity_type,String key)
-	{
-		key = "CNT:"+key;
-		return (Integer)_env.getQueryCacheManager().getQueryCache(entity_type).get(key);
-	}
-	
-	private void put_cached_count(String entity_type,String key,Integer count)
-	{
-		key = "CNT:"+key;
-		_env.getQueryCacheManager().getQueryCache(entity_type).put(key,count);
-	}
-
 	private void do_order_by(QueryResult result,String order_attribute,int direction) throws PersistenceException
 	{
 		int i = 0;
@@ -315,343 +566,541 @@ public class QueryExecutor
 
 	private QueryResult do_intersection(Transaction txn,QueryNode intersection_node) throws PersistenceException
 	{
-		List<QueryResult> intersectees = new ArrayList<QueryResult>();
-		QueryResult qr;
-		int s = intersection_node.children.size();
-		for(int i = 0;i < s;i++)
-		{
-			qr = eval(txn,intersection_node.children.get(i));
-			if(qr.size() == 0)
-				return BDBQueryResult.EMPTY_RESULT;
-			intersectees.add(qr);
-		}
-		
-		ArrayList<Entity> merge = new ArrayList<Entity>(512);
-		/* merge */
-		s = intersectees.size();
-		for(int i = 0; i< s;i++)
-			merge.addAll(intersectees.get(i).getEntities());
-
-		BDBQueryResult inter 		= new BDBQueryResult();
-		EntityIdComparator comp = new EntityIdComparator();
-		long t1 = System.currentTimeMillis();
-		/* sort */
-		Collections.sort(merge, comp);
-		/* intersect */
-		long last_id = -1;
-		s = merge.size();
-		int c = 1;
-		int is = intersectees.size();
-		for(int i = 0;i < s;i++)
-		{
-			Entity e = merge.get(i);
-			long id = e.getId();
-			
-			if(id == last_id)
-				c++;
-			else
-				c = 1;
-			
-			if(c == is)
-				inter.add(e);
-			last_id = id;
-		}
-		long t2 = System.currentTimeMillis() - t1;
-		//System.out.println("do_fast_intersection(Query) -  FAST INTERSECT " + t2);
-		return inter;
+		long[] ids = do_id_intersection(txn,intersection_node);
+		return get_entities_by_ids(txn,_env.getPrimaryIndex(_query.getReturnType()),ids,0,ids.length);
 	}
 	
-	private static final List<Long> EMPTY_LONG_LIST = new ArrayList<Long>(0);
-	private List<Long> count_intersection(Transaction txn,QueryNode intersection_node) throws PersistenceException
+	/* complex queries are worked out on ids. entities are only decoded for
+	 * the page we hand back, unless we have to sort on an attribute first.
+	 */
+	private QueryResult do_complex_query(Transaction txn,Query q,QueryNode root) throws PersistenceException
 	{
-		List<List<Long>> intersectees = new ArrayList<List<Long>>();
-		List<Long> qr;
-		int s = intersection_node.children.size();
-		for(int i = 0;i < s;i++)
+		long[] ids 				= eval_ids(txn,root.children.get(0));
+		BDBPrimaryIndex pidx 	= _env.getPrimaryIndex(q.getReturnType());
+		String order_attribute 	= (String)root.attributes.get(Query.ATT_ORDER_FIELDNAME);
+		int from_index 			= q.getOffset();
+		if(order_attribute == null)
 		{
-			qr = eval_count(txn,intersection_node.children.get(i));
-			if(qr.size() == 0)
-				return EMPTY_LONG_LIST;
-			intersectees.add(qr);
+			/* ids come out sorted so the page is just a slice */
+			if(from_index >= ids.length)
+				return BDBQueryResult.EMPTY_RESULT;
+			return get_entities_by_ids(txn,pidx,ids,from_index,page_end(from_index,q.getPageSize(),ids.length));
 		}
-		
-		List<Long> merge = new ArrayList<Long>(512);
-		/* merge */
-		s = intersectees.size();
-		for(int i = 0; i< s;i++)
-			merge.addAll(intersectees.get(i));
-
-		List<Long> inter 		= new ArrayList<Long>();
-		long t1 = System.currentTimeMillis();
-		/* sort */
-		Collections.sort(merge);
-		/* intersect */
-		long last_id = -1;
-		s = merge.size();
-		int c = 1;
-		int is = intersectees.size();
-		for(int i = 0;i < s;i++)
+
+		int direction = (Integer)root.attributes.get(Query.ATT_ORDER_ORDER);
+		int k 		  = page_end(from_index,q.getPageSize(),ids.length);
+		if(from_index >= k)
+			return BDBQueryResult.EMPTY_RESULT;
+		if(k < ids.length)
 		{
-			long id = merge.get(i);
-			if(id == last_id)
-				c++;
-			else
-				c = 1;
-			if(c == is)
-				inter.add(id);
-			last_id = id;
+			QueryResult result = do_index_ordered(txn,pidx,ids,order_attribute,direction,from_index,k);
+			if(result != null)
+				return result;
+			return do_top_k(txn,pidx,ids,order_attribute,direction,from_index,k);
 		}
-		
-		long t2 = System.currentTimeMillis() - t1;
-		//System.out.println("count_fast_intersection(Query) -  FAST INTERSECT " + t2);
-		return inter;
+
+		QueryResult result = get_entities_by_ids(txn,pidx,ids,0,ids.length);
+		do_order_by(result,order_attribute,direction);
+		int s = result.size();
+		if(from_index >= s)
+			return BDBQueryResult.EMPTY_RESULT;
+		return new BDBQueryResult(result.getEntities().subList(from_index,page_end(from_index,q.getPageSize(),s)));
 	}
-	
-	private QueryResult do_union(Transaction txn,QueryNode union_node) throws PersistenceException
+
+	/* an order field with its own index, or leading a multi field index, can
+	 * be read in order straight off that index. we walk it and keep the rows
+	 * whose pkey is in ids until the page is full. rows with the same value go
+	 * out in pkey order and nulls go first either way so the page is exactly
+	 * what the sort would give. if we read as many rows as ids has and the
+	 * page is still not full the matches are too sparse for this to pay off.
+	 * we stop and return null and the caller does a top k instead.
+	 */
+	private QueryResult do_index_ordered(Transaction txn,BDBPrimaryIndex pidx,long[] ids,String order_attribute,int direction,int from_index,int k) throws PersistenceException
 	{
-		List<QueryResult> unionees = new ArrayList<QueryResult>();
-		QueryResult qr;
-		int s = union_node.children.size();
-		for(int i = 0;i < s;i++)
+		BDBSecondaryIndex idx = get_ordering_index(pidx,order_attribute);
+		if(idx == null)
+			return null;
+		FieldDefinition field = idx.getFields().get(0);
+		ordered_page page 	  = new ordered_page(ids,field,k);
+		IndexIterator iter 	  = null;
+		try{
+			DatabaseEntry min = FieldBinding.minValAsEntry(field.getBaseType());
+			iter = new GTEIndexIterator();
+			iter.open(txn,idx,IteratorUtil.cloneDatabaseEntry(min));
+			/* ascending walks the whole index. descending only takes the nulls from the front */
+			while(iter.isValid())
+			{
+				Object v = page.value(iter.currentKey());
+				if(direction == Query.DESC && v != null)
+					break;
+				if(!page.add(v,iter.currentData()))
+					break;
+				iter.next();
+			}
+			iter.close();
+			iter = null;
+			if(direction == Query.DESC && !page.isDone())
+			{
+				/* one byte past the max value so a multi field key that leads with it is in range */
+				DatabaseEntry max = FieldBinding.maxValAsEntry(field.getBaseType());
+				byte[] top 		  = new byte[max.getSize() + 1];
+				System.arraycopy(max.getData(), max.getOffset(), top, 0, max.getSize());
+				top[top.length-1] = (byte)0xff;
+				iter = new BETWEEN_DESC_INCLUSIVEIndexIterator();
+				iter.open(txn,idx,new DatabaseEntry(top),IteratorUtil.cloneDatabaseEntry(min));
+				while(iter.isValid())
+				{
+					Object v = page.value(iter.currentKey());
+					if(v == null)
+						break;
+					if(!page.add(v,iter.currentData()))
+						break;
+					iter.next();
+				}
+			}
+		}catch(DatabaseException dbe)
 		{
-			qr = eval(txn,union_node.children.get(i));
-			if(qr.size() == 0)
-				continue;
-			unionees.add(qr);
-		}
-		
-		TreeMap<Long,Entity> tmap = new TreeMap<Long,Entity>();
-		s = unionees.size();
-		for(int i = 0; i < s;i++)
-		{
-			qr = unionees.get(i);
-			List<Entity> ee = qr.getEntities();
-			int ss = qr.size();
-			for(int ii = 0; ii < ss;ii++)
+			dbe.printStackTrace();
+			throw new PersistenceException("DATABASE EXCEPTION OCCURRED WHEN EXECUTING ITERATOR. SEE LOGS");
+		}finally
+		{
+			try{
+				if(iter != null)
+					iter.close();
+			}catch(DatabaseException de)
 			{
-				Entity e = ee.get(ii);
-				tmap.put(e.getId(),e);
+				de.printStackTrace();
+				throw new PersistenceException("UNABLE TO CLOSE ITERATOR!!!");
 			}
 		}
-		 return new BDBQueryResult(tmap.values());	
+
+		long[] page_ids = page.finish();
+		if(page_ids == null)
+			return null;
+		if(from_index >= page_ids.length)
+			return BDBQueryResult.EMPTY_RESULT;
+		return get_entities_by_ids(txn,pidx,page_ids,from_index,page_ids.length);
 	}
-	
-	private List<Long> count_union(Transaction txn,QueryNode union_node) throws PersistenceException
+
+	/* index keys have to sort the way EntityComparatorFactory does. lower
+	 * cased strings, arrays, references, blobs and deep indexes do not.
+	 */
+	private BDBSecondaryIndex get_ordering_index(BDBPrimaryIndex pidx,String order_attribute) throws PersistenceException
 	{
-		List<List<Long>> unionees = new ArrayList<List<Long>>();
-		List<Long> qr;
-		int s = union_node.children.size();
-		for(int i = 0;i < s;i++)
+		BDBSecondaryIndex leading = null;
+		for(BDBSecondaryIndex idx:_env.getSecondaryIndexes(pidx.getName()))
 		{
-			qr = eval_count(txn,union_node.children.get(i));
-			if(qr.size() == 0)
+			if(idx.isDeepIndex())
 				continue;
-			unionees.add(qr);
-		}
-		
-		//tree map preserves order//
-		TreeMap<Long,Long> tmap = new TreeMap<Long,Long>();
-		s = unionees.size();
-		for(int i = 0; i < s;i++)
-		{
-			qr = unionees.get(i);
-			int ss = qr.size();
-			for(int ii = 0; ii < ss;ii++)
-			{
-				long id = qr.get(ii);
-				tmap.put(id,id);
-			}
+			FieldDefinition f = idx.getFields().get(0);
+			if(!f.getName().equals(order_attribute) || f.isArray() || !is_index_orderable(f.getBaseType()))
+				continue;
+			if(idx instanceof SimpleSingleFieldIndex && !((SimpleSingleFieldIndex)idx).isLowerCase())
+				return idx;
+			if(idx instanceof SimpleMultiFieldIndex && leading == null)
+				leading = idx;
 		}
-		 return new ArrayList<Long>(tmap.values());	
+		return leading;
 	}
-	
-	private QueryResult do_iter(Transaction txn,QueryNode iter_node) throws PersistenceException
-	{
-		// TODO make query cache happen in pages and remove special logic for cache results!!!!!
-		/*boolean b = (Boolean) _query.getRootNode().attributes.get(Query.ATT_CACHE_RESULTS);*/
-		
-		String return_type 		= (String)iter_node.attributes.get(Query.ATT_RETURN_TYPE);
-		String index_name  		= (String)iter_node.attributes.get(Query.ATT_INDEX_NAME);
-		int page_size      		= /*b ||*/ _query.isComplex() ? Query.ALL_RESULTS : _query.getPageSize();
-		int offset		   		= /*b ||*/ _query.isComplex() ? 0 : _query.getOffset();
-		int iter_op	   	   		= (Integer)iter_node.attributes.get(Query.ATT_ITER_OP);
-		BDBPrimaryIndex p_idx 	= _env.getPrimaryIndex(return_type);
-		if(index_name.equals(Query.PRIMARY_IDX))
-			return do_primary_index_iter(txn,p_idx,iter_node,iter_op,offset,page_size);
-		else
-			return do_secondary_index_iter(txn,p_idx,index_name,iter_node,iter_op,offset,page_size);
 
+	private static boolean is_index_orderable(int type)
+	{
+		switch(type)
+		{
+			case Types.TYPE_BOOLEAN:
+			case Types.TYPE_INT:
+			case Types.TYPE_LONG:
+			case Types.TYPE_FLOAT:
+			case Types.TYPE_DOUBLE:
+			case Types.TYPE_DATE:
+			case Types.TYPE_STRING:
+			case Types.TYPE_TEXT:
+				return true;
+			default:
+				return false;
+		}
 	}
-	
-	private QueryResult do_primary_index_iter(Transaction txn,BDBPrimaryIndex pidx,QueryNode iter_node,int iter_op,int offset,int page_size) throws PersistenceException
+
+	/* collects the page for do_index_ordered. matching pkeys of one sort
+	 * value are held back until the value changes and then go out sorted.
+	 */
+	private static class ordered_page
 	{
-		IndexIterator iter;
-		
-		if((iter_op & Query.SET_ITER_TYPE) == Query.SET_ITER_TYPE)
-			throw new PersistenceException("SET QUERY OPS ARE INVALID ON PRIMIARY INDEXES. ONLY PREDICATE AND BETWEEN OPS ARE SUPPORTED.");
-		
-		if((iter_op & Query.PREDICATE_ITER_TYPE) == Query.PREDICATE_ITER_TYPE)
+		private long[] 			ids;
+		private FieldDefinition field;
+		private long[] 			page;
+		private int				size;
+		private long[] 			group;
+		private int				group_size;
+		private Object 			group_value;
+		private int				rows;
+		private boolean			over_budget;
+
+		private ordered_page(long[] ids,FieldDefinition field,int k)
 		{
-			DatabaseEntry param = new DatabaseEntry();
-			Object user_param = _query_params[(Integer)iter_node.attributes.get(Query.ATT_PREDICATE_ITER_USER_PARAM)];
-			
-			if(user_param == Query.VAL_MIN)
-				LongBinding.longToEntry(Long.MIN_VALUE, param);
-			else if(user_param == Query.VAL_MAX)
-				LongBinding.longToEntry(Long.MAX_VALUE, param);
-			else if(user_param == Query.VAL_GLOB)
+			this.ids   = ids;
+			this.field = field;
+			page 	   = new long[k];
+			group 	   = new long[16];
+		}
+
+		/* the order field leads the key */
+		private Object value(DatabaseEntry key)
+		{
+			TupleInput ti = new TupleInput(key.getData(), key.getOffset(), key.getSize());
+			return FieldBinding.readValueFromTuple(ti, field);
+		}
+
+		/* false once the page is full or we are over budget */
+		private boolean add(Object v,DatabaseEntry data)
+		{
+			if(++rows > ids.length)
 			{
-				LongBinding.longToEntry(Long.MIN_VALUE, param);
-				iter_op = Query.GTE;
+				over_budget = true;
+				return false;
 			}
-			else
+			if(group_size > 0 && !(v == null ? group_value == null : v.equals(group_value)))
 			{
-				long id_param;
-				if(user_param.getClass() == Integer.class)
-					id_param = (long)(Integer)user_param;
-				else if(user_param.getClass() == Long.class)
-					id_param = (Long)user_param;
-				else
-					throw new PersistenceException("PARAM FOR PRIMARY INDEX QUERY MUST BE A LONG.");
-				
-				LongBinding.longToEntry(id_param, param);
+				flush();
+				if(size == page.length)
+					return false;
 			}
-			
-			switch(iter_op)
+			long id = LongBinding.entryToLong(data);
+			if(Arrays.binarySearch(ids, id) >= 0)
 			{
-			case Query.EQ:		
-				iter 	= new EQIndexIterator();
-				break;
-			case Query.GT:
-				iter 	= new GTIndexIterator();
-				break;			
-			case Query.GTE:
-				iter 	= new GTEIndexIterator();
-				break;			
-			case Query.LT:
-				iter 	= new LTIndexIterator();
-				break;			
-			case Query.LTE:
-				iter 	= new LTIndexIterator();
-				break;	
-			case Query.STARTSWITH:
-				throw new PersistenceException("STARTSWITH IS INVALID PREDICATE ON PRIMARY INDEX");
-			default:
-				throw new PersistenceException("UNKNOWN PREDICATE ITER TYPE");
+				if(group_size == group.length)
+					group = IdSetOps.grow(group);
+				group[group_size++] = id;
+				group_value 		= v;
 			}
-		
-			//open the iterator and return it//
-			try{
-				iter.open(txn,pidx, param);
-			}catch(DatabaseException dbe)
-			{
-				try{
-					iter.close();
-				}catch(DatabaseException dbe2)
-				{
-					dbe2.printStackTrace();
-				}
-				dbe.printStackTrace();
-				throw new PersistenceException("FAILED TO OPEN ITERATOR!!!");
+			return true;
+		}
 
-			}
+		private boolean isDone()
+		{
+			return over_budget || size == page.length;
 		}
-		else if((iter_op & Query.BETWEEN_ITER_TYPE) == Query.BETWEEN_ITER_TYPE)
+
+		private void flush()
 		{
-			DatabaseEntry param 	  = new DatabaseEntry();
-			DatabaseEntry range_param = new DatabaseEntry();
-			Object user_param  			= _query_params[(Integer)iter_node.attributes.get(Query.ATT_RANGE_ITER_USER_BOTTOM_PARAM)];
-			Object user_range_param		= _query_params[(Integer)iter_node.attributes.get(Query.ATT_RANGE_ITER_USER_TOP_PARAM)];
+			Arrays.sort(group, 0, group_size);
+			for(int i = 0;i < group_size && size < page.length;i++)
+				page[size++] = group[i];
+			group_size = 0;
+		}
 
-			if(user_param == Query.VAL_GLOB || user_range_param == Query.VAL_GLOB)
-				throw new PersistenceException("GLOB PARAMS ARE UNSUPPORTED FOR RANGE QUERIES. USE VAL_MIN AND/OR VAL_MAX.");
-			
-			if(user_param == Query.VAL_MIN)
-				LongBinding.longToEntry(Long.MIN_VALUE, param);
-			else if(user_param == Query.VAL_MAX)
-				LongBinding.longToEntry(Long.MAX_VALUE, param);
-			else
-			{
-				long id_param;
-				if(user_param.getClass() == Integer.class)
-					id_param = (long)(Integer)user_param;
-				else if(user_param.getClass() == Long.class)
-					id_param = (Long)user_param;
-				else
-					throw new PersistenceException("PARAM FOR PRIMARY INDEX QUERY MUST BE A LONG.");
+		/* null if we ran over budget */
+		private long[] finish()
+		{
+			if(over_budget)
+				return null;
+			flush();
+			return IdSetOps.trim(page, size);
+		}
+	}
 
-				LongBinding.longToEntry(id_param, param);
-			}
-			
-			if(user_range_param == Query.VAL_MIN)
-				LongBinding.longToEntry(Long.MIN_VALUE, range_param);
-			else if(user_range_param == Query.VAL_MAX)
-				LongBinding.longToEntry(Long.MAX_VALUE, range_param);
-			else
+	/* the page is a small part of the result. we only decode the sort field
+	 * of every row, a chunk at a time, and keep the best k in a heap. whole
+	 * entities are only fetched for the rows that made it onto the page.
+	 */
+	private static final int TOP_K_CHUNK_SIZE = 1024;
+	private QueryResult do_top_k(Transaction txn,BDBPrimaryIndex pidx,long[] ids,String order_attribute,int direction,int from_index,int k) throws PersistenceException
+	{
+		Comparator<Entity> comp = EntityComparatorFactory.getComparator(pidx.getEntityDefinition(),order_attribute,direction);
+		TopKSelector top 		= new TopKSelector(comp,k);
+		for(int i = 0;i < ids.length;i += TOP_K_CHUNK_SIZE)
+		{
+			int n 		  = Math.min(TOP_K_CHUNK_SIZE,ids.length - i);
+			long[] chunk  = new long[n];
+			System.arraycopy(ids, i, chunk, 0, n);
+			Map<Long,Entity> partials = pidx.getPartialByIds(txn,chunk,order_attribute);
+			for(int j = 0;j < n;j++)
 			{
-				long id_param;
-				if(user_range_param.getClass() == Integer.class)
-					id_param = (long)(Integer)user_range_param;
-				else if(user_param.getClass() == Long.class)
-					id_param = (Long)user_range_param;
-				else
-					throw new PersistenceException("PARAM FOR PRIMARY INDEX QUERY MUST BE A LONG.");
-				LongBinding.longToEntry(id_param, range_param);
+				Entity e = partials.get(chunk[j]);
+				if(e != null)
+					top.offer(e);
 			}
+		}
+		long[] winners = top.ids();
+		if(from_index >= winners.length)
+			return BDBQueryResult.EMPTY_RESULT;
+		return get_entities_by_ids(txn,pidx,winners,from_index,winners.length);
+	}
 
-			switch(iter_op)
+	private static int page_end(int from_index,int page_size,int size)
+	{
+		long to_index = (long)from_index + page_size;//to is exclusive
+		return (to_index > size)?size:(int)to_index;
+	}
+
+	private QueryResult get_entities_by_ids(Transaction txn,BDBPrimaryIndex pidx,long[] ids,int from_index,int to_index) throws PersistenceException
+	{
+		long[] page_ids = new long[to_index - from_index];
+		System.arraycopy(ids, from_index, page_ids, 0, page_ids.length);
+		Map<Long,Entity> entities = pidx.getByIds(txn,page_ids);
+		BDBQueryResult result 	  = new BDBQueryResult(page_ids.length);
+		for(int i = 0;i < page_ids.length;i++)
+		{
+			Entity e = entities.get(page_ids[i]);
+			if(e != null)
+				result.add(e);
+		}
+		return result;
+	}
+
+	/* every node evaluates to a sorted array of distinct ids */
+	private long[] eval_ids(Transaction txn,QueryNode node) throws PersistenceException
+	{
+		switch(node.type)
+		{
+			case Query.NODE_TYPE_INTERSECTION:
+				return do_id_intersection(txn,node);
+			case Query.NODE_TYPE_UNION:
+				return do_id_union(txn,node);
+			case Query.NODE_TYPE_ITER:
+				return do_id_iter(txn,node);
+			default:
+				throw new PersistenceException("UNKNOWN NODE TYPE IN QUERY: "+node.type);
+		}
+	}
+
+	private long[] do_id_intersection(Transaction txn,QueryNode intersection_node) throws PersistenceException
+	{
+		List<IndexIterator> open_iters = new ArrayList<IndexIterator>();
+		try{
+			IdSetOps.IdStream[] streams = plan_intersection(txn,intersection_node,open_iters);
+			if(streams == null)
+				return IdSetOps.EMPTY;
+			return IdSetOps.intersect(streams);
+		}catch(DatabaseException dbe)
+		{
+			dbe.printStackTrace();
+			throw new PersistenceException("DATABASE EXCEPTION OCCURRED WHEN EXECUTING ITERATOR. SEE LOGS");
+		}finally
+		{
+			close_iterators(open_iters);
+		}
+	}
+
+	private static void close_iterators(List<IndexIterator> open_iters)
+	{
+		for(int i = 0;i < open_iters.size();i++)
+		{
+			try{
+				open_iters.get(i).close();
+			}catch(DatabaseException de)
 			{
-				case Query.BETWEEN_INCLUSIVE_ASC:		
-					iter 	= new BETWEEN_ASC_INCLUSIVEIndexIterator();
-					break;
-				case Query.BETWEEN_INCLUSIVE_DESC:
-					iter 	= new BETWEEN_DESC_INCLUSIVEIndexIterator();
-					break;			
-				case Query.BETWEEN_EXCLUSIVE_ASC:
-					iter 	= new BETWEEN_ASC_EXCLUSIVEIndexIterator();
-					break;			
-				case Query.BETWEEN_EXCLUSIVE_DESC:
-					iter 	= new BETWEEN_DESC_EXCLUSIVEIndexIterator();
-					break;			
-				case Query.BETWEEN_START_INCLUSIVE_ASC:
-					iter 	= new BETWEEN_ASC_START_INCLUSIVEIndexIterator();
-					break;	
-				case Query.BETWEEN_START_INCLUSIVE_DESC:
-					iter 	= new BETWEEN_DESC_START_INCLUSIVEIndexIterator();
-					break;
-				case Query.BETWEEN_END_INCLUSIVE_ASC:
-					iter 	= new BETWEEN_ASC_END_INCLUSIVEIndexIterator();
-					break;	
-				case Query.BETWEEN_END_INCLUSIVE_DESC:
-					iter 	= new BETWEEN_DESC_END_INCLUSIVEIndexIterator();
-					break;	
-				default:
-					throw new PersistenceException("UNKNOWN RANGE ITER TYPE");
+				de.printStackTrace();
 			}
-			//open the iterator and return it//
-			try{
-				iter.open(txn,pidx, param,range_param);
-			}catch(DatabaseException dbe)
+		}
+	}
+
+	/* children with a cursor stream are opened first. their sizes are known
+	 * without reading them so an empty one ends the intersection before we
+	 * read any other child in full. the rest are read in, narrowest kind of
+	 * node first, and the join is driven from the smallest stream.
+	 * returns null if the intersection is empty.
+	 */
+	private IdSetOps.IdStream[] plan_intersection(Transaction txn,QueryNode intersection_node,List<IndexIterator> open_iters) throws PersistenceException,DatabaseException
+	{
+		int s = intersection_node.children.size();
+		IdSetOps.IdStream[] streams = new IdSetOps.IdStream[s];
+		List<QueryNode> deferred 	= new ArrayList<QueryNode>(s);
+		int n = 0;
+		for(int i = 0;i < s;i++)
+		{
+			QueryNode child = intersection_node.children.get(i);
+			IdSetOps.IdStream stream = open_id_stream(txn,child,open_iters);
+			if(stream == null)
 			{
-				try{
-					iter.close();
-				}catch(DatabaseException dbe2)
-				{
-					dbe2.printStackTrace();
-				}
-				dbe.printStackTrace();
-				throw new PersistenceException("FAILED TO OPEN ITERATOR!!!");
+				deferred.add(child);
+				continue;
+			}
+			if(stream.current() == IdSetOps.END)
+				return null;
+			streams[n++] = stream;
+		}
+		for(int pass = 0;pass < 2;pass++)
+		{
+			for(int i = 0;i < deferred.size();i++)
+			{
+				QueryNode child = deferred.get(i);
+				/* unions only widen. leave them for last */
+				if((child.type == Query.NODE_TYPE_UNION) != (pass == 1))
+					continue;
+				long[] ids = eval_ids(txn,child);
+				if(ids.length == 0)
+					return null;
+				streams[n++] = new IdSetOps.ArrayIdStream(ids);
 			}
 		}
+		IdSetOps.sortByEstimate(streams);
+		return streams;
+	}
+
+	/* an EQ on a normal index or a plain SETCONTAINSALL is already a run of
+	 * pkeys in sorted order. we leave its cursor open and leap on it instead
+	 * of reading the run. returns null if the node has to be evaluated the
+	 * long way.
+	 */
+	private IdSetOps.IdStream open_id_stream(Transaction txn,QueryNode node,List<IndexIterator> open_iters) throws PersistenceException,DatabaseException
+	{
+		if(node.type != Query.NODE_TYPE_ITER)
+			return null;
+		int iter_op = (Integer)node.attributes.get(Query.ATT_ITER_OP);
+		if(iter_op != Query.EQ && iter_op != Query.SET_CONTAINS_ALL)
+			return null;
+		String index_name = (String)node.attributes.get(Query.ATT_INDEX_NAME);
+		if(index_name.equals(Query.PRIMARY_IDX))
+			return null;
+		BDBPrimaryIndex p_idx = _env.getPrimaryIndex((String)node.attributes.get(Query.ATT_RETURN_TYPE));
+		IterableIndex idx 	  = _env.getSecondaryIndex(p_idx.getName(), index_name);
+		if(iter_op == Query.EQ && !idx.isNormalIndex())
+			return null;
+		IndexIterator iter = setup_secondary_index_iterator(txn,idx,iter_op,node);
+		open_iters.add(iter);
+		if(iter instanceof EQIndexIterator)
+			return new IdSetOps.CursorIdStream(iter);
+		if(iter instanceof SETCONTAINSALLIndexIterator && !((SetIndexIterator)iter).isGlobbing())
+			return new IdSetOps.CursorIdStream(iter);
+		/* a globbed multi field EQ is really a range and a globbed set
+		 * walks several keys. neither is sorted by pkey */
+		return new IdSetOps.ArrayIdStream(drain_ids(iter,false));
+	}
+
+	private long[] do_id_union(Transaction txn,QueryNode union_node) throws PersistenceException
+	{
+		int s = union_node.children.size();
+		long[][] unionees = new long[s][];
+		for(int i = 0;i < s;i++)
+			unionees[i] = eval_ids(txn,union_node.children.get(i));
+		return IdSetOps.union(unionees);
+	}
+
+	private long[] do_id_iter(Transaction txn,QueryNode iter_node) throws PersistenceException
+	{
+		String return_type 		= (String)iter_node.attributes.get(Query.ATT_RETURN_TYPE);
+		String index_name  		= (String)iter_node.attributes.get(Query.ATT_INDEX_NAME);
+		int iter_op	   	   		= (Integer)iter_node.attributes.get(Query.ATT_ITER_OP);
+		BDBPrimaryIndex p_idx 	= _env.getPrimaryIndex(return_type);
+		boolean primary 		= index_name.equals(Query.PRIMARY_IDX);
+		IndexIterator iter;
+		if(primary)
+			iter = setup_primary_index_iterator(txn,p_idx,iter_node,iter_op);
 		else
+			iter = setup_secondary_index_iterator(txn,_env.getSecondaryIndex(p_idx.getName(), index_name),iter_op,iter_node);
+		if(iter == null)
+			return IdSetOps.EMPTY;
+
+		try{
+			return drain_ids(iter,primary);
+		}catch(DatabaseException dbe)
 		{
-			throw new PersistenceException("DEFINTELY SHOULD NOT BE HERE. NOT A PREDICATE OR BETWEEN OR SET ITER TYPE.");
+			dbe.printStackTrace();
+			throw new PersistenceException("DATABASE EXCEPTION OCCURRED WHEN EXECUTING ITERATOR. SEE LOGS");
+		}finally
+		{
+			try{
+				iter.close();
+			}catch(DatabaseException de)
+			{
+				de.printStackTrace();
+				throw new PersistenceException("UNABLE TO CLOSE ITERATOR!!!");
+			}
+		}
+	}
+
+	/* pkey is the key of a primary index row and the leading 8 bytes of
+	 * the data of a secondary index row
+	 */
+	private static long[] drain_ids(IndexIterator iter,boolean primary) throws DatabaseException
+	{
+		long[] ids 		= new long[64];
+		int size 		= 0;
+		boolean sorted 	= true;
+		long last_id 	= Long.MIN_VALUE;
+		while(iter.isValid())
+		{
+			long id = LongBinding.entryToLong(primary?iter.currentKey():iter.currentData());
+			if(size == ids.length)
+				ids = IdSetOps.grow(ids);
+			if(id < last_id)
+				sorted = false;
+			ids[size++] = last_id = id;
+			iter.next();
 		}
+		size = IdSetOps.sortDistinct(ids, size, sorted);
+		return IdSetOps.trim(ids, size);
+	}
+	
+	private int count_intersection(Transaction txn,QueryNode intersection_node) throws PersistenceException
+	{
+		List<IndexIterator> open_iters = new ArrayList<IndexIterator>();
+		try{
+			IdSetOps.IdStream[] streams = plan_intersection(txn,intersection_node,open_iters);
+			if(streams == null)
+				return 0;
+			return IdSetOps.intersectCount(streams);
+		}catch(DatabaseException dbe)
+		{
+			dbe.printStackTrace();
+			throw new PersistenceException("DATABASE EXCEPTION OCCURRED WHEN EXECUTING ITERATOR. SEE LOGS");
+		}finally
+		{
+			close_iterators(open_iters);
+		}
+	}
+	
+	private QueryResult do_union(Transaction txn,QueryNode union_node) throws PersistenceException
+	{
+		long[] ids = do_id_union(txn,union_node);
+		return get_entities_by_ids(txn,_env.getPrimaryIndex(_query.getReturnType()),ids,0,ids.length);
+	}
+	
+	private int count_union(Transaction txn,QueryNode union_node) throws PersistenceException
+	{
+		int s = union_node.children.size();
+		long[][] unionees = new long[s][];
+		for(int i = 0;i < s;i++)
+			unionees[i] = eval_ids(txn,union_node.children.get(i));
+		return IdSetOps.unionCount(unionees);
+	}
+	
+	private QueryResult do_iter(Transaction txn,QueryNode iter_node) throws PersistenceException
+	{
+		// TODO make query cache happen in pages and remove special logic for cache results!!!!!
+		/*boolean b = (Boolean) _query.getRootNode().attributes.get(Query.ATT_CACHE_RESULTS);*/
+		
+		String return_type 		= (String)iter_node.attributes.get(Query.ATT_RETURN_TYPE);
+		String index_name  		= (String)iter_node.attributes.get(Query.ATT_INDEX_NAME);
+		int page_size      		= /*b ||*/ _query.isComplex() ? Query.ALL_RESULTS : _query.getPageSize();
+		int offset		   		= /*b ||*/ _query.isComplex() ? 0 : _query.getOffset();
+		int iter_op	   	   		= (Integer)iter_node.attributes.get(Query.ATT_ITER_OP);
+		BDBPrimaryIndex p_idx 	= _env.getPrimaryIndex(return_type);
+		/* a next results token replaces the offset. we seek to where the last page ended */
+		BDBQueryToken resume_token = null;
+		if(!_query.isComplex() && _query.getNextResultsToken() != null)
+		{
+			resume_token = get_resume_token(return_type,index_name,iter_op);
+			offset		 = 0;
+		}
+		if(index_name.equals(Query.PRIMARY_IDX))
+			return do_primary_index_iter(txn,p_idx,iter_node,iter_op,offset,page_size,resume_token);
+		else
+			return do_secondary_index_iter(txn,p_idx,index_name,iter_node,iter_op,offset,page_size,resume_token);
+
+	}
+	
+	private QueryResult do_primary_index_iter(Transaction txn,BDBPrimaryIndex pidx,QueryNode iter_node,int iter_op,int offset,int page_size,BDBQueryToken resume_token) throws PersistenceException
+	{
+		IndexIterator iter = setup_primary_index_iterator(txn,pidx,iter_node,iter_op);
 		//take offset and pagesize into account here
 		BDBQueryResult results = new BDBQueryResult();
 		int added = 0;
 		int processed = 0;
 		try{
+			if(resume_token != null)
+				resume_iterator(pidx,iter,resume_token);
 			while(iter.isValid())
 			{
 				//suck in up to offset
@@ -666,6 +1115,7 @@ public class QueryExecutor
 				//if(++added == page_size)
 				if((processed - offset) == page_size)
 				{
+					set_next_results_token(results,iter_node,iter,processed,resume_token);
 					break;
 				}
 				iter.next();
@@ -689,42 +1139,21 @@ public class QueryExecutor
 		}
 	}
 	
-	private QueryResult do_secondary_index_iter(Transaction txn,BDBPrimaryIndex p_idx,String index_name,QueryNode iter_node,int iter_op,int offset,int page_size) throws PersistenceException
+	private QueryResult do_secondary_index_iter(Transaction txn,BDBPrimaryIndex p_idx,String index_name,QueryNode iter_node,int iter_op,int offset,int page_size,BDBQueryToken resume_token) throws PersistenceException
 	{
 		
-		IterableIndex idx;
-		IndexIterator iter;
-		idx = _env.getSecondaryIndex(p_idx.getName(), index_name);
-		
-		boolean ismulti = idx.isMultiFieldIndex();
-		if((iter_op & Query.PREDICATE_ITER_TYPE) == Query.PREDICATE_ITER_TYPE)
-		{
-			iter = setup_predicate_iterator(txn,idx,ismulti,iter_op,iter_node);
-		}
-		else if((iter_op & Query.BETWEEN_ITER_TYPE) == Query.BETWEEN_ITER_TYPE)
-		{
-			iter = setup_range_iterator(txn,idx,ismulti,iter_op,iter_node);
-		}
-		else if((iter_op & Query.SET_ITER_TYPE) == Query.SET_ITER_TYPE)
-		{
-			iter = setup_set_iterator(txn,idx,ismulti,iter_op,iter_node);
-		}
-		else if((iter_op & Query.FREETEXT_ITER_TYPE) == Query.FREETEXT_ITER_TYPE)
-		{
-			iter = setup_freetext_iterator(txn,idx,ismulti,iter_op,iter_node);
-			if(iter == null)//this can happen if the person passes in all stop words//there is no real way to make an iterator for nothing so we pass back null//
-				return BDBQueryResult.EMPTY_RESULT;
-		}
-		else
-		{
-			throw new PersistenceException("UNKNOWN ITERATOR TYPE 0x"+Integer.toHexString(iter_op));
-		}
+		IterableIndex idx  = _env.getSecondaryIndex(p_idx.getName(), index_name);
+		IndexIterator iter = setup_secondary_index_iterator(txn,idx,iter_op,iter_node);
+		if(iter == null)//this can happen if the person passes in all stop words//there is no real way to make an iterator for nothing so we pass back null//
+			return BDBQueryResult.EMPTY_RESULT;
 		
 		//take offset and pagesize into account here
 		BDBQueryResult results = new BDBQueryResult();
 		int added = 0;
 		int processed = 0;
 		try{
+			if(resume_token != null)
+				resume_iterator(idx,iter,resume_token);
 			while(iter.isValid())
 			{
 				if(++processed <= offset)
@@ -743,6 +1172,7 @@ public class QueryExecutor
 				results.add(e);
 				if((processed-offset) == page_size)
 				{
+					set_next_results_token(results,iter_node,iter,processed,resume_token);
 					break;
 				}
 				iter.next();
@@ -766,28 +1196,136 @@ public class QueryExecutor
 			}
 		}		
 	}
-	private List<Long> count_iter(Transaction txn,QueryNode iter_node) throws PersistenceException
+	private BDBQueryToken get_resume_token(String return_type,String index_name,int iter_op) throws PersistenceException
+	{
+		BDBQueryToken token;
+		try{
+			token = BDBQueryToken.fromString((String)_query.getNextResultsToken());
+		}catch(Exception e)
+		{
+			throw new PersistenceException("BAD NEXT RESULTS TOKEN "+_query.getNextResultsToken());
+		}
+		if(token.getIteratorState() == null ||
+		   !return_type.equals(token.getEntityType()) ||
+		   !index_name.equals(token.getIndexName()) ||
+		   iter_op != token.getQueryOp())
+			throw new PersistenceException("NEXT RESULTS TOKEN DOES NOT BELONG TO THIS QUERY.");
+		return token;
+	}
+
+	/* only predicate and range iterators know how to seek back to a row.
+	 * set and freetext queries still page with offset.
+	 */
+	private static boolean is_resumable(IndexIterator iter)
+	{
+		return (iter instanceof PredicateIndexIterator || iter instanceof RangeIndexIterator);
+	}
+
+	private void resume_iterator(IterableIndex idx,IndexIterator iter,BDBQueryToken resume_token) throws PersistenceException,DatabaseException
+	{
+		if(!is_resumable(iter))
+			throw new PersistenceException("NEXT RESULTS TOKEN IS NOT SUPPORTED FOR "+Query.queryOpToString(resume_token.getQueryOp())+" QUERIES. USE OFFSET.");
+		if(iter.isValid())
+			iter.resume(idx,resume_token.getIteratorState());
+	}
+
+	/* called with the iterator on the last row of a full page. we step once
+	 * more so we only hand out a token when there really is another page.
+	 */
+	private void set_next_results_token(BDBQueryResult results,QueryNode iter_node,IndexIterator iter,int processed,BDBQueryToken resume_token) throws DatabaseException
+	{
+		if(!is_resumable(iter))
+			return;
+		String state = (String)iter.encode();
+		iter.next();
+		if(!iter.isValid())
+			return;
+		BDBQueryToken token = new BDBQueryToken();
+		token.setEntityType((String)iter_node.attributes.get(Query.ATT_RETURN_TYPE));
+		token.setIndexName((String)iter_node.attributes.get(Query.ATT_INDEX_NAME));
+		token.setQueryOp((Integer)iter_node.attributes.get(Query.ATT_ITER_OP));
+		token.setPageSize(_query.getPageSize());
+		token.setOffset(((resume_token == null)?0:resume_token.getOffset()) + processed);
+		token.setIteratorState(state);
+		results.setNextResultsToken(token);
+	}
+
+	/* a single key EQ is the dup count of the key. the primary and normal
+	 * indexes have one row per entity so anything else on them is a row count.
+	 * set and freetext rows can repeat a pkey so those we dedupe.
+	 */
+	private int count_iter(Transaction txn,QueryNode iter_node) throws PersistenceException
 	{
-		//want to take offset and pagesize into account//
 		String return_type 		= (String)iter_node.attributes.get(Query.ATT_RETURN_TYPE);
 		String index_name  		= (String)iter_node.attributes.get(Query.ATT_INDEX_NAME);
-		int page_size      		= Query.ALL_RESULTS;  //(Integer)iter_node.attributes.get(Query.ATT_PAGE_SIZE);;
-		int offset		   		= 0;//(Integer)iter_node.attributes.get(Query.ATT_OFFSET);
 		int iter_op	   	   		= (Integer)iter_node.attributes.get(Query.ATT_ITER_OP);
 		BDBPrimaryIndex p_idx 	= _env.getPrimaryIndex(return_type);
-		if(index_name.equals(Query.PRIMARY_IDX))
-			return do_primary_index_count(txn,p_idx,iter_node,iter_op,offset,page_size);
+		boolean primary 		= index_name.equals(Query.PRIMARY_IDX);
+		boolean one_row_per_id  = primary;
+		IndexIterator iter;
+		if(primary)
+			iter = setup_primary_index_iterator(txn,p_idx,iter_node,iter_op);
 		else
-			return do_secondary_index_count(txn,p_idx,index_name,iter_node,iter_op,offset,page_size);
+		{
+			IterableIndex idx = _env.getSecondaryIndex(p_idx.getName(), index_name);
+			one_row_per_id 	  = idx.isNormalIndex();
+			iter = setup_secondary_index_iterator(txn,idx,iter_op,iter_node);
+		}
+		if(iter == null)
+			return 0;
 
+		try{
+			if(!one_row_per_id)
+				return drain_ids(iter,primary).length;
+			if(iter instanceof EQIndexIterator)
+				return ((EQIndexIterator)iter).count();
+			int c = 0;
+			while(iter.isValid())
+			{
+				c++;
+				iter.next();
+			}
+			return c;
+		}catch(DatabaseException dbe)
+		{
+			dbe.printStackTrace();
+			throw new PersistenceException("DATABASE EXCEPTION OCCURRED WHEN EXECUTING ITERATOR. SEE LOGS");
+		}finally
+		{
+			try{
+				iter.close();
+			}catch(DatabaseException de)
+			{
+				de.printStackTrace();
+				throw new PersistenceException("UNABLE TO CLOSE ITERATOR!!!");
+			}
+		}
+	}
+	
+	/* returns null for a freetext query that is all stop words */
+	private IndexIterator setup_secondary_index_iterator(Transaction txn,IterableIndex idx,int iter_op,QueryNode iter_node) throws PersistenceException
+	{
+		boolean ismulti = idx.isMultiFieldIndex();
+		if((iter_op & Query.PREDICATE_ITER_TYPE) == Query.PREDICATE_ITER_TYPE)
+			return setup_predicate_iterator(txn,idx,ismulti,iter_op,iter_node);
+		else if((iter_op & Query.BETWEEN_ITER_TYPE) == Query.BETWEEN_ITER_TYPE)
+			return setup_range_iterator(txn,idx,ismulti,iter_op,iter_node);
+		else if((iter_op & Query.SET_ITER_TYPE) == Query.SET_ITER_TYPE)
+			return setup_set_iterator(txn,idx,ismulti,iter_op,iter_node);
+		else if((iter_op & Query.FREETEXT_ITER_TYPE) == Query.FREETEXT_ITER_TYPE)
+			return setup_freetext_iterator(txn,idx,ismulti,iter_op,iter_node);
+		else
+			throw new PersistenceException("UNKNOWN ITERATOR TYPE 0x"+Integer.toHexString(iter_op));
 	}
 	
-	private List<Long> do_primary_index_count(Transaction txn,BDBPrimaryIndex pidx,QueryNode iter_node,int iter_op,int offset,int page_size) throws PersistenceException
+	private IndexIterator setup_primary_index_iterator(Transaction txn,BDBPrimaryIndex pidx,QueryNode iter_node,int iter_op) throws PersistenceException
 	{
 		IndexIterator iter;
 		
 		if((iter_op & Query.SET_ITER_TYPE) == Query.SET_ITER_TYPE)
 			throw new PersistenceException("SET QUERY OPS ARE INVALID ON PRIMIARY INDEXES. ONLY PREDICATE AND BETWEEN OPS ARE SUPPORTED.");
+		if(_deps != null)
+			_deps.setPrimary();
 		
 		if((iter_op & Query.PREDICATE_ITER_TYPE) == Query.PREDICATE_ITER_TYPE)
 		{
@@ -889,10 +1427,10 @@ public class QueryExecutor
 			else
 			{
 				long id_param;
-				if(user_param.getClass() == Integer.class)
-					id_param = (long)(Integer)user_param;
-				else if(user_param.getClass() == Long.class)
-					id_param = (Long)user_param;
+				if(user_range_param.getClass() == Integer.class)
+					id_param = (long)(Integer)user_range_param;
+				else if(user_range_param.getClass() == Long.class)
+					id_param = (Long)user_range_param;
 				else
 					throw new PersistenceException("PARAM FOR PRIMARY INDEX QUERY MUST BE A LONG.");
 				LongBinding.longToEntry(id_param, range_param);
@@ -946,98 +1484,7 @@ public class QueryExecutor
 		{
 			throw new PersistenceException("DEFINTELY SHOULD NOT BE HERE. NOT A PREDICATE OR BETWEEN OR SET ITER TYPE.");
 		}
-		//take offset and pagesize into account here
-		//take offset and pagesize into account here
-		List<Long> ids = new ArrayList<Long>(512);
-		int added = 0;
-		try{
-			while(iter.isValid())
-			{
-				//Entity e = p_idx.getByPrimaryKey(data);
-				ids.add(LongBinding.entryToLong(iter.currentKey()));
-				if(++added == page_size)
-					break;
-				iter.next();
-			}
-			iter.close();//i dont think we need this because of the finally//
-			return ids;
-		}catch(DatabaseException dbe)
-		{
-			dbe.printStackTrace();
-			throw new PersistenceException("DATABASE EXCEPTION OCCURRED WHEN EXECUTING ITERATOR. SEE LOGS");
-
-		}finally
-		{
-			try{
-				iter.close();
-			}catch(DatabaseException de)
-			{
-				de.printStackTrace();
-				throw new PersistenceException("UNABLE TO CLOSE ITERATOR!!!");
-			}
-		}	
-	}
-	
-	private List<Long> do_secondary_index_count(Transaction txn,BDBPrimaryIndex p_idx,String index_name,QueryNode iter_node,int iter_op,int offset,int page_size) throws PersistenceException
-	{
-		
-		IterableIndex idx;
-		IndexIterator iter;
-		idx = _env.getSecondaryIndex(p_idx.getName(), index_name);
-		
-		boolean ismulti = idx.isMultiFieldIndex();
-		if((iter_op & Query.PREDICATE_ITER_TYPE) == Query.PREDICATE_ITER_TYPE)
-		{
-			iter = setup_predicate_iterator(txn,idx,ismulti,iter_op,iter_node);
-		}
-		else if((iter_op & Query.BETWEEN_ITER_TYPE) == Query.BETWEEN_ITER_TYPE)
-		{
-			iter = setup_range_iterator(txn,idx,ismulti,iter_op,iter_node);
-		}
-		else if((iter_op & Query.SET_ITER_TYPE) == Query.SET_ITER_TYPE)
-		{
-			iter = setup_set_iterator(txn,idx,ismulti,iter_op,iter_node);
-		}
-		else if((iter_op & Query.FREETEXT_ITER_TYPE) == Query.FREETEXT_ITER_TYPE)
-		{
-			iter = setup_freetext_iterator(txn,idx,ismulti,iter_op,iter_node);
-			if(iter == null)//this can happen if the person passes in all stop words//there is no real way to make an iterator for nothing so we pass back null//
-				return EMPTY_LONG_LIST;
-		}
-		else
-		{
-			throw new PersistenceException("UNKNOWN ITERATOR TYPE 0x"+Integer.toHexString(iter_op));
-		}
-		
-		//take offset and pagesize into account here
-		List<Long> ids = new ArrayList<Long>(512);
-		int added = 0;
-		try{
-			while(iter.isValid())
-			{
-				//Entity e = p_idx.getByPrimaryKey(data);
-				ids.add(LongBinding.entryToLong(iter.currentData()));
-				if(++added == page_size)
-					break;
-				iter.next();
-			}
-			iter.close();//i dont think we need this because of the finally//
-			return ids;
-		}catch(DatabaseException dbe)
-		{
-			dbe.printStackTrace();
-			throw new PersistenceException("DATABASE EXCEPTION OCCURRED WHEN EXECUTING ITERATOR. SEE LOGS");
-
-		}finally
-		{
-			try{
-				iter.close();
-			}catch(DatabaseException de)
-			{
-				de.printStackTrace();
-				throw new PersistenceException("UNABLE TO CLOSE ITERATOR!!!");
-			}
-		}	
+		return iter;
 	}
 	
 	private IndexIterator setup_predicate_iterator(Transaction txn,IterableIndex idx,boolean is_multi,int iter_type,QueryNode iter_node) throws PersistenceException
@@ -1084,6 +1531,10 @@ public class QueryExecutor
 			}
 		}
 		
+		if(iter_type == Query.EQ)
+			depend_on_key(idx,param);
+		else
+			depend_on_index(idx);
 		PredicateIndexIterator iter = null;
 
 		switch(iter_type)
@@ -1253,6 +1704,7 @@ public class QueryExecutor
 			}
 		}
 		
+		depend_on_index(idx);
 		RangeIndexIterator iter = null;
 
 		switch(iter_type)
@@ -1353,6 +1805,10 @@ public class QueryExecutor
 				throw new PersistenceException("UNABLE TO GENERATE QUERY KEY FOR QUERY VAL");
 			}
 		}
+		if(globbing)
+			depend_on_index(idx);
+		else
+			depend_on_keys(idx,list_param);
 		SetIndexIterator iter = null;
 		switch(iter_type)
 		{
@@ -1387,6 +1843,7 @@ public class QueryExecutor
 	{
 		if(!idx.isFreeTextIndex())
 			throw new PersistenceException("UNSUPPORTED OPERATION FOR INDEX."+idx.getName()+"IS A FREETEXT INDEX AND ONLY SUPPORTS FREETEXT OPERATIONS.");
+		depend_on_index(idx);
 		List<Object> user_list_param = (List<Object>)_query_params[(Integer)iter_node.attributes.get(Query.ATT_SET_ITER_USER_PARAM)];
 		//right here is where we would catch classcastexception if we wanted to accept single values to set ops
 		
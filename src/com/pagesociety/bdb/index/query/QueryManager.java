@@ -21,14 +21,14 @@ public class QueryManager
 	{
 		_config = config;
 		_environment = _config.getContext().getEnvironment();
-		_cache_manager = new QueryCacheManager(_config.getEntityCacheInitialSize(),
-													  _config.getEntityCacheLoadFactor(),
-													  _config.getEntityCacheMaxSize());
+		_cache_manager = new QueryCacheManager(_config.getEntityCacheMaxSize(),
+													  _config.getCachedEntityTypes());
 		System.out.println("CACHE MANGER IS "+_cache_manager);
 		_query_exec_env = new QueryExecutionEnvironment(this,
 														_config.getPrimaryIndexMap(),
 														_config.getSecondaryIndexMap(),
-														_cache_manager);
+														_cache_manager,
+														_config.getEntityLocker());
 	}
 	
 	public void init()
@@ -76,6 +76,17 @@ public class QueryManager
 	{
 		_cache_manager.clearQueryCache(entity_name);
 	}
+
+	public boolean isCaching(String entity_name)
+	{
+		return _cache_manager.isCaching(entity_name);
+	}
+
+	/* only the cached queries that read something in changes go */
+	public void invalidateCache(String entity_name,QueryCacheKeys changes)
+	{
+		_cache_manager.invalidate(entity_name,changes);
+	}
 	
 	
 	public void calculateCacheDependencies(EntityDefinition def)
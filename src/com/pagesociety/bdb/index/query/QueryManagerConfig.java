@@ -1,19 +1,21 @@
 package com.pagesociety.bdb.index.query;
 
 import java.util.Map;
+import java.util.Set;
 
 import com.pagesociety.bdb.BDBPrimaryIndex;
 import com.pagesociety.bdb.BDBSecondaryIndex;
 import com.pagesociety.bdb.BDBStore;
+import com.pagesociety.bdb.locker.EntityLocker;
 
 public class QueryManagerConfig 
 {
 	private BDBStore _context;
 	private Map<String,BDBPrimaryIndex> _primary_index_map;
 	private Map<String,Map<String,BDBSecondaryIndex>> _secondary_index_map;
-	private int   _entity_cache_initial_size;
-	private float _entity_cache_load_factor;
 	private int   _entity_cache_max_size;
+	private Set<String> _cached_entity_types;
+	private EntityLocker _entity_locker;
 	
 	public void setPrimaryIndexMap(Map<String,BDBPrimaryIndex> primary_index_map)
 	{
@@ -35,35 +37,38 @@ public class QueryManagerConfig
 		return _secondary_index_map;
 	}
 	
-	public void setEntityCacheInitialSize(int size)
+	public void setEntityCacheMaxSize(int ms)
 	{
-		_entity_cache_initial_size = size;
+		_entity_cache_max_size = ms;
 	}
 	
-	public int getEntityCacheInitialSize()
+	public int getEntityCacheMaxSize()
 	{
-		return _entity_cache_initial_size;
+		return _entity_cache_max_size;
 	}
 	
-	public void setEntityCacheLoadFactor(float f)
+	/* entity types whose query results are cached. null means all of them */
+	public void setCachedEntityTypes(Set<String> entity_types)
 	{
-		_entity_cache_load_factor = f;
+		_cached_entity_types = entity_types;
 	}
 	
-	public float getEntityCacheLoadFactor()
+	public Set<String> getCachedEntityTypes()
 	{
-		return _entity_cache_load_factor;
+		return _cached_entity_types;
 	}
-	public void setEntityCacheMaxSize(int ms)
+
+	/* queries take the reader lock on every type they look up. may be null */
+	public void setEntityLocker(EntityLocker entity_locker)
 	{
-		_entity_cache_max_size = ms;
+		_entity_locker = entity_locker;
 	}
 	
-	public int getEntityCacheMaxSize()
+	public EntityLocker getEntityLocker()
 	{
-		return _entity_cache_max_size;
+		return _entity_locker;
 	}
-	
+
 	public void setContext(BDBStore context)
 	{
 		_context = context;
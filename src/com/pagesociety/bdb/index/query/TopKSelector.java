@@ -0,0 +1,118 @@
+package com.pagesociety.bdb.index.query;
+
+import java.util.Comparator;
+
+import com.pagesociety.persistence.Entity;
+
+/* keeps the first k entities in comparator order out of however many are
+ * offered. the worst one we are holding sits on top of a heap so a row that
+ * does not make the cut costs one compare. ties go to the smaller id, which
+ * is what a stable sort over id ordered results gives you.
+ */
+public class TopKSelector
+{
+	private Comparator<Entity> comp;
+	private int		 	k;
+	private Entity[] 	heap;
+	private int		 	size;
+
+	public TopKSelector(Comparator<Entity> comp,int k)
+	{
+		this.comp = comp;
+		this.k	  = k;
+		heap 	  = new Entity[(k < 64)?k:64];
+		size 	  = 0;
+	}
+
+	public void offer(Entity e)
+	{
+		if(k == 0)
+			return;
+		if(size < k)
+		{
+			if(size == heap.length)
+				grow();
+			heap[size] = e;
+			sift_up(size++);
+			return;
+		}
+		if(!worse(heap[0], e))
+			return;
+		heap[0] = e;
+		sift_down(0);
+	}
+
+	/* best first */
+	public long[] ids()
+	{
+		Entity[] sorted = new Entity[size];
+		int n = size;
+		/* pop the worst into the back until the heap is empty */
+		while(size > 0)
+		{
+			Entity worst = heap[0];
+			heap[0] 	 = heap[--size];
+			sift_down(0);
+			sorted[size] = worst;
+		}
+		long[] ids = new long[n];
+		for(int i = 0;i < n;i++)
+			ids[i] = sorted[i].getId();
+		return ids;
+	}
+
+	private boolean worse(Entity a,Entity b)
+	{
+		int c = comp.compare(a, b);
+		if(c != 0)
+			return c > 0;
+		return a.getId() > b.getId();
+	}
+
+	private void sift_up(int i)
+	{
+		while(i > 0)
+		{
+			int parent = (i - 1)/2;
+			if(!worse(heap[i], heap[parent]))
+				return;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void sift_down(int i)
+	{
+		while(true)
+		{
+			int l = 2*i + 1;
+			if(l >= size)
+				return;
+			int worst = l;
+			int r = l + 1;
+			if(r < size && worse(heap[r], heap[l]))
+				worst = r;
+			if(!worse(heap[worst], heap[i]))
+				return;
+			swap(i, worst);
+			i = worst;
+		}
+	}
+
+	private void swap(int i,int j)
+	{
+		Entity t = heap[i];
+		heap[i]  = heap[j];
+		heap[j]  = t;
+	}
+
+	private void grow()
+	{
+		int n = heap.length * 2;
+		if(n > k)
+			n = k;
+		Entity[] bigger = new Entity[n];
+		System.arraycopy(heap, 0, bigger, 0, size);
+		heap = bigger;
+	}
+}
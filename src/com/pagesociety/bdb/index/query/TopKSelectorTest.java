@@ -0,0 +1,88 @@
+package com.pagesociety.bdb.index.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import com.pagesociety.persistence.Entity;
+
+/* checks TopKSelector against sorting everything. the values come out of a
+ * small range so there are lots of ties and the ids are offered in random
+ * order, so the smaller id has to win a tie no matter which one came first.
+ * k runs from 0 to past the number offered.
+ *
+ * java com.pagesociety.bdb.index.query.TopKSelectorTest [trials] [seed]
+ */
+public class TopKSelectorTest
+{
+	public static void main(String[] args) throws Exception
+	{
+		int trials 	= (args.length > 0)?Integer.parseInt(args[0]):2000;
+		long seed 	= (args.length > 1)?Long.parseLong(args[1]):System.currentTimeMillis();
+		System.out.println("TopKSelectorTest TRIALS: "+trials+" SEED: "+seed);
+		Random r = new Random(seed);
+		for(int t = 0;t < trials;t++)
+		{
+			int n 	= r.nextInt(300);
+			int k 	= r.nextInt(n + 5);
+			check_top_k(r, n, k, 1 + r.nextInt(r.nextBoolean()?4:1000), r.nextBoolean());
+		}
+		System.out.println("TopKSelectorTest OK");
+	}
+
+	private static void check_top_k(Random r,int n,int k,int range,boolean desc)
+	{
+		List<Entity> es = new ArrayList<Entity>(n);
+		for(int i = 0;i < n;i++)
+		{
+			Entity e = new Entity("Thing");
+			e.setId(i + 1);
+			e.setAttribute("v", r.nextInt(range));
+			es.add(e);
+		}
+		Collections.shuffle(es, r);
+
+		final Comparator<Entity> comp = by_v(desc);
+		TopKSelector selector = new TopKSelector(comp, k);
+		for(int i = 0;i < es.size();i++)
+			selector.offer(es.get(i));
+		long[] got = selector.ids();
+
+		/* what a stable sort over id ordered results gives */
+		List<Entity> sorted = new ArrayList<Entity>(es);
+		Collections.sort(sorted, new Comparator<Entity>()
+		{
+			public int compare(Entity a,Entity b)
+			{
+				int c = comp.compare(a, b);
+				if(c != 0)
+					return c;
+				return (a.getId() < b.getId())?-1:((a.getId() == b.getId())?0:1);
+			}
+		});
+		int expected = Math.min(k, n);
+		check(got.length == expected, "N "+n+" K "+k+" GAVE "+got.length+" IDS EXPECTED "+expected);
+		for(int i = 0;i < expected;i++)
+			check(got[i] == sorted.get(i).getId(), "N "+n+" K "+k+" RANGE "+range+" DESC "+desc+" GAVE "+got[i]+" AT "+i+" EXPECTED "+sorted.get(i).getId());
+	}
+
+	private static Comparator<Entity> by_v(final boolean desc)
+	{
+		return new Comparator<Entity>()
+		{
+			public int compare(Entity a,Entity b)
+			{
+				int c = ((Integer)a.getAttribute("v")).compareTo((Integer)b.getAttribute("v"));
+				return desc?-c:c;
+			}
+		};
+	}
+
+	private static void check(boolean ok,String message)
+	{
+		if(!ok)
+			throw new RuntimeException("TopKSelectorTest FAILED: "+message);
+	}
+}
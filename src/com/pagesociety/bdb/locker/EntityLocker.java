@@ -0,0 +1,272 @@
+package com.pagesociety.bdb.locker;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* the store locker plus a lock per entity type.
+ *
+ * app threads still go through the store locker. inside it they pick up a
+ * reader or writer lock on every entity type they touch as they touch it and
+ * hold all of them until their outermost exitAppThread. a thread that is
+ * already holding a type lock is not made to wait behind a queued schema
+ * change on another type. it would be waiting on something that is waiting on
+ * it.
+ *
+ * schema changes on one type take an entity locker lock on just that type
+ * inside the app side of the store locker. with readers allowed it only keeps
+ * writers of the type out, which is what an index backfill needs. without
+ * readers it has the type to itself. schema changes that reach into other
+ * types still take the whole store with enterLockerThread.
+ */
+public class EntityLocker implements Locker
+{
+	private Locker _store_locker;
+	private ConcurrentHashMap<String,entity_lock> _entity_locks = new ConcurrentHashMap<String, entity_lock>();
+
+	private ThreadLocal<app_thread> _app_thread = new ThreadLocal<app_thread>()
+	{
+		protected app_thread initialValue()
+		{
+			return new app_thread();
+		}
+	};
+
+	public EntityLocker(Locker store_locker)
+	{
+		_store_locker = store_locker;
+	}
+
+	public void init(Map<String, Object> config)
+	{
+		_store_locker.init(config);
+	}
+
+	public Locker getStoreLocker()
+	{
+		return _store_locker;
+	}
+
+	public void enterAppThread()
+	{
+		app_thread t = _app_thread.get();
+		if(t.depth++ == 0)
+			_store_locker.enterAppThread();
+	}
+
+	public void exitAppThread()
+	{
+		app_thread t = _app_thread.get();
+		if(--t.depth > 0)
+			return;
+		t.release();
+		_store_locker.exitAppThread();
+	}
+
+	public void enterLockerThread()
+	{
+		_store_locker.enterLockerThread();
+	}
+
+	public void exitLockerThread()
+	{
+		_store_locker.exitLockerThread();
+	}
+
+	/* the calling app thread is about to read entities of this type */
+	public void enterEntityReader(String entity_type)
+	{
+		enter_entity(entity_type,entity_lock.READER);
+	}
+
+	/* the calling app thread is about to write entities of this type. call it
+	 * before the first write so nobody building an index on the type is
+	 * waiting on our database locks while we wait on them.
+	 */
+	public void enterEntityWriter(String entity_type)
+	{
+		enter_entity(entity_type,entity_lock.WRITER);
+	}
+
+	/* schema change on one type. allow_readers keeps only writers of the type
+	 * out. otherwise every app thread that touches the type is kept out.
+	 */
+	public void enterEntityLockerThread(String entity_type,boolean allow_readers)
+	{
+		enterAppThread();
+		entity_lock l = lock_for(entity_type);
+		if(allow_readers)
+			l.enter_builder();
+		else
+			l.enter_schema();
+		_app_thread.get().locker_locks++;
+	}
+
+	public void exitEntityLockerThread(String entity_type)
+	{
+		lock_for(entity_type).exit_locker_thread();
+		_app_thread.get().locker_locks--;
+		exitAppThread();
+	}
+
+	private void enter_entity(String entity_type,int mode)
+	{
+		if(entity_type == null)
+			return;
+		app_thread t = _app_thread.get();
+		/* not inside the store locker. bootstrap or the store locker thread */
+		if(t.depth == 0)
+			return;
+		entity_lock l = lock_for(entity_type);
+		Integer held  = t.held.get(l);
+		int h 		  = (held == null)?0:held.intValue();
+		if((h & mode) != 0)
+			return;
+		if(l.is_locker_thread(Thread.currentThread()))
+			return;
+		boolean holds_locks = !t.held.isEmpty() || t.locker_locks > 0;
+		if(mode == entity_lock.READER)
+			l.enter_reader(holds_locks);
+		else
+			l.enter_writer(holds_locks);
+		t.held.put(l,h | mode);
+	}
+
+	private entity_lock lock_for(String entity_type)
+	{
+		entity_lock l = _entity_locks.get(entity_type);
+		if(l != null)
+			return l;
+		l = new entity_lock();
+		entity_lock existing = _entity_locks.putIfAbsent(entity_type,l);
+		return (existing == null)?l:existing;
+	}
+
+	public String toString()
+	{
+		return "EntityLocker "+_store_locker.getClass().getName()+" entity locks: "+_entity_locks.size();
+	}
+
+	private static class app_thread
+	{
+		private int depth;
+		private int locker_locks;
+		private Map<entity_lock,Integer> held = new HashMap<entity_lock, Integer>();
+
+		private void release()
+		{
+			Iterator<Map.Entry<entity_lock,Integer>> it = held.entrySet().iterator();
+			while(it.hasNext())
+			{
+				Map.Entry<entity_lock,Integer> e = it.next();
+				int h = e.getValue().intValue();
+				if((h & entity_lock.READER) != 0)
+					e.getKey().exit_reader();
+				if((h & entity_lock.WRITER) != 0)
+					e.getKey().exit_writer();
+			}
+			held.clear();
+		}
+	}
+
+	/* readers get along with everyone but a schema thread. writers get along
+	 * with readers and writers. a builder lets readers in but not writers and
+	 * a schema thread is alone. queued builders and schema threads hold back
+	 * new app threads unless they are already holding a type lock.
+	 */
+	private static class entity_lock
+	{
+		private static final int READER = 0x01;
+		private static final int WRITER = 0x02;
+
+		private int 	readers;
+		private int 	writers;
+		private int 	waiting_builders;
+		private int 	waiting_schema_threads;
+		private Thread 	builder;
+		private Thread 	schema_thread;
+		private int 	locker_depth;
+
+		private synchronized void enter_reader(boolean holds_locks)
+		{
+			while(schema_thread != null || (!holds_locks && waiting_schema_threads > 0))
+				await();
+			readers++;
+		}
+
+		private synchronized void exit_reader()
+		{
+			if(--readers == 0)
+				notifyAll();
+		}
+
+		private synchronized void enter_writer(boolean holds_locks)
+		{
+			while(schema_thread != null || builder != null ||
+					(!holds_locks && (waiting_schema_threads > 0 || waiting_builders > 0)))
+				await();
+			writers++;
+		}
+
+		private synchronized void exit_writer()
+		{
+			if(--writers == 0)
+				notifyAll();
+		}
+
+		private synchronized void enter_builder()
+		{
+			Thread me = Thread.currentThread();
+			if(builder == me || schema_thread == me)
+			{
+				locker_depth++;
+				return;
+			}
+			waiting_builders++;
+			while(schema_thread != null || builder != null || writers > 0)
+				await();
+			waiting_builders--;
+			builder 	 = me;
+			locker_depth = 1;
+		}
+
+		private synchronized void enter_schema()
+		{
+			Thread me = Thread.currentThread();
+			if(schema_thread == me)
+			{
+				locker_depth++;
+				return;
+			}
+			waiting_schema_threads++;
+			while(schema_thread != null || builder != null || writers > 0 || readers > 0)
+				await();
+			waiting_schema_threads--;
+			schema_thread = me;
+			locker_depth  = 1;
+		}
+
+		private synchronized void exit_locker_thread()
+		{
+			if(--locker_depth > 0)
+				return;
+			builder 	  = null;
+			schema_thread = null;
+			notifyAll();
+		}
+
+		private synchronized boolean is_locker_thread(Thread t)
+		{
+			return builder == t || schema_thread == t;
+		}
+
+		private void await()
+		{
+			try {
+				wait();
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.pagesociety.bdb.locker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* app threads hammer enterAppThread/exitAppThread around a little bit of
+ * work, the way every get/save/query in BDBStore does. optionally one admin
+ * thread takes the locker lock every so often like a checkpoint would.
+ * prints app entries per second for each locker at each thread count.
+ *
+ * java com.pagesociety.bdb.locker.LockerBenchmark [max_threads] [millis_per_run] [admin_interval_millis]
+ * admin_interval_millis of 0 leaves the admin thread out.
+ */
+public class LockerBenchmark
+{
+	private static final int WORK = 64;
+	private static volatile long sink;
+
+	public static void main(String[] args) throws Exception
+	{
+		int max_threads 	= (args.length > 0)?Integer.parseInt(args[0]):Runtime.getRuntime().availableProcessors() * 2;
+		long millis 		= (args.length > 1)?Long.parseLong(args[1]):2000;
+		long admin_interval = (args.length > 2)?Long.parseLong(args[2]):0;
+
+		System.out.println("CPUS: "+Runtime.getRuntime().availableProcessors()+" MILLIS PER RUN: "+millis+" ADMIN INTERVAL: "+admin_interval);
+		System.out.println("THREADS\tAdminLocker\tJavaConcurrencyReentrantReadWriteLocker\tStripedLocker");
+		for(int n = 1;n <= max_threads;n *= 2)
+		{
+			StringBuilder line = new StringBuilder();
+			line.append(n);
+			line.append('\t').append(run(new AdminLocker(),n,millis,admin_interval));
+			line.append('\t').append(run(new JavaConcurrencyReentrantReadWriteLocker(),n,millis,admin_interval));
+			line.append('\t').append(run(new StripedLocker(),n,millis,admin_interval));
+			System.out.println(line);
+		}
+	}
+
+	/* returns app entries per second */
+	private static long run(final Locker locker,int num_threads,long millis,final long admin_interval) throws Exception
+	{
+		locker.init(null);
+		final AtomicBoolean done 	= new AtomicBoolean(false);
+		final AtomicLong entries 	= new AtomicLong(0);
+		final CountDownLatch start 	= new CountDownLatch(1);
+		Thread[] threads 			= new Thread[num_threads];
+		for(int i = 0;i < num_threads;i++)
+		{
+			threads[i] = new Thread()
+			{
+				public void run()
+				{
+					try{
+						start.await();
+					}catch(InterruptedException ie)
+					{
+						return;
+					}
+					long n = 0;
+					long x = 0;
+					while(!done.get())
+					{
+						locker.enterAppThread();
+						try{
+							for(int w = 0;w < WORK;w++)
+								x += w ^ n;
+						}finally
+						{
+							locker.exitAppThread();
+						}
+						n++;
+					}
+					sink = x;
+					entries.addAndGet(n);
+				}
+			};
+			threads[i].start();
+		}
+
+		Thread admin = null;
+		if(admin_interval > 0)
+		{
+			admin = new Thread()
+			{
+				public void run()
+				{
+					while(!done.get())
+					{
+						try{
+							Thread.sleep(admin_interval);
+						}catch(InterruptedException ie)
+						{
+							return;
+						}
+						locker.enterLockerThread();
+						locker.exitLockerThread();
+					}
+				}
+			};
+			admin.start();
+		}
+
+		long t1 = System.currentTimeMillis();
+		start.countDown();
+		Thread.sleep(millis);
+		done.set(true);
+		for(int i = 0;i < num_threads;i++)
+			threads[i].join();
+		long elapsed = System.currentTimeMillis() - t1;
+		if(admin != null)
+		{
+			admin.interrupt();
+			admin.join();
+		}
+		return (entries.get() * 1000) / elapsed;
+	}
+}
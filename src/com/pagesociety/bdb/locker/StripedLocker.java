@@ -0,0 +1,164 @@
+package com.pagesociety.bdb.locker;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* same rules as AdminLocker. any number of app threads or one admin thread,
+ * and once an admin thread is waiting no new app threads get in. the
+ * difference is the app path. AdminLocker takes one shared monitor twice
+ * and does a notifyAll on every call. here an app thread bumps a counter in
+ * a stripe picked by its thread id and reads one volatile. app threads on
+ * different stripes never write the same cache line.
+ *
+ * an admin thread raises _admin_requests and then waits for the sum of the
+ * stripes to drain to zero. an app thread raises its stripe and then checks
+ * _admin_requests. both are volatile so at least one of them sees the
+ * other. if the app thread loses it backs out and waits on the monitor with
+ * the admins.
+ *
+ * app entry is reentrant. a thread that is already in does not wait on an
+ * admin, it would be waiting on itself.
+ */
+public class StripedLocker implements Locker
+{
+	/* 16 longs is 128 bytes. keeps two stripes off one cache line */
+	private static final int PAD 		 = 16;
+	private static final int MAX_STRIPES = 64;
+
+	private AtomicLongArray _readers;
+	private int 			_num_stripes;
+	private AtomicInteger	_admin_requests = new AtomicInteger(0);
+	private Object			_mutex 			= new Object();
+	private boolean			_admin_thread_is_active = false;
+
+	private ThreadLocal<app_thread> _app_thread = new ThreadLocal<app_thread>()
+	{
+		protected app_thread initialValue()
+		{
+			return new app_thread(Thread.currentThread().getId());
+		}
+	};
+
+	public StripedLocker()
+	{
+		init(null);
+	}
+
+	public void init(Map<String, Object> config)
+	{
+		int n = 1;
+		while(n < MAX_STRIPES && n < Runtime.getRuntime().availableProcessors() * 2)
+			n <<= 1;
+		_num_stripes = n;
+		_readers 	 = new AtomicLongArray(n * PAD);
+	}
+
+	public void enterAppThread()
+	{
+		app_thread t = _app_thread.get();
+		if(t.depth++ > 0)
+			return;
+		int slot = t.stripe * PAD;
+		while(true)
+		{
+			if(_admin_requests.get() == 0)
+			{
+				_readers.incrementAndGet(slot);
+				if(_admin_requests.get() == 0)
+					return;
+				/* an admin came in under us. get out of its way */
+				_readers.decrementAndGet(slot);
+				wake_admin();
+			}
+			wait_for_admins();
+		}
+	}
+
+	public void exitAppThread()
+	{
+		app_thread t = _app_thread.get();
+		if(--t.depth > 0)
+			return;
+		_readers.decrementAndGet(t.stripe * PAD);
+		if(_admin_requests.get() != 0)
+			wake_admin();
+	}
+
+	public void enterLockerThread()
+	{
+		synchronized(_mutex)
+		{
+			_admin_requests.incrementAndGet();
+			while(_admin_thread_is_active)
+			{
+				try {
+					_mutex.wait();
+				} catch (InterruptedException e) {
+				}
+			}
+			_admin_thread_is_active = true;
+			while(num_app_threads() != 0)
+			{
+				try {
+					_mutex.wait();
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+	}
+
+	public void exitLockerThread()
+	{
+		synchronized(_mutex)
+		{
+			_admin_thread_is_active = false;
+			_admin_requests.decrementAndGet();
+			_mutex.notifyAll();
+		}
+	}
+
+	private long num_app_threads()
+	{
+		long n = 0;
+		for(int i = 0;i < _num_stripes;i++)
+			n += _readers.get(i * PAD);
+		return n;
+	}
+
+	private void wake_admin()
+	{
+		synchronized(_mutex)
+		{
+			_mutex.notifyAll();
+		}
+	}
+
+	private void wait_for_admins()
+	{
+		synchronized(_mutex)
+		{
+			while(_admin_requests.get() != 0)
+			{
+				try {
+					_mutex.wait();
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+	}
+
+	private class app_thread
+	{
+		private int stripe;
+		private int depth;
+
+		private app_thread(long thread_id)
+		{
+			int h  = (int)(thread_id ^ (thread_id >>> 32));
+			h 	  *= 0x9E3779B9;
+			stripe = (h >>> 16) & (_num_stripes - 1);
+			depth  = 0;
+		}
+	}
+}
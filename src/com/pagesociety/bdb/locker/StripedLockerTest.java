@@ -0,0 +1,193 @@
+package com.pagesociety.bdb.locker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* checks the rules StripedLocker shares with AdminLocker. app threads, some
+ * of them reentering, and admin threads go at the locker together and every
+ * entry checks that no admin is in with an app thread and that there is
+ * never more than one admin. AdminLocker runs the same mix as the
+ * reference, without the reentering since it would wait on an admin that
+ * is waiting on it. then the handoffs one at a time. an admin waits for the app
+ * thread that is in, an app thread that is already in gets in again while
+ * an admin is waiting, and the admin gets in once it leaves. a thread that
+ * is still stuck after the timeout fails the run.
+ *
+ * java com.pagesociety.bdb.locker.StripedLockerTest [threads] [millis_per_run]
+ */
+public class StripedLockerTest
+{
+	private static final long TIMEOUT = 10000;
+
+	public static void main(String[] args) throws Exception
+	{
+		int num_threads = (args.length > 0)?Integer.parseInt(args[0]):Runtime.getRuntime().availableProcessors() * 2;
+		long millis 	= (args.length > 1)?Long.parseLong(args[1]):2000;
+		System.out.println("StripedLockerTest THREADS: "+num_threads+" MILLIS PER RUN: "+millis);
+		System.out.println("AdminLocker "+check_exclusion(new AdminLocker(), num_threads, millis, false));
+		System.out.println("StripedLocker "+check_exclusion(new StripedLocker(), num_threads, millis, true));
+		check_handoff(new StripedLocker());
+		System.out.println("StripedLockerTest OK");
+	}
+
+	private static String check_exclusion(final Locker locker,int num_threads,long millis,boolean reentrant) throws Exception
+	{
+		locker.init(null);
+		final AtomicBoolean done 		= new AtomicBoolean(false);
+		final AtomicInteger apps_in 	= new AtomicInteger(0);
+		final AtomicInteger admins_in 	= new AtomicInteger(0);
+		final AtomicLong app_entries 	= new AtomicLong(0);
+		final AtomicLong admin_entries 	= new AtomicLong(0);
+		final AtomicLong violations 	= new AtomicLong(0);
+		final CountDownLatch start 		= new CountDownLatch(1);
+		Thread[] threads = new Thread[num_threads + 2];
+		for(int i = 0;i < threads.length;i++)
+		{
+			final boolean admin = (i >= num_threads);
+			final boolean nest  = reentrant && (i % 2 == 1);
+			threads[i] = new Thread()
+			{
+				public void run()
+				{
+					try{
+						start.await();
+					}catch(InterruptedException ie)
+					{
+						return;
+					}
+					while(!done.get())
+					{
+						if(admin)
+						{
+							locker.enterLockerThread();
+							try{
+								if(admins_in.incrementAndGet() != 1 || apps_in.get() != 0)
+									violations.incrementAndGet();
+								Thread.yield();
+								admins_in.decrementAndGet();
+								admin_entries.incrementAndGet();
+							}finally
+							{
+								locker.exitLockerThread();
+							}
+							try{
+								Thread.sleep(1);
+							}catch(InterruptedException ie)
+							{
+							}
+							continue;
+						}
+						locker.enterAppThread();
+						try{
+							apps_in.incrementAndGet();
+							if(admins_in.get() != 0)
+								violations.incrementAndGet();
+							if(nest)
+							{
+								locker.enterAppThread();
+								if(admins_in.get() != 0)
+									violations.incrementAndGet();
+								locker.exitAppThread();
+							}
+							apps_in.decrementAndGet();
+							app_entries.incrementAndGet();
+						}finally
+						{
+							locker.exitAppThread();
+						}
+					}
+				}
+			};
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		start.countDown();
+		Thread.sleep(millis);
+		done.set(true);
+		for(int i = 0;i < threads.length;i++)
+			join(threads[i], "EXCLUSION RUN OF "+locker.getClass().getSimpleName());
+
+		check(violations.get() == 0, locker.getClass().getSimpleName()+" LET AN APP THREAD IN WITH AN ADMIN "+violations.get()+" TIMES");
+		check(app_entries.get() > 0, locker.getClass().getSimpleName()+" NEVER LET AN APP THREAD IN");
+		check(admin_entries.get() > 0, locker.getClass().getSimpleName()+" NEVER LET AN ADMIN IN");
+		return "APP ENTRIES: "+app_entries.get()+" ADMIN ENTRIES: "+admin_entries.get();
+	}
+
+	private static void check_handoff(final Locker locker) throws Exception
+	{
+		locker.init(null);
+		final CountDownLatch app_in 		= new CountDownLatch(1);
+		final CountDownLatch app_may_leave 	= new CountDownLatch(1);
+		final AtomicBoolean reentered 		= new AtomicBoolean(false);
+		final AtomicBoolean admin_in 		= new AtomicBoolean(false);
+
+		Thread app = new Thread()
+		{
+			public void run()
+			{
+				locker.enterAppThread();
+				app_in.countDown();
+				try{
+					app_may_leave.await();
+				}catch(InterruptedException ie)
+				{
+				}
+				/* an admin is waiting on us. this must not wait on it */
+				locker.enterAppThread();
+				reentered.set(true);
+				locker.exitAppThread();
+				locker.exitAppThread();
+			}
+		};
+		Thread admin = new Thread()
+		{
+			public void run()
+			{
+				locker.enterLockerThread();
+				admin_in.set(true);
+				locker.exitLockerThread();
+			}
+		};
+		app.setDaemon(true);
+		admin.setDaemon(true);
+
+		app.start();
+		check(app_in.await(TIMEOUT, TimeUnit.MILLISECONDS), "APP THREAD NEVER GOT IN");
+		admin.start();
+		Thread.sleep(200);
+		check(!admin_in.get(), "ADMIN GOT IN WHILE AN APP THREAD WAS IN");
+		app_may_leave.countDown();
+		join(app, "REENTRY WITH AN ADMIN WAITING");
+		check(reentered.get(), "APP THREAD DID NOT GET BACK IN");
+		join(admin, "ADMIN AFTER THE APP THREAD LEFT");
+		check(admin_in.get(), "ADMIN NEVER GOT IN");
+
+		/* and app threads get in again once the admin is gone */
+		Thread after = new Thread()
+		{
+			public void run()
+			{
+				locker.enterAppThread();
+				locker.exitAppThread();
+			}
+		};
+		after.setDaemon(true);
+		after.start();
+		join(after, "APP THREAD AFTER THE ADMIN LEFT");
+	}
+
+	private static void join(Thread t,String what) throws InterruptedException
+	{
+		t.join(TIMEOUT);
+		check(!t.isAlive(), what+" IS STUCK");
+	}
+
+	private static void check(boolean ok,String message)
+	{
+		if(!ok)
+			throw new RuntimeException("StripedLockerTest FAILED: "+message);
+	}
+}
@@ -44,7 +44,19 @@ public class EntityRelationshipDefinition implements java.io.Serializable
 	 * Many to many cardinality.
 	 */
 	public static final int TYPE_MANY_TO_MANY = 0x04;
+	/**
+	 * The "many" side is kept as a list in each record. This is the default.
+	 */
+	public static final int STORAGE_LIST = 0x00;
+	/**
+	 * The "many" side is kept in an edge table keyed by the id of the entity
+	 * holding the list. Relating two entities does not rewrite the record
+	 * holding the list and the list is read lazily. Fields stored this way
+	 * cannot be indexed.
+	 */
+	public static final int STORAGE_EDGE_TABLE = 0x01;
 	private int _type;
+	private int _storage = STORAGE_LIST;
 	private String _originating_entity = null;
 	private String _originating_entity_field = null;
 	private String _target_entity = null;
@@ -75,6 +87,21 @@ public class EntityRelationshipDefinition implements java.io.Serializable
 		_target_entity_field = target_entity_field;
 	}
 
+	/**
+	 * Constructs a relationship definition with the given storage for its
+	 * "many" side.
+	 *
+	 * @param storage
+	 *            STORAGE_LIST or STORAGE_EDGE_TABLE.
+	 */
+	public EntityRelationshipDefinition(String originating_entity,
+			String originating_entity_field, int type, String target_entity,
+			String target_entity_field, int storage)
+	{
+		this(originating_entity, originating_entity_field, type, target_entity, target_entity_field);
+		_storage = storage;
+	}
+
 	/**
 	 * Returns the cardinality of the entity relationship.
 	 *
@@ -86,6 +113,27 @@ public class EntityRelationshipDefinition implements java.io.Serializable
 		return _type;
 	}
 
+	/**
+	 * Returns how the "many" side of the relationship is stored.
+	 *
+	 * @return STORAGE_LIST or STORAGE_EDGE_TABLE.
+	 */
+	public int getStorage()
+	{
+		return _storage;
+	}
+
+	/**
+	 * Sets how the "many" side of the relationship is stored.
+	 *
+	 * @param storage
+	 *            STORAGE_LIST or STORAGE_EDGE_TABLE.
+	 */
+	public void setStorage(int storage)
+	{
+		_storage = storage;
+	}
+
 	/**
 	 * Returns the entity that was specified as 'originating'.
 	 *
@@ -161,6 +209,8 @@ public class EntityRelationshipDefinition implements java.io.Serializable
 		b.append("\toriginating_entity_field:\t" + _originating_entity_field + "\n");
 		b.append("\ttarget_entity:\t" + _target_entity + "\n");
 		b.append("\ttarget_entity_field:\t" + _target_entity_field + "\n");
+		if(_storage == STORAGE_EDGE_TABLE)
+			b.append("\tstorage:\tedge table\n");
 		return b.toString();
 	}
 
@@ -183,7 +233,7 @@ public class EntityRelationshipDefinition implements java.io.Serializable
 			type = EntityRelationshipDefinition.TYPE_ONE_TO_MANY;
 			break;
 		}
-		return new EntityRelationshipDefinition(_target_entity, _target_entity_field, type, _originating_entity, _originating_entity_field);
+		return new EntityRelationshipDefinition(_target_entity, _target_entity_field, type, _originating_entity, _originating_entity_field, _storage);
 	}
 
 
@@ -37,6 +37,8 @@ public abstract class PersistenceAdapter implements PersistentStore
 	public void insertEntities(List<Entity> entities) throws PersistenceException{}
 	public Entity getEntityById(String entity, long id)throws PersistenceException{return null;}
 	public Entity getEntityById(int transaction_id,String entity, long id)throws PersistenceException{return null;}
+	public List<Entity> getEntitiesByIds(String entity, long[] ids)throws PersistenceException{return null;}
+	public List<Entity> getEntitiesByIds(int transaction_id,String entity, long[] ids)throws PersistenceException{return null;}
 	public void deleteEntity(Entity e) throws PersistenceException{}
 	public void deleteEntity(int transaction_id,Entity e) throws PersistenceException{}
 	public int truncate(String entity_type, boolean count)throws PersistenceException{return 0;}
@@ -65,7 +65,8 @@ import java.util.Map;
  * filled. This means that references to other entities should not be retrieved
  * by default. The purpose for this is to quantify the reads from the store. It
  * requires the store user to call <code>fillReferenceFields</code> to expand
- * references.
+ * references, or to name the references a query should expand with
+ * <code>Query.expand</code>.
  * </p>
  *
  * <h3>Queries</h3>
@@ -366,6 +367,21 @@ public interface PersistentStore
 	public abstract Entity getEntityById(String entity, long id) throws PersistenceException;
 	public abstract Entity getEntityById(int transaction_id,String entity, long id) throws PersistenceException;
 
+	/**
+	 * Restores a batch of entities of one type by id. The entities are
+	 * returned in the order of the supplied ids. Ids that do not exist come
+	 * back as null entries in the list.
+	 *
+	 * @param entity
+	 *            The name of an entity definition.
+	 * @param ids
+	 *            The ids of the entities.
+	 * @return A list the same size as ids.
+	 * @throws PersistenceException
+	 */
+	public abstract List<Entity> getEntitiesByIds(String entity, long[] ids) throws PersistenceException;
+	public abstract List<Entity> getEntitiesByIds(int transaction_id,String entity, long[] ids) throws PersistenceException;
+
 	/**
 	 * Deletes an entity record from the store. This method is not recursive.
 	 * The programmer must delete contained references explicitly, unless the
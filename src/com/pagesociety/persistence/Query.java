@@ -117,6 +117,7 @@ public class Query
 	private StringBuffer _cache_key_buf;
 	private String		 _cache_key_str;
 	private boolean 	 _complex;
+	private List<String> _expand_paths = new ArrayList<String>();
 	public Query(String return_type)
 	{
 		setup_root_node(return_type);
@@ -234,6 +235,7 @@ public class Query
 		_root_node.attributes.put(ATT_INDEX_NAME, null);
 		_root_node.attributes.put(ATT_ORDER_FIELDNAME, null);		
 		_root_node.attributes.put(ATT_CACHE_RESULTS, true);				
+		_root_node.attributes.put(ATT_NEXT_RESULTS_TOKEN, null);
 	}
 
 	public boolean isComplex()
@@ -357,6 +359,20 @@ public class Query
 		current_block().attributes.put(ATT_CACHE_RESULTS, b);
 		return this;
 	}
+
+	/* fill the reference field named by path on every entity the query
+	 * returns. a path can go through references. "author.company" fills
+	 * author and then company on the authors. the store does it while it
+	 * runs the query, in the same transaction, with one batched fetch per
+	 * level instead of a fillReferenceFields call on the page afterwards.
+	 * it is not part of the cache key since only ids are cached.
+	 */
+	public Query expand(String path)
+	{
+		if(!_expand_paths.contains(path))
+			_expand_paths.add(path);
+		return this;
+	}
 	
 	public void ret()
 	{
@@ -393,6 +409,16 @@ public class Query
 		_root_node.attributes.put(ATT_OFFSET,offset);
 		return this;
 	}
+
+	/* pass back QueryResult.getNextResultsToken() to pick up where the last
+	 * page left off. the store seeks to the next row instead of skipping
+	 * offset rows. offset is ignored when a token is set.
+	 */
+	public Query setNextResultsToken(Object token)
+	{
+		_root_node.attributes.put(ATT_NEXT_RESULTS_TOKEN,token);
+		return this;
+	}
 	
 	//canonical values for these parameters. used for cacheing strategy
 	public int getPageSize()
@@ -404,6 +430,11 @@ public class Query
 	{
 		return (Integer)_root_node.attributes.get(ATT_OFFSET);
 	}
+
+	public Object getNextResultsToken()
+	{
+		return _root_node.attributes.get(ATT_NEXT_RESULTS_TOKEN);
+	}
 	
 	public String getReturnType()
 	{
@@ -414,6 +445,11 @@ public class Query
 	{
 		return (Boolean)_root_node.attributes.get(ATT_CACHE_RESULTS);
 	}
+
+	public List<String> getExpandPaths()
+	{
+		return _expand_paths;
+	}
 	
 	public QueryNode getRootNode()
 	{
@@ -594,6 +630,7 @@ public class Query
 	public static final String ATT_ORDER_FIELDNAME		  	= "order_field";
 	public static final String ATT_ORDER_ORDER			  	= "order_order";
 	public static final String ATT_CACHE_RESULTS 			= "cache_results";
+	public static final String ATT_NEXT_RESULTS_TOKEN 		= "next_results_token";
 	public static final String ATT_ITER_OP 	  				= "iter_op";
 	public static final String ATT_PREDICATE_ITER_USER_PARAM 	 = "p_user_param";
 	public static final String ATT_RANGE_ITER_USER_BOTTOM_PARAM = "r_user_bottom_param";
@@ -6,6 +6,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.TreeSet;
 
 import org.apache.log4j.BasicConfigurator;
 
@@ -83,6 +84,7 @@ public class QueryTest {
 		//range_test();
 		//intersect_test();
 		//union_test();
+		//leapfrog_test();
 		//pssql_test();
 		//concurrency_test();
 		//untyped_reference_test();
@@ -1127,6 +1129,183 @@ public class QueryTest {
 		System.out.println("UNION PREDICATE LT GIGI AND GT Daya ORDERED BY LastName " + t2 + " RESULT SIZE=" + result.size()+" RPS:"+((float)1000/t2*result.size()));
 	}
 
+	/* intersections of EQ and plain SETCONTAINSALL children leap on open
+	 * cursors instead of reading them in full. everything here is checked
+	 * against the old way of getting the same answer: each predicate run as
+	 * a query of its own, read in full through its index, and the sets
+	 * combined here. SETCONTAINSALL is also checked against filtering every
+	 * author. counts have to match too.
+	 */
+	public void leapfrog_test() throws PersistenceException
+	{
+		insert_entity_instances(500);
+		addSingleFieldEntityIndex("Author", "FirstName", EntityIndex.TYPE_SIMPLE_SINGLE_FIELD_INDEX, "byFirstName", null);
+		addSingleFieldEntityIndex("Author", "LastName", EntityIndex.TYPE_SIMPLE_SINGLE_FIELD_INDEX, "byLastName", null);
+		addSingleFieldEntityIndex("Author", "WorkflowStatus", EntityIndex.TYPE_SIMPLE_SINGLE_FIELD_INDEX, "byWorkflowStatus", null);
+		addSingleFieldEntityIndex("Author", "Owners", EntityIndex.TYPE_ARRAY_MEMBERSHIP_INDEX, "byOwnerSubset", null);
+		addMultiFieldEntityIndex("Author", new String[]{"Owners","WorkflowStatus"}, EntityIndex.TYPE_MULTIFIELD_ARRAY_MEMBERSHIP_INDEX, "byOwnersByWorkflowStatus", null);
+
+		Query q = new Query("Author");
+		q.idx(Query.PRIMARY_IDX);
+		q.eq(Query.VAL_GLOB);
+		List<Entity> all = leapfrog_run(q).getEntities();
+
+		int checked = 0;
+		for(int i = 0;i < lastNames.length;i++)
+		{
+			String owner_a = lastNames[i];
+			String owner_b = lastNames[(i + 1) % lastNames.length];
+			List<String> owners = new ArrayList<String>();
+			owners.add(owner_a);
+			owners.add(owner_b);
+
+			/* the cursor walk of SETCONTAINSALL in both key orders */
+			TreeSet<Long> expected = new TreeSet<Long>();
+			TreeSet<Long> expected_published = new TreeSet<Long>();
+			for(Entity e:all)
+			{
+				List<?> o = (List<?>)e.getAttribute("Owners");
+				if(o == null || !o.contains(owner_a) || !o.contains(owner_b))
+					continue;
+				expected.add(e.getId());
+				if("Published".equals(e.getAttribute("WorkflowStatus")))
+					expected_published.add(e.getId());
+			}
+			q = new Query("Author");
+			q.idx("byOwnerSubset");
+			q.setContainsAll(owners);
+			leapfrog_check("SETCONTAINSALL "+owners, q, expected);
+			List<String> reversed = new ArrayList<String>();
+			reversed.add(owner_b);
+			reversed.add(owner_a);
+			q = new Query("Author");
+			q.idx("byOwnerSubset");
+			q.setContainsAll(reversed);
+			leapfrog_check("SETCONTAINSALL "+reversed, q, expected);
+			q = new Query("Author");
+			q.idx("byOwnersByWorkflowStatus");
+			q.setContainsAll(q.list(owners,"Published"));
+			leapfrog_check("SETCONTAINSALL "+owners+",Published", q, expected_published);
+			q = new Query("Author");
+			q.idx("byOwnersByWorkflowStatus");
+			q.setContainsAll(q.list(owners,Query.VAL_GLOB));
+			leapfrog_check("SETCONTAINSALL "+owners+",GLOB", q, expected);
+
+			for(int j = 0;j < firstNames.length;j += 3)
+			{
+				String first = firstNames[j];
+				TreeSet<Long> by_first 	= leapfrog_ids("byFirstName", Query.EQ, first);
+				TreeSet<Long> by_last 	= leapfrog_ids("byLastName", Query.EQ, owner_a);
+				TreeSet<Long> by_last_b = leapfrog_ids("byLastName", Query.EQ, owner_b);
+				TreeSet<Long> published = leapfrog_ids("byWorkflowStatus", Query.EQ, "Published");
+				TreeSet<Long> gt_first 	= leapfrog_ids("byFirstName", Query.GT, first);
+
+				/* two EQ cursors */
+				q = new Query("Author");
+				q.startIntersection();
+					q.idx("byFirstName");
+					q.eq(first);
+					q.idx("byLastName");
+					q.eq(owner_a);
+				q.endIntersection();
+				expected = new TreeSet<Long>(by_first);
+				expected.retainAll(by_last);
+				leapfrog_check(first+" AND "+owner_a, q, expected);
+
+				/* EQ cursors and a SETCONTAINSALL cursor */
+				q = new Query("Author");
+				q.startIntersection();
+					q.idx("byWorkflowStatus");
+					q.eq("Published");
+					q.idx("byOwnerSubset");
+					q.setContainsAll(owners);
+					q.idx("byFirstName");
+					q.eq(first);
+				q.endIntersection();
+				expected = new TreeSet<Long>(published);
+				expected.retainAll(by_first);
+				TreeSet<Long> owned = new TreeSet<Long>();
+				for(Entity e:all)
+				{
+					List<?> o = (List<?>)e.getAttribute("Owners");
+					if(o != null && o.containsAll(owners))
+						owned.add(e.getId());
+				}
+				expected.retainAll(owned);
+				leapfrog_check("Published AND "+owners+" AND "+first, q, expected);
+
+				/* a cursor, a range read in full and a union read last */
+				q = new Query("Author");
+				q.startIntersection();
+					q.idx("byWorkflowStatus");
+					q.eq("Published");
+					q.startUnion();
+						q.idx("byLastName");
+						q.eq(owner_a);
+						q.eq(owner_b);
+					q.endUnion();
+					q.idx("byFirstName");
+					q.gt(first);
+				q.endIntersection();
+				expected = new TreeSet<Long>(by_last);
+				expected.addAll(by_last_b);
+				expected.retainAll(published);
+				expected.retainAll(gt_first);
+				leapfrog_check("Published AND ("+owner_a+" OR "+owner_b+") AND GT "+first, q, expected);
+
+				/* an empty cursor ends it */
+				q = new Query("Author");
+				q.startIntersection();
+					q.idx("byFirstName");
+					q.gt(first);
+					q.idx("byLastName");
+					q.eq("Nobody");
+				q.endIntersection();
+				leapfrog_check("GT "+first+" AND Nobody", q, new TreeSet<Long>());
+				checked += 4;
+			}
+			checked += 4;
+		}
+		System.out.println("LEAPFROG OK. "+checked+" QUERIES MATCHED");
+	}
+
+	private QueryResult leapfrog_run(Query q) throws PersistenceException
+	{
+		q.pageSize(Query.ALL_RESULTS);
+		q.cacheResults(false);
+		return _store.executeQuery(q);
+	}
+
+	/* one predicate on its own. no intersection so it is read in full */
+	private TreeSet<Long> leapfrog_ids(String index_name,int op,Object val) throws PersistenceException
+	{
+		Query q = new Query("Author");
+		q.idx(index_name);
+		if(op == Query.EQ)
+			q.eq(val);
+		else
+			q.gt(val);
+		TreeSet<Long> ids = new TreeSet<Long>();
+		for(Entity e:leapfrog_run(q).getEntities())
+			ids.add(e.getId());
+		return ids;
+	}
+
+	private void leapfrog_check(String what,Query q,TreeSet<Long> expected) throws PersistenceException
+	{
+		TreeSet<Long> got = new TreeSet<Long>();
+		List<Entity> results = leapfrog_run(q).getEntities();
+		for(Entity e:results)
+			got.add(e.getId());
+		if(got.size() != results.size())
+			throw new RuntimeException("LEAPFROG FAILED: "+what+" GAVE DUPLICATES "+results.size()+" RESULTS "+got.size()+" IDS");
+		if(!got.equals(expected))
+			throw new RuntimeException("LEAPFROG FAILED: "+what+" GAVE "+got+" EXPECTED "+expected);
+		int c = _store.count(q);
+		if(c != expected.size())
+			throw new RuntimeException("LEAPFROG FAILED: "+what+" COUNTED "+c+" EXPECTED "+expected.size());
+	}
+
 	public void single_paging_predicate_test() throws PersistenceException
 	{
 		insert_entity_instances(500);
@@ -461,6 +461,16 @@ public class SqlStore implements PersistentStore
 		throw new PersistenceException("SqlStore.getEntityById NOT IMPLEMENTED");
 	}
 
+	public List<Entity> getEntitiesByIds(String type, long[] ids) throws PersistenceException
+	{
+		throw new PersistenceException("SqlStore.getEntitiesByIds NOT IMPLEMENTED");
+	}
+
+	public List<Entity> getEntitiesByIds(int transaction_id,String type, long[] ids) throws PersistenceException
+	{
+		throw new PersistenceException("SqlStore.getEntitiesByIds NOT IMPLEMENTED");
+	}
+
 	public EntityDefinition getEntityDefinition(String entity_name)
 			throws PersistenceException
 	{